@@ -31,6 +31,7 @@ package ioio.lib.android.bluetooth;
 import ioio.lib.api.IOIOConnection;
 import ioio.lib.api.exception.ConnectionLostException;
 import ioio.lib.impl.FixedReadBufferedInputStream;
+import ioio.lib.util.ReconnectBackoff;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
@@ -47,6 +48,11 @@ import android.util.Log;
 @TargetApi(5)
 public class BluetoothIOIOConnection implements IOIOConnection {
 	private static final String TAG = "BluetoothIOIOConnection";
+	// A link which is just glitching is usually back within a few hundred ms,
+	// so start retrying quickly, but not faster than the old fixed delay once
+	// the device seems to be gone.
+	private static final long INITIAL_RETRY_MS = 50;
+	private static final long MAX_RETRY_MS = 1000;
 	private BluetoothSocket socket_ = null;
 	private boolean disconnect_ = false;
 	private final BluetoothDevice device_;
@@ -74,6 +80,8 @@ public class BluetoothIOIOConnection implements IOIOConnection {
 			}
 		}
 		// keep trying to connect as long as we're not aborting
+		final ReconnectBackoff backoff = new ReconnectBackoff(INITIAL_RETRY_MS,
+				MAX_RETRY_MS);
 		while (true) {
 			try {
 				Log.v(TAG, "Attempting to connect to Bluetooth device: " + name_);
@@ -88,7 +96,7 @@ public class BluetoothIOIOConnection implements IOIOConnection {
 					throw new ConnectionLostException(e);
 				}
 				try {
-					Thread.sleep(1000);
+					backoff.sleep();
 				} catch (InterruptedException e1) {
 				}
 			}
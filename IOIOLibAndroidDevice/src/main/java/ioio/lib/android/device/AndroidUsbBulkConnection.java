@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.android.device;
+
+import ioio.lib.spi.Log;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+/**
+ * {@link UsbBulkConnection} over a {@link UsbDeviceConnection}.
+ * <p>
+ * On API-26 and up, reads are {@link UsbRequest}s, so that several can be in
+ * flight at once. They are queued with {@code UsbRequest.queue(ByteBuffer)},
+ * the only variant which reports how much was read, by advancing the
+ * buffer's position. The older {@code queue(ByteBuffer, int)} never moves it,
+ * so below API-26 reads are synchronous bulk transfers instead.
+ * {@code queue(ByteBuffer)} is looked up at runtime, since this library is
+ * compiled against an older API.
+ * <p>
+ * Writes are synchronous bulk transfers, made straight from the caller's
+ * buffer at any offset where the platform supports it (API-18 and up), and
+ * through a copy otherwise.
+ * <p>
+ * {@link UsbDeviceConnection#requestWait()} returns any request completed on
+ * the connection, so the IN endpoint must not be used with requests by
+ * anyone else.
+ */
+@TargetApi(12)
+class AndroidUsbBulkConnection implements UsbBulkConnection {
+	private static final String TAG = "AndroidUsbBulkConnection";
+	// UsbRequest.queue(ByteBuffer), null below API-26.
+	private static final Method QUEUE_METHOD = findQueueMethod();
+
+	private final UsbDeviceConnection connection_;
+	private final UsbEndpoint epIn_;
+	private final UsbEndpoint epOut_;
+	// Requests not currently queued, reused across reads.
+	private final List<UsbRequest> freeRequests_ = new ArrayList<UsbRequest>();
+	// Only used on platforms without offset support in bulkTransfer.
+	private final byte[] writeBuffer_ = new byte[1024];
+
+	AndroidUsbBulkConnection(UsbDeviceConnection connection, UsbEndpoint epIn, UsbEndpoint epOut) {
+		connection_ = connection;
+		epIn_ = epIn;
+		epOut_ = epOut;
+	}
+
+	@Override
+	public synchronized int write(byte[] buffer, int offset, int length) {
+		if (offset == 0) {
+			return connection_.bulkTransfer(epOut_, buffer, length,
+					Streams.TRANSFER_TIMEOUT_MILLIS);
+		}
+		if (Build.VERSION.SDK_INT >= 18) {
+			return bulkTransferWithOffset(buffer, offset, length);
+		}
+		// The API won't let us write from a non-0 offset, so we have to copy.
+		final int copied = Math.min(length, writeBuffer_.length);
+		System.arraycopy(buffer, offset, writeBuffer_, 0, copied);
+		return connection_.bulkTransfer(epOut_, writeBuffer_, copied,
+				Streams.TRANSFER_TIMEOUT_MILLIS);
+	}
+
+	@TargetApi(18)
+	private int bulkTransferWithOffset(byte[] buffer, int offset, int length) {
+		return connection_.bulkTransfer(epOut_, buffer, offset, length,
+				Streams.TRANSFER_TIMEOUT_MILLIS);
+	}
+
+	@Override
+	public int read(byte[] buffer, int length) {
+		return connection_.bulkTransfer(epIn_, buffer, length, Streams.TRANSFER_TIMEOUT_MILLIS);
+	}
+
+	@Override
+	public boolean canQueueReads() {
+		return QUEUE_METHOD != null;
+	}
+
+	@Override
+	public boolean queueRead(ByteBuffer buffer) {
+		UsbRequest request;
+		synchronized (freeRequests_) {
+			request = freeRequests_.isEmpty() ? null : freeRequests_.remove(freeRequests_.size() - 1);
+		}
+		if (request == null) {
+			request = new UsbRequest();
+			if (!request.initialize(connection_, epIn_)) {
+				return false;
+			}
+		}
+		request.setClientData(buffer);
+		boolean queued;
+		try {
+			queued = (Boolean) QUEUE_METHOD.invoke(request, buffer);
+		} catch (Exception e) {
+			Log.e(TAG, "Failed to queue a read", e);
+			queued = false;
+		}
+		if (!queued) {
+			request.close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public ByteBuffer waitRead() {
+		final UsbRequest request = connection_.requestWait();
+		if (request == null) {
+			return null;
+		}
+		final ByteBuffer buffer = (ByteBuffer) request.getClientData();
+		request.setClientData(null);
+		synchronized (freeRequests_) {
+			freeRequests_.add(request);
+		}
+		return buffer;
+	}
+
+	private static Method findQueueMethod() {
+		if (Build.VERSION.SDK_INT < 26) {
+			return null;
+		}
+		try {
+			return UsbRequest.class.getMethod("queue", ByteBuffer.class);
+		} catch (NoSuchMethodException e) {
+			Log.w(TAG, "UsbRequest.queue(ByteBuffer) not found, reads will be synchronous");
+			return null;
+		}
+	}
+}
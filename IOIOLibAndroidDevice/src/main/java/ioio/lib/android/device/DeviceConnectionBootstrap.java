@@ -30,7 +30,6 @@ package ioio.lib.android.device;
 
 import ioio.lib.api.IOIOConnection;
 import ioio.lib.api.exception.ConnectionLostException;
-import ioio.lib.impl.FixedReadBufferedInputStream;
 import ioio.lib.spi.IOIOConnectionBootstrap;
 import ioio.lib.spi.IOIOConnectionFactory;
 import ioio.lib.spi.NoRuntimeSupportException;
@@ -407,11 +406,13 @@ public class DeviceConnectionBootstrap extends BroadcastReceiver implements
 			if (connection_.claimInterface(dataInterface_, true)) {
 				// Raise DTR.
 				if (setDTR(true)) {
-					// Create streams. Buffer them with a reasonable buffer sizes.
-					inputStream_ = new FixedReadBufferedInputStream(new Streams.DeviceInputStream(
-							connection_, epIn_), 1024);
-					outputStream_ = new BufferedOutputStream(new Streams.DeviceOutputStream(
-							connection_, epOut_), 1024);
+					// Create streams. The input stream does its own buffering, the
+					// output is buffered with a reasonable buffer size.
+					UsbBulkConnection bulk = new AndroidUsbBulkConnection(connection_, epIn_,
+							epOut_);
+					inputStream_ = new Streams.DeviceInputStream(bulk);
+					outputStream_ = new BufferedOutputStream(new Streams.DeviceOutputStream(bulk),
+							1024);
 					return true;
 				} else {
 					Log.e(TAG, "Failed to set DTR to true");
@@ -31,10 +31,9 @@ package ioio.lib.android.device;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import android.annotation.TargetApi;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
 
 /**
  * Wrappers around USB bulk endpoints, which expose them as I/O streams.
@@ -50,19 +49,73 @@ public class Streams {
 	// we should choose, so as long as it works - great.
 	static final int TRANSFER_TIMEOUT_MILLIS = 0;
 
+	/** Number of reads kept in flight by default. */
+	static final int DEFAULT_NUM_READS = 4;
+	/** Default size of each read, a multiple of the full speed bulk packet size. */
+	static final int DEFAULT_READ_SIZE = 1024;
+
+	/**
+	 * Reads from the IN endpoint, keeping several reads queued at all times
+	 * where the connection supports it (see
+	 * {@link UsbBulkConnection#canQueueReads()}).
+	 * <p>
+	 * With a single synchronous transfer, nothing is read between the time a
+	 * transfer completes and the time the next one is issued, which is whenever
+	 * the protocol thread gets around to it. With several reads in flight, the
+	 * host controller always has a buffer to read into, and the protocol
+	 * thread consumes completed buffers while the next ones fill. Each buffer
+	 * is requeued as soon as it has been consumed, and data is copied from it
+	 * straight to the caller, at any offset.
+	 * <p>
+	 * Otherwise, each read is a synchronous transfer of a full buffer, which
+	 * is then consumed the same way.
+	 * <p>
+	 * This stream buffers, so it does not need wrapping in a buffered stream.
+	 */
 	public static class DeviceInputStream extends InputStream {
-		private final byte[] buffer_ = new byte[1024];
-		private final UsbDeviceConnection connection_;
-		private final UsbEndpoint ep_;
+		private final UsbBulkConnection connection_;
+		// Reads in flight, when reads are queued.
+		private final ByteBuffer[] buffers_;
+		// The buffer of synchronous reads, when they are not.
+		private final ByteBuffer readBuffer_;
+		// The completed read being consumed, null if none.
+		private ByteBuffer current_ = null;
+		private boolean started_ = false;
 
-		DeviceInputStream(UsbDeviceConnection connection, UsbEndpoint ep) {
-			this.connection_ = connection;
-			this.ep_ = ep;
+		DeviceInputStream(UsbBulkConnection connection) {
+			this(connection, DEFAULT_NUM_READS, DEFAULT_READ_SIZE);
+		}
+
+		/**
+		 * Constructor.
+		 *
+		 * @param connection
+		 *            The connection to read from.
+		 * @param numReads
+		 *            The number of reads to keep in flight.
+		 * @param readSize
+		 *            The size of each read, in bytes.
+		 */
+		DeviceInputStream(UsbBulkConnection connection, int numReads, int readSize) {
+			connection_ = connection;
+			if (connection.canQueueReads()) {
+				buffers_ = new ByteBuffer[numReads];
+				for (int i = 0; i < numReads; ++i) {
+					buffers_[i] = ByteBuffer.allocateDirect(readSize);
+				}
+				readBuffer_ = null;
+			} else {
+				buffers_ = null;
+				readBuffer_ = ByteBuffer.allocate(readSize);
+			}
 		}
 
 		@Override
-		public int read() throws IOException {
-			return read(buffer_, 0, 1) == 1 ? buffer_[0] : -1;
+		public synchronized int read() throws IOException {
+			if (!fillIfEmpty()) {
+				return -1;
+			}
+			return current_.get() & 0xFF;
 		}
 
 		@Override
@@ -72,33 +125,94 @@ public class Streams {
 
 		@Override
 		public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
-			if (offset == 0) {
-				return connection_.bulkTransfer(ep_, buffer, length, TRANSFER_TIMEOUT_MILLIS);
+			if (length == 0) {
+				return 0;
+			}
+			if (!fillIfEmpty()) {
+				return -1;
+			}
+			length = Math.min(length, current_.remaining());
+			current_.get(buffer, offset, length);
+			return length;
+		}
+
+		@Override
+		public synchronized int available() {
+			return current_ == null ? 0 : current_.remaining();
+		}
+
+		/**
+		 * Make sure there is data to consume in {@link #current_}, requeuing
+		 * consumed buffers and waiting for reads as needed.
+		 *
+		 * @return false if the connection has been closed.
+		 */
+		private boolean fillIfEmpty() throws IOException {
+			if (readBuffer_ != null) {
+				return readIfEmpty();
+			}
+			if (!started_) {
+				for (ByteBuffer buffer : buffers_) {
+					queue(buffer);
+				}
+				started_ = true;
+			}
+			while (current_ == null || !current_.hasRemaining()) {
+				if (current_ != null) {
+					queue(current_);
+					current_ = null;
+				}
+				final ByteBuffer completed = connection_.waitRead();
+				if (completed == null) {
+					return false;
+				}
+				completed.flip();
+				current_ = completed;
+			}
+			return true;
+		}
+
+		// Reads a full buffer at a time, since a bulk IN transfer into less
+		// than a packet loses the rest of the packet.
+		private boolean readIfEmpty() {
+			while (current_ == null || !current_.hasRemaining()) {
+				final int count = connection_.read(readBuffer_.array(), readBuffer_.capacity());
+				if (count < 0) {
+					return false;
+				}
+				readBuffer_.clear();
+				readBuffer_.limit(count);
+				current_ = readBuffer_;
+			}
+			return true;
+		}
+
+		private void queue(ByteBuffer buffer) throws IOException {
+			buffer.clear();
+			if (!connection_.queueRead(buffer)) {
+				throw new IOException("Couldn't read from USB");
 			}
-			// We have to go through an intermediate buffer and copy, since the API won't let us
-			// write to a non-0
-			// offset.
-			int readAmount = connection_.bulkTransfer(ep_, buffer_,
-					Math.min(length, buffer_.length), TRANSFER_TIMEOUT_MILLIS);
-			System.arraycopy(buffer_, 0, buffer, offset, readAmount);
-			return readAmount;
 		}
 	}
 
+	/**
+	 * Writes to the OUT endpoint, straight from the caller's buffer.
+	 * <p>
+	 * Each write is a synchronous transfer, so this should be wrapped in a
+	 * buffered stream, and flushed once per batch.
+	 */
 	public static class DeviceOutputStream extends OutputStream {
-		private final UsbDeviceConnection connection_;
-		private final UsbEndpoint ep_;
-		private final byte[] buffer_ = new byte[1024];
+		private final UsbBulkConnection connection_;
+		private final byte[] single_ = new byte[1];
 
-		DeviceOutputStream(UsbDeviceConnection connection, UsbEndpoint ep) {
+		DeviceOutputStream(UsbBulkConnection connection) {
 			this.connection_ = connection;
-			this.ep_ = ep;
 		}
 
 		@Override
 		public synchronized void write(int oneByte) throws IOException {
-			buffer_[0] = (byte) oneByte;
-			write(buffer_, 0, 1);
+			single_[0] = (byte) oneByte;
+			write(single_, 0, 1);
 		}
 
 		@Override
@@ -112,28 +226,12 @@ public class Streams {
 				throw new IOException("Count is too big");
 			}
 			while (count > 0) {
-				if (offset == 0) {
-					// This is an optimization: when the offset is 0, we can pass the original
-					// buffer and avoid a copy.
-					offset = connection_.bulkTransfer(ep_, buffer, count, TRANSFER_TIMEOUT_MILLIS);
-					if (offset < 0) {
-						throw new IOException("Couldn't write to USB");
-					}
-					count -= offset;
-				} else {
-					// We cannot write directly from the buffer, since the API won't let us use a
-					// non-0 offset.
-					// So we have to use an intermediate buffer and copy.
-					int copied = Math.min(count, buffer_.length);
-					System.arraycopy(buffer, offset, buffer_, 0, copied);
-					int written = connection_.bulkTransfer(ep_, buffer_, copied,
-							TRANSFER_TIMEOUT_MILLIS);
-					if (written < 0) {
-						throw new IOException("Couldn't write to USB");
-					}
-					offset += written;
-					count -= written;
+				final int written = connection_.write(buffer, offset, count);
+				if (written < 0) {
+					throw new IOException("Couldn't write to USB");
 				}
+				offset += written;
+				count -= written;
 			}
 		}
 	}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.android.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The USB operations {@link Streams} needs: a pair of bulk endpoints, one in
+ * each direction.
+ * <p>
+ * This is what the streams see of a {@link android.hardware.usb.UsbDeviceConnection}
+ * (see {@link AndroidUsbBulkConnection}). Keeping the Android classes behind
+ * it lets the streams be exercised without a device.
+ */
+interface UsbBulkConnection {
+	/**
+	 * Write to the OUT endpoint, blocking until done.
+	 *
+	 * @return The number of bytes written, or a negative number on failure.
+	 */
+	int write(byte[] buffer, int offset, int length);
+
+	/**
+	 * Read from the IN endpoint into the start of the buffer, blocking until
+	 * done.
+	 *
+	 * @return The number of bytes read, or a negative number on failure, e.g.
+	 *         the connection was closed.
+	 */
+	int read(byte[] buffer, int length);
+
+	/**
+	 * Whether {@link #queueRead(ByteBuffer)} and {@link #waitRead()} are
+	 * supported. If not, reads are made with {@link #read(byte[], int)}.
+	 */
+	boolean canQueueReads();
+
+	/**
+	 * Queue an asynchronous read from the IN endpoint into the buffer, of up to
+	 * its remaining bytes. Any number of reads may be queued, and they complete
+	 * in order.
+	 *
+	 * @return false on failure.
+	 */
+	boolean queueRead(ByteBuffer buffer);
+
+	/**
+	 * Wait for the oldest queued read to complete.
+	 *
+	 * @return The buffer of the completed read, with its position advanced
+	 *         past the data read, or null on failure, e.g. the connection was
+	 *         closed.
+	 */
+	ByteBuffer waitRead();
+}
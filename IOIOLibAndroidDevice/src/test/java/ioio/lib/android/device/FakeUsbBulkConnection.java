@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.android.device;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * A local stand-in for a device, for exercising {@link Streams} without USB.
+ * <p>
+ * Data given to {@link #feed(byte[])} completes the queued reads in order,
+ * like bulk IN transfers would, or the synchronous reads, when the fake is
+ * created without support for queued reads. Writes are collected for
+ * {@link #getWritten()}. Writes can be made to complete partially, with
+ * {@link #setMaxWriteSize(int)}, to exercise the retry path.
+ */
+class FakeUsbBulkConnection implements UsbBulkConnection {
+	private final boolean canQueueReads_;
+	private final Queue<ByteBuffer> queued_ = new LinkedList<ByteBuffer>();
+	private final Queue<ByteBuffer> completed_ = new LinkedList<ByteBuffer>();
+	private final Queue<byte[]> pending_ = new LinkedList<byte[]>();
+	private final ByteArrayOutputStream written_ = new ByteArrayOutputStream();
+	private int maxWriteSize_ = Integer.MAX_VALUE;
+	private int maxQueuedReads_ = 0;
+	private int writeCalls_ = 0;
+	private boolean closed_ = false;
+
+	FakeUsbBulkConnection(boolean canQueueReads) {
+		canQueueReads_ = canQueueReads;
+	}
+
+	/**
+	 * Send data from the device. Each call is one transfer, split over as
+	 * many reads as it takes. If no read is queued, it waits for one.
+	 */
+	synchronized void feed(byte[] data) {
+		pending_.add(data);
+		complete();
+	}
+
+	/** Fail all reads, as closing the real connection does. */
+	synchronized void close() {
+		closed_ = true;
+		notifyAll();
+	}
+
+	synchronized void setMaxWriteSize(int maxWriteSize) {
+		maxWriteSize_ = maxWriteSize;
+	}
+
+	/** Everything written so far. */
+	synchronized byte[] getWritten() {
+		return written_.toByteArray();
+	}
+
+	/** The number of write calls made. */
+	synchronized int getWriteCalls() {
+		return writeCalls_;
+	}
+
+	/** The largest number of reads that were queued at once. */
+	synchronized int getMaxQueuedReads() {
+		return maxQueuedReads_;
+	}
+
+	@Override
+	public synchronized int write(byte[] buffer, int offset, int length) {
+		if (closed_) {
+			return -1;
+		}
+		++writeCalls_;
+		final int count = Math.min(length, maxWriteSize_);
+		written_.write(buffer, offset, count);
+		return count;
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int length) {
+		while (pending_.isEmpty() && !closed_) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return -1;
+			}
+		}
+		if (closed_) {
+			return -1;
+		}
+		final byte[] data = pending_.remove();
+		final int count = Math.min(data.length, length);
+		System.arraycopy(data, 0, buffer, 0, count);
+		if (count < data.length) {
+			final byte[] rest = new byte[data.length - count];
+			System.arraycopy(data, count, rest, 0, rest.length);
+			((LinkedList<byte[]>) pending_).addFirst(rest);
+		}
+		return count;
+	}
+
+	@Override
+	public boolean canQueueReads() {
+		return canQueueReads_;
+	}
+
+	@Override
+	public synchronized boolean queueRead(ByteBuffer buffer) {
+		if (closed_) {
+			return false;
+		}
+		queued_.add(buffer);
+		maxQueuedReads_ = Math.max(maxQueuedReads_, queued_.size());
+		complete();
+		return true;
+	}
+
+	@Override
+	public synchronized ByteBuffer waitRead() {
+		while (completed_.isEmpty() && !closed_) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		return closed_ ? null : completed_.remove();
+	}
+
+	/** Move pending data into queued reads. */
+	private void complete() {
+		while (!pending_.isEmpty() && !queued_.isEmpty()) {
+			final byte[] data = pending_.remove();
+			int offset = 0;
+			do {
+				final ByteBuffer buffer = queued_.peek();
+				final int count = Math.min(data.length - offset, buffer.remaining());
+				buffer.put(data, offset, count);
+				offset += count;
+				completed_.add(queued_.remove());
+			} while (offset < data.length && !queued_.isEmpty());
+			if (offset < data.length) {
+				// Out of reads: the rest waits for the next one.
+				final byte[] rest = new byte[data.length - offset];
+				System.arraycopy(data, offset, rest, 0, rest.length);
+				((LinkedList<byte[]>) pending_).addFirst(rest);
+			}
+		}
+		notifyAll();
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.android.device;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * {@link Streams} over a {@link FakeUsbBulkConnection}, with queued reads and
+ * with synchronous ones.
+ */
+public class StreamsTest {
+	@Test(timeout = 5000)
+	public void queuedReadsKeepTransfersInOrder() throws Exception {
+		FakeUsbBulkConnection connection = new FakeUsbBulkConnection(true);
+		final InputStream in = new Streams.DeviceInputStream(connection, 3, 4);
+		final byte[][] read = new byte[1][];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					read[0] = readFully(in, 27);
+				} catch (IOException e) {
+				}
+			}
+		};
+		reader.start();
+		// All the reads are queued up front.
+		while (connection.getMaxQueuedReads() < 3) {
+			Thread.sleep(1);
+		}
+		// Larger than all the reads in flight together, so part of it has to
+		// wait for buffers to be consumed and requeued.
+		connection.feed(sequence(0, 20));
+		connection.feed(sequence(20, 7));
+		reader.join();
+		assertArrayEquals(sequence(0, 27), read[0]);
+		assertEquals(3, connection.getMaxQueuedReads());
+	}
+
+	@Test
+	public void queuedReadsToAnyOffset() throws Exception {
+		FakeUsbBulkConnection connection = new FakeUsbBulkConnection(true);
+		InputStream in = new Streams.DeviceInputStream(connection, 2, 8);
+		connection.feed(sequence(0, 5));
+		byte[] read = new byte[10];
+		assertEquals(5, in.read(read, 3, 7));
+		assertArrayEquals(new byte[] { 0, 0, 0, 0, 1, 2, 3, 4, 0, 0 }, read);
+	}
+
+	@Test
+	public void synchronousReadsBufferWholeTransfers() throws Exception {
+		FakeUsbBulkConnection connection = new FakeUsbBulkConnection(false);
+		InputStream in = new Streams.DeviceInputStream(connection, 3, 4);
+		connection.feed(sequence(0, 6));
+		connection.feed(sequence(6, 3));
+
+		assertEquals(0, in.read());
+		// The rest of the first full-size read is buffered.
+		assertEquals(3, in.available());
+		assertArrayEquals(sequence(1, 8), readFully(in, 8));
+		assertEquals(0, connection.getMaxQueuedReads());
+	}
+
+	@Test
+	public void singleByteReadIsUnsigned() throws Exception {
+		for (boolean canQueueReads : new boolean[] { true, false }) {
+			FakeUsbBulkConnection connection = new FakeUsbBulkConnection(canQueueReads);
+			InputStream in = new Streams.DeviceInputStream(connection);
+			connection.feed(new byte[] { (byte) 0xFF, (byte) 0x80 });
+			assertEquals(0xFF, in.read());
+			assertEquals(0x80, in.read());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void closeEndsStream() throws Exception {
+		for (boolean canQueueReads : new boolean[] { true, false }) {
+			final FakeUsbBulkConnection connection = new FakeUsbBulkConnection(canQueueReads);
+			InputStream in = new Streams.DeviceInputStream(connection);
+			Thread closer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+					}
+					connection.close();
+				}
+			};
+			closer.start();
+			assertEquals(-1, in.read(new byte[4], 0, 4));
+			closer.join();
+		}
+	}
+
+	@Test
+	public void partialWritesAreRetried() throws Exception {
+		FakeUsbBulkConnection connection = new FakeUsbBulkConnection(true);
+		connection.setMaxWriteSize(3);
+		OutputStream out = new Streams.DeviceOutputStream(connection);
+		byte[] data = sequence(0, 12);
+		out.write(data, 2, 10);
+		assertArrayEquals(Arrays.copyOfRange(data, 2, 12), connection.getWritten());
+		assertEquals(4, connection.getWriteCalls());
+	}
+
+	@Test
+	public void failedWriteThrows() throws Exception {
+		FakeUsbBulkConnection connection = new FakeUsbBulkConnection(true);
+		OutputStream out = new Streams.DeviceOutputStream(connection);
+		connection.close();
+		try {
+			out.write(1);
+			fail("Wrote to a closed connection");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void writePastEndThrows() throws Exception {
+		OutputStream out = new Streams.DeviceOutputStream(new FakeUsbBulkConnection(true));
+		out.write(new byte[4], 2, 3);
+	}
+
+	private static byte[] sequence(int first, int count) {
+		byte[] result = new byte[count];
+		for (int i = 0; i < count; ++i) {
+			result[i] = (byte) (first + i);
+		}
+		return result;
+	}
+
+	private static byte[] readFully(InputStream in, int size) throws IOException {
+		byte[] result = new byte[size];
+		int total = 0;
+		while (total < size) {
+			int count = in.read(result, total, size - total);
+			if (count < 0) {
+				throw new IOException("Unexpected end of stream");
+			}
+			total += count;
+		}
+		return result;
+	}
+}
@@ -38,7 +38,9 @@ import ioio.lib.api.exception.ConnectionLostException;
  * <p>
  * The value of the pin is obtained by calling {@link #read()}. It is also
  * possible for the client to block until a certain level is sensed, by using
- * {@link #waitForValue(boolean)}.
+ * {@link #waitForValue(boolean)}, or to be notified of every level sensed,
+ * without tying up a thread, by using
+ * {@link #setChangeListener(ChangeListener)}.
  * <p>
  * The instance is alive since its creation. The first {@link #read()} call
  * block for a few milliseconds until the initial value is updated. If the
@@ -58,6 +60,23 @@ import ioio.lib.api.exception.ConnectionLostException;
  * </pre>
  */
 public interface DigitalInput extends Closeable {
+	/**
+	 * A listener for the levels sensed on a pin.
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called with the initial level of the pin, and then whenever it
+		 * changes. This is invoked on the IOIO's incoming data thread, so it
+		 * must return quickly and must not block.
+		 *
+		 * @param input
+		 *            The pin.
+		 * @param value
+		 *            The level sensed, true for "HIGH", false for "LOW".
+		 */
+		public void onChange(DigitalInput input, boolean value);
+	}
+
 	/**
 	 * A digital input pin specification, used when opening digital inputs.
 	 */
@@ -138,6 +157,16 @@ public interface DigitalInput extends Closeable {
 	public void waitForValue(boolean value) throws InterruptedException,
 			ConnectionLostException;
 
+	/**
+	 * Set a listener to notify of the levels sensed on this pin from now on.
+	 * If the initial level has already been sensed, the listener is not told
+	 * about it, so it should {@link #read()} the pin after being set.
+	 *
+	 * @param listener
+	 *            The listener, or null to remove the current one.
+	 */
+	public void setChangeListener(ChangeListener listener);
+
 	/** TEA Custom mod. Extend the DigitalInput to allow the user to get a pulse count. */
 	public long getPulseCount();
 	/** TEA Custom mod. Extend the DigitalInput to allow the user to clear the pulse count. */
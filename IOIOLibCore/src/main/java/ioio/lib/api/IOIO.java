@@ -623,6 +623,27 @@ public interface IOIO {
 	 */
 	public Sequencer openSequencer(Sequencer.ChannelConfig config[]) throws ConnectionLostException;
 
+	/**
+	 * Open all the pins of a plan at once.
+	 * <p>
+	 * This is equivalent to opening each pin of the plan with the respective open method, but
+	 * faster: all the pins are validated and allocated before anything is sent to the IOIO, and
+	 * their configuration is then sent as a single batch. Either all the pins are opened, or, if
+	 * any of them is invalid or already in use, none is.
+	 * <p>
+	 * The pins will operate in their modes until close() is invoked on them, individually or on
+	 * the returned {@link PinPlan.Pins}. A connection must have been established prior to calling
+	 * this method, by invoking {@link #waitForConnect()}.
+	 *
+	 * @param plan
+	 *            The pins to open.
+	 * @return The opened pins.
+	 * @throws ConnectionLostException
+	 *             Connection was lost before or during the execution of this method.
+	 * @see PinPlan
+	 */
+	public PinPlan.Pins openAll(PinPlan plan) throws ConnectionLostException;
+
 	/**
 	 * Start a batch of operations. This is strictly an optimization and will not change
 	 * functionality: if the client knows that a sequence of several IOIO operations are going to be
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A declarative set of pins to open together.
+ * <p>
+ * A plan is built once, by adding the pins it requires, and then passed to
+ * {@link IOIO#openAll(PinPlan)}, which opens all of them in a single
+ * operation: the pins are validated and allocated up front (so that either all
+ * of them are opened or none is), and their configuration is sent to the IOIO
+ * in one batch. This is considerably faster than opening the same pins one by
+ * one, and makes it cheap to re-open them every time a connection is
+ * established.
+ * <p>
+ * Every add method returns a typed {@link Handle}, used for obtaining the
+ * opened pin from the {@link Pins} returned by
+ * {@link IOIO#openAll(PinPlan)}. The plan itself is not modified by opening
+ * it, so the same plan and handles can be used with any number of
+ * connections.
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * PinPlan plan = new PinPlan();
+ * PinPlan.Handle&lt;DigitalOutput&gt; led = plan.addDigitalOutput(IOIO.LED_PIN, true);
+ * PinPlan.Handle&lt;AnalogInput&gt; pot = plan.addAnalogInput(40);
+ * ...
+ * PinPlan.Pins pins = ioio.openAll(plan);
+ * pins.get(led).write(false);
+ * float value = pins.get(pot).read();
+ * ...
+ * pins.close();  // closes all the pins of the plan.
+ * </pre>
+ *
+ * A plan is not thread-safe. It should not be modified while being opened.
+ */
+public class PinPlan {
+	/**
+	 * A typed reference to a pin in a plan.
+	 *
+	 * @param <T>
+	 *            The interface of the pin, once opened.
+	 */
+	public static class Handle<T extends Closeable> {
+		/** The index of the pin in its plan. */
+		public final int index;
+		private final PinPlan plan_;
+		private final Class<T> type_;
+
+		private Handle(PinPlan plan, int index, Class<T> type) {
+			plan_ = plan;
+			this.index = index;
+			type_ = type;
+		}
+
+		/**
+		 * Get the pin this handle refers to, out of a list of opened pins.
+		 *
+		 * @param plan
+		 *            The plan from which the pins have been opened.
+		 * @param opened
+		 *            The opened pins, in the order of the plan.
+		 * @return The opened pin.
+		 * @throws IllegalArgumentException
+		 *             This handle does not belong to the given plan.
+		 */
+		public T get(PinPlan plan, Closeable[] opened) {
+			if (plan != plan_) {
+				throw new IllegalArgumentException(
+						"Handle does not belong to this plan");
+			}
+			return type_.cast(opened[index]);
+		}
+	}
+
+	/**
+	 * A single pin in a plan.
+	 */
+	public static class Entry {
+		/** The kind of pin. */
+		public enum Type {
+			DIGITAL_INPUT, DIGITAL_OUTPUT, ANALOG_INPUT, PWM_OUTPUT
+		}
+
+		/** The kind of pin. */
+		public final Type type;
+		/** The pin number, as labeled on the board. */
+		public final int pin;
+		/** The input spec, for {@link Type#DIGITAL_INPUT}, otherwise null. */
+		public final DigitalInput.Spec inputSpec;
+		/**
+		 * The output spec, for {@link Type#DIGITAL_OUTPUT} and
+		 * {@link Type#PWM_OUTPUT}, otherwise null.
+		 */
+		public final DigitalOutput.Spec outputSpec;
+		/** The initial value, for {@link Type#DIGITAL_OUTPUT}. */
+		public final boolean startValue;
+		/** The frequency in Hz, for {@link Type#PWM_OUTPUT}. */
+		public final int freqHz;
+
+		private Entry(Type type, int pin, DigitalInput.Spec inputSpec,
+				DigitalOutput.Spec outputSpec, boolean startValue, int freqHz) {
+			this.type = type;
+			this.pin = pin;
+			this.inputSpec = inputSpec;
+			this.outputSpec = outputSpec;
+			this.startValue = startValue;
+			this.freqHz = freqHz;
+		}
+	}
+
+	/**
+	 * The pins of a plan, once opened by {@link IOIO#openAll(PinPlan)}.
+	 * <p>
+	 * Closing it closes all the pins. Each pin may also be closed separately.
+	 */
+	public interface Pins extends Closeable {
+		/**
+		 * Get an opened pin.
+		 *
+		 * @param handle
+		 *            The handle, as returned when adding the pin to the plan.
+		 * @return The opened pin.
+		 * @throws IllegalArgumentException
+		 *             The handle does not belong to the plan which has been
+		 *             opened.
+		 */
+		public <T extends Closeable> T get(Handle<T> handle);
+	}
+
+	private final List<Entry> entries_ = new ArrayList<Entry>();
+
+	/**
+	 * Add a digital input pin.
+	 *
+	 * @param spec
+	 *            Pin specification, see {@link IOIO#openDigitalInput(DigitalInput.Spec)}.
+	 * @return A handle to the pin.
+	 */
+	public Handle<DigitalInput> addDigitalInput(DigitalInput.Spec spec) {
+		return add(new Entry(Entry.Type.DIGITAL_INPUT, spec.pin,
+				new DigitalInput.Spec(spec.pin, spec.mode), null, false, 0),
+				DigitalInput.class);
+	}
+
+	/**
+	 * Shorthand for addDigitalInput(new DigitalInput.Spec(pin)).
+	 */
+	public Handle<DigitalInput> addDigitalInput(int pin) {
+		return addDigitalInput(new DigitalInput.Spec(pin));
+	}
+
+	/**
+	 * Add a digital output pin.
+	 *
+	 * @param spec
+	 *            Pin specification, see
+	 *            {@link IOIO#openDigitalOutput(DigitalOutput.Spec, boolean)}.
+	 * @param startValue
+	 *            The initial output value.
+	 * @return A handle to the pin.
+	 */
+	public Handle<DigitalOutput> addDigitalOutput(DigitalOutput.Spec spec,
+			boolean startValue) {
+		return add(new Entry(Entry.Type.DIGITAL_OUTPUT, spec.pin, null,
+				new DigitalOutput.Spec(spec.pin, spec.mode), startValue, 0),
+				DigitalOutput.class);
+	}
+
+	/**
+	 * Shorthand for addDigitalOutput(new DigitalOutput.Spec(pin), startValue).
+	 */
+	public Handle<DigitalOutput> addDigitalOutput(int pin, boolean startValue) {
+		return addDigitalOutput(new DigitalOutput.Spec(pin), startValue);
+	}
+
+	/**
+	 * Add an analog input pin.
+	 *
+	 * @param pin
+	 *            Pin number, as labeled on the board.
+	 * @return A handle to the pin.
+	 */
+	public Handle<AnalogInput> addAnalogInput(int pin) {
+		return add(new Entry(Entry.Type.ANALOG_INPUT, pin, null, null, false, 0),
+				AnalogInput.class);
+	}
+
+	/**
+	 * Add a PWM output pin.
+	 *
+	 * @param spec
+	 *            Pin specification, see
+	 *            {@link IOIO#openPwmOutput(DigitalOutput.Spec, int)}.
+	 * @param freqHz
+	 *            PWM frequency, in Hertz.
+	 * @return A handle to the pin.
+	 */
+	public Handle<PwmOutput> addPwmOutput(DigitalOutput.Spec spec, int freqHz) {
+		return add(new Entry(Entry.Type.PWM_OUTPUT, spec.pin, null,
+				new DigitalOutput.Spec(spec.pin, spec.mode), false, freqHz),
+				PwmOutput.class);
+	}
+
+	/**
+	 * Shorthand for addPwmOutput(new DigitalOutput.Spec(pin), freqHz).
+	 */
+	public Handle<PwmOutput> addPwmOutput(int pin, int freqHz) {
+		return addPwmOutput(new DigitalOutput.Spec(pin), freqHz);
+	}
+
+	/**
+	 * @return The number of pins in this plan.
+	 */
+	public int size() {
+		return entries_.size();
+	}
+
+	/**
+	 * Get a pin of this plan.
+	 *
+	 * @param index
+	 *            The index of the pin, between 0 and {@link #size()} - 1, in
+	 *            the order the pins were added.
+	 * @return The pin.
+	 */
+	public Entry getEntry(int index) {
+		return entries_.get(index);
+	}
+
+	private <T extends Closeable> Handle<T> add(Entry entry, Class<T> type) {
+		entries_.add(entry);
+		return new Handle<T>(this, entries_.size() - 1, type);
+	}
+}
@@ -519,6 +519,17 @@ public interface Sequencer extends Closeable {
 	public static interface ChannelCue {
 	}
 
+	/**
+	 * A cue for all channels, pre-serialized via {@link Sequencer#compile(ChannelCue[])}.
+	 * <p>
+	 * Immutable, so the same instance can be pushed any number of times, from any thread. Pushing
+	 * a compiled cue skips the per-channel type checks and serialization of
+	 * {@link Sequencer#push(ChannelCue[], int)}, which makes it a good fit for motion profiles that
+	 * repeat the same cues. A compiled cue may only be pushed to the sequencer which compiled it.
+	 */
+	public static interface CompiledCue {
+	}
+
 	/**
 	 * A cue for a PWM position channel.
 	 * <p>
@@ -654,6 +665,62 @@ public interface Sequencer extends Closeable {
 	public void push(ChannelCue[] cues, int duration) throws ConnectionLostException,
 			InterruptedException;
 
+	/**
+	 * Pre-serialize a cue, for later pushing via {@link #push(CompiledCue, int)} or
+	 * {@link #pushAll(CompiledCue[], int[], int, int)}. Does not communicate with the IOIO.
+	 *
+	 * @param cues
+	 *            An array of channel cues. See the description of the same argument in
+	 *            {@link #push(ChannelCue[], int)} for details. The cues are not referenced after
+	 *            this call, so they may be modified and compiled again.
+	 * @return The compiled cue.
+	 * @throws IllegalArgumentException
+	 *             The cues do not match the channel configuration or have invalid values.
+	 */
+	public CompiledCue compile(ChannelCue[] cues);
+
+	/**
+	 * Same as {@link #push(ChannelCue[], int)}, for a cue previously compiled by this sequencer
+	 * via {@link #compile(ChannelCue[])}.
+	 *
+	 * @param cue
+	 *            The compiled cue.
+	 * @param duration
+	 *            The time duration for which this cue is to be executed, in units of 16
+	 *            microseconds. Valid values are [2..65536].
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO was lost before or during this operation.
+	 * @throws InterruptedException
+	 *             The operation was interrupted before completion.
+	 */
+	public void push(CompiledCue cue, int duration) throws ConnectionLostException,
+			InterruptedException;
+
+	/**
+	 * Push as many compiled cues as currently fit in the cue FIFO, without blocking.
+	 * <p>
+	 * All the cues are written to the IOIO in a single protocol batch. Cues which do not fit are
+	 * not pushed, and can be retried later, e.g. after the next {@link Event.Type#CUE_STARTED}
+	 * event.
+	 *
+	 * @param cues
+	 *            Compiled cues, previously returned by {@link #compile(ChannelCue[])} on this
+	 *            sequencer.
+	 * @param durations
+	 *            The duration of each cue, in the same units as in {@link #push(CompiledCue, int)}.
+	 *            durations[i] applies to cues[i].
+	 * @param offset
+	 *            The index of the first cue to push.
+	 * @param count
+	 *            The maximum number of cues to push.
+	 * @return The number of cues pushed, starting at offset. This is the smaller of count and
+	 *         {@link #available()}.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO was lost before or during this operation.
+	 */
+	public int pushAll(CompiledCue[] cues, int[] durations, int offset, int count)
+			throws ConnectionLostException;
+
 	/**
 	 * Execute a cue until further notice.
 	 * <p>
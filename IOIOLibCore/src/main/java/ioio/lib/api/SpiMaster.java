@@ -30,6 +30,9 @@ package ioio.lib.api;
 
 import ioio.lib.api.exception.ConnectionLostException;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
 /**
  * An interface for controlling an SPI module, in SPI bus-master mode, enabling
  * communication with multiple SPI-enabled slave modules.
@@ -101,8 +104,38 @@ public interface SpiMaster extends Closeable {
 		RATE_31K, RATE_35K, RATE_41K, RATE_50K, RATE_62K, RATE_83K, RATE_125K, RATE_142K, RATE_166K, RATE_200K, RATE_250K, RATE_333K, RATE_500K, RATE_571K, RATE_666K, RATE_800K, RATE_1M, RATE_1_3M, RATE_2M, RATE_2_2M, RATE_2_6M, RATE_3_2M, RATE_4M, RATE_5_3M, RATE_8M
 	}
 
-	/** An object that can be waited on for asynchronous calls. */
-	public interface Result {
+	/**
+	 * A callback for completion of an asynchronous call, registered via
+	 * {@link Result#addListener(ResultListener)}.
+	 */
+	public interface ResultListener {
+		/**
+		 * The asynchronous call is complete, and the response has been
+		 * written to the read buffer.
+		 *
+		 * @param result
+		 *            The result to which this listener has been added.
+		 */
+		public void onComplete(Result result);
+
+		/**
+		 * The asynchronous call will never complete, since the connection
+		 * with the IOIO has been lost or this SPI master has been closed.
+		 *
+		 * @param result
+		 *            The result to which this listener has been added.
+		 */
+		public void onAborted(Result result);
+	}
+
+	/**
+	 * An object that can be waited on for asynchronous calls.
+	 * <p>
+	 * Besides blocking via {@link #waitReady()}, completion can be observed
+	 * without tying up a thread, by registering a {@link ResultListener}, or
+	 * through the {@link Future} interface. A result cannot be cancelled.
+	 */
+	public interface Result extends Future<Void> {
 		/**
 		 * Wait until the asynchronous call which returned this instance is
 		 * complete.
@@ -114,6 +147,133 @@ public interface SpiMaster extends Closeable {
 		 */
 		public void waitReady() throws ConnectionLostException,
 				InterruptedException;
+
+		/**
+		 * Whether the asynchronous call is complete. Never blocks.
+		 */
+		public boolean isReady();
+
+		/**
+		 * Register a listener to be invoked inline, on the thread which
+		 * completes the call. This is typically the IOIO's incoming data
+		 * thread, so the listener must return quickly and must not block.
+		 * If the call is already complete, the listener is invoked
+		 * immediately, on the calling thread.
+		 *
+		 * @param listener
+		 *            The listener.
+		 */
+		public void addListener(ResultListener listener);
+
+		/**
+		 * Same as {@link #addListener(ResultListener)}, but the listener is
+		 * invoked on the given executor.
+		 *
+		 * @param listener
+		 *            The listener.
+		 * @param executor
+		 *            The executor on which to invoke the listener.
+		 */
+		public void addListener(ResultListener listener, Executor executor);
+
+		/**
+		 * Unregister a listener previously registered on this result.
+		 *
+		 * @param listener
+		 *            The listener.
+		 */
+		public void removeListener(ResultListener listener);
+	}
+
+	/**
+	 * A callback for transfers of a {@link Stream}, registered via
+	 * {@link SpiMaster#openStream(int, byte[][], int, int, byte[][], int, StreamListener)}.
+	 * Invoked on a thread dedicated to the stream, so it may take a while to
+	 * return without stalling the IOIO, although the stream is only kept
+	 * saturated if it keeps up with the transfer rate on average.
+	 */
+	public interface StreamListener {
+		/**
+		 * A transfer of the stream is complete. The buffer pair it used is
+		 * now owned by the listener: the response is in the read buffer, and
+		 * the write buffer may be refilled for the next transfer.
+		 *
+		 * @param stream
+		 *            The stream.
+		 * @param index
+		 *            The index of the buffer pair used by the transfer.
+		 * @return true to queue the buffer pair again right away, false to
+		 *         hold on to it until {@link Stream#submit(int)} is called.
+		 */
+		public boolean onTransferComplete(Stream stream, int index);
+
+		/**
+		 * The stream will not complete any more transfers, since the
+		 * connection with the IOIO has been lost or this SPI master has been
+		 * closed.
+		 *
+		 * @param stream
+		 *            The stream.
+		 */
+		public void onAborted(Stream stream);
+	}
+
+	/**
+	 * A continuous series of transfers to a single slave, rotating over a
+	 * fixed set of caller-owned buffer pairs. Every pair which is not owned
+	 * by the listener is queued for transfer, so the next transfer is queued
+	 * while the previous one is still in flight, and throughput is limited
+	 * only by flow control with the IOIO. No memory is allocated per
+	 * transfer.
+	 * <p>
+	 * A write-only stream (readSize 0) completes a transfer as soon as its
+	 * write buffer has been handed to the IOIO connection.
+	 */
+	public interface Stream {
+		/**
+		 * @return The number of buffer pairs.
+		 */
+		public int getBufferCount();
+
+		/**
+		 * @param index
+		 *            The index of the buffer pair.
+		 * @return The write buffer of the given pair.
+		 */
+		public byte[] getWriteBuffer(int index);
+
+		/**
+		 * @param index
+		 *            The index of the buffer pair.
+		 * @return The read buffer of the given pair, or null for a
+		 *         write-only stream.
+		 */
+		public byte[] getReadBuffer(int index);
+
+		/**
+		 * Queue a buffer pair which has been held by the listener, i.e. for
+		 * which {@link StreamListener#onTransferComplete(Stream, int)}
+		 * returned false.
+		 *
+		 * @param index
+		 *            The index of the buffer pair.
+		 * @throws ConnectionLostException
+		 *             Connection to the IOIO has been lost.
+		 * @throws IllegalStateException
+		 *             The pair is already queued, or the stream has been
+		 *             stopped.
+		 */
+		public void submit(int index) throws ConnectionLostException;
+
+		/**
+		 * Stop queuing transfers, and wait until the ones in flight have
+		 * completed and have been delivered to the listener. May be called
+		 * from the listener, in which case it does not wait.
+		 *
+		 * @throws InterruptedException
+		 *             Calling thread has been interrupted.
+		 */
+		public void stop() throws InterruptedException;
 	}
 
 	/** SPI configuration structure. */
@@ -209,4 +369,34 @@ public interface SpiMaster extends Closeable {
 	public Result writeReadAsync(int slave, byte[] writeData, int writeSize,
 			int totalSize, byte[] readData, int readSize)
 			throws ConnectionLostException;
+
+	/**
+	 * Start a continuous stream of transfers to a single slave. Every
+	 * transfer has the same sizes, with the same meaning as in
+	 * {@link #writeRead(int, byte[], int, int, byte[], int)}. All the buffer
+	 * pairs are queued right away, so the write buffers must be filled in
+	 * beforehand. See {@link Stream}.
+	 *
+	 * @param slave
+	 *            The slave index.
+	 * @param writeBuffers
+	 *            The write buffers, at least two for continuous operation.
+	 * @param writeSize
+	 *            Number of bytes to write on every transfer.
+	 * @param totalSize
+	 *            Total length of every transfer, in bytes.
+	 * @param readBuffers
+	 *            The read buffers, one per write buffer. May be null if
+	 *            readSize is 0.
+	 * @param readSize
+	 *            The number of response bytes of every transfer.
+	 * @param listener
+	 *            The listener to which completed transfers are handed back.
+	 * @return The stream.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 */
+	public Stream openStream(int slave, byte[][] writeBuffers, int writeSize,
+			int totalSize, byte[][] readBuffers, int readSize,
+			StreamListener listener) throws ConnectionLostException;
 }
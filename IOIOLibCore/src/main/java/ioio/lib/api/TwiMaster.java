@@ -30,6 +30,9 @@ package ioio.lib.api;
 
 import ioio.lib.api.exception.ConnectionLostException;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
 /**
  * An interface for controlling a TWI module, in TWI bus-master mode, enabling
  * communication with multiple TWI-enabled slave modules.
@@ -86,8 +89,46 @@ public interface TwiMaster extends Closeable {
 		RATE_100KHz, RATE_400KHz, RATE_1MHz
 	}
 
-	/** An object that can be waited on for asynchronous calls. */
-	public interface Result {
+	/**
+	 * The number of transactions in each instance's pool, see
+	 * {@link #obtainTransaction()}.
+	 */
+	public static final int TRANSACTION_POOL_SIZE = 32;
+
+	/**
+	 * A callback for completion of an asynchronous call, registered via
+	 * {@link Result#addListener(ResultListener)}.
+	 */
+	public interface ResultListener {
+		/**
+		 * The asynchronous call is complete.
+		 *
+		 * @param result
+		 *            The result to which this listener has been added.
+		 * @param success
+		 *            Whether the TWI transaction succeeded.
+		 */
+		public void onComplete(Result result, boolean success);
+
+		/**
+		 * The asynchronous call will never complete, since the connection
+		 * with the IOIO has been lost or this TWI master has been closed.
+		 *
+		 * @param result
+		 *            The result to which this listener has been added.
+		 */
+		public void onAborted(Result result);
+	}
+
+	/**
+	 * An object that can be waited on for asynchronous calls.
+	 * <p>
+	 * Besides blocking via {@link #waitReady()}, completion can be observed
+	 * without tying up a thread, by registering a {@link ResultListener}, or
+	 * through the {@link Future} interface, whose value is the success status
+	 * of the transaction. A result cannot be cancelled.
+	 */
+	public interface Result extends Future<Boolean> {
 		/**
 		 * Wait until the asynchronous call which returned this instance is
 		 * complete.
@@ -101,6 +142,98 @@ public interface TwiMaster extends Closeable {
 		 */
 		public boolean waitReady() throws ConnectionLostException,
 				InterruptedException;
+
+		/**
+		 * Whether the asynchronous call is complete. Never blocks.
+		 */
+		public boolean isReady();
+
+		/**
+		 * Register a listener to be invoked inline, on the thread which
+		 * completes the call. This is typically the IOIO's incoming data
+		 * thread, so the listener must return quickly and must not block.
+		 * If the call is already complete, the listener is invoked
+		 * immediately, on the calling thread.
+		 * <p>
+		 * Listeners stay registered after being invoked, so on a
+		 * {@link Transaction} they are invoked again on every subsequent
+		 * completion.
+		 *
+		 * @param listener
+		 *            The listener.
+		 */
+		public void addListener(ResultListener listener);
+
+		/**
+		 * Same as {@link #addListener(ResultListener)}, but the listener is
+		 * invoked on the given executor.
+		 *
+		 * @param listener
+		 *            The listener.
+		 * @param executor
+		 *            The executor on which to invoke the listener.
+		 */
+		public void addListener(ResultListener listener, Executor executor);
+
+		/**
+		 * Unregister a listener previously registered on this result.
+		 *
+		 * @param listener
+		 *            The listener.
+		 */
+		public void removeListener(ResultListener listener);
+	}
+
+	/**
+	 * A reusable TWI transaction, for allocation-free access to the bus.
+	 * <p>
+	 * Transactions are taken from a fixed-size pool, preallocated by the
+	 * {@link TwiMaster} when it is opened, using
+	 * {@link TwiMaster#obtainTransaction()}. A transaction is configured once
+	 * via {@link #set(int, boolean, byte[], int, byte[], int)} and can then be
+	 * submitted any number of times using
+	 * {@link TwiMaster#submit(Transaction)}. The response is written directly
+	 * into the caller-owned read buffer, so a polling loop which keeps reusing
+	 * the same transactions does not allocate any memory.
+	 * <p>
+	 * A transaction may not be re-submitted or modified while it is still in
+	 * flight, i.e. before {@link #isDone()} returns true, which is once its
+	 * last submission has either completed or been aborted by a lost
+	 * connection or by closing the {@link TwiMaster}. A transaction which has
+	 * never been submitted is considered done. Once no longer needed, it
+	 * should be returned to the pool by calling {@link #release()}, which also
+	 * removes any listeners registered on it.
+	 * <p>
+	 * Listeners stay registered across submissions and are notified each time
+	 * a submission completes. Unlike with other results, a listener added to
+	 * a ready transaction is not invoked immediately.
+	 */
+	public interface Transaction extends Result {
+		/**
+		 * Configure this transaction. The arguments have the same meaning as
+		 * in {@link TwiMaster#writeRead(int, boolean, byte[], int, byte[], int)}.
+		 * The buffers are referenced, not copied, and must not be modified
+		 * while the transaction is in flight.
+		 */
+		public void set(int address, boolean tenBitAddr, byte[] writeData,
+				int writeSize, byte[] readData, int readSize);
+
+		/**
+		 * Whether the last completed submission of this transaction
+		 * succeeded. Only meaningful once {@link #isReady()} returns true.
+		 */
+		public boolean isSuccess();
+
+		/**
+		 * Return this transaction to the pool it was taken from. The instance
+		 * may no longer be used after this call. Allowed once
+		 * {@link #isDone()} returns true, including after the last submission
+		 * has been aborted.
+		 *
+		 * @throws IllegalStateException
+		 *             The transaction is still in flight.
+		 */
+		public void release();
 	}
 
 	/**
@@ -145,4 +278,75 @@ public interface TwiMaster extends Closeable {
 	public Result writeReadAsync(int address, boolean tenBitAddr,
 			byte[] writeData, int writeSize, byte[] readData, int readSize)
 			throws ConnectionLostException;
+
+	/**
+	 * Take a {@link Transaction} from this instance's pool, of
+	 * {@link #TRANSACTION_POOL_SIZE} transactions. If all pooled transactions
+	 * are currently taken, blocks until one is released.
+	 *
+	 * @return A transaction, which is ready for use.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 * @throws InterruptedException
+	 *             Calling thread has been interrupted.
+	 */
+	public Transaction obtainTransaction() throws ConnectionLostException,
+			InterruptedException;
+
+	/**
+	 * Submit a previously configured {@link Transaction} for execution.
+	 * Returns immediately. Completion can be waited on using the transaction
+	 * itself. Unlike
+	 * {@link #writeReadAsync(int, boolean, byte[], int, byte[], int)}, this
+	 * method does not allocate any memory.
+	 *
+	 * @param transaction
+	 *            A transaction obtained from this instance via
+	 *            {@link #obtainTransaction()}.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 * @throws IllegalStateException
+	 *             The transaction is still in flight or has been released.
+	 * @throws IllegalArgumentException
+	 *             The transaction was not obtained from this instance.
+	 */
+	public void submit(Transaction transaction) throws ConnectionLostException;
+
+	/**
+	 * Submit several previously configured transactions at once. The
+	 * transactions are queued together and written to the IOIO in as few
+	 * protocol batches as flow-control permits (typically one), rather than
+	 * each going through its own round of queuing and flushing. They are
+	 * executed in order.
+	 * <p>
+	 * Each transaction becomes ready individually as its response arrives. In
+	 * addition, the returned {@link Result} becomes ready once the last of
+	 * them is done, and its {@link Result#waitReady()} returns true only if
+	 * all of them succeeded.
+	 *
+	 * @param transactions
+	 *            Transactions obtained from this instance via
+	 *            {@link #obtainTransaction()}. None of them may be in flight.
+	 *            If any of them cannot be submitted, none is.
+	 * @return A single completion handle for the entire batch.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 * @throws IllegalStateException
+	 *             A transaction is still in flight or has been released.
+	 * @throws IllegalArgumentException
+	 *             A transaction was not obtained from this instance.
+	 */
+	public Result submitBatch(Transaction[] transactions)
+			throws ConnectionLostException;
+
+	/**
+	 * The number of submitted transactions which have not yet been sent to
+	 * the IOIO, because its TWI buffer is full. The IOIO grants buffer space
+	 * as it executes transactions, so a non-zero value means that anything
+	 * submitted now would only wait in line on the host. Schedulers may use
+	 * this to keep the IOIO busy without building up latency. Never blocks.
+	 *
+	 * @return The number of transactions waiting for buffer space.
+	 */
+	public int getUnsentCount();
 }
@@ -159,7 +159,10 @@ enum Board {
 			ANALOG_IN
 		}
 
-		private final boolean[][] map_;
+		// The capability tables above, precomputed into one bit set per
+		// function, where bit i stands for pin i.
+		private final int numPins_;
+		private final long[] functionPins_ = new long[Function.values().length];
 		private final int numPwmModules_;
 		private final int numUartModules_;
 		private final int numSpiModules_;
@@ -174,7 +177,16 @@ enum Board {
 				int[][] twiPins, int[] icspPins) {
 			if (map == null)
 				throw new IllegalArgumentException("WTF");
-			map_ = map;
+			if (map.length > 64)
+				throw new IllegalArgumentException("Too many pins: " + map.length);
+			numPins_ = map.length;
+			for (int pin = 0; pin < map.length; ++pin) {
+				for (Function f : Function.values()) {
+					if (map[pin][f.ordinal()]) {
+						functionPins_[f.ordinal()] |= 1L << pin;
+					}
+				}
+			}
 			numPwmModules_ = numPwmModules;
 			numUartModules_ = numUartModules;
 			numSpiModules_ = numSpiModules;
@@ -185,17 +197,11 @@ enum Board {
 		}
 
 		int numPins() {
-			return map_.length;
+			return numPins_;
 		}
 
 		int numAnalogPins() {
-			int result = 0;
-			for (boolean[] b : map_) {
-				if (b[Function.ANALOG_IN.ordinal()]) {
-					++result;
-				}
-			}
-			return result;
+			return Long.bitCount(functionPins_[Function.ANALOG_IN.ordinal()]);
 		}
 
 		int numPwmModules() {
@@ -232,7 +238,7 @@ enum Board {
 
 		void checkSupportsAnalogInput(int pin) {
 			checkValidPin(pin);
-			if (!map_[pin][Function.ANALOG_IN.ordinal()]) {
+			if (!supports(pin, Function.ANALOG_IN)) {
 				throw new IllegalArgumentException("Pin " + pin
 						+ " does not support analog input");
 			}
@@ -240,7 +246,7 @@ enum Board {
 
 		void checkSupportsPeripheralInput(int pin) {
 			checkValidPin(pin);
-			if (!map_[pin][Function.PERIPHERAL_IN.ordinal()]) {
+			if (!supports(pin, Function.PERIPHERAL_IN)) {
 				throw new IllegalArgumentException("Pin " + pin
 						+ " does not support peripheral input");
 			}
@@ -248,22 +254,26 @@ enum Board {
 
 		void checkSupportsPeripheralOutput(int pin) {
 			checkValidPin(pin);
-			if (!map_[pin][Function.PERIPHERAL_OUT.ordinal()]) {
+			if (!supports(pin, Function.PERIPHERAL_OUT)) {
 				throw new IllegalArgumentException("Pin " + pin
 						+ " does not support peripheral output");
 			}
 		}
 
 		void checkValidPin(int pin) {
-			if (pin < 0 || pin >= map_.length) {
+			if (pin < 0 || pin >= numPins_) {
 				throw new IllegalArgumentException("Illegal pin: " + pin);
 			}
 		}
 
+		private boolean supports(int pin, Function f) {
+			return (functionPins_[f.ordinal()] & (1L << pin)) != 0;
+		}
+
 		void checkSupportsCapSense(int pin) {
 			checkValidPin(pin);
 			// Currently, all analog pins are also cap-sense.
-			if (!map_[pin][Function.ANALOG_IN.ordinal()]) {
+			if (!supports(pin, Function.ANALOG_IN)) {
 				throw new IllegalArgumentException("Pin " + pin
 						+ " does not support cap-sense");
 			}
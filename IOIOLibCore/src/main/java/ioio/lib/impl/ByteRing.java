@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.impl.PipeIOIOConnection.WaitStrategy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-directional, lock-free byte ring, for passing data between two
+ * threads in the same JVM.
+ * <p>
+ * The reader and the writer only share two counters, the total number of
+ * bytes written and read, so neither ever blocks the other. Data is copied
+ * once, into the ring and out of it. It supports one reader and one writer
+ * at a time, which is how the protocol uses its streams: all writes are made
+ * under the protocol's lock, and all reads from its incoming thread.
+ * <p>
+ * When there is nothing to read, or no room to write, the side that has to
+ * wait does so according to a {@link WaitStrategy}.
+ */
+class ByteRing {
+	/** How long a blocking waiter spins before parking. */
+	private static final int SPINS_BEFORE_PARK = 100;
+
+	private final byte[] buffer_;
+	private final int mask_;
+	private final WaitStrategy waitStrategy_;
+	// Totals of bytes written and read. Written only by the writer and the
+	// reader, respectively.
+	private final AtomicLong written_ = new AtomicLong();
+	private final AtomicLong read_ = new AtomicLong();
+	private volatile boolean closed_ = false;
+	// The threads parked waiting for data or room, if any.
+	private volatile Thread parkedReader_ = null;
+	private volatile Thread parkedWriter_ = null;
+	private final InputStream inputStream_ = new RingInputStream();
+	private final OutputStream outputStream_ = new RingOutputStream();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            The size of the ring, in bytes. Rounded up to a power of 2.
+	 * @param waitStrategy
+	 *            How the reader and writer wait.
+	 */
+	public ByteRing(int capacity, WaitStrategy waitStrategy) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity must be between [1..2^30]");
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		buffer_ = new byte[size];
+		mask_ = size - 1;
+		waitStrategy_ = waitStrategy;
+	}
+
+	public InputStream getInputStream() {
+		return inputStream_;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream_;
+	}
+
+	/**
+	 * End the ring. The reader gets whatever is still in it, followed by
+	 * end-of-stream, and the writer gets an {@link IOException}.
+	 */
+	public void close() {
+		closed_ = true;
+		unpark(parkedReader_);
+		unpark(parkedWriter_);
+	}
+
+	private int read(byte[] b, int off, int len) throws IOException {
+		final long read = read_.get();
+		long available;
+		for (int spins = 0; (available = written_.get() - read) == 0; ++spins) {
+			if (closed_) {
+				// Checked again, since a write may have landed just before the
+				// close.
+				if (written_.get() == read) {
+					return -1;
+				}
+			} else {
+				awaitData(read, spins);
+			}
+		}
+		len = (int) Math.min(len, available);
+		final int start = (int) read & mask_;
+		final int first = Math.min(len, buffer_.length - start);
+		System.arraycopy(buffer_, start, b, off, first);
+		System.arraycopy(buffer_, 0, b, off + first, len - first);
+		read_.set(read + len);
+		unpark(parkedWriter_);
+		return len;
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		long written = written_.get();
+		while (len > 0) {
+			long free;
+			for (int spins = 0; (free = buffer_.length - (written - read_.get())) == 0; ++spins) {
+				awaitRoom(written, spins);
+			}
+			if (closed_) {
+				throw new IOException("Ring closed");
+			}
+			final int count = (int) Math.min(len, free);
+			final int start = (int) written & mask_;
+			final int first = Math.min(count, buffer_.length - start);
+			System.arraycopy(b, off, buffer_, start, first);
+			System.arraycopy(b, off + first, buffer_, 0, count - first);
+			written += count;
+			written_.set(written);
+			unpark(parkedReader_);
+			off += count;
+			len -= count;
+		}
+	}
+
+	private void awaitData(long read, int spins) throws IOException {
+		if (spins < SPINS_BEFORE_PARK) {
+			return;
+		}
+		if (waitStrategy_ == WaitStrategy.SPINNING) {
+			// Let the other side run, in case it is waiting for this core.
+			Thread.yield();
+			return;
+		}
+		parkedReader_ = Thread.currentThread();
+		// Checked again after announcing ourselves, so that a write made in
+		// between is not missed: the writer checks for us after its write.
+		if (written_.get() == read && !closed_) {
+			LockSupport.park(this);
+		}
+		parkedReader_ = null;
+		checkInterrupted();
+	}
+
+	private void awaitRoom(long written, int spins) throws IOException {
+		if (closed_) {
+			throw new IOException("Ring closed");
+		}
+		if (spins < SPINS_BEFORE_PARK) {
+			return;
+		}
+		if (waitStrategy_ == WaitStrategy.SPINNING) {
+			// Let the other side run, in case it is waiting for this core.
+			Thread.yield();
+			return;
+		}
+		parkedWriter_ = Thread.currentThread();
+		if (written - read_.get() == buffer_.length && !closed_) {
+			LockSupport.park(this);
+		}
+		parkedWriter_ = null;
+		checkInterrupted();
+	}
+
+	private static void checkInterrupted() throws IOException {
+		if (Thread.interrupted()) {
+			throw new IOException("Interrupted");
+		}
+	}
+
+	private static void unpark(Thread thread) {
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private class RingInputStream extends InputStream {
+		private final byte[] single_ = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			return ByteRing.this.read(single_, 0, 1) < 0 ? -1 : ((int) single_[0]) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return ByteRing.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return (int) (written_.get() - read_.get());
+		}
+
+		@Override
+		public void close() {
+			ByteRing.this.close();
+		}
+	}
+
+	private class RingOutputStream extends OutputStream {
+		private final byte[] single_ = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			single_[0] = (byte) b;
+			ByteRing.this.write(single_, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteRing.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			ByteRing.this.close();
+		}
+	}
+}
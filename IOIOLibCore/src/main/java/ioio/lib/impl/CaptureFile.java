@@ -0,0 +1,261 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * The file format of a protocol capture, as written by
+ * {@link CapturingIOIOConnection} and read by {@link ReplayIOIOConnection}.
+ * <p>
+ * A capture is an 8 byte magic ("IOIOCAP1"), the wall clock time at which it
+ * started (8 bytes, milliseconds since the epoch), and then one record per
+ * chunk of data read or written, in the order they happened:
+ * <ul>
+ * <li>Direction: 1 byte, {@link #FROM_IOIO} or {@link #TO_IOIO}.</li>
+ * <li>Timestamp: 8 bytes, nanoseconds since the capture started.</li>
+ * <li>Length: 4 bytes.</li>
+ * <li>The data.</li>
+ * </ul>
+ * All numbers are big endian. A 0 direction byte, or the end of the file,
+ * ends the capture.
+ * <p>
+ * Files are written and read through memory mappings, so that recording a
+ * chunk is a copy into memory, with no system call, and the OS writes the
+ * pages out in the background. It also means that whatever was recorded
+ * before the app dies is on disk. Captures are limited to 2GB.
+ */
+public class CaptureFile {
+	/** Direction of data received from the IOIO. */
+	public static final int FROM_IOIO = 1;
+	/** Direction of data sent to the IOIO. */
+	public static final int TO_IOIO = 2;
+
+	private static final byte[] MAGIC = { 'I', 'O', 'I', 'O', 'C', 'A', 'P', '1' };
+	private static final int FILE_HEADER_SIZE = MAGIC.length + 8;
+	private static final int RECORD_HEADER_SIZE = 1 + 8 + 4;
+
+	/** Appends records to a new capture file. */
+	public static class Writer implements Closeable {
+		/** How much of the file is mapped at a time. */
+		private static final int REGION_SIZE = 1 << 20;
+
+		private final RandomAccessFile file_;
+		private final FileChannel channel_;
+		private final long startNanos_;
+		private MappedByteBuffer region_;
+		private long regionStart_ = 0;
+		private boolean closed_ = false;
+
+		/**
+		 * Create a capture, replacing the file if it exists.
+		 *
+		 * @throws IOException
+		 */
+		public Writer(File file) throws IOException {
+			file_ = new RandomAccessFile(file, "rw");
+			try {
+				file_.setLength(0);
+				channel_ = file_.getChannel();
+				region_ = channel_.map(MapMode.READ_WRITE, 0, REGION_SIZE);
+			} catch (IOException e) {
+				file_.close();
+				throw e;
+			}
+			region_.put(MAGIC);
+			region_.putLong(System.currentTimeMillis());
+			startNanos_ = System.nanoTime();
+		}
+
+		/**
+		 * Append a record, stamped with the current time.
+		 *
+		 * @param direction
+		 *            {@link #FROM_IOIO} or {@link #TO_IOIO}.
+		 * @throws IOException
+		 *             The capture has been closed, or the file could not be
+		 *             extended.
+		 */
+		synchronized public void write(int direction, byte[] b, int off, int len)
+				throws IOException {
+			final long nanos = System.nanoTime() - startNanos_;
+			if (closed_) {
+				throw new IOException("Capture closed");
+			}
+			// Keep room for the terminating 0 direction byte.
+			final int size = RECORD_HEADER_SIZE + len + 1;
+			if (region_.remaining() < size) {
+				regionStart_ += region_.position();
+				region_ = channel_.map(MapMode.READ_WRITE, regionStart_,
+						Math.max(REGION_SIZE, size));
+			}
+			region_.put((byte) direction);
+			region_.putLong(nanos);
+			region_.putInt(len);
+			region_.put(b, off, len);
+		}
+
+		/**
+		 * Finish the capture, trimming the file to what was recorded. Does
+		 * nothing if already closed.
+		 */
+		@Override
+		synchronized public void close() throws IOException {
+			if (closed_) {
+				return;
+			}
+			closed_ = true;
+			final long end = regionStart_ + region_.position();
+			region_ = null;
+			try {
+				channel_.truncate(end);
+			} finally {
+				file_.close();
+			}
+		}
+	}
+
+	/** Reads the records of a capture file, in order. */
+	public static class Reader implements Closeable {
+		private final RandomAccessFile file_;
+		private final MappedByteBuffer buffer_;
+		private final long startTimeMillis_;
+		private int direction_;
+		private long timestampNanos_;
+		private int dataPosition_;
+		private int length_;
+		private int nextPosition_ = FILE_HEADER_SIZE;
+
+		/**
+		 * Open a capture.
+		 *
+		 * @throws IOException
+		 *             The file could not be read, or is not a capture.
+		 */
+		public Reader(File file) throws IOException {
+			file_ = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel channel = file_.getChannel();
+				buffer_ = channel.map(MapMode.READ_ONLY, 0,
+						Math.min(channel.size(), Integer.MAX_VALUE));
+				if (buffer_.remaining() < FILE_HEADER_SIZE) {
+					throw new IOException("Not a capture file");
+				}
+				for (int i = 0; i < MAGIC.length; ++i) {
+					if (buffer_.get() != MAGIC[i]) {
+						throw new IOException("Not a capture file");
+					}
+				}
+				startTimeMillis_ = buffer_.getLong();
+			} catch (IOException e) {
+				file_.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Advance to the next record.
+		 *
+		 * @return false if there are no more records.
+		 */
+		public boolean next() {
+			buffer_.position(nextPosition_);
+			if (buffer_.remaining() < RECORD_HEADER_SIZE) {
+				return false;
+			}
+			direction_ = buffer_.get();
+			if (direction_ == 0) {
+				return false;
+			}
+			timestampNanos_ = buffer_.getLong();
+			length_ = buffer_.getInt();
+			dataPosition_ = buffer_.position();
+			if (length_ < 0 || length_ > buffer_.remaining()) {
+				// Cut short, e.g. the app died while writing it.
+				return false;
+			}
+			nextPosition_ = dataPosition_ + length_;
+			return true;
+		}
+
+		/** The wall clock time the capture started at, in milliseconds since the epoch. */
+		public long getStartTimeMillis() {
+			return startTimeMillis_;
+		}
+
+		/** The direction of the current record, {@link #FROM_IOIO} or {@link #TO_IOIO}. */
+		public int getDirection() {
+			return direction_;
+		}
+
+		/** The time of the current record, in nanoseconds since the capture started. */
+		public long getTimestampNanos() {
+			return timestampNanos_;
+		}
+
+		/** The length of the current record's data, in bytes. */
+		public int getLength() {
+			return length_;
+		}
+
+		/**
+		 * Copy part of the current record's data.
+		 *
+		 * @param offset
+		 *            Where to start in the record's data.
+		 * @param dst
+		 *            The buffer to copy to.
+		 * @param dstOffset
+		 *            Where to start in the buffer.
+		 * @param len
+		 *            How many bytes to copy.
+		 */
+		public void getData(int offset, byte[] dst, int dstOffset, int len) {
+			if (offset < 0 || len < 0 || offset + len > length_) {
+				throw new IndexOutOfBoundsException();
+			}
+			buffer_.position(dataPosition_ + offset);
+			buffer_.get(dst, dstOffset, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			file_.close();
+		}
+	}
+
+	private CaptureFile() {
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps a connection, recording everything sent and received to a
+ * {@link CaptureFile}, for replaying with {@link ReplayIOIOConnection}.
+ * <p>
+ * The capture starts once the underlying connection is established, and
+ * ends when the incoming stream does, i.e. when the protocol is done with the
+ * connection. Incoming data is recorded a chunk at a time, as read from the
+ * underlying transport, and outgoing data on every flush, i.e. a record per
+ * protocol batch.
+ * <p>
+ * Recording never fails the connection: if the capture cannot be written, it
+ * stops, and the connection carries on.
+ */
+public class CapturingIOIOConnection implements IOIOConnection {
+	private static final String TAG = "CapturingIOIOConnection";
+
+	private final IOIOConnection connection_;
+	private final File file_;
+	private CaptureFile.Writer writer_ = null;
+	private InputStream inputStream_;
+	private OutputStream outputStream_;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param connection
+	 *            The connection to capture.
+	 * @param file
+	 *            The file to record to. Replaced if it exists.
+	 */
+	public CapturingIOIOConnection(IOIOConnection connection, File file) {
+		connection_ = connection;
+		file_ = file;
+	}
+
+	@Override
+	public void waitForConnect() throws ConnectionLostException {
+		connection_.waitForConnect();
+		try {
+			synchronized (this) {
+				writer_ = new CaptureFile.Writer(file_);
+			}
+			Log.i(TAG, "Capturing to " + file_);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to create capture, not capturing", e);
+		}
+		inputStream_ = new CapturingInputStream(connection_.getInputStream());
+		outputStream_ = new CapturingOutputStream(connection_.getOutputStream());
+	}
+
+	@Override
+	public void disconnect() {
+		connection_.disconnect();
+		if (inputStream_ == null) {
+			// The protocol never started, so nothing else will end the capture.
+			closeCapture();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws ConnectionLostException {
+		return inputStream_;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws ConnectionLostException {
+		return outputStream_;
+	}
+
+	@Override
+	public boolean canClose() {
+		return connection_.canClose();
+	}
+
+	synchronized private void record(int direction, byte[] b, int off, int len) {
+		if (writer_ == null || len <= 0) {
+			return;
+		}
+		try {
+			writer_.write(direction, b, off, len);
+		} catch (IOException e) {
+			Log.e(TAG, "Capture failed, no longer capturing", e);
+			closeCapture();
+		}
+	}
+
+	synchronized private void closeCapture() {
+		if (writer_ == null) {
+			return;
+		}
+		try {
+			writer_.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to close capture", e);
+		}
+		writer_ = null;
+	}
+
+	/**
+	 * Reads the underlying stream a chunk at a time, recording each chunk, so
+	 * that the protocol's byte-at-a-time reads do not make a record each.
+	 */
+	private class CapturingInputStream extends InputStream {
+		private final InputStream in_;
+		private final byte[] buffer_ = new byte[1024];
+		private int position_ = 0;
+		private int size_ = 0;
+
+		CapturingInputStream(InputStream in) {
+			in_ = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position_ == size_ && !fill()) {
+				return -1;
+			}
+			return ((int) buffer_[position_++]) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position_ == size_ && !fill()) {
+				return -1;
+			}
+			len = Math.min(len, size_ - position_);
+			System.arraycopy(buffer_, position_, b, off, len);
+			position_ += len;
+			return len;
+		}
+
+		private boolean fill() throws IOException {
+			try {
+				final int n = in_.read(buffer_, 0, buffer_.length);
+				if (n < 0) {
+					closeCapture();
+					return false;
+				}
+				record(CaptureFile.FROM_IOIO, buffer_, 0, n);
+				position_ = 0;
+				size_ = n;
+				return true;
+			} catch (IOException e) {
+				closeCapture();
+				throw e;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return size_ - position_ + in_.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in_.close();
+		}
+	}
+
+	/**
+	 * Writes through to the underlying stream, and records what was written
+	 * on every flush, i.e. a record per protocol batch.
+	 */
+	private class CapturingOutputStream extends OutputStream {
+		private final OutputStream out_;
+		private byte[] pending_ = new byte[256];
+		private int pendingSize_ = 0;
+
+		CapturingOutputStream(OutputStream out) {
+			out_ = out;
+		}
+
+		@Override
+		synchronized public void write(int b) throws IOException {
+			out_.write(b);
+			reserve(1);
+			pending_[pendingSize_++] = (byte) b;
+		}
+
+		@Override
+		synchronized public void write(byte[] b, int off, int len) throws IOException {
+			out_.write(b, off, len);
+			reserve(len);
+			System.arraycopy(b, off, pending_, pendingSize_, len);
+			pendingSize_ += len;
+		}
+
+		private void reserve(int len) {
+			if (pendingSize_ + len > pending_.length) {
+				byte[] grown = new byte[Math.max(pending_.length * 2, pendingSize_ + len)];
+				System.arraycopy(pending_, 0, grown, 0, pendingSize_);
+				pending_ = grown;
+			}
+		}
+
+		@Override
+		synchronized public void flush() throws IOException {
+			record(CaptureFile.TO_IOIO, pending_, 0, pendingSize_);
+			pendingSize_ = 0;
+			out_.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out_.close();
+		}
+	}
+}
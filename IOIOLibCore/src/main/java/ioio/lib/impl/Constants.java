@@ -28,7 +28,10 @@
  */
 package ioio.lib.impl;
 
+import ioio.lib.api.TwiMaster;
+
 class Constants {
 	static final int BUFFER_SIZE = 1024;
 	static final int PACKET_BUFFER_SIZE = 256;
+	static final int TWI_TRANSACTION_POOL_SIZE = TwiMaster.TRANSACTION_POOL_SIZE;
 }
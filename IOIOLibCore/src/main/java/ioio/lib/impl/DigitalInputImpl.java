@@ -38,6 +38,7 @@ class DigitalInputImpl extends AbstractPin implements DigitalInput,
 		InputPinListener {
 	private boolean value_;
 	private boolean valid_ = false;
+	private ChangeListener listener_;
 
 	/** TEA Custom mod to count the pulses. */
 	private long pulseCount = 0;
@@ -48,22 +49,34 @@ class DigitalInputImpl extends AbstractPin implements DigitalInput,
 	}
 
 	@Override
-	synchronized public void setValue(int value) {
-		// Log.v("DigitalInputImpl", "Pin " + pinNum_ + " value is " + value);
-		assert (value == 0 || value == 1);
-		value_ = (value == 1);
-		if (!valid_) {
-			valid_ = true;
-		}
-		notifyAll();
+	public void setValue(int value) {
+		ChangeListener listener;
+		synchronized (this) {
+			// Log.v("DigitalInputImpl", "Pin " + pinNum_ + " value is " + value);
+			assert (value == 0 || value == 1);
+			value_ = (value == 1);
+			if (!valid_) {
+				valid_ = true;
+			}
+			notifyAll();
 
-		/** TEA Custom mod to count the pulses. This will increment the pulse count every time the pin
-		 * goes high.*/
-		if (value == 1) {
-			pulseCount ++;
+			/** TEA Custom mod to count the pulses. This will increment the pulse count every time the pin
+			 * goes high.*/
+			if (value == 1) {
+				pulseCount ++;
+			}
+			listener = listener_;
+		}
+		if (listener != null) {
+			listener.onChange(this, value == 1);
 		}
 	}
 
+	@Override
+	synchronized public void setChangeListener(ChangeListener listener) {
+		listener_ = listener;
+	}
+
 	/**
 	 * TEA Custom mod to allow for digital input pin to do pulse counting.
 	 * @return
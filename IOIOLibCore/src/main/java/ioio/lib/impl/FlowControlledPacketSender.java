@@ -39,6 +39,12 @@ class FlowControlledPacketSender {
 
 	interface Sender {
 		void send(Packet packet);
+
+		// Called around a group of packets sent back-to-back, so that they
+		// can be written to the protocol in a single batch.
+		void beginBatch();
+
+		void endBatch();
 	}
 
 	private final Sender sender_;
@@ -46,6 +52,8 @@ class FlowControlledPacketSender {
 	// available since API-9.
 	private final Queue<Packet> queue_ = new ArrayBlockingQueue<Packet>(Constants.PACKET_BUFFER_SIZE);
 	private final FlushThread thread_ = new FlushThread();
+	// Packets taken from the queue in a single pass of the flush thread.
+	private final Packet[] sendBuf_ = new Packet[Constants.PACKET_BUFFER_SIZE];
 
 	private int readyToSend_ = 0;
 	private boolean closed_ = false;
@@ -82,6 +90,38 @@ class FlowControlledPacketSender {
 		notifyAll();
 	}
 
+	/**
+	 * Queue several packets at once. The flush thread is only woken up once
+	 * they have all been queued (or when the queue fills up), so that they are
+	 * likely to be sent together.
+	 */
+	synchronized public void write(Packet[] packets, int count) throws IOException {
+		try {
+			for (int i = 0; i < count; ++i) {
+				while (!closed_ && !queue_.offer(packets[i])) {
+					notifyAll();
+					wait();
+				}
+				if (closed_) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		if (closed_) {
+			throw new IOException("Stream has been closed");
+		}
+		notifyAll();
+	}
+
+	/**
+	 * The number of packets waiting for the remote end to have room for them.
+	 */
+	synchronized public int queued() {
+		return queue_.size();
+	}
+
 	synchronized public void readyToSend(int numBytes) {
 		readyToSend_ += numBytes;
 		notifyAll();
@@ -102,18 +142,29 @@ class FlowControlledPacketSender {
 			super.run();
 			try {
 				while (true) {
-					Packet p;
+					int count = 0;
 					synchronized (FlowControlledPacketSender.this) {
 						while (queue_.isEmpty() || readyToSend_ < queue_.peek().getSize()) {
 							FlowControlledPacketSender.this.wait();
 						}
-						readyToSend_ -= queue_.peek().getSize();
-						p = queue_.remove();
+						// Take everything the remote end currently has room for.
+						while (!queue_.isEmpty() && readyToSend_ >= queue_.peek().getSize()) {
+							readyToSend_ -= queue_.peek().getSize();
+							sendBuf_[count++] = queue_.remove();
+						}
 						// We now have less room in our outgoing queue and more
 						// room in our incoming queue.
 						FlowControlledPacketSender.this.notifyAll();
 					}
-					sender_.send(p);
+					sender_.beginBatch();
+					try {
+						for (int i = 0; i < count; ++i) {
+							sender_.send(sendBuf_[i]);
+							sendBuf_[i] = null;
+						}
+					} finally {
+						sender_.endBatch();
+					}
 				}
 			} catch (InterruptedException e) {
 				// This is here to exit the loop.
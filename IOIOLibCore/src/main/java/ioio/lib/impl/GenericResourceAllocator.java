@@ -31,48 +31,57 @@ package ioio.lib.impl;
 import ioio.lib.api.exception.OutOfResourceException;
 import ioio.lib.impl.ResourceManager.Resource;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
+/**
+ * Allocates any free instance of a resource type, out of a set of ids.
+ * <p>
+ * The free and allocated ids are kept as bit masks, so both allocation and
+ * freeing are constant time and do not allocate. Ids must be in the range
+ * [0, 63].
+ */
 class GenericResourceAllocator implements ResourceManager.ResourceAllocator {
-	private final List<Integer> available_;
-	private final Set<Integer> allocated_;
+	private long available_ = 0;
+	private long allocated_ = 0;
 
 	public GenericResourceAllocator(int offset, int count) {
-		available_ = new ArrayList<Integer>(count);
-		allocated_ = new HashSet<Integer>(count);
 		for (int i = 0; i < count; i++) {
-			available_.add(i + offset);
+			add(i + offset);
 		}
 	}
 
 	public GenericResourceAllocator(int ids[]) {
-		available_ = new ArrayList<Integer>(ids.length);
-		allocated_ = new HashSet<Integer>(ids.length);
 		for (int i = 0; i < ids.length; i++) {
-			available_.add(ids[i]);
+			add(ids[i]);
+		}
+	}
+
+	private void add(int id) {
+		if (id < 0 || id >= 64) {
+			throw new IllegalArgumentException("Resource id out of range: " + id);
 		}
+		available_ |= 1L << id;
 	}
 
 	@Override
 	public synchronized void alloc(Resource r) {
-		if (available_.isEmpty()) {
+		if (available_ == 0) {
 			throw new OutOfResourceException(
 					"No more resources of the requested type: " + r.type);
 		}
-		r.id = available_.remove(available_.size() - 1);
-		allocated_.add(r.id);
+		// Highest id first.
+		r.id = 63 - Long.numberOfLeadingZeros(available_);
+		final long bit = 1L << r.id;
+		available_ &= ~bit;
+		allocated_ |= bit;
 	}
 
 	@Override
 	public synchronized void free(Resource r) {
-		if (!allocated_.contains(r.id)) {
+		final long bit = r.id >= 0 && r.id < 64 ? 1L << r.id : 0;
+		if ((allocated_ & bit) == 0) {
 			throw new IllegalArgumentException("Resource " + r
 					+ " not yet allocated");
 		}
-		available_.add(r.id);
-		allocated_.remove(r.id);
+		allocated_ &= ~bit;
+		available_ |= bit;
 	}
 }
@@ -30,6 +30,7 @@ package ioio.lib.impl;
 
 import ioio.lib.api.AnalogInput;
 import ioio.lib.api.CapSense;
+import ioio.lib.api.Closeable;
 import ioio.lib.api.DigitalInput;
 import ioio.lib.api.DigitalInput.Spec;
 import ioio.lib.api.DigitalInput.Spec.Mode;
@@ -37,6 +38,7 @@ import ioio.lib.api.DigitalOutput;
 import ioio.lib.api.IOIO;
 import ioio.lib.api.IOIOConnection;
 import ioio.lib.api.IcspMaster;
+import ioio.lib.api.PinPlan;
 import ioio.lib.api.PulseInput;
 import ioio.lib.api.PulseInput.ClockRate;
 import ioio.lib.api.PulseInput.PulseMode;
@@ -111,10 +113,12 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		}
 		addDisconnectListener(this);
 		Log.d(TAG, "Waiting for IOIO connection");
+		long connectNanos = 0;
 		try {
 			try {
 				Log.v(TAG, "Waiting for underlying connection");
 				connection_.waitForConnect();
+				connectNanos = System.nanoTime();
 				synchronized (this) {
 					if (disconnect_) {
 						throw new ConnectionLostException();
@@ -135,7 +139,8 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 			checkInterfaceVersion();
 			Log.v(TAG, "Required interface ID is supported");
 			state_ = State.CONNECTED;
-			Log.i(TAG, "IOIO connection established");
+			Log.i(TAG, "IOIO connection established in "
+					+ (System.nanoTime() - connectNanos) / 1000 + "us");
 		} catch (ConnectionLostException e) {
 			Log.d(TAG, "Connection lost / aborted");
 			state_ = State.DEAD;
@@ -289,8 +294,7 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		addDisconnectListener(result);
 		incomingState_.addInputPinListener(spec.pin, result);
 		try {
-			protocol_.setPinDigitalIn(spec.pin, spec.mode);
-			protocol_.setChangeNotify(spec.pin, true);
+			configureDigitalInput(spec);
 		} catch (IOException e) {
 			result.close();
 			throw new ConnectionLostException(e);
@@ -316,7 +320,7 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		DigitalOutputImpl result = new DigitalOutputImpl(this, pin, startValue);
 		addDisconnectListener(result);
 		try {
-			protocol_.setPinDigitalOut(spec.pin, startValue, spec.mode);
+			configureDigitalOutput(spec, startValue);
 		} catch (IOException e) {
 			result.close();
 			throw new ConnectionLostException(e);
@@ -347,8 +351,7 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		addDisconnectListener(result);
 		incomingState_.addInputPinListener(pinNum, result);
 		try {
-			protocol_.setPinAnalogIn(pinNum);
-			protocol_.setAnalogInSampling(pinNum, true);
+			configureAnalogInput(pinNum);
 		} catch (IOException e) {
 			result.close();
 			throw new ConnectionLostException(e);
@@ -392,39 +395,195 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 			int freqHz) throws ConnectionLostException {
 		checkState();
 		hardware_.checkSupportsPeripheralOutput(spec.pin);
+		final PwmScale scale = pwmScale(freqHz);
 
 		Resource pin = new Resource(ResourceType.PIN, spec.pin);
 		Resource oc = new Resource(ResourceType.OUTCOMPARE);
 
 		resourceManager_.alloc(pin, oc);
-		int scale = 0;
-		float baseUs;
-		int period;
-		while (true) {
-			final int clk = 16000000 / IOIOProtocol.PwmScale.values()[scale].scale;
-			period = clk / freqHz;
-			if (period <= 65536) {
-				baseUs = 1000000.0f / clk;
+
+		PwmImpl pwm = newPwm(pin, oc, freqHz, scale);
+		addDisconnectListener(pwm);
+		try {
+			configurePwmOutput(spec, oc, freqHz, scale);
+		} catch (IOException e) {
+			pwm.close();
+			throw new ConnectionLostException(e);
+		}
+		return pwm;
+	}
+
+	@Override
+	synchronized public PinPlan.Pins openAll(PinPlan plan)
+			throws ConnectionLostException {
+		checkState();
+		final int size = plan.size();
+		final Resource[] pins = new Resource[size];
+		final Resource[] ocs = new Resource[size];
+		final PwmScale[] scales = new PwmScale[size];
+
+		// Validate everything before claiming anything.
+		for (int i = 0; i < size; ++i) {
+			final PinPlan.Entry entry = plan.getEntry(i);
+			switch (entry.type) {
+			case ANALOG_INPUT:
+				hardware_.checkSupportsAnalogInput(entry.pin);
+				break;
+			case PWM_OUTPUT:
+				hardware_.checkSupportsPeripheralOutput(entry.pin);
+				scales[i] = pwmScale(entry.freqHz);
+				ocs[i] = new Resource(ResourceType.OUTCOMPARE);
 				break;
+			default:
+				break;
+			}
+			pins[i] = new Resource(ResourceType.PIN, entry.pin);
+		}
+		// Rolls back on failure, so either all are claimed or none is.
+		final Resource[] resources = new Resource[2 * size];
+		System.arraycopy(pins, 0, resources, 0, size);
+		System.arraycopy(ocs, 0, resources, size, size);
+		resourceManager_.alloc(resources);
+
+		final Closeable[] opened = new Closeable[size];
+		int i = 0;
+		try {
+			for (; i < size; ++i) {
+				final PinPlan.Entry entry = plan.getEntry(i);
+				switch (entry.type) {
+				case DIGITAL_INPUT:
+					DigitalInputImpl input = new DigitalInputImpl(this, pins[i]);
+					opened[i] = input;
+					addDisconnectListener(input);
+					incomingState_.addInputPinListener(entry.pin, input);
+					break;
+				case DIGITAL_OUTPUT:
+					DigitalOutputImpl output = new DigitalOutputImpl(this, pins[i],
+							entry.startValue);
+					opened[i] = output;
+					addDisconnectListener(output);
+					break;
+				case ANALOG_INPUT:
+					AnalogInputImpl analog = new AnalogInputImpl(this, pins[i]);
+					opened[i] = analog;
+					addDisconnectListener(analog);
+					incomingState_.addInputPinListener(entry.pin, analog);
+					break;
+				case PWM_OUTPUT:
+					PwmImpl pwm = newPwm(pins[i], ocs[i], entry.freqHz, scales[i]);
+					opened[i] = pwm;
+					addDisconnectListener(pwm);
+					break;
+				}
 			}
-			if (++scale >= PwmScale.values().length) {
-				throw new IllegalArgumentException("Frequency too low: "
-						+ freqHz);
+		} catch (ConnectionLostException e) {
+			for (int j = 0; j < size; ++j) {
+				if (opened[j] != null) {
+					opened[j].close();
+				} else {
+					resourceManager_.free(pins[j]);
+					resourceManager_.free(ocs[j]);
+				}
 			}
+			throw e;
 		}
 
-		PwmImpl pwm = new PwmImpl(this, pin, oc, period, baseUs);
-		addDisconnectListener(pwm);
 		try {
-			protocol_.setPinDigitalOut(spec.pin, false, spec.mode);
-			protocol_.setPinPwm(spec.pin, oc.id, true);
-			protocol_.setPwmPeriod(oc.id, period - 1,
-					IOIOProtocol.PwmScale.values()[scale]);
+			protocol_.beginBatch();
+			try {
+				for (i = 0; i < size; ++i) {
+					final PinPlan.Entry entry = plan.getEntry(i);
+					switch (entry.type) {
+					case DIGITAL_INPUT:
+						configureDigitalInput(entry.inputSpec);
+						break;
+					case DIGITAL_OUTPUT:
+						configureDigitalOutput(entry.outputSpec, entry.startValue);
+						break;
+					case ANALOG_INPUT:
+						configureAnalogInput(entry.pin);
+						break;
+					case PWM_OUTPUT:
+						configurePwmOutput(entry.outputSpec, ocs[i], entry.freqHz,
+								scales[i]);
+						break;
+					}
+				}
+			} finally {
+				protocol_.endBatch();
+			}
 		} catch (IOException e) {
-			pwm.close();
+			for (int j = 0; j < size; ++j) {
+				opened[j].close();
+			}
 			throw new ConnectionLostException(e);
 		}
-		return pwm;
+		return new OpenedPins(plan, opened);
+	}
+
+	private static class OpenedPins implements PinPlan.Pins {
+		private final PinPlan plan_;
+		private final Closeable[] opened_;
+
+		OpenedPins(PinPlan plan, Closeable[] opened) {
+			plan_ = plan;
+			opened_ = opened;
+		}
+
+		@Override
+		public <T extends Closeable> T get(PinPlan.Handle<T> handle) {
+			return handle.get(plan_, opened_);
+		}
+
+		@Override
+		public void close() {
+			for (int i = 0; i < opened_.length; ++i) {
+				opened_[i].close();
+			}
+		}
+	}
+
+	private void configureDigitalInput(DigitalInput.Spec spec)
+			throws IOException {
+		protocol_.setPinDigitalIn(spec.pin, spec.mode);
+		protocol_.setChangeNotify(spec.pin, true);
+	}
+
+	private void configureDigitalOutput(DigitalOutput.Spec spec,
+			boolean startValue) throws IOException {
+		protocol_.setPinDigitalOut(spec.pin, startValue, spec.mode);
+	}
+
+	private void configureAnalogInput(int pin) throws IOException {
+		protocol_.setPinAnalogIn(pin);
+		protocol_.setAnalogInSampling(pin, true);
+	}
+
+	private void configurePwmOutput(DigitalOutput.Spec spec, Resource oc,
+			int freqHz, PwmScale scale) throws IOException {
+		protocol_.setPinDigitalOut(spec.pin, false, spec.mode);
+		protocol_.setPinPwm(spec.pin, oc.id, true);
+		protocol_.setPwmPeriod(oc.id, pwmPeriod(freqHz, scale) - 1, scale);
+	}
+
+	private PwmImpl newPwm(Resource pin, Resource oc, int freqHz, PwmScale scale)
+			throws ConnectionLostException {
+		final int clk = 16000000 / scale.scale;
+		return new PwmImpl(this, pin, oc, clk / freqHz, 1000000.0f / clk);
+	}
+
+	// The finest prescaler for which the period fits in 16 bits.
+	private static PwmScale pwmScale(int freqHz) {
+		for (PwmScale scale : PwmScale.values()) {
+			if (pwmPeriod(freqHz, scale) <= 65536) {
+				return scale;
+			}
+		}
+		throw new IllegalArgumentException("Frequency too low: " + freqHz);
+	}
+
+	private static int pwmPeriod(int freqHz, PwmScale scale) {
+		return 16000000 / scale.scale / freqHz;
 	}
 
 	@Override
@@ -491,7 +650,7 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 				new Resource(ResourceType.PIN, twiPins[twiNum][0]),
 				new Resource(ResourceType.PIN, twiPins[twiNum][1]) };
 
-		resourceManager_.alloc(twi, pins);
+		resourceManager_.alloc(twi, pins[0], pins[1]);
 
 		TwiMasterImpl result = new TwiMasterImpl(this, twi, pins);
 		addDisconnectListener(result);
@@ -517,7 +676,7 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 				new Resource(ResourceType.PIN, icspPins[1]),
 				new Resource(ResourceType.PIN, icspPins[2]) };
 
-		resourceManager_.alloc(icsp, pins);
+		resourceManager_.alloc(icsp, pins[0], pins[1], pins[2]);
 
 		IcspMasterImpl result = new IcspMasterImpl(this, icsp, pins);
 		addDisconnectListener(result);
@@ -571,7 +730,13 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		}
 		Resource spi = new Resource(ResourceType.SPI);
 
-		resourceManager_.alloc(ssPins, misoPin, mosiPin, clkPin, spi);
+		Resource[] resources = new Resource[ssPins.length + 4];
+		System.arraycopy(ssPins, 0, resources, 0, ssPins.length);
+		resources[ssPins.length] = misoPin;
+		resources[ssPins.length + 1] = mosiPin;
+		resources[ssPins.length + 2] = clkPin;
+		resources[ssPins.length + 3] = spi;
+		resourceManager_.alloc(resources);
 
 		SpiMasterImpl result = new SpiMasterImpl(this, spi, mosiPin, misoPin,
 				clkPin, ssPins);
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Base class for results of asynchronous bus transactions.
+ * <p>
+ * Tracks readiness, dispatches completion to registered listeners (either
+ * inline, on the thread which completes the result, or on a given executor)
+ * and provides a {@link Future} view. Listeners stay registered after being
+ * invoked, so a result which is reused for several transactions notifies them
+ * on every completion without any further allocation.
+ *
+ * @param <L>
+ *            The listener type.
+ * @param <V>
+ *            The value type of the {@link Future} view.
+ */
+abstract class ListenableResult<L, V> extends ResourceLifeCycle implements Future<V> {
+	private class Entry implements Runnable {
+		final L listener_;
+		final Executor executor_;
+
+		Entry(L listener, Executor executor) {
+			listener_ = listener;
+			executor_ = executor;
+		}
+
+		@Override
+		public void run() {
+			boolean aborted;
+			synchronized (ListenableResult.this) {
+				aborted = aborted_;
+			}
+			if (aborted) {
+				notifyAborted(listener_);
+			} else {
+				notifyComplete(listener_);
+			}
+		}
+	}
+
+	protected boolean ready_ = false;
+	private boolean aborted_ = false;
+	// Copy-on-write, so that dispatching can iterate a snapshot without
+	// holding the lock.
+	private List<Entry> listeners_ = new ArrayList<Entry>(0);
+
+	/**
+	 * Invoke the completion callback of the given listener.
+	 */
+	protected abstract void notifyComplete(L listener);
+
+	/**
+	 * Invoke the abort callback of the given listener.
+	 */
+	protected abstract void notifyAborted(L listener);
+
+	/**
+	 * The value of the {@link Future} view, once ready.
+	 */
+	protected abstract V getValue();
+
+	public synchronized boolean isReady() {
+		return ready_;
+	}
+
+	public void addListener(L listener) {
+		addListener(listener, null);
+	}
+
+	public void addListener(L listener, Executor executor) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		Entry entry = new Entry(listener, executor);
+		boolean done;
+		synchronized (this) {
+			List<Entry> listeners = new ArrayList<Entry>(listeners_.size() + 1);
+			listeners.addAll(listeners_);
+			listeners.add(entry);
+			listeners_ = listeners;
+			done = notifyOnAdd();
+		}
+		if (done) {
+			dispatch(entry);
+		}
+	}
+
+	/**
+	 * Whether a listener added now should be notified immediately. Called with
+	 * the lock held.
+	 */
+	protected boolean notifyOnAdd() {
+		return isDone();
+	}
+
+	public synchronized void removeListener(L listener) {
+		List<Entry> listeners = new ArrayList<Entry>(listeners_.size());
+		for (int i = 0; i < listeners_.size(); ++i) {
+			if (listeners_.get(i).listener_ != listener) {
+				listeners.add(listeners_.get(i));
+			}
+		}
+		listeners_ = listeners;
+	}
+
+	protected synchronized void removeAllListeners() {
+		listeners_ = new ArrayList<Entry>(0);
+	}
+
+	/**
+	 * Mark this result as ready and notify the listeners. Subclasses should
+	 * update their state before calling this method.
+	 */
+	protected void setReady() {
+		List<Entry> listeners;
+		synchronized (this) {
+			ready_ = true;
+			notifyAll();
+			listeners = aborted_ ? null : listeners_;
+		}
+		dispatchAll(listeners);
+	}
+
+	@Override
+	public void disconnected() {
+		List<Entry> listeners = abort();
+		super.disconnected();
+		dispatchAll(listeners);
+	}
+
+	@Override
+	public void close() {
+		List<Entry> listeners = abort();
+		super.close();
+		dispatchAll(listeners);
+	}
+
+	// Returns the listeners to notify, if this result has been aborted now.
+	private synchronized List<Entry> abort() {
+		if (ready_ || aborted_) {
+			return null;
+		}
+		aborted_ = true;
+		return listeners_;
+	}
+
+	private void dispatchAll(List<Entry> listeners) {
+		if (listeners == null) {
+			return;
+		}
+		for (int i = 0; i < listeners.size(); ++i) {
+			dispatch(listeners.get(i));
+		}
+	}
+
+	private void dispatch(Entry entry) {
+		if (entry.executor_ == null) {
+			entry.run();
+		} else {
+			entry.executor_.execute(entry);
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		// Once sent, a transaction cannot be recalled.
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return ready_ || aborted_;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		try {
+			while (!ready_) {
+				safeWait();
+			}
+		} catch (ConnectionLostException e) {
+			throw new ExecutionException(e);
+		}
+		return getValue();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			while (!ready_) {
+				if (aborted_) {
+					// Throws as soon as the abort has been fully processed.
+					safeWait();
+					continue;
+				}
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		} catch (ConnectionLostException e) {
+			throw new ExecutionException(e);
+		}
+		return getValue();
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A TCP connection to a IOIO, over NIO channels.
+ * <p>
+ * Same as {@link SocketIOIOConnection}, i.e. it listens on a port and serves a
+ * single peer, with a few differences aimed at latency:
+ * <ul>
+ * <li>Nagle's algorithm is disabled (TCP_NODELAY), so that a flushed batch
+ * goes out immediately rather than waiting for the previous one to be
+ * acknowledged.</li>
+ * <li>Incoming and outgoing data are buffered in direct buffers, which the
+ * channel reads into and writes from without an intermediate heap copy. The
+ * protocol still reads and writes through the {@link InputStream} and
+ * {@link OutputStream} adapters, so data is copied between these buffers and
+ * the protocol's arrays, and the parser pulls one byte per call.</li>
+ * <li>The port and both buffer sizes are configurable.</li>
+ * <li>The listening address is reusable, so that a reconnection does not fail
+ * on a port still in TIME_WAIT.</li>
+ * </ul>
+ * The channels are used in blocking mode: the protocol has a dedicated reader
+ * thread anyway, and a blocked accept or read is aborted by closing the
+ * channel, which is what {@link #disconnect()} does.
+ */
+public class NioSocketIOIOConnection implements IOIOConnection {
+	private static final String TAG = "NioSocketIOIOConnection";
+	/** Default size of the read buffer, in bytes. */
+	public static final int DEFAULT_READ_BUFFER_SIZE = 1024;
+	/** Default size of the write buffer, in bytes. */
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 1024;
+
+	private final int port_;
+	private final int readBufferSize_;
+	private final int writeBufferSize_;
+	private ServerSocketChannel server_ = null;
+	private SocketChannel channel_ = null;
+	private boolean disconnect_ = false;
+	private InputStream inputStream_;
+	private OutputStream outputStream_;
+
+	public NioSocketIOIOConnection(int port) {
+		this(port, DEFAULT_READ_BUFFER_SIZE, DEFAULT_WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param port
+	 *            The TCP port to listen on.
+	 * @param readBufferSize
+	 *            Size of the incoming data buffer, in bytes.
+	 * @param writeBufferSize
+	 *            Size of the outgoing data buffer, in bytes. Data is sent
+	 *            whenever the buffer fills up or is flushed.
+	 */
+	public NioSocketIOIOConnection(int port, int readBufferSize,
+			int writeBufferSize) {
+		if (readBufferSize <= 0 || writeBufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer sizes must be positive");
+		}
+		port_ = port;
+		readBufferSize_ = readBufferSize;
+		writeBufferSize_ = writeBufferSize;
+	}
+
+	@Override
+	public void waitForConnect() throws ConnectionLostException {
+		try {
+			ServerSocketChannel server;
+			synchronized (this) {
+				if (disconnect_) {
+					throw new ConnectionLostException();
+				}
+				Log.v(TAG, "Creating server socket");
+				server_ = ServerSocketChannel.open();
+				server_.socket().setReuseAddress(true);
+				server_.socket().bind(new InetSocketAddress(port_));
+				server = server_;
+			}
+			Log.v(TAG, "Waiting for TCP connection");
+			SocketChannel channel = server.accept();
+			synchronized (this) {
+				channel_ = channel;
+				// Only a single peer is served.
+				server_.close();
+				if (disconnect_) {
+					throw new ConnectionLostException();
+				}
+			}
+			channel.socket().setTcpNoDelay(true);
+			Log.v(TAG, "TCP connected");
+			inputStream_ = new ChannelInputStream(channel, readBufferSize_);
+			outputStream_ = new ChannelOutputStream(channel, writeBufferSize_);
+		} catch (IOException e) {
+			synchronized (this) {
+				disconnect_ = true;
+				closeQuietly();
+				if (e instanceof SocketException
+						&& "Permission denied".equals(e.getMessage())) {
+					Log.e(TAG, "Did you forget to declare uses-permission of android.permission.INTERNET?");
+				}
+				throw new ConnectionLostException(e);
+			}
+		} catch (ConnectionLostException e) {
+			synchronized (this) {
+				closeQuietly();
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	synchronized public void disconnect() {
+		if (disconnect_) {
+			return;
+		}
+		Log.v(TAG, "Client initiated disconnect");
+		disconnect_ = true;
+		if (channel_ == null) {
+			// Aborts a pending accept.
+			closeQuietly();
+		} else {
+			// Let the IOIO close its end, which ends the protocol's reader,
+			// which in turn closes the channel.
+			try {
+				channel_.socket().shutdownOutput();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void closeQuietly() {
+		if (server_ != null) {
+			try {
+				server_.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Unexpected exception", e);
+			}
+		}
+		if (channel_ != null) {
+			try {
+				channel_.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Unexpected exception", e);
+			}
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws ConnectionLostException {
+		return inputStream_;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws ConnectionLostException {
+		return outputStream_;
+	}
+
+	@Override
+	public boolean canClose() {
+		return true;
+	}
+
+	/**
+	 * Reads from a blocking channel through a direct buffer. Not thread-safe,
+	 * intended for a single reader.
+	 */
+	static class ChannelInputStream extends InputStream {
+		private final SocketChannel channel_;
+		private final ByteBuffer buffer_;
+		private boolean eof_ = false;
+
+		ChannelInputStream(SocketChannel channel, int size) {
+			channel_ = channel;
+			buffer_ = ByteBuffer.allocateDirect(size);
+			buffer_.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fillIfEmpty()) {
+				return -1;
+			}
+			return buffer_.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fillIfEmpty()) {
+				return -1;
+			}
+			len = Math.min(len, buffer_.remaining());
+			buffer_.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer_.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel_.close();
+		}
+
+		// Returns false on end of stream.
+		private boolean fillIfEmpty() throws IOException {
+			while (!buffer_.hasRemaining()) {
+				if (eof_) {
+					return false;
+				}
+				buffer_.clear();
+				eof_ = channel_.read(buffer_) < 0;
+				buffer_.flip();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Writes to a blocking channel through a direct buffer. Not thread-safe,
+	 * intended for a single writer (the protocol serializes its writes).
+	 */
+	static class ChannelOutputStream extends OutputStream {
+		private final SocketChannel channel_;
+		private final ByteBuffer buffer_;
+
+		ChannelOutputStream(SocketChannel channel, int size) {
+			channel_ = channel;
+			buffer_ = ByteBuffer.allocateDirect(size);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer_.hasRemaining()) {
+				flush();
+			}
+			buffer_.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!buffer_.hasRemaining()) {
+					flush();
+				}
+				final int count = Math.min(len, buffer_.remaining());
+				buffer_.put(b, off, count);
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			buffer_.flip();
+			try {
+				while (buffer_.hasRemaining()) {
+					channel_.write(buffer_);
+				}
+			} finally {
+				buffer_.clear();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel_.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connection to a device in the same JVM, e.g. a simulator or a test
+ * double, over a pair of lock-free rings.
+ * <p>
+ * Unlike a loopback socket, nothing goes through the kernel: there are no
+ * system calls, no extra copies and no Nagle delays, so timings measured
+ * over this connection are those of the library. The cost of waking up the
+ * other side is chosen with a {@link WaitStrategy}.
+ * <p>
+ * The device side is handed its streams by {@link Device#connected} when the
+ * connection is established. Disconnecting closes both rings, which the
+ * device sees as end-of-stream.
+ */
+public class PipeIOIOConnection implements IOIOConnection {
+	/** Default capacity of each ring, in bytes. */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** How a side that has nothing to read, or no room to write, waits. */
+	public enum WaitStrategy {
+		/**
+		 * Spin briefly, then park the thread until the other side wakes it
+		 * up. Costs a wakeup per wait, but no CPU while idle.
+		 */
+		BLOCKING,
+		/**
+		 * Spin until the data or room is there, only yielding now and then in
+		 * case the other side shares the core. Lowest latency, but keeps a
+		 * core busy for every waiting thread, i.e. at least the protocol's
+		 * incoming thread and the device's reader. Only for benchmarks, on a
+		 * machine with cores to spare.
+		 */
+		SPINNING
+	}
+
+	/** The device end of the connection. */
+	public interface Device {
+		/**
+		 * Called when the host connects. The device should serve the host
+		 * on its own thread, and return.
+		 *
+		 * @param fromHost
+		 *            What the host sends.
+		 * @param toHost
+		 *            Where to send to the host.
+		 */
+		void connected(InputStream fromHost, OutputStream toHost);
+	}
+
+	private final Device device_;
+	private final int capacity_;
+	private final WaitStrategy waitStrategy_;
+	private ByteRing toDevice_;
+	private ByteRing fromDevice_;
+	private boolean disconnect_ = false;
+
+	public PipeIOIOConnection(Device device) {
+		this(device, DEFAULT_CAPACITY, WaitStrategy.BLOCKING);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param device
+	 *            The device to connect to.
+	 * @param capacity
+	 *            Capacity of each direction, in bytes.
+	 * @param waitStrategy
+	 *            How both sides wait.
+	 */
+	public PipeIOIOConnection(Device device, int capacity, WaitStrategy waitStrategy) {
+		device_ = device;
+		capacity_ = capacity;
+		waitStrategy_ = waitStrategy;
+	}
+
+	@Override
+	public void waitForConnect() throws ConnectionLostException {
+		synchronized (this) {
+			if (disconnect_) {
+				throw new ConnectionLostException();
+			}
+			toDevice_ = new ByteRing(capacity_, waitStrategy_);
+			fromDevice_ = new ByteRing(capacity_, waitStrategy_);
+		}
+		device_.connected(toDevice_.getInputStream(), fromDevice_.getOutputStream());
+	}
+
+	@Override
+	synchronized public void disconnect() {
+		if (disconnect_) {
+			return;
+		}
+		disconnect_ = true;
+		if (toDevice_ != null) {
+			toDevice_.close();
+			fromDevice_.close();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws ConnectionLostException {
+		return fromDevice_.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws ConnectionLostException {
+		return toDevice_.getOutputStream();
+	}
+
+	@Override
+	public boolean canClose() {
+		return true;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Plays back a capture recorded with {@link CapturingIOIOConnection}, in
+ * place of a board.
+ * <p>
+ * The data recorded from the IOIO is fed to the protocol, either at the pace
+ * it was recorded, or as fast as it is consumed. The latter makes a decoding
+ * benchmark out of any capture. When the capture runs out, the connection
+ * ends, as if the board was unplugged.
+ * <p>
+ * Either way, the playback never gets ahead of the host: a chunk from the
+ * IOIO is only fed once the host has sent as much as had been sent before it
+ * was recorded. This keeps the replay deterministic, e.g. reports on a pin do
+ * not arrive before the host has opened it, as long as the host does what it
+ * did when the capture was made. What the host sends is compared against the
+ * capture, and {@link #getMismatchCount()} tells whether it did.
+ */
+public class ReplayIOIOConnection implements IOIOConnection {
+	private static final String TAG = "ReplayIOIOConnection";
+
+	private final File file_;
+	private final boolean realTime_;
+	private CaptureFile.Reader incoming_;
+	private CaptureFile.Reader outgoing_;
+	private long startNanos_;
+	// Bytes the host had sent before the current incoming record.
+	private long sentBeforeIncoming_ = 0;
+	private boolean disconnect_ = false;
+	private final InputStream inputStream_ = new ReplayInputStream();
+	private final OutputStream outputStream_ = new VerifyingOutputStream();
+
+	// Bytes received from the host that differ from the capture, or are past
+	// its end.
+	private long mismatchCount_ = 0;
+	private long bytesVerified_ = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file
+	 *            The capture to play back.
+	 * @param realTime
+	 *            true to play back at the recorded pace, false to play back
+	 *            as fast as possible.
+	 */
+	public ReplayIOIOConnection(File file, boolean realTime) {
+		file_ = file;
+		realTime_ = realTime;
+	}
+
+	@Override
+	synchronized public void waitForConnect() throws ConnectionLostException {
+		if (disconnect_) {
+			throw new ConnectionLostException();
+		}
+		try {
+			incoming_ = new CaptureFile.Reader(file_);
+			outgoing_ = new CaptureFile.Reader(file_);
+		} catch (IOException e) {
+			closeReaders();
+			throw new ConnectionLostException(e);
+		}
+		startNanos_ = System.nanoTime();
+		Log.v(TAG, "Replaying " + file_ + (realTime_ ? " in real time" : ""));
+	}
+
+	@Override
+	synchronized public void disconnect() {
+		if (disconnect_) {
+			return;
+		}
+		disconnect_ = true;
+		notifyAll();
+	}
+
+	@Override
+	public InputStream getInputStream() throws ConnectionLostException {
+		return inputStream_;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws ConnectionLostException {
+		return outputStream_;
+	}
+
+	@Override
+	public boolean canClose() {
+		return true;
+	}
+
+	/**
+	 * The number of bytes sent by the host that differ from the capture,
+	 * including any sent past its end. 0 means the host sent exactly what it
+	 * did when the capture was made.
+	 */
+	synchronized public long getMismatchCount() {
+		return mismatchCount_;
+	}
+
+	/** The number of bytes sent by the host and checked against the capture. */
+	synchronized public long getBytesVerified() {
+		return bytesVerified_;
+	}
+
+	private void closeReaders() {
+		try {
+			if (incoming_ != null) {
+				incoming_.close();
+			}
+			if (outgoing_ != null) {
+				outgoing_.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to close capture", e);
+		}
+	}
+
+	/**
+	 * Advance a reader to the next record in the given direction.
+	 *
+	 * @return false if there are none left.
+	 */
+	private static boolean nextRecord(CaptureFile.Reader reader, int direction) {
+		while (reader.next()) {
+			if (reader.getDirection() == direction) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private class ReplayInputStream extends InputStream {
+		// Position in the current incoming record.
+		private int position_ = 0;
+		private int length_ = 0;
+		private final byte[] single_ = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			final int n = read(single_, 0, 1);
+			return n < 0 ? -1 : ((int) single_[0]) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (ReplayIOIOConnection.this) {
+				if (position_ == length_ && !nextIncoming()) {
+					disconnect_ = true;
+					closeReaders();
+					return -1;
+				}
+				len = Math.min(len, length_ - position_);
+				incoming_.getData(position_, b, off, len);
+				position_ += len;
+				return len;
+			}
+		}
+
+		/**
+		 * Move on to the next incoming record, waiting for its time if
+		 * playing in real time.
+		 *
+		 * @return false if the replay is over.
+		 */
+		private boolean nextIncoming() throws IOException {
+			do {
+				if (disconnect_ || !incoming_.next()) {
+					return false;
+				}
+				if (incoming_.getDirection() == CaptureFile.TO_IOIO) {
+					sentBeforeIncoming_ += incoming_.getLength();
+				}
+			} while (incoming_.getDirection() != CaptureFile.FROM_IOIO);
+			try {
+				while (!disconnect_ && bytesVerified_ < sentBeforeIncoming_) {
+					ReplayIOIOConnection.this.wait();
+				}
+				if (realTime_) {
+					final long due = startNanos_ + incoming_.getTimestampNanos();
+					long remaining;
+					while (!disconnect_ && (remaining = due - System.nanoTime()) > 0) {
+						ReplayIOIOConnection.this.wait(remaining / 1000000,
+								(int) (remaining % 1000000));
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (disconnect_) {
+				return false;
+			}
+			position_ = 0;
+			length_ = incoming_.getLength();
+			return true;
+		}
+	}
+
+	private class VerifyingOutputStream extends OutputStream {
+		// Position in the current outgoing record.
+		private int position_ = 0;
+		private int length_ = 0;
+		private boolean ended_ = false;
+		private final byte[] expected_ = new byte[256];
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized (ReplayIOIOConnection.this) {
+				checkOpen();
+				verify((byte) b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (ReplayIOIOConnection.this) {
+				checkOpen();
+				for (int i = 0; i < len; ++i) {
+					verify(b[off + i]);
+				}
+			}
+		}
+
+		@Override
+		public void flush() {
+			synchronized (ReplayIOIOConnection.this) {
+				// Let the playback catch up with what was sent.
+				ReplayIOIOConnection.this.notifyAll();
+			}
+		}
+
+		private void checkOpen() throws IOException {
+			if (disconnect_) {
+				throw new IOException("Replay is over");
+			}
+		}
+
+		private void verify(byte b) {
+			++bytesVerified_;
+			if (position_ == length_) {
+				if (ended_ || !nextRecord(outgoing_, CaptureFile.TO_IOIO)) {
+					ended_ = true;
+					++mismatchCount_;
+					return;
+				}
+				position_ = 0;
+				length_ = outgoing_.getLength();
+			}
+			// Checked a buffer at a time, since the protocol writes byte by byte.
+			final int index = position_ % expected_.length;
+			if (index == 0) {
+				outgoing_.getData(position_, expected_, 0,
+						Math.min(expected_.length, length_ - position_));
+			}
+			if (expected_[index] != b) {
+				if (mismatchCount_ == 0) {
+					Log.w(TAG, "Host diverged from the capture after " + (bytesVerified_ - 1)
+							+ " bytes");
+				}
+				++mismatchCount_;
+			}
+			++position_;
+		}
+	}
+}
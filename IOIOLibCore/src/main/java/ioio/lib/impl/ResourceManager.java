@@ -28,10 +28,6 @@
  */
 package ioio.lib.impl;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Iterator;
-
 public class ResourceManager {
 	private ResourceAllocator[] allocators_ = new ResourceAllocator[ResourceType
 			.values().length];
@@ -85,72 +81,31 @@ public class ResourceManager {
 				0, 1);
 	}
 
-	@SuppressWarnings("unchecked")
-	public synchronized void alloc(Object... args) {
-		int i = 0;
-		try {
-			for (; i < args.length; ++i) {
-				if (args[i] != null) {
-					if (args[i] instanceof Resource) {
-						alloc((Resource) args[i]);
-					} else if (args[i] instanceof Resource[]) {
-						alloc(Arrays.asList((Resource[]) args[i]));
-					} else if (args[i] instanceof Collection<?>) {
-						alloc((Collection<Resource>) args[i]);
-					} else {
-						throw new IllegalArgumentException();
-					}
-				}
-			}
-		} catch (RuntimeException e) {
-			for (int j = 0; j < i; ++j) {
-				if (args[j] instanceof Resource) {
-					free((Resource) args[j]);
-				} else if (args[j] instanceof Resource[]) {
-					free(Arrays.asList((Resource[]) args[j]));
-				} else if (args[i] instanceof Collection<?>) {
-					free((Collection<Resource>) args[i]);
-				}
-			}
-			throw e;
-		}
-	}
-
-	@SuppressWarnings("unchecked")
-	public synchronized void free(Object... args) {
-		for (int i = 0; i < args.length; ++i) {
-			if (args[i] instanceof Resource) {
-				free((Resource) args[i]);
-			} else if (args[i] instanceof Resource[]) {
-				free(Arrays.asList((Resource[]) args[i]));
-			} else if (args[i] instanceof Collection<?>) {
-				free((Collection<Resource>) args[i]);
-			} else {
-				throw new IllegalArgumentException();
-			}
-		}
-	}
-
-	public synchronized void alloc(Collection<Resource> resources) {
+	/**
+	 * Allocate several resources, atomically: either all of them are
+	 * allocated, or, if any of them cannot be, none is and the exception is
+	 * rethrown. Null entries are ignored.
+	 */
+	public synchronized void alloc(Resource... resources) {
 		int i = 0;
 		try {
-			Iterator<Resource> iter = resources.iterator();
-			while (iter.hasNext()) {
-				alloc(iter.next());
-				++i;
+			for (; i < resources.length; ++i) {
+				alloc(resources[i]);
 			}
 		} catch (RuntimeException e) {
-			Iterator<Resource> iter = resources.iterator();
 			while (i-- > 0) {
-				free(iter.next());
+				free(resources[i]);
 			}
 			throw e;
 		}
 	}
 
-	public synchronized void free(Collection<Resource> resources) {
-		for (Resource r : resources) {
-			free(r);
+	/**
+	 * Free several resources. Null entries are ignored.
+	 */
+	public synchronized void free(Resource... resources) {
+		for (int i = 0; i < resources.length; ++i) {
+			free(resources[i]);
 		}
 	}
 
@@ -36,17 +36,12 @@ import ioio.lib.impl.IncomingState.SequencerEventListener;
 import ioio.lib.impl.InterruptibleQueue.Nudged;
 import ioio.lib.impl.ResourceManager.Resource;
 import ioio.lib.impl.ResourceManager.ResourceType;
-import ioio.lib.spi.Log;
 
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.LinkedList;
 import java.util.List;
 
 public class SequencerImpl extends AbstractResource implements Sequencer, SequencerEventListener {
-	private static final String TAG = "SequencerImpl";
-
 	private enum RemoteState {
 		IDLE_OR_MANUAL, RUNNING, STALLED, CLOSED
 	}
@@ -55,26 +50,18 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		IDLE, RUNNING, MANUAL, CLOSED
 	}
 
-	// A mapping between the ChannelConfig sub-types to their respective
-	// Channel sub-types.
-	private static class ClassMapEntry {
-		public final Class<? extends ChannelConfig> configClass;
-		public final Class<? extends Channel> channelClass;
+	// An immutable, serialized cue. Tagged with its sequencer, since the
+	// serialization depends on the channel configuration.
+	private static class CompiledCueImpl implements CompiledCue {
+		final SequencerImpl owner_;
+		final byte[] data_;
 
-		public ClassMapEntry(Class<? extends ChannelConfig> configClass,
-				Class<? extends Channel> channelClass) {
-			this.configClass = configClass;
-			this.channelClass = channelClass;
+		CompiledCueImpl(SequencerImpl owner, byte[] data) {
+			owner_ = owner;
+			data_ = data;
 		}
 	}
 
-	private static final ClassMapEntry[] CLASS_MAP = {
-			new ClassMapEntry(ChannelConfigBinary.class, ChannelBinary.class),
-			new ClassMapEntry(ChannelConfigPwmPosition.class, ChannelPwmPosition.class),
-			new ClassMapEntry(ChannelConfigPwmSpeed.class, ChannelPwmSpeed.class),
-			new ClassMapEntry(ChannelConfigFmSpeed.class, ChannelFmSpeed.class),
-			new ClassMapEntry(ChannelConfigSteps.class, ChannelSteps.class) };
-
 	private final Channel[] channels_;
 	private final List<Resource> pins_ = new LinkedList<ResourceManager.Resource>();
 	private final List<Resource> ocs_ = new LinkedList<ResourceManager.Resource>();
@@ -102,7 +89,7 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		}
 
 		// Allocate resources.
-		ioio_.resourceManager_.alloc(pins_, ocs_, sequencer_);
+		ioio_.resourceManager_.alloc(allResources());
 
 		// Register for events, before they start coming.
 		ioio_.incomingState_.addSequencerEventListener(this);
@@ -115,6 +102,19 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		openSequencer();
 	}
 
+	private Resource[] allResources() {
+		Resource[] result = new Resource[pins_.size() + ocs_.size() + 1];
+		int i = 0;
+		for (Resource pin : pins_) {
+			result[i++] = pin;
+		}
+		for (Resource oc : ocs_) {
+			result[i++] = oc;
+		}
+		result[i] = sequencer_;
+		return result;
+	}
+
 	@Override
 	public synchronized void push(ChannelCue[] cues, int duration) throws ConnectionLostException,
 			InterruptedException {
@@ -134,6 +134,67 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		}
 	}
 
+	@Override
+	public CompiledCue compile(ChannelCue[] cues) {
+		// Serialization only depends on the immutable channel configuration,
+		// so this does not need the lock.
+		final byte[] buf = new byte[serializedBuf_.length];
+		final int size = serializeCues(cues, buf);
+		final byte[] data = new byte[size];
+		System.arraycopy(buf, 0, data, 0, size);
+		return new CompiledCueImpl(this, data);
+	}
+
+	@Override
+	public synchronized void push(CompiledCue cue, int duration) throws ConnectionLostException,
+			InterruptedException {
+		checkState();
+		checkDuration(duration);
+		final byte[] data = compiledData(cue);
+		while (availableSlots_ == 0) {
+			safeWait();
+		}
+		try {
+			ioio_.protocol_.sequencerPush(duration - 1, data, data.length);
+			--availableSlots_;
+		} catch (IOException e) {
+			throw new ConnectionLostException(e);
+		}
+	}
+
+	@Override
+	public synchronized int pushAll(CompiledCue[] cues, int[] durations, int offset, int count)
+			throws ConnectionLostException {
+		checkState();
+		final int n = Math.min(count, availableSlots_);
+		// Validate everything first, so that we never push a partial batch
+		// due to bad arguments.
+		for (int i = offset; i < offset + n; ++i) {
+			checkDuration(durations[i]);
+			compiledData(cues[i]);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		ioio_.protocol_.beginBatch();
+		try {
+			for (int i = offset; i < offset + n; ++i) {
+				final byte[] data = ((CompiledCueImpl) cues[i]).data_;
+				ioio_.protocol_.sequencerPush(durations[i] - 1, data, data.length);
+			}
+			availableSlots_ -= n;
+		} catch (IOException e) {
+			throw new ConnectionLostException(e);
+		} finally {
+			try {
+				ioio_.protocol_.endBatch();
+			} catch (IOException e) {
+				throw new ConnectionLostException(e);
+			}
+		}
+		return n;
+	}
+
 	@Override
 	public synchronized void manualStart(ChannelCue[] cues) throws ConnectionLostException {
 		checkState();
@@ -224,7 +285,7 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 			// not want to free the resources or exit the call before the close is complete.
 			waitRemoteState(RemoteState.CLOSED);
 			// Free resources.
-			ioio_.resourceManager_.free(pins_, ocs_, sequencer_);
+			ioio_.resourceManager_.free(allResources());
 		} catch (Exception e) {
 		} finally {
 			super.close();
@@ -322,6 +383,19 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		}
 	}
 
+	private static void checkDuration(int duration) {
+		if (duration < 2 || duration > (1 << 16)) {
+			throw new IllegalArgumentException("Duration must be in the range [2..65536]");
+		}
+	}
+
+	private byte[] compiledData(CompiledCue cue) {
+		if (!(cue instanceof CompiledCueImpl) || ((CompiledCueImpl) cue).owner_ != this) {
+			throw new IllegalArgumentException("Cue was not compiled by this sequencer.");
+		}
+		return ((CompiledCueImpl) cue).data_;
+	}
+
 	private int serializeCues(ChannelCue[] cues, byte[] buf) {
 		if (cues.length != channels_.length) {
 			throw new IllegalArgumentException("Wrong number of channels.");
@@ -334,28 +408,20 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		return offset;
 	}
 
-	private Channel createChannel(ChannelConfig config) throws ConnectionLostException {
-		for (ClassMapEntry mapping : CLASS_MAP) {
-			if (mapping.configClass.isInstance(config)) {
-				Constructor<?> ctor;
-				try {
-					ctor = mapping.channelClass.getConstructor(SequencerImpl.class,
-							mapping.configClass);
-					return (Channel) ctor.newInstance(this, config);
-				} catch (InvocationTargetException e) {
-					try {
-						throw e.getCause();
-					} catch (RuntimeException cause) {
-						throw cause;
-					} catch (ConnectionLostException cause) {
-						throw cause;
-					} catch (Throwable cause) {
-						Log.e(TAG, "Unexpected exception caught.", e);
-					}
-				} catch (Exception e) {
-					Log.e(TAG, "Unexpected exception caught.", e);
-				}
-			}
+	// Maps each ChannelConfig sub-type to its respective Channel sub-type.
+	// Dispatched directly rather than via reflection, which is slow on
+	// Android, and this runs for every channel on every (re)connect.
+	private Channel createChannel(ChannelConfig config) {
+		if (config instanceof ChannelConfigBinary) {
+			return new ChannelBinary((ChannelConfigBinary) config);
+		} else if (config instanceof ChannelConfigPwmPosition) {
+			return new ChannelPwmPosition((ChannelConfigPwmPosition) config);
+		} else if (config instanceof ChannelConfigPwmSpeed) {
+			return new ChannelPwmSpeed((ChannelConfigPwmSpeed) config);
+		} else if (config instanceof ChannelConfigFmSpeed) {
+			return new ChannelFmSpeed((ChannelConfigFmSpeed) config);
+		} else if (config instanceof ChannelConfigSteps) {
+			return new ChannelSteps((ChannelConfigSteps) config);
 		}
 		throw new IllegalArgumentException("Unsupported config type: "
 				+ config.getClass().getName());
@@ -549,7 +615,6 @@ public class SequencerImpl extends AbstractResource implements Sequencer, Sequen
 		private final ChannelConfigBinary cfg_;
 		private final Resource pin_;
 
-		@SuppressWarnings("unused")
 		public ChannelBinary(ChannelConfigBinary cfg) {
 			cfg_ = cfg;
 			pin_ = new Resource(ResourceType.PIN, cfg.pinSpec.pin);
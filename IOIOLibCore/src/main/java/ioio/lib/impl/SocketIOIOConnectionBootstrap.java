@@ -45,6 +45,10 @@ public class SocketIOIOConnectionBootstrap implements IOIOConnectionBootstrap {
 			
 			@Override
 			public String getType() {
+				// Kept as is, although the connection is now a
+				// NioSocketIOIOConnection: clients are documented to tell
+				// the TCP transport apart by this name (see IOIOActivity),
+				// and match boards on it (see MultiBoardLooperProvider).
 				return SocketIOIOConnection.class.getCanonicalName();
 			}
 			
@@ -55,7 +59,7 @@ public class SocketIOIOConnectionBootstrap implements IOIOConnectionBootstrap {
 			
 			@Override
 			public IOIOConnection createConnection() {
-				return new SocketIOIOConnection(IOIO_PORT);
+				return new NioSocketIOIOConnection(IOIO_PORT);
 			}
 		});
 	}
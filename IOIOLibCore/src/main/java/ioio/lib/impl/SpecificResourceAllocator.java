@@ -30,32 +30,49 @@ package ioio.lib.impl;
 
 import ioio.lib.impl.ResourceManager.Resource;
 
+/**
+ * Allocates specific instances of a resource type, by id, out of a
+ * consecutive range of up to 64 ids.
+ * <p>
+ * The claimed ids are kept as a bit mask, so both allocation and freeing are
+ * constant time and do not allocate.
+ */
 class SpecificResourceAllocator implements ResourceManager.ResourceAllocator {
-	private final boolean[] claimed_;
+	private long claimed_ = 0;
 	private final int offset_;
+	private final int count_;
 
 	public SpecificResourceAllocator(int offset, int count) {
+		if (count > 64) {
+			throw new IllegalArgumentException("Too many resources: " + count);
+		}
 		offset_ = offset;
-		claimed_ = new boolean[count];
+		count_ = count;
+	}
+
+	private long bit(Resource r) {
+		final int index = r.id - offset_;
+		if (index < 0 || index >= count_) {
+			throw new IllegalArgumentException("Resource doesn't exist: " + r);
+		}
+		return 1L << index;
 	}
 
 	@Override
 	public synchronized void alloc(Resource r) {
-		try {
-			if (claimed_[r.id - offset_]) {
-				throw new IllegalArgumentException("Resource already claimed: " + r);
-			}
-			claimed_[r.id - offset_] = true;
-		} catch (IndexOutOfBoundsException e) {
-			throw new IllegalArgumentException("Resource doesn't exist: " + r);
+		final long bit = bit(r);
+		if ((claimed_ & bit) != 0) {
+			throw new IllegalArgumentException("Resource already claimed: " + r);
 		}
+		claimed_ |= bit;
 	}
 
 	@Override
 	public synchronized void free(Resource r) {
-		if (!claimed_[r.id - offset_]) {
+		final long bit = bit(r);
+		if ((claimed_ & bit) == 0) {
 			throw new IllegalArgumentException("Resource not claimed: " + r);
 		}
-		claimed_[r.id - offset_] = false;
+		claimed_ &= ~bit;
 	}
 }
@@ -37,12 +37,13 @@ import ioio.lib.impl.ResourceManager.Resource;
 import ioio.lib.spi.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 
 class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleListener, Sender {
-	public class SpiResult extends ResourceLifeCycle implements Result {
-		private boolean ready_ = false;
+	public class SpiResult extends ListenableResult<ResultListener, Void> implements Result {
 		private final byte[] data_;
 
 		SpiResult(byte[] data) {
@@ -57,9 +58,23 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 			}
 		}
 
-		public synchronized void ready() {
-			ready_ = true;
-			notifyAll();
+		public void ready() {
+			setReady();
+		}
+
+		@Override
+		protected void notifyComplete(ResultListener listener) {
+			listener.onComplete(this);
+		}
+
+		@Override
+		protected void notifyAborted(ResultListener listener) {
+			listener.onAborted(this);
+		}
+
+		@Override
+		protected Void getValue() {
+			return null;
 		}
 
 		public byte[] getData() {
@@ -73,6 +88,9 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		int ssPin_;
 		int readSize_;
 		int totalSize_;
+		// Set for packets of a stream, which complete write-only transfers
+		// once sent.
+		StreamTransfer transfer_;
 
 		@Override
 		public int getSize() {
@@ -80,8 +98,191 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		}
 	}
 
-	private final Queue<SpiResult> pendingRequests_ = new ConcurrentLinkedQueue<SpiMasterImpl.SpiResult>();
+	/**
+	 * A single buffer pair of a stream. Reused for every transfer using this
+	 * pair, along with its packet.
+	 */
+	class StreamTransfer extends SpiResult {
+		final StreamImpl stream_;
+		final int index_;
+		final OutgoingPacket packet_ = new OutgoingPacket();
+
+		StreamTransfer(StreamImpl stream, int index, byte[] readData) {
+			super(readData);
+			stream_ = stream;
+			index_ = index;
+			packet_.transfer_ = this;
+		}
+
+		@Override
+		public void ready() {
+			stream_.transferDone(index_);
+		}
+
+		@Override
+		public void disconnected() {
+			stream_.abort();
+		}
+
+		@Override
+		public void close() {
+			stream_.abort();
+		}
+	}
+
+	/**
+	 * A stream, along with the thread which hands completed transfers to
+	 * the listener and queues them again. Queuing may block on flow control,
+	 * so it cannot be done on the thread which reports completion.
+	 */
+	class StreamImpl implements Stream, Runnable {
+		private final Thread thread_ = new Thread(this);
+		private final StreamTransfer[] transfers_;
+		private final byte[][] writeBuffers_;
+		private final byte[][] readBuffers_;
+		private final StreamListener listener_;
+		private final boolean[] queued_;
+		// Indices of completed transfers not yet handed to the listener.
+		private final int[] completed_;
+		private int completedHead_ = 0;
+		private int completedCount_ = 0;
+		private int inFlight_ = 0;
+		private boolean stopped_ = false;
+		private boolean aborted_ = false;
+
+		StreamImpl(int ssPin, byte[][] writeBuffers, int writeSize, int totalSize,
+				byte[][] readBuffers, int readSize, StreamListener listener) {
+			writeBuffers_ = writeBuffers.clone();
+			readBuffers_ = readBuffers == null ? null : readBuffers.clone();
+			listener_ = listener;
+			transfers_ = new StreamTransfer[writeBuffers.length];
+			queued_ = new boolean[writeBuffers.length];
+			completed_ = new int[writeBuffers.length];
+			for (int i = 0; i < transfers_.length; ++i) {
+				StreamTransfer t = new StreamTransfer(this, i,
+						readBuffers_ == null ? null : readBuffers_[i]);
+				t.packet_.ssPin_ = ssPin;
+				t.packet_.writeData_ = writeBuffers_[i];
+				t.packet_.writeSize_ = writeSize;
+				t.packet_.totalSize_ = totalSize;
+				t.packet_.readSize_ = readSize;
+				transfers_[i] = t;
+			}
+		}
+
+		@Override
+		public int getBufferCount() {
+			return transfers_.length;
+		}
+
+		@Override
+		public byte[] getWriteBuffer(int index) {
+			return writeBuffers_[index];
+		}
+
+		@Override
+		public byte[] getReadBuffer(int index) {
+			return readBuffers_ == null ? null : readBuffers_[index];
+		}
+
+		@Override
+		public void submit(int index) throws ConnectionLostException {
+			if (!queue(index)) {
+				throw new IllegalStateException("Stream has been stopped");
+			}
+		}
+
+		@Override
+		public void stop() throws InterruptedException {
+			synchronized (this) {
+				stopped_ = true;
+				notifyAll();
+			}
+			if (Thread.currentThread() != thread_) {
+				thread_.join();
+			}
+		}
+
+		// Returns false if the stream has been stopped.
+		boolean queue(int index) throws ConnectionLostException {
+			synchronized (this) {
+				if (aborted_) {
+					throw new ConnectionLostException();
+				}
+				if (stopped_) {
+					return false;
+				}
+				if (queued_[index]) {
+					throw new IllegalStateException("Buffer pair is already queued");
+				}
+				queued_[index] = true;
+				++inFlight_;
+			}
+			StreamTransfer t = transfers_[index];
+			enqueue(t, t.packet_);
+			return true;
+		}
+
+		synchronized void transferDone(int index) {
+			queued_[index] = false;
+			--inFlight_;
+			completed_[(completedHead_ + completedCount_++) % completed_.length] = index;
+			notifyAll();
+		}
+
+		void start() {
+			thread_.start();
+		}
+
+		synchronized void abort() {
+			aborted_ = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					int index;
+					synchronized (this) {
+						while (!aborted_ && completedCount_ == 0
+								&& !(stopped_ && inFlight_ == 0)) {
+							wait();
+						}
+						if (aborted_ || completedCount_ == 0) {
+							break;
+						}
+						index = completed_[completedHead_];
+						completedHead_ = (completedHead_ + 1) % completed_.length;
+						--completedCount_;
+					}
+					if (listener_.onTransferComplete(this, index)) {
+						queue(index);
+					}
+				}
+			} catch (ConnectionLostException e) {
+			} catch (InterruptedException e) {
+			} finally {
+				removeStream(this);
+			}
+			boolean aborted;
+			synchronized (this) {
+				aborted = aborted_;
+			}
+			if (aborted) {
+				listener_.onAborted(this);
+			}
+		}
+	}
+
+	// Every request with a response written to outgoing_ has a matching entry
+	// here, so the bound of outgoing_ (plus whatever the firmware buffers)
+	// also bounds this queue. Array-backed, so that enqueuing does not
+	// allocate.
+	private final Queue<SpiResult> pendingRequests_ = new ArrayBlockingQueue<SpiResult>(
+			2 * Constants.PACKET_BUFFER_SIZE);
 	private final FlowControlledPacketSender outgoing_ = new FlowControlledPacketSender(this);
+	private final List<StreamImpl> streams_ = new ArrayList<StreamImpl>();
 
 	private final Resource spi_;
 	private final Resource[] indexToSsPin_;
@@ -105,6 +306,9 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		for (SpiResult result : pendingRequests_) {
 			result.disconnected();
 		}
+		for (StreamImpl stream : streams_) {
+			stream.abort();
+		}
 		super.disconnected();
 	}
 
@@ -128,19 +332,56 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		p.ssPin_ = indexToSsPin_[slave].id;
 		p.totalSize_ = totalSize;
 
-		if (p.readSize_ > 0) {
-			synchronized (this) {
-				pendingRequests_.add(result);
-			}
-		} else {
+		if (p.readSize_ == 0) {
 			result.ready_ = true;
 		}
+		enqueue(result, p);
+		return result;
+	}
+
+	@Override
+	public synchronized Stream openStream(int slave, byte[][] writeBuffers, int writeSize,
+			int totalSize, byte[][] readBuffers, int readSize, StreamListener listener)
+			throws ConnectionLostException {
+		checkState();
+		if (readSize > 0 && (readBuffers == null || readBuffers.length != writeBuffers.length)) {
+			throw new IllegalArgumentException("Need a read buffer per write buffer");
+		}
+		StreamImpl stream = new StreamImpl(indexToSsPin_[slave].id, writeBuffers, writeSize,
+				totalSize, readBuffers, readSize, listener);
+		streams_.add(stream);
+		try {
+			for (int i = 0; i < writeBuffers.length; ++i) {
+				stream.queue(i);
+			}
+		} catch (ConnectionLostException e) {
+			// The thread has not been started, so nothing else refers to it.
+			stream.abort();
+			streams_.remove(stream);
+			throw e;
+		}
+		// Transfers which complete before the thread runs wait for it.
+		stream.start();
+		return stream;
+	}
+
+	private synchronized void removeStream(StreamImpl stream) {
+		streams_.remove(stream);
+	}
+
+	// Responses arrive in request order, so the pending queue and the
+	// outgoing queue must be appended to atomically.
+	private synchronized void enqueue(SpiResult result, OutgoingPacket p)
+			throws ConnectionLostException {
+		checkState();
+		if (p.readSize_ > 0) {
+			pendingRequests_.add(result);
+		}
 		try {
 			outgoing_.write(p);
 		} catch (IOException e) {
 			Log.e("SpiMasterImpl", "Exception caught", e);
 		}
-		return result;
 	}
 
 	@Override
@@ -154,9 +395,9 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		SpiResult result = pendingRequests_.remove();
 		synchronized (result) {
 			System.arraycopy(data, 0, result.getData(), 0, size);
-			result.ready();
-			result.notify();
 		}
+		// Outside of the lock, since this may invoke listeners.
+		result.ready();
 	}
 
 	@Override
@@ -171,6 +412,9 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		for (SpiResult result : pendingRequests_) {
 			result.close();
 		}
+		for (StreamImpl stream : streams_) {
+			stream.abort();
+		}
 
 		try {
 			ioio_.protocol_.spiClose(spi_.id);
@@ -195,6 +439,23 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster, DataModuleLis
 		} catch (IOException e) {
 			Log.e("SpiImpl", "Caught exception", e);
 		}
+		if (p.transfer_ != null && p.readSize_ == 0) {
+			// The write buffer has been copied, and there is no response.
+			p.transfer_.ready();
+		}
+	}
+
+	@Override
+	public void beginBatch() {
+		ioio_.protocol_.beginBatch();
 	}
 
+	@Override
+	public void endBatch() {
+		try {
+			ioio_.protocol_.endBatch();
+		} catch (IOException e) {
+			Log.e("SpiImpl", "Caught exception", e);
+		}
+	}
 }
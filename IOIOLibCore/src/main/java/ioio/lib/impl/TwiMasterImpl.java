@@ -38,23 +38,42 @@ import ioio.lib.spi.Log;
 
 import java.io.IOException;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 
 class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		DataModuleListener, Sender {
-	class TwiResult extends ResourceLifeCycle implements Result {
-		private boolean ready_ = false;
-		private boolean success_;
-		private final byte[] data_;
+	class TwiResult extends ListenableResult<ResultListener, Boolean> implements Result {
+		protected boolean success_;
+		protected byte[] data_;
 
 		public TwiResult(byte[] data) {
 			data_ = data;
 		}
 
-		public synchronized void ready(boolean success) {
-			ready_ = true;
-			success_ = success;
-			notifyAll();
+		public void ready(boolean success) {
+			synchronized (this) {
+				success_ = success;
+			}
+			setReady();
+		}
+
+		@Override
+		protected void notifyComplete(ResultListener listener) {
+			listener.onComplete(this, isSuccess());
+		}
+
+		@Override
+		protected void notifyAborted(ResultListener listener) {
+			listener.onAborted(this);
+		}
+
+		@Override
+		protected Boolean getValue() {
+			return Boolean.valueOf(success_);
+		}
+
+		public synchronized boolean isSuccess() {
+			return success_;
 		}
 
 		public byte[] getData() {
@@ -86,9 +105,175 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 
 	}
 
-	private final Queue<TwiResult> pendingRequests_ = new ConcurrentLinkedQueue<TwiMasterImpl.TwiResult>();
+	/**
+	 * A pooled transaction. Owns its result state and its outgoing packet, so
+	 * that submitting it does not allocate.
+	 */
+	class PooledTransaction extends TwiResult implements Transaction {
+		final OutgoingPacket packet_ = new OutgoingPacket();
+		private boolean taken_ = false;
+		private BatchResult batch_;
+
+		PooledTransaction() {
+			super(null);
+			ready_ = true;
+		}
+
+		@Override
+		public synchronized void set(int address, boolean tenBitAddr,
+				byte[] writeData, int writeSize, byte[] readData, int readSize) {
+			checkTaken();
+			checkIdle();
+			packet_.addr_ = address;
+			packet_.tenBitAddr_ = tenBitAddr;
+			packet_.writeData_ = writeData;
+			packet_.writeSize_ = writeSize;
+			packet_.readSize_ = readSize;
+			data_ = readData;
+		}
+
+		@Override
+		public void release() {
+			synchronized (this) {
+				checkTaken();
+				checkIdle();
+				taken_ = false;
+				packet_.writeData_ = null;
+				data_ = null;
+			}
+			removeAllListeners();
+			returnToPool(this);
+		}
+
+		TwiMasterImpl owner() {
+			return TwiMasterImpl.this;
+		}
+
+		synchronized void take() {
+			taken_ = true;
+			success_ = false;
+		}
+
+		synchronized void prepareSubmit(BatchResult batch) {
+			checkTaken();
+			checkIdle();
+			ready_ = false;
+			batch_ = batch;
+		}
+
+		@Override
+		protected boolean notifyOnAdd() {
+			// Listeners are kept across submissions and only hear about the
+			// ones that complete after they have been added.
+			return false;
+		}
+
+		synchronized void abortSubmit() {
+			ready_ = true;
+			batch_ = null;
+		}
+
+		@Override
+		public void ready(boolean success) {
+			BatchResult batch;
+			synchronized (this) {
+				batch = batch_;
+				batch_ = null;
+			}
+			super.ready(success);
+			if (batch != null) {
+				batch.transactionDone(success);
+			}
+		}
+
+		@Override
+		public void disconnected() {
+			BatchResult batch;
+			synchronized (this) {
+				batch = batch_;
+			}
+			super.disconnected();
+			if (batch != null) {
+				batch.disconnected();
+			}
+		}
+
+		@Override
+		public void close() {
+			BatchResult batch;
+			synchronized (this) {
+				batch = batch_;
+			}
+			super.close();
+			if (batch != null) {
+				batch.close();
+			}
+		}
+
+		private void checkTaken() {
+			if (!taken_) {
+				throw new IllegalStateException("Transaction has been released");
+			}
+		}
+
+		private void checkIdle() {
+			// A submission aborted by a disconnect or a close will never
+			// complete, so it does not keep the transaction in flight.
+			if (!isDone()) {
+				throw new IllegalStateException("Transaction is still in flight");
+			}
+		}
+	}
+
+	/**
+	 * The completion of a batch of transactions. Becomes ready when the last
+	 * transaction in the batch is done, and succeeds only if all of them have.
+	 */
+	class BatchResult extends TwiResult {
+		private int remaining_;
+		private boolean closed_ = false;
+
+		BatchResult(int count) {
+			super(null);
+			remaining_ = count;
+			success_ = true;
+			ready_ = count == 0;
+		}
+
+		void transactionDone(boolean success) {
+			boolean done;
+			synchronized (this) {
+				success_ &= success;
+				done = --remaining_ == 0;
+			}
+			if (done) {
+				ready(success_);
+			}
+		}
+
+		@Override
+		public void close() {
+			// Shared by all the transactions in the batch.
+			synchronized (this) {
+				if (closed_) {
+					return;
+				}
+				closed_ = true;
+			}
+			super.close();
+		}
+	}
+
+	// Every request written to outgoing_ has a matching entry here, so the
+	// bound of outgoing_ (plus whatever the firmware buffers) also bounds this
+	// queue. Array-backed, so that enqueuing does not allocate.
+	private final Queue<TwiResult> pendingRequests_ = new ArrayBlockingQueue<TwiResult>(
+			2 * Constants.PACKET_BUFFER_SIZE);
 	private final FlowControlledPacketSender outgoing_ = new FlowControlledPacketSender(
 			this);
+	private final PooledTransaction[] pool_ = new PooledTransaction[Constants.TWI_TRANSACTION_POOL_SIZE];
+	private int poolSize_;
+	private final Packet[] batchPackets_ = new Packet[Constants.TWI_TRANSACTION_POOL_SIZE];
 	private final Resource twi_;
 	private final Resource[] pins_;
 
@@ -96,6 +281,10 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		super(ioio);
 		twi_ = twi;
 		pins_ = pins;
+		for (int i = 0; i < pool_.length; ++i) {
+			pool_[i] = new PooledTransaction();
+		}
+		poolSize_ = pool_.length;
 	}
 
 	@Override
@@ -130,27 +319,105 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		p.readSize_ = readSize;
 		p.addr_ = address;
 
+		enqueue(result, p);
+		return result;
+	}
+
+	@Override
+	public synchronized Transaction obtainTransaction()
+			throws ConnectionLostException, InterruptedException {
+		checkState();
+		while (poolSize_ == 0) {
+			safeWait();
+		}
+		PooledTransaction t = pool_[--poolSize_];
+		pool_[poolSize_] = null;
+		t.take();
+		return t;
+	}
+
+	@Override
+	public void submit(Transaction transaction) throws ConnectionLostException {
+		checkState();
+		PooledTransaction t = checkOwned(transaction);
+		t.prepareSubmit(null);
+		enqueue(t, t.packet_);
+	}
+
+	@Override
+	public Result submitBatch(Transaction[] transactions)
+			throws ConnectionLostException {
+		checkState();
+		BatchResult batch = new BatchResult(transactions.length);
 		synchronized (this) {
-			pendingRequests_.add(result);
+			int i = 0;
+			try {
+				for (; i < transactions.length; ++i) {
+					PooledTransaction t = checkOwned(transactions[i]);
+					t.prepareSubmit(batch);
+					batchPackets_[i] = t.packet_;
+				}
+			} catch (RuntimeException e) {
+				while (i-- > 0) {
+					((PooledTransaction) transactions[i]).abortSubmit();
+					batchPackets_[i] = null;
+				}
+				throw e;
+			}
+			for (Transaction t : transactions) {
+				pendingRequests_.add((PooledTransaction) t);
+			}
 			try {
-				outgoing_.write(p);
+				outgoing_.write(batchPackets_, transactions.length);
 			} catch (IOException e) {
-				Log.e("SpiMasterImpl", "Exception caught", e);
+				Log.e("TwiMasterImpl", "Exception caught", e);
+			}
+			for (i = 0; i < transactions.length; ++i) {
+				batchPackets_[i] = null;
 			}
 		}
-		return result;
+		return batch;
+	}
+
+	@Override
+	public int getUnsentCount() {
+		return outgoing_.queued();
+	}
+
+	private PooledTransaction checkOwned(Transaction transaction) {
+		if (!(transaction instanceof PooledTransaction)
+				|| ((PooledTransaction) transaction).owner() != this) {
+			throw new IllegalArgumentException(
+					"Transaction was not obtained from this TwiMaster");
+		}
+		return (PooledTransaction) transaction;
+	}
+
+	private synchronized void returnToPool(PooledTransaction t) {
+		pool_[poolSize_++] = t;
+		notifyAll();
+	}
+
+	private synchronized void enqueue(TwiResult result, OutgoingPacket p) {
+		pendingRequests_.add(result);
+		try {
+			outgoing_.write(p);
+		} catch (IOException e) {
+			Log.e("TwiMasterImpl", "Exception caught", e);
+		}
 	}
 
 	@Override
 	public void dataReceived(byte[] data, int size) {
 		TwiResult result = pendingRequests_.remove();
+		final boolean success = size != 0xFF;
 		synchronized (result) {
-			final boolean success = size != 0xFF;
 			if (success && size > 0) {
 				System.arraycopy(data, 0, result.getData(), 0, size);
 			}
-			result.ready(success);
 		}
+		// Outside of the lock, since this may invoke listeners.
+		result.ready(success);
 	}
 
 	@Override
@@ -167,7 +434,8 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		}
 		try {
 			ioio_.protocol_.i2cClose(twi_.id);
-			ioio_.resourceManager_.free(twi_, pins_);
+			ioio_.resourceManager_.free(twi_);
+			ioio_.resourceManager_.free(pins_);
 		} catch (IOException e) {
 		}
 		super.close();
@@ -183,4 +451,18 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 			Log.e("TwiImpl", "Caught exception", e);
 		}
 	}
+
+	@Override
+	public void beginBatch() {
+		ioio_.protocol_.beginBatch();
+	}
+
+	@Override
+	public void endBatch() {
+		try {
+			ioio_.protocol_.endBatch();
+		} catch (IOException e) {
+			Log.e("TwiImpl", "Caught exception", e);
+		}
+	}
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import ioio.lib.api.IOIO;
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link BaseIOIOLooper} whose body runs at a fixed rate.
+ * <p>
+ * {@link IOIOLooper#loop()} is called back to back for as long as the IOIO is
+ * connected, so a plain looper has to pace itself, usually by sleeping for
+ * some time per loop, which makes its actual rate drift with however long the
+ * loop body takes. Instead, subclasses of this class implement
+ * {@link #tick()}, which is called once every period. Deadlines are kept on a
+ * fixed grid starting at the first tick of each connection, so the time taken
+ * by a tick, or the sleep overshooting, does not accumulate as drift.
+ * <p>
+ * A tick which is still running when the next one is due is an overrun. What
+ * happens to the ticks it made late is set by the {@link OverrunPolicy}:
+ * either they all still run, back to back, until the schedule has caught up,
+ * or the ones already missed are skipped and the schedule resumes at the next
+ * deadline on the grid.
+ * <p>
+ * The actual period between tick starts and the amount of each overrun are
+ * recorded in histograms, which can be read from any thread.
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * {@code
+ * class Looper extends FixedRateIOIOLooper {
+ *     Looper() {
+ *         super(10000000, OverrunPolicy.SKIP); // 100Hz
+ *     }
+ *
+ *     protected void setup() throws ConnectionLostException {
+ *         ...
+ *     }
+ *
+ *     protected void tick() throws ConnectionLostException {
+ *         ...
+ *     }
+ * }
+ * }</pre>
+ */
+public abstract class FixedRateIOIOLooper extends BaseIOIOLooper {
+	/** The number of buckets of each histogram. */
+	private static final int HISTOGRAM_BUCKETS = 40;
+	/** The number of histogram buckets per period. */
+	private static final int BUCKETS_PER_PERIOD = 10;
+
+	/** What to do with the ticks made late by an overrun. */
+	public enum OverrunPolicy {
+		/**
+		 * Run every tick. Late ticks run back to back, without sleeping, until
+		 * the schedule has caught up. Use this when every tick counts, e.g.
+		 * when integrating over ticks.
+		 */
+		CATCH_UP,
+		/**
+		 * Skip the ticks whose deadline has already passed, and carry on at the
+		 * next deadline. Use this when only the latest state matters, e.g. when
+		 * sampling or refreshing outputs.
+		 */
+		SKIP
+	}
+
+	private final long periodNs_;
+	private final OverrunPolicy policy_;
+	private final Histogram periodHistogram_;
+	private final Histogram overrunHistogram_;
+
+	// Schedule, only touched by the looper thread.
+	private IOIO scheduledIOIO_;
+	private long nextDeadline_;
+	private long lastStart_;
+
+	// Statistics, written by the looper thread only.
+	private volatile long ticks_ = 0;
+	private volatile long overruns_ = 0;
+	private volatile long skipped_ = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param periodNs
+	 *            The tick period, in nanoseconds.
+	 * @param policy
+	 *            What to do with ticks made late by an overrun.
+	 */
+	protected FixedRateIOIOLooper(long periodNs, OverrunPolicy policy) {
+		if (periodNs <= 0) {
+			throw new IllegalArgumentException("Period must be positive");
+		}
+		periodNs_ = periodNs;
+		policy_ = policy;
+		long bucketWidth = Math.max(1, periodNs / BUCKETS_PER_PERIOD);
+		periodHistogram_ = new Histogram(bucketWidth, HISTOGRAM_BUCKETS);
+		overrunHistogram_ = new Histogram(bucketWidth, HISTOGRAM_BUCKETS);
+	}
+
+	/**
+	 * The periodic body of the looper, called once per period while the IOIO
+	 * is connected, starting right after setup.
+	 *
+	 * @throws ConnectionLostException
+	 *             The connection to the IOIO has been lost.
+	 * @throws InterruptedException
+	 *             The thread has been interrupted.
+	 */
+	protected abstract void tick() throws ConnectionLostException,
+			InterruptedException;
+
+	@Override
+	public final void loop() throws ConnectionLostException,
+			InterruptedException {
+		long now = System.nanoTime();
+		if (ioio_ != scheduledIOIO_) {
+			// First tick on this connection, start a new schedule.
+			scheduledIOIO_ = ioio_;
+			nextDeadline_ = now;
+			lastStart_ = 0;
+		}
+		long wait = nextDeadline_ - now;
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+			now = System.nanoTime();
+		}
+		if (lastStart_ != 0) {
+			periodHistogram_.record(now - lastStart_);
+		}
+		lastStart_ = now;
+
+		tick();
+
+		++ticks_;
+		nextDeadline_ += periodNs_;
+		long overrun = System.nanoTime() - nextDeadline_;
+		if (overrun > 0) {
+			++overruns_;
+			overrunHistogram_.record(overrun);
+			if (policy_ == OverrunPolicy.SKIP) {
+				long missed = overrun / periodNs_ + 1;
+				nextDeadline_ += missed * periodNs_;
+				skipped_ += missed;
+			}
+		}
+	}
+
+	/** The tick period, in nanoseconds. */
+	public long getPeriodNanos() {
+		return periodNs_;
+	}
+
+	/** The overrun policy. */
+	public OverrunPolicy getOverrunPolicy() {
+		return policy_;
+	}
+
+	/** The number of ticks run, over all connections. */
+	public long getTickCount() {
+		return ticks_;
+	}
+
+	/**
+	 * The number of ticks which ran past the next deadline, over all
+	 * connections.
+	 */
+	public long getOverrunCount() {
+		return overruns_;
+	}
+
+	/**
+	 * The number of ticks skipped because of overruns, over all connections.
+	 * Always 0 with {@link OverrunPolicy#CATCH_UP}.
+	 */
+	public long getSkippedCount() {
+		return skipped_;
+	}
+
+	/**
+	 * The histogram of the actual time between the starts of consecutive
+	 * ticks. Buckets are a tenth of the period wide, and cover up to four
+	 * periods.
+	 */
+	public Histogram getPeriodHistogram() {
+		return periodHistogram_;
+	}
+
+	/**
+	 * The histogram of how long past the next deadline each overrunning tick
+	 * finished. Buckets are a tenth of the period wide, and cover up to four
+	 * periods.
+	 */
+	public Histogram getOverrunHistogram() {
+		return overrunHistogram_;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+/**
+ * A fixed-bucket histogram of durations, in nanoseconds.
+ * <p>
+ * The range [0, bucketCount * bucketWidth) is split into equal width buckets,
+ * and anything beyond it is counted in the last bucket. Recording never
+ * allocates, so it can be done on every tick of a control loop. Besides the
+ * buckets, the exact minimum, maximum and mean of all recorded values are
+ * kept.
+ * <p>
+ * All methods are thread safe, so one thread can record while another reads.
+ */
+public class Histogram {
+	private final long bucketWidthNs_;
+	private final long[] counts_;
+	private long total_ = 0;
+	private long sumNs_ = 0;
+	private long minNs_ = Long.MAX_VALUE;
+	private long maxNs_ = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bucketWidthNs
+	 *            The width of each bucket, in nanoseconds.
+	 * @param bucketCount
+	 *            The number of buckets. The last one also counts everything
+	 *            beyond the range.
+	 */
+	public Histogram(long bucketWidthNs, int bucketCount) {
+		if (bucketWidthNs <= 0 || bucketCount <= 0) {
+			throw new IllegalArgumentException(
+					"Bucket width and count must be positive");
+		}
+		bucketWidthNs_ = bucketWidthNs;
+		counts_ = new long[bucketCount];
+	}
+
+	/**
+	 * Record a value. Negative values are counted as 0.
+	 *
+	 * @param valueNs
+	 *            The value, in nanoseconds.
+	 */
+	public synchronized void record(long valueNs) {
+		if (valueNs < 0) {
+			valueNs = 0;
+		}
+		long bucket = valueNs / bucketWidthNs_;
+		++counts_[bucket < counts_.length ? (int) bucket : counts_.length - 1];
+		++total_;
+		sumNs_ += valueNs;
+		if (valueNs < minNs_) {
+			minNs_ = valueNs;
+		}
+		if (valueNs > maxNs_) {
+			maxNs_ = valueNs;
+		}
+	}
+
+	/** Forget all recorded values. */
+	public synchronized void reset() {
+		for (int i = 0; i < counts_.length; ++i) {
+			counts_[i] = 0;
+		}
+		total_ = 0;
+		sumNs_ = 0;
+		minNs_ = Long.MAX_VALUE;
+		maxNs_ = 0;
+	}
+
+	/** The width of each bucket, in nanoseconds. */
+	public long getBucketWidthNanos() {
+		return bucketWidthNs_;
+	}
+
+	/** The number of buckets. */
+	public int getBucketCount() {
+		return counts_.length;
+	}
+
+	/**
+	 * The number of values recorded in a bucket. Bucket i counts values in
+	 * [i * width, (i + 1) * width), except for the last, which counts all
+	 * values from its lower bound up.
+	 */
+	public synchronized long getCount(int bucket) {
+		return counts_[bucket];
+	}
+
+	/**
+	 * Copy all bucket counts into an array, atomically with respect to
+	 * recording.
+	 *
+	 * @param counts
+	 *            The destination, at least {@link #getBucketCount()} long.
+	 */
+	public synchronized void getCounts(long[] counts) {
+		System.arraycopy(counts_, 0, counts, 0, counts_.length);
+	}
+
+	/** The number of values recorded. */
+	public synchronized long getTotal() {
+		return total_;
+	}
+
+	/** The smallest value recorded, or 0 if none. */
+	public synchronized long getMinNanos() {
+		return total_ == 0 ? 0 : minNs_;
+	}
+
+	/** The largest value recorded, or 0 if none. */
+	public synchronized long getMaxNanos() {
+		return maxNs_;
+	}
+
+	/** The mean of the values recorded, or 0 if none. */
+	public synchronized long getMeanNanos() {
+		return total_ == 0 ? 0 : sumNs_ / total_;
+	}
+
+	/**
+	 * An estimate of a percentile, as the upper bound of the bucket it falls
+	 * in (the maximum, if it falls in the last bucket).
+	 *
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return The estimate in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public synchronized long getPercentileNanos(double percentile) {
+		if (total_ == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total_ * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < counts_.length - 1; ++i) {
+			seen += counts_[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min((i + 1) * bucketWidthNs_, maxNs_);
+			}
+		}
+		return maxNs_;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n=" + total_ + " min=" + getMinNanos() / 1000 + "us mean="
+				+ getMeanNanos() / 1000 + "us p99=" + getPercentileNanos(99)
+				/ 1000 + "us max=" + maxNs_ / 1000 + "us";
+	}
+}
@@ -26,9 +26,18 @@ public abstract class IOIOBaseApplicationHelper implements IOIOConnectionThreadP
 	 * A thread, dedicated for communication with a single physical IOIO device.
 	 */
 	protected static class IOIOThread extends IOIOConnectionManager.Thread {
+		/** Delay before retrying a connection which has failed, in ms. */
+		private static final long INITIAL_BACKOFF_MS = 50;
+		/** Maximum delay between retries, in ms. */
+		private static final long MAX_BACKOFF_MS = 2000;
+
 		protected IOIO ioio_;
 		private boolean abort_ = false;
 		private boolean connected_ = false;
+		private final ReconnectBackoff backoff_ = new ReconnectBackoff(
+				INITIAL_BACKOFF_MS, MAX_BACKOFF_MS);
+		// When the last established connection was lost, 0 if there is none.
+		private long lostNanos_ = 0;
 		private final IOIOLooper looper_;
 		private final IOIOConnectionFactory connectionFactory_;
 
@@ -46,6 +55,7 @@ public abstract class IOIOBaseApplicationHelper implements IOIOConnectionThreadP
 		public final void run() {
 			super.run();
 			while (!abort_) {
+				boolean established = false;
 				try {
 					synchronized (this) {
 						if (abort_) {
@@ -62,7 +72,23 @@ public abstract class IOIOBaseApplicationHelper implements IOIOConnectionThreadP
 				try {
 					ioio_.waitForConnect();
 					connected_ = true;
+					final long readyNanos = System.nanoTime();
 					looper_.setup(ioio_);
+					// How long it takes from a ready connection to the first
+					// tick of the looper, i.e. how long the looper's setup
+					// keeps the application from controlling the IOIO.
+					Log.i(TAG, "First loop over " + connectionFactory_.getType()
+							+ " after " + (System.nanoTime() - readyNanos) / 1000
+							+ "us of setup");
+					if (lostNanos_ != 0) {
+						// End to end: from noticing the loss to the looper
+						// running again.
+						Log.i(TAG, "Recovered over " + connectionFactory_.getType()
+								+ " after a " + (System.nanoTime() - lostNanos_)
+								/ 1000000 + "ms outage");
+						lostNanos_ = 0;
+					}
+					backoff_.reset();
 					while (!abort_ && ioio_.getState() == IOIO.State.CONNECTED) {
 						looper_.loop();
 					}
@@ -79,6 +105,9 @@ public abstract class IOIOBaseApplicationHelper implements IOIOConnectionThreadP
 					ioio_.disconnect();
 					break;
 				} finally {
+					if (connected_ && lostNanos_ == 0) {
+						lostNanos_ = System.nanoTime();
+					}
 					try {
 						ioio_.waitForDisconnect();
 					} catch (InterruptedException e1) {
@@ -87,14 +116,31 @@ public abstract class IOIOBaseApplicationHelper implements IOIOConnectionThreadP
 						ioio_ = null;
 					}
 					if (connected_) {
+						established = true;
 						looper_.disconnected();
 						connected_ = false;
 					}
 				}
+				// Reconnect right away after losing an established
+				// connection, but back off while attempts keep failing.
+				if (!established) {
+					backOff();
+				}
 			}
 			Log.d(TAG, "IOIOThread is exiting");
 		}
 
+		private synchronized void backOff() {
+			if (abort_) {
+				return;
+			}
+			try {
+				wait(backoff_.nextDelayMillis());
+			} catch (InterruptedException e) {
+				// Abort is handled by the loop.
+			}
+		}
+
 		/*
 		 * (non-Javadoc)
 		 *
@@ -103,6 +149,7 @@ public abstract class IOIOBaseApplicationHelper implements IOIOConnectionThreadP
 		@Override
 		public synchronized final void abort() {
 			abort_ = true;
+			notifyAll();
 			if (ioio_ != null) {
 				ioio_.disconnect();
 			}
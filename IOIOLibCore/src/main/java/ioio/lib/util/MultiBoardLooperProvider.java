@@ -0,0 +1,373 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIO.VersionType;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link IOIOLooperProvider} for applications talking to more than one IOIO
+ * at a time.
+ * <p>
+ * {@link IOIOConnectionManager} runs a thread per connection, and asks the
+ * provider for a looper for each. A single looper instance shared by all those
+ * threads would be driven concurrently by every board that happens to connect.
+ * Instead, this provider holds a list of boards, each with its own looper, and
+ * hands every connection thread a looper which, once its IOIO is connected,
+ * claims the first free board matching that IOIO's hardware ID (and optionally
+ * connection type) and delegates to that board's looper for the duration of
+ * the connection. Each board is thus driven by at most one connection at a
+ * time, on that connection's own thread, and keeps its own metrics.
+ * <p>
+ * A connection for which no free board matches simply idles until it is
+ * disconnected, and the next connection to come up may claim the board again
+ * once its previous connection is gone.
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * {@code
+ * MultiBoardLooperProvider boards = new MultiBoardLooperProvider();
+ * boards.addBoard("motor", "SPRK0020", null, new MotorLooper());
+ * boards.addBoard("sensor", "SPRK0016", null, new SensorLooper());
+ * ...
+ * public IOIOLooper createIOIOLooper(String connectionType, Object extra) {
+ *     return boards.createIOIOLooper(connectionType, extra);
+ * }
+ * }</pre>
+ * <p>
+ * Boards are matched in the order they were added, so a board accepting any
+ * hardware ID should be added after the more specific ones.
+ *
+ * @see PeripheralRegistry
+ */
+public class MultiBoardLooperProvider implements IOIOLooperProvider {
+	private static final String TAG = "MultiBoardLooperProvider";
+	/** How long an idle connection, which did not claim a board, sleeps per loop. */
+	private static final int IDLE_LOOP_MS = 100;
+
+	/**
+	 * A board, which is one IOIO along with the looper driving it, and its
+	 * connection metrics.
+	 */
+	public static class Board {
+		private final String name_;
+		private final String hardwareId_;
+		private final String connectionType_;
+		private final IOIOLooper looper_;
+
+		// Claim and metrics, guarded by this.
+		private boolean claimed_ = false;
+		private IOIO ioio_;
+		private String connectedHardwareId_;
+		private String connectedType_;
+		private long connectCount_ = 0;
+		private long disconnectCount_ = 0;
+		private long loopCount_ = 0;
+		private long setupNanos_ = 0;
+		private long connectedSinceMillis_ = 0;
+
+		Board(String name, String hardwareId, String connectionType,
+				IOIOLooper looper) {
+			name_ = name;
+			hardwareId_ = hardwareId;
+			connectionType_ = connectionType;
+			looper_ = looper;
+		}
+
+		/** The name this board was added with. */
+		public String getName() {
+			return name_;
+		}
+
+		/** The looper driving this board. */
+		public IOIOLooper getLooper() {
+			return looper_;
+		}
+
+		/**
+		 * Whether the board currently has a connected IOIO, which has been set
+		 * up by its looper.
+		 */
+		public synchronized boolean isConnected() {
+			return ioio_ != null;
+		}
+
+		/**
+		 * The IOIO currently driving this board.
+		 *
+		 * @throws ConnectionLostException
+		 *             The board is not connected.
+		 */
+		public synchronized IOIO getIOIO() throws ConnectionLostException {
+			if (ioio_ == null) {
+				throw new ConnectionLostException();
+			}
+			return ioio_;
+		}
+
+		/**
+		 * The hardware ID of the IOIO which last connected as this board, or
+		 * null if none ever has.
+		 */
+		public synchronized String getConnectedHardwareId() {
+			return connectedHardwareId_;
+		}
+
+		/**
+		 * The connection type (see {@link IOIOConnectionFactory#getType()}) the
+		 * board was last connected over, or null if it never has.
+		 */
+		public synchronized String getConnectedType() {
+			return connectedType_;
+		}
+
+		/** The number of times this board has been connected and set up. */
+		public synchronized long getConnectCount() {
+			return connectCount_;
+		}
+
+		/** The number of times this board has been disconnected. */
+		public synchronized long getDisconnectCount() {
+			return disconnectCount_;
+		}
+
+		/** The number of loop() calls completed, over all connections. */
+		public synchronized long getLoopCount() {
+			return loopCount_;
+		}
+
+		/** How long the looper's setup() took on the last connection. */
+		public synchronized long getSetupNanos() {
+			return setupNanos_;
+		}
+
+		/**
+		 * The time (as in {@link System#currentTimeMillis()}) the board was last
+		 * connected, or 0 if it is not connected.
+		 */
+		public synchronized long getConnectedSinceMillis() {
+			return connectedSinceMillis_;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return name_ + " [" + (ioio_ != null ? "connected" : "disconnected")
+					+ ", hardware: " + connectedHardwareId_ + ", over: "
+					+ connectedType_ + ", connects: " + connectCount_
+					+ ", loops: " + loopCount_ + ", setup: "
+					+ (setupNanos_ / 1000) + "us]";
+		}
+
+		boolean matches(String hardwareId, String connectionType) {
+			return (hardwareId_ == null || hardwareId_.equals(hardwareId))
+					&& (connectionType_ == null || connectionType_
+							.equals(connectionType));
+		}
+
+		synchronized void connected(IOIO ioio, String hardwareId,
+				String connectionType, long setupNanos) {
+			ioio_ = ioio;
+			connectedHardwareId_ = hardwareId;
+			connectedType_ = connectionType;
+			setupNanos_ = setupNanos;
+			connectedSinceMillis_ = System.currentTimeMillis();
+			++connectCount_;
+		}
+
+		synchronized void looped() {
+			++loopCount_;
+		}
+
+		synchronized void disconnected() {
+			if (ioio_ != null) {
+				++disconnectCount_;
+			}
+			ioio_ = null;
+			connectedSinceMillis_ = 0;
+		}
+	}
+
+	private final List<Board> boards_ = new ArrayList<Board>();
+
+	/**
+	 * Add a board.
+	 *
+	 * @param name
+	 *            A unique name for the board.
+	 * @param hardwareId
+	 *            The hardware ID (see {@link VersionType#HARDWARE_VER}) of the
+	 *            IOIO to drive this board with, or null for any.
+	 * @param connectionType
+	 *            The connection type (see
+	 *            {@link IOIOConnectionFactory#getType()}) the IOIO has to be
+	 *            connected over, or null for any.
+	 * @param looper
+	 *            The looper driving the board. It is only ever used by one
+	 *            connection at a time.
+	 * @return The board.
+	 */
+	public synchronized Board addBoard(String name, String hardwareId,
+			String connectionType, IOIOLooper looper) {
+		if (findBoard(name) != null) {
+			throw new IllegalArgumentException("Board already added: " + name);
+		}
+		Board board = new Board(name, hardwareId, connectionType, looper);
+		boards_.add(board);
+		return board;
+	}
+
+	/**
+	 * Get a board by name.
+	 *
+	 * @return The board, or null if there is no board by that name.
+	 */
+	public synchronized Board getBoard(String name) {
+		return findBoard(name);
+	}
+
+	/** Get all boards, in the order they were added. */
+	public synchronized List<Board> getBoards() {
+		return new ArrayList<Board>(boards_);
+	}
+
+	@Override
+	public IOIOLooper createIOIOLooper(String connectionType, Object extra) {
+		return new BoardSelectingLooper(connectionType);
+	}
+
+	private Board findBoard(String name) {
+		for (Board board : boards_) {
+			if (board.name_.equals(name)) {
+				return board;
+			}
+		}
+		return null;
+	}
+
+	private synchronized Board claim(String hardwareId, String connectionType) {
+		for (Board board : boards_) {
+			if (!board.claimed_ && board.matches(hardwareId, connectionType)) {
+				board.claimed_ = true;
+				return board;
+			}
+		}
+		return null;
+	}
+
+	private synchronized Board match(String hardwareId, String connectionType) {
+		for (Board board : boards_) {
+			if (board.matches(hardwareId, connectionType)) {
+				return board;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void release(Board board) {
+		board.claimed_ = false;
+	}
+
+	/**
+	 * The looper handed to each connection thread. Claims a board on setup,
+	 * and delegates to it until disconnected.
+	 */
+	private class BoardSelectingLooper implements IOIOLooper {
+		private final String connectionType_;
+		private Board board_;
+
+		BoardSelectingLooper(String connectionType) {
+			connectionType_ = connectionType;
+		}
+
+		@Override
+		public void setup(IOIO ioio) throws ConnectionLostException,
+				InterruptedException {
+			String hardwareId = ioio.getImplVersion(VersionType.HARDWARE_VER);
+			board_ = claim(hardwareId, connectionType_);
+			if (board_ == null) {
+				Log.w(TAG, "No free board for IOIO " + hardwareId + " over "
+						+ connectionType_ + ", idling.");
+				return;
+			}
+			Log.i(TAG, "IOIO " + hardwareId + " over " + connectionType_
+					+ " is board " + board_.name_);
+			long start = System.nanoTime();
+			board_.looper_.setup(ioio);
+			board_.connected(ioio, hardwareId, connectionType_,
+					System.nanoTime() - start);
+		}
+
+		@Override
+		public void loop() throws ConnectionLostException,
+				InterruptedException {
+			if (board_ == null) {
+				Thread.sleep(IDLE_LOOP_MS);
+				return;
+			}
+			board_.looper_.loop();
+			board_.looped();
+		}
+
+		@Override
+		public void disconnected() {
+			if (board_ == null) {
+				return;
+			}
+			board_.disconnected();
+			board_.looper_.disconnected();
+			release(board_);
+			board_ = null;
+		}
+
+		@Override
+		@Deprecated
+		public void incompatible() {
+		}
+
+		@Override
+		public void incompatible(IOIO ioio) {
+			// No session was established, so the board is not claimed, only
+			// told about it.
+			String hardwareId = ioio.getImplVersion(VersionType.HARDWARE_VER);
+			Board board = match(hardwareId, connectionType_);
+			if (board != null) {
+				board.looper_.incompatible(ioio);
+			} else {
+				Log.w(TAG, "Incompatible IOIO " + hardwareId + " over "
+						+ connectionType_ + " matches no board.");
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import ioio.lib.api.IOIO;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.util.MultiBoardLooperProvider.Board;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes named peripherals to the board which owns them.
+ * <p>
+ * With more than one IOIO, code outside the loopers (e.g. a service reading a
+ * sensor) should not need to know which board a peripheral is wired to. Each
+ * peripheral is registered once, by name, against a board of a
+ * {@link MultiBoardLooperProvider}, and is then looked up by name to get its
+ * board, or the IOIO currently driving that board.
+ * <p>
+ * Moving a peripheral to another board is then a matter of changing its
+ * registration, and of which board's looper opens it.
+ */
+public class PeripheralRegistry {
+	private final MultiBoardLooperProvider boards_;
+	private final Map<String, Board> owners_ = new HashMap<String, Board>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param boards
+	 *            The boards peripherals are registered against.
+	 */
+	public PeripheralRegistry(MultiBoardLooperProvider boards) {
+		boards_ = boards;
+	}
+
+	/**
+	 * Register a peripheral as owned by a board.
+	 *
+	 * @param peripheral
+	 *            The peripheral's name, unique across all boards.
+	 * @param boardName
+	 *            The name of the owning board.
+	 * @throws IllegalArgumentException
+	 *             There is no such board, or the peripheral is already owned
+	 *             by another board.
+	 */
+	public synchronized void register(String peripheral, String boardName) {
+		Board board = boards_.getBoard(boardName);
+		if (board == null) {
+			throw new IllegalArgumentException("No such board: " + boardName);
+		}
+		Board owner = owners_.get(peripheral);
+		if (owner != null && owner != board) {
+			throw new IllegalArgumentException(peripheral
+					+ " is already owned by board " + owner.getName());
+		}
+		owners_.put(peripheral, board);
+	}
+
+	/**
+	 * Get the board owning a peripheral.
+	 *
+	 * @throws IllegalArgumentException
+	 *             The peripheral is not registered.
+	 */
+	public synchronized Board getBoard(String peripheral) {
+		Board board = owners_.get(peripheral);
+		if (board == null) {
+			throw new IllegalArgumentException("Unknown peripheral: "
+					+ peripheral);
+		}
+		return board;
+	}
+
+	/**
+	 * Get the IOIO currently driving the board owning a peripheral.
+	 *
+	 * @throws ConnectionLostException
+	 *             The owning board is not connected.
+	 * @throws IllegalArgumentException
+	 *             The peripheral is not registered.
+	 */
+	public IOIO getIOIO(String peripheral) throws ConnectionLostException {
+		return getBoard(peripheral).getIOIO();
+	}
+
+	/**
+	 * Get the names of the peripherals owned by a board, in no particular
+	 * order.
+	 */
+	public synchronized List<String> getPeripherals(String boardName) {
+		List<String> result = new ArrayList<String>();
+		for (Map.Entry<String, Board> entry : owners_.entrySet()) {
+			if (entry.getValue().getName().equals(boardName)) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+}
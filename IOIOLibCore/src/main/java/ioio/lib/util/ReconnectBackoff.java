@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnection attempts, growing exponentially with jitter.
+ * <p>
+ * The first delay is short, so that a momentary glitch in the link is
+ * recovered from quickly. Every consecutive failure doubles the delay, up to a
+ * maximum, so that a link which is down for a while is not hammered. Half of
+ * each delay is random, so that several devices (or several connections of
+ * the same device) losing their link together do not retry in lock-step.
+ * Once a connection succeeds, {@link #reset()} brings the delay back to its
+ * initial value.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ReconnectBackoff {
+	private final long initialMs_;
+	private final long maxMs_;
+	private final Random random_ = new Random();
+	private long ceilingMs_;
+	private int attempts_ = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param initialMs
+	 *            The delay before the first retry, in milliseconds.
+	 * @param maxMs
+	 *            The maximum delay, in milliseconds.
+	 */
+	public ReconnectBackoff(long initialMs, long maxMs) {
+		if (initialMs <= 0 || maxMs < initialMs) {
+			throw new IllegalArgumentException("Invalid backoff range: "
+					+ initialMs + "-" + maxMs);
+		}
+		initialMs_ = initialMs;
+		maxMs_ = maxMs;
+		ceilingMs_ = initialMs;
+	}
+
+	/**
+	 * Get the delay before the next attempt, and grow the following one.
+	 *
+	 * @return The delay, in milliseconds, between half the current ceiling and
+	 *         the ceiling.
+	 */
+	public synchronized long nextDelayMillis() {
+		final long half = ceilingMs_ / 2;
+		final long delay = half
+				+ (long) (random_.nextDouble() * (ceilingMs_ - half + 1));
+		ceilingMs_ = Math.min(maxMs_, ceilingMs_ * 2);
+		++attempts_;
+		return delay;
+	}
+
+	/**
+	 * Sleep for the next delay.
+	 *
+	 * @throws InterruptedException
+	 *             The thread has been interrupted.
+	 */
+	public void sleep() throws InterruptedException {
+		Thread.sleep(nextDelayMillis());
+	}
+
+	/**
+	 * Go back to the initial delay, typically after a successful connection.
+	 */
+	public synchronized void reset() {
+		ceilingMs_ = initialMs_;
+		attempts_ = 0;
+	}
+
+	/**
+	 * @return The number of delays since construction or the last
+	 *         {@link #reset()}.
+	 */
+	public synchronized int getAttempts() {
+		return attempts_;
+	}
+}
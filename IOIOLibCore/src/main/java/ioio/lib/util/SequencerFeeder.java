@@ -0,0 +1,303 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import ioio.lib.api.Sequencer;
+import ioio.lib.api.Sequencer.CompiledCue;
+import ioio.lib.api.Sequencer.Event;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+/**
+ * Keeps a {@link Sequencer}'s cue FIFO full, with cues pulled from a
+ * {@link CueGenerator}.
+ * <p>
+ * The feeder runs its own thread, which waits for sequencer events. Whenever
+ * a cue starts executing, it tops up the FIFO in a single batch (see
+ * {@link Sequencer#pushAll(CompiledCue[], int[], int, int)}). Rather than
+ * pushing one cue per wakeup, every wakeup refills all free slots, so the
+ * hardware-timed output stays continuous as long as the host responds within
+ * the time it takes the FIFO to drain, rather than within a single cue.
+ * <p>
+ * The feeder consumes the sequencer's event queue, so clients should not call
+ * {@link Sequencer#waitEvent()} while it is running. Instead, it exposes
+ * metrics on how close the FIFO came to running dry:
+ * <ul>
+ * <li>{@link #getUnderruns()}: number of times the FIFO has been found empty
+ * while a cue was executing, i.e. the sequencer was one cue away from
+ * stalling.</li>
+ * <li>{@link #getStalls()}: number of times the sequencer actually stalled
+ * before the generator was done.</li>
+ * <li>{@link #getLowWaterMark()}: the smallest number of queued cues observed
+ * while running.</li>
+ * </ul>
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * {@code
+ * Sequencer sequencer = ioio.openSequencer(config);
+ * SequencerFeeder feeder = new SequencerFeeder(sequencer, new SequencerFeeder.CueGenerator() {
+ *   public boolean next(SequencerFeeder.Cue cue) {
+ *     cue.cue = ramp[step];
+ *     cue.duration = 62;  // ~1ms
+ *     return ++step < ramp.length;
+ *   }
+ * });
+ * feeder.start();
+ * ...
+ * feeder.stop();
+ * }</pre>
+ */
+public class SequencerFeeder {
+	private static final String TAG = "SequencerFeeder";
+
+	/**
+	 * A cue to push, filled in by a {@link CueGenerator}. The same instance is
+	 * reused for every call.
+	 */
+	public static class Cue {
+		/** The cue, compiled by the fed sequencer. */
+		public CompiledCue cue;
+		/** The cue duration, in units of 16 microseconds. */
+		public int duration;
+	}
+
+	/**
+	 * A source of cues, invoked on the feeder's thread.
+	 */
+	public interface CueGenerator {
+		/**
+		 * Produce the next cue.
+		 *
+		 * @param cue
+		 *            To be filled in with the cue and its duration.
+		 * @return true if the cue has been filled in. false if the sequence
+		 *         is over, in which case the cue is ignored, and the
+		 *         generator will not be called again.
+		 */
+		public boolean next(Cue cue);
+	}
+
+	private final Sequencer sequencer_;
+	private final CueGenerator generator_;
+	private final Cue cue_ = new Cue();
+	private final FeederThread thread_ = new FeederThread();
+
+	// Cues pulled from the generator but not yet pushed. Accessed only by the
+	// feeder thread.
+	private CompiledCue[] pendingCues_;
+	private int[] pendingDurations_;
+	private int pendingCount_ = 0;
+	private boolean generatorDone_ = false;
+	private int capacity_;
+
+	private long underruns_ = 0;
+	private long stalls_ = 0;
+	private int lowWaterMark_ = Integer.MAX_VALUE;
+	private long cuesPushed_ = 0;
+	private boolean done_ = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sequencer
+	 *            The sequencer to feed. Should be idle, with an empty FIFO.
+	 * @param generator
+	 *            The source of cues.
+	 */
+	public SequencerFeeder(Sequencer sequencer, CueGenerator generator) {
+		sequencer_ = sequencer;
+		generator_ = generator;
+	}
+
+	/**
+	 * Start feeding. The feeder waits for the sequencer to be open, pre-fills
+	 * its FIFO and then starts it.
+	 */
+	public void start() {
+		thread_.start();
+	}
+
+	/**
+	 * Stop feeding and wait for the feeder thread to exit. Does not stop the
+	 * sequencer, which will run until its FIFO is exhausted.
+	 *
+	 * @throws InterruptedException
+	 *             Calling thread has been interrupted.
+	 */
+	public void stop() throws InterruptedException {
+		thread_.interrupt();
+		thread_.join();
+	}
+
+	/**
+	 * Wait until the generator is done and the sequencer has executed all of
+	 * its cues, or until feeding has stopped for another reason.
+	 *
+	 * @throws InterruptedException
+	 *             Calling thread has been interrupted.
+	 */
+	public synchronized void waitDone() throws InterruptedException {
+		while (!done_) {
+			wait();
+		}
+	}
+
+	/**
+	 * @return The number of times the FIFO has been found empty while a cue
+	 *         was executing.
+	 */
+	public synchronized long getUnderruns() {
+		return underruns_;
+	}
+
+	/**
+	 * @return The number of times the sequencer ran out of cues before the
+	 *         generator was done.
+	 */
+	public synchronized long getStalls() {
+		return stalls_;
+	}
+
+	/**
+	 * @return The smallest number of cues observed in the FIFO while
+	 *         running, or -1 if nothing has been observed yet.
+	 */
+	public synchronized int getLowWaterMark() {
+		return lowWaterMark_ == Integer.MAX_VALUE ? -1 : lowWaterMark_;
+	}
+
+	/**
+	 * @return The total number of cues pushed.
+	 */
+	public synchronized long getCuesPushed() {
+		return cuesPushed_;
+	}
+
+	/**
+	 * Reset the underrun, stall and low-water mark metrics.
+	 */
+	public synchronized void resetStats() {
+		underruns_ = 0;
+		stalls_ = 0;
+		lowWaterMark_ = Integer.MAX_VALUE;
+	}
+
+	class FeederThread extends Thread {
+		@Override
+		public void run() {
+			super.run();
+			try {
+				// Wait for the sequencer to be open, at which point its FIFO
+				// is at full capacity.
+				while (sequencer_.getLastEvent().type == Event.Type.CLOSED) {
+					sequencer_.waitEvent();
+				}
+				capacity_ = sequencer_.available();
+				pendingCues_ = new CompiledCue[capacity_];
+				pendingDurations_ = new int[capacity_];
+				topUp();
+				sequencer_.start();
+				while (true) {
+					final Event event = sequencer_.waitEvent();
+					if (event.type == Event.Type.CUE_STARTED) {
+						observeLevel();
+						topUp();
+					} else if (event.type == Event.Type.STALLED) {
+						if (generatorDone_ && pendingCount_ == 0) {
+							break;
+						}
+						synchronized (SequencerFeeder.this) {
+							++stalls_;
+						}
+						// Execution resumes as soon as a cue is pushed.
+						topUp();
+					} else if (event.type == Event.Type.CLOSED) {
+						break;
+					}
+				}
+			} catch (ConnectionLostException e) {
+				Log.i(TAG, "Connection lost, stopping");
+			} catch (InterruptedException e) {
+				// This is here to exit the loop.
+			} finally {
+				synchronized (SequencerFeeder.this) {
+					done_ = true;
+					SequencerFeeder.this.notifyAll();
+				}
+			}
+		}
+
+		private void observeLevel() throws ConnectionLostException {
+			final int level = capacity_ - sequencer_.available();
+			synchronized (SequencerFeeder.this) {
+				if (level == 0 && !generatorDone_) {
+					++underruns_;
+				}
+				if (level < lowWaterMark_) {
+					lowWaterMark_ = level;
+				}
+			}
+		}
+
+		/**
+		 * Pull cues from the generator into every free FIFO slot and push them
+		 * in a single batch.
+		 *
+		 * @return The number of cues pushed.
+		 */
+		private int topUp() throws ConnectionLostException {
+			final int available = sequencer_.available();
+			while (!generatorDone_ && pendingCount_ < available) {
+				if (generator_.next(cue_)) {
+					pendingCues_[pendingCount_] = cue_.cue;
+					pendingDurations_[pendingCount_] = cue_.duration;
+					++pendingCount_;
+				} else {
+					generatorDone_ = true;
+				}
+			}
+			final int pushed = sequencer_.pushAll(pendingCues_, pendingDurations_, 0,
+					pendingCount_);
+			// Keep whatever did not fit for next time.
+			System.arraycopy(pendingCues_, pushed, pendingCues_, 0, pendingCount_ - pushed);
+			System.arraycopy(pendingDurations_, pushed, pendingDurations_, 0, pendingCount_
+					- pushed);
+			pendingCount_ -= pushed;
+			for (int i = pendingCount_; i < pendingCount_ + pushed; ++i) {
+				pendingCues_[i] = null;
+			}
+			synchronized (SequencerFeeder.this) {
+				cuesPushed_ += pushed;
+			}
+			return pushed;
+		}
+	}
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.TwiMaster.Result;
+import ioio.lib.api.TwiMaster.Transaction;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Polls a set of TWI slave registers at fixed rates, recording the responses
+ * in per-sensor ring buffers.
+ * <p>
+ * Each sensor is a single write-then-read transaction (typically writing a
+ * register address and reading back a block of registers), repeated at its
+ * own rate. The poller runs its own thread, which submits every transaction
+ * as it becomes due, batching transactions which are due together. Responses
+ * are copied into the sensor's ring along with a host timestamp as soon as
+ * they arrive, without blocking any thread and without allocating memory.
+ * <p>
+ * Every sensor holds one of the TWI master's pooled transactions while the
+ * poller runs, so a poller has at most
+ * {@link TwiMaster#TRANSACTION_POOL_SIZE} sensors, fewer if other users of
+ * the TWI master hold transactions of their own.
+ * <p>
+ * Each sensor has at most one transaction in flight. Beyond that, the poller
+ * keeps submitting for as long as the IOIO has buffer space for more
+ * transactions (see {@link TwiMaster#getUnsentCount()}), so that the bus is
+ * kept busy without requests piling up on the host side. A sensor which is
+ * due while its previous transaction is still in flight, or while the IOIO is
+ * out of buffer space, is submitted late, once possible. If it is still
+ * blocked a full period past its deadline, that sample is skipped and counted
+ * as a missed deadline.
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * {@code
+ * TwiMaster twi = ioio.openTwiMaster(0, TwiMaster.Rate.RATE_400KHz, false);
+ * TwiPoller poller = new TwiPoller(twi);
+ * TwiPoller.Sensor imu = poller.addSensor(0x68, false, new byte[] { 0x3B }, 14, 200, 64);
+ * TwiPoller.Sensor compass = poller.addSensor(0x1E, false, new byte[] { 0x03 }, 6, 50, 16);
+ * poller.start();
+ * ...
+ * long timestamp = imu.getLatest(buffer);
+ * ...
+ * poller.stop();
+ * }</pre>
+ * <p>
+ * The poller stops by itself when the connection to the IOIO is lost. It
+ * cannot be restarted; create a new one for the new connection.
+ */
+public class TwiPoller {
+	private static final String TAG = "TwiPoller";
+
+	/**
+	 * A periodically polled TWI transaction, along with the ring buffer of its
+	 * responses and its timing statistics.
+	 */
+	public class Sensor implements TwiMaster.ResultListener {
+		private final int address_;
+		private final boolean tenBitAddr_;
+		private final byte[] request_;
+		private final int sampleSize_;
+		private final long periodNs_;
+		private final byte[] response_;
+		private Transaction transaction_;
+
+		// Scheduling state, guarded by the poller.
+		private long deadline_;
+		private boolean inFlight_ = false;
+		private boolean released_ = false;
+
+		// Ring buffer and statistics, guarded by this.
+		private final long[] timestamps_;
+		private final byte[] samples_;
+		private long written_ = 0;
+		private long read_ = 0;
+		private long failures_ = 0;
+		private long missed_ = 0;
+		private long overruns_ = 0;
+		private long submitted_ = 0;
+		private long jitterSumNs_ = 0;
+		private long jitterMaxNs_ = 0;
+
+		Sensor(int address, boolean tenBitAddr, byte[] request, int sampleSize,
+				long periodNs, int capacity) {
+			address_ = address;
+			tenBitAddr_ = tenBitAddr;
+			request_ = request.clone();
+			sampleSize_ = sampleSize;
+			periodNs_ = periodNs;
+			response_ = new byte[sampleSize];
+			timestamps_ = new long[capacity];
+			samples_ = new byte[capacity * sampleSize];
+		}
+
+		/**
+		 * @return The number of bytes in every sample.
+		 */
+		public int getSampleSize() {
+			return sampleSize_;
+		}
+
+		/**
+		 * @return The maximum number of samples the ring buffer holds.
+		 */
+		public int getCapacity() {
+			return timestamps_.length;
+		}
+
+		/**
+		 * @return The total number of samples recorded so far.
+		 */
+		public synchronized long getSampleCount() {
+			return written_;
+		}
+
+		/**
+		 * Get the most recent sample.
+		 *
+		 * @param sample
+		 *            A buffer of at least {@link #getSampleSize()} bytes,
+		 *            into which the sample is copied.
+		 * @return The host timestamp of the sample, as per
+		 *         {@link System#nanoTime()}, or -1 if no sample has been
+		 *         recorded yet.
+		 */
+		public synchronized long getLatest(byte[] sample) {
+			if (written_ == 0) {
+				return -1;
+			}
+			final int slot = (int) ((written_ - 1) % timestamps_.length);
+			System.arraycopy(samples_, slot * sampleSize_, sample, 0, sampleSize_);
+			return timestamps_[slot];
+		}
+
+		/**
+		 * Remove the oldest samples not yet drained from the ring buffer, in
+		 * the order they have been recorded. Samples which have been
+		 * overwritten before being drained are counted by
+		 * {@link #getOverruns()}.
+		 *
+		 * @param timestamps
+		 *            Receives the host timestamps of the samples.
+		 * @param samples
+		 *            Receives the samples, back-to-back, each
+		 *            {@link #getSampleSize()} bytes long.
+		 * @param max
+		 *            The maximum number of samples to drain. The buffers must
+		 *            be large enough to hold this many.
+		 * @return The number of samples drained.
+		 */
+		public synchronized int drain(long[] timestamps, byte[] samples, int max) {
+			int count = 0;
+			while (count < max && read_ < written_) {
+				final int slot = (int) (read_++ % timestamps_.length);
+				timestamps[count] = timestamps_[slot];
+				System.arraycopy(samples_, slot * sampleSize_, samples, count
+						* sampleSize_, sampleSize_);
+				++count;
+			}
+			return count;
+		}
+
+		/**
+		 * @return The number of transactions which have failed, i.e. were
+		 *         not acknowledged by the slave.
+		 */
+		public synchronized long getFailures() {
+			return failures_;
+		}
+
+		/**
+		 * @return The number of samples skipped because they could not be
+		 *         submitted within a period of their deadline.
+		 */
+		public synchronized long getMissedDeadlines() {
+			return missed_;
+		}
+
+		/**
+		 * @return The number of samples overwritten before being drained.
+		 */
+		public synchronized long getOverruns() {
+			return overruns_;
+		}
+
+		/**
+		 * @return The largest delay, in nanoseconds, between the deadline of a
+		 *         transaction and its actual submission.
+		 */
+		public synchronized long getMaxJitterNanos() {
+			return jitterMaxNs_;
+		}
+
+		/**
+		 * @return The mean delay, in nanoseconds, between the deadline of a
+		 *         transaction and its actual submission.
+		 */
+		public synchronized long getMeanJitterNanos() {
+			return submitted_ == 0 ? 0 : jitterSumNs_ / submitted_;
+		}
+
+		/**
+		 * Reset the failure, missed deadline, overrun and jitter statistics.
+		 */
+		public synchronized void resetStats() {
+			failures_ = 0;
+			missed_ = 0;
+			overruns_ = 0;
+			submitted_ = 0;
+			jitterSumNs_ = 0;
+			jitterMaxNs_ = 0;
+		}
+
+		@Override
+		public void onComplete(Result result, boolean success) {
+			final long now = System.nanoTime();
+			synchronized (this) {
+				if (success) {
+					record(now);
+				} else {
+					++failures_;
+				}
+			}
+			transactionDone(this);
+		}
+
+		@Override
+		public void onAborted(Result result) {
+			synchronized (TwiPoller.this) {
+				inFlight_ = false;
+				stop_ = true;
+				TwiPoller.this.notifyAll();
+			}
+		}
+
+		private void record(long timestamp) {
+			final int slot = (int) (written_ % timestamps_.length);
+			if (written_ - read_ == timestamps_.length) {
+				++read_;
+				++overruns_;
+			}
+			timestamps_[slot] = timestamp;
+			System.arraycopy(response_, 0, samples_, slot * sampleSize_, sampleSize_);
+			++written_;
+		}
+
+		private synchronized void submitted(long jitterNs, long missed) {
+			++submitted_;
+			jitterSumNs_ += jitterNs;
+			if (jitterNs > jitterMaxNs_) {
+				jitterMaxNs_ = jitterNs;
+			}
+			missed_ += missed;
+		}
+
+		private synchronized void missed() {
+			++missed_;
+		}
+	}
+
+	private final TwiMaster twi_;
+	private final List<Sensor> sensors_ = new ArrayList<Sensor>();
+	private final PollerThread thread_ = new PollerThread();
+	// Transactions due in the current pass. batches_[n] has length n, since
+	// TwiMaster.submitBatch() submits an entire array.
+	private Transaction[][] batches_;
+	private Sensor[] due_;
+	private boolean started_ = false;
+	private boolean stop_ = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param twi
+	 *            The TWI master to poll on. The poller does not take
+	 *            ownership of it, and it may be used for other transactions
+	 *            in parallel.
+	 */
+	public TwiPoller(TwiMaster twi) {
+		twi_ = twi;
+	}
+
+	/**
+	 * Add a sensor to poll. Must be called before {@link #start()}.
+	 *
+	 * @param address
+	 *            The slave address.
+	 * @param tenBitAddr
+	 *            Whether this is a 10-bit address.
+	 * @param request
+	 *            The bytes to write on every transaction, typically a register
+	 *            address. Copied.
+	 * @param sampleSize
+	 *            The number of bytes to read on every transaction.
+	 * @param rateHz
+	 *            The polling rate, in Hz.
+	 * @param capacity
+	 *            The number of samples held by the ring buffer.
+	 * @return The sensor, from which the samples can be read.
+	 * @throws IllegalStateException
+	 *             The poller has been started, or already has
+	 *             {@link TwiMaster#TRANSACTION_POOL_SIZE} sensors.
+	 */
+	public synchronized Sensor addSensor(int address, boolean tenBitAddr,
+			byte[] request, int sampleSize, float rateHz, int capacity) {
+		if (started_) {
+			throw new IllegalStateException("Poller has already been started");
+		}
+		if (sensors_.size() == TwiMaster.TRANSACTION_POOL_SIZE) {
+			throw new IllegalStateException("A poller has at most "
+					+ TwiMaster.TRANSACTION_POOL_SIZE + " sensors");
+		}
+		if (rateHz <= 0 || capacity <= 0 || sampleSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		Sensor sensor = new Sensor(address, tenBitAddr, request, sampleSize,
+				(long) (1e9 / rateHz), capacity);
+		sensors_.add(sensor);
+		return sensor;
+	}
+
+	/**
+	 * Start polling. Takes a transaction for every sensor from the TWI
+	 * master's pool, waiting for other users of the pool to release theirs if
+	 * it runs out.
+	 *
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting for a transaction to become
+	 *             available (see {@link TwiMaster#obtainTransaction()}).
+	 */
+	public synchronized void start() throws ConnectionLostException,
+			InterruptedException {
+		if (started_) {
+			throw new IllegalStateException("Poller has already been started");
+		}
+		final int count = sensors_.size();
+		batches_ = new Transaction[count + 1][];
+		for (int i = 0; i <= count; ++i) {
+			batches_[i] = new Transaction[i];
+		}
+		due_ = new Sensor[count];
+		final long now = System.nanoTime();
+		try {
+			for (Sensor sensor : sensors_) {
+				Transaction t = twi_.obtainTransaction();
+				sensor.transaction_ = t;
+				t.set(sensor.address_, sensor.tenBitAddr_, sensor.request_,
+						sensor.request_.length, sensor.response_, sensor.sampleSize_);
+				t.addListener(sensor);
+				sensor.deadline_ = now;
+			}
+			thread_.start();
+			started_ = true;
+		} finally {
+			if (!started_) {
+				// Nothing has been submitted yet, so all of them are idle.
+				for (Sensor sensor : sensors_) {
+					if (sensor.transaction_ != null) {
+						sensor.transaction_.release();
+						sensor.transaction_ = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop polling, and return the transactions to the TWI master. Samples
+	 * and statistics remain available.
+	 *
+	 * @throws InterruptedException
+	 *             Interrupted while waiting for the polling thread to exit.
+	 */
+	public void stop() throws InterruptedException {
+		synchronized (this) {
+			if (!started_) {
+				return;
+			}
+			stop_ = true;
+			notifyAll();
+		}
+		thread_.join();
+		synchronized (this) {
+			for (Sensor sensor : sensors_) {
+				// Transactions which are still in flight are released upon
+				// completion.
+				if (!sensor.inFlight_ && !sensor.released_) {
+					sensor.released_ = true;
+					sensor.transaction_.release();
+				}
+			}
+		}
+	}
+
+	private void transactionDone(Sensor sensor) {
+		synchronized (this) {
+			sensor.inFlight_ = false;
+			notifyAll();
+			if (!stop_ || thread_.isAlive() || sensor.released_) {
+				return;
+			}
+			sensor.released_ = true;
+		}
+		// Stopped while in flight.
+		sensor.transaction_.release();
+	}
+
+	class PollerThread extends Thread {
+		@Override
+		public void run() {
+			super.run();
+			try {
+				while (true) {
+					int count = 0;
+					synchronized (TwiPoller.this) {
+						while (!stop_ && (count = collectDue()) == 0) {
+							waitUntil(nextDeadline());
+						}
+						if (stop_) {
+							break;
+						}
+					}
+					Transaction[] batch = batches_[count];
+					for (int i = 0; i < count; ++i) {
+						batch[i] = due_[i].transaction_;
+					}
+					if (count == 1) {
+						twi_.submit(batch[0]);
+					} else {
+						twi_.submitBatch(batch);
+					}
+				}
+			} catch (ConnectionLostException e) {
+				Log.i(TAG, "Connection lost, stopping");
+			} catch (InterruptedException e) {
+				// This is here to exit the loop.
+			}
+			synchronized (TwiPoller.this) {
+				stop_ = true;
+			}
+		}
+
+		/**
+		 * Find the sensors due for submission, mark them as in flight and
+		 * advance their deadlines. Called with the lock held.
+		 *
+		 * @return The number of sensors found, stored in due_.
+		 */
+		private int collectDue() {
+			final long now = System.nanoTime();
+			final boolean room = twi_.getUnsentCount() == 0;
+			int count = 0;
+			for (int i = 0; i < sensors_.size(); ++i) {
+				Sensor sensor = sensors_.get(i);
+				final long late = now - sensor.deadline_;
+				if (late < 0) {
+					continue;
+				}
+				if (room && !sensor.inFlight_) {
+					// Deadlines which have passed entirely are skipped.
+					final long skipped = late / sensor.periodNs_;
+					sensor.deadline_ += (skipped + 1) * sensor.periodNs_;
+					sensor.submitted(late - skipped * sensor.periodNs_, skipped);
+					sensor.inFlight_ = true;
+					due_[count++] = sensor;
+				} else if (late >= sensor.periodNs_) {
+					sensor.deadline_ += sensor.periodNs_;
+					sensor.missed();
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * The time at which the thread needs to wake up next, absent any
+		 * completion. Called with the lock held.
+		 */
+		private long nextDeadline() {
+			final long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+			for (int i = 0; i < sensors_.size(); ++i) {
+				Sensor sensor = sensors_.get(i);
+				long wake = sensor.deadline_;
+				if (now - wake >= 0) {
+					// Due, but blocked. Wake up when a completion frees
+					// things up, or when this deadline is missed.
+					wake += sensor.periodNs_;
+				}
+				if (next == Long.MAX_VALUE || wake - next < 0) {
+					next = wake;
+				}
+			}
+			return next;
+		}
+
+		private void waitUntil(long time) throws InterruptedException {
+			if (time == Long.MAX_VALUE) {
+				TwiPoller.this.wait();
+				return;
+			}
+			final long remaining = time - System.nanoTime();
+			if (remaining > 0) {
+				TwiPoller.this.wait(remaining / 1000000,
+						(int) (remaining % 1000000));
+			}
+		}
+	}
+}
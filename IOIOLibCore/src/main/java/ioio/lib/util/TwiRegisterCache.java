@@ -0,0 +1,344 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-through cache of TWI slave registers.
+ * <p>
+ * Many TWI devices expose their configuration and identity through registers
+ * which rarely or never change, alongside data registers which change all the
+ * time. Reading the former over and over wastes bus time, which on a 100KHz
+ * bus amounts to milliseconds per read. This class wraps a {@link TwiMaster}
+ * and serves register reads from a cache, according to a policy declared per
+ * register:
+ * <ul>
+ * <li>{@link Policy#IMMUTABLE}: read once, then always served from the cache.
+ * </li>
+ * <li>{@link Policy#TTL}: served from the cache for a given time after being
+ * read.</li>
+ * <li>{@link Policy#VOLATILE}: always read from the bus. This is the default
+ * for registers with no declared policy.</li>
+ * </ul>
+ * It assumes the common register access convention, where a read writes the
+ * first register address and then reads consecutive registers, and a write
+ * sends the first register address followed by the data for consecutive
+ * registers. Registers are 8-bit addressed.
+ * <p>
+ * Writes always go to the bus and invalidate the cached values of the
+ * registers they touch. Registers which the device changes by itself, as a
+ * side effect of other writes, should not be declared immutable.
+ * <p>
+ * This class is thread-safe. Bus access is serialized, since it would be
+ * anyway.
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * {@code
+ * TwiRegisterCache cache = new TwiRegisterCache(twi);
+ * cache.declare(0x68, false, 0x75, 1, TwiRegisterCache.Policy.IMMUTABLE, 0);  // WHO_AM_I
+ * cache.declare(0x68, false, 0x19, 4, TwiRegisterCache.Policy.TTL, 1000);     // Config
+ * ...
+ * cache.read(0x68, false, 0x75, buffer, 1);  // Only hits the bus once.
+ * }</pre>
+ */
+public class TwiRegisterCache {
+	/**
+	 * Caching policy of a register.
+	 */
+	public enum Policy {
+		/** Always read from the bus. */
+		VOLATILE,
+		/** Read once. */
+		IMMUTABLE,
+		/** Read again once the cached value is older than a given time. */
+		TTL
+	}
+
+	private static final int NUM_REGISTERS = 256;
+
+	/**
+	 * Cache state of all registers of a single slave.
+	 */
+	private static class Device {
+		final int address_;
+		final boolean tenBitAddr_;
+		final Policy[] policies_ = new Policy[NUM_REGISTERS];
+		final long[] ttlNs_ = new long[NUM_REGISTERS];
+		final boolean[] valid_ = new boolean[NUM_REGISTERS];
+		final long[] fetchTime_ = new long[NUM_REGISTERS];
+		final byte[] values_ = new byte[NUM_REGISTERS];
+
+		Device(int address, boolean tenBitAddr) {
+			address_ = address;
+			tenBitAddr_ = tenBitAddr;
+		}
+
+		boolean isFresh(int register, long now) {
+			if (!valid_[register]) {
+				return false;
+			}
+			switch (policies_[register]) {
+			case IMMUTABLE:
+				return true;
+			case TTL:
+				return now - fetchTime_[register] < ttlNs_[register];
+			default:
+				return false;
+			}
+		}
+
+		void store(int register, byte value, long now) {
+			if (policies_[register] != Policy.VOLATILE) {
+				values_[register] = value;
+				fetchTime_[register] = now;
+				valid_[register] = true;
+			}
+		}
+	}
+
+	private final TwiMaster twi_;
+	private final List<Device> devices_ = new ArrayList<Device>();
+	private final byte[] request_ = new byte[1];
+	private byte[] writeBuf_ = new byte[0];
+	private long hits_ = 0;
+	private long misses_ = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param twi
+	 *            The TWI master to read from. The cache does not take
+	 *            ownership of it. Writes to cached registers should only go
+	 *            through the cache, or the cache needs to be invalidated.
+	 */
+	public TwiRegisterCache(TwiMaster twi) {
+		twi_ = twi;
+	}
+
+	/**
+	 * Declare the caching policy of a range of registers. Any value cached
+	 * for them is dropped.
+	 *
+	 * @param address
+	 *            The slave address.
+	 * @param tenBitAddr
+	 *            Whether this is a 10-bit address.
+	 * @param register
+	 *            The first register address.
+	 * @param count
+	 *            The number of consecutive registers.
+	 * @param policy
+	 *            The policy.
+	 * @param ttlMs
+	 *            For {@link Policy#TTL}, the time, in milliseconds, for which
+	 *            a value read from the bus is served from the cache. Ignored
+	 *            otherwise.
+	 */
+	public synchronized void declare(int address, boolean tenBitAddr,
+			int register, int count, Policy policy, long ttlMs) {
+		checkRange(register, count);
+		Device device = getDevice(address, tenBitAddr);
+		for (int i = register; i < register + count; ++i) {
+			device.policies_[i] = policy;
+			device.ttlNs_[i] = ttlMs * 1000000;
+			device.valid_[i] = false;
+		}
+	}
+
+	/**
+	 * Read consecutive registers. If all of them have fresh values in the
+	 * cache, they are served from it without accessing the bus. Otherwise,
+	 * all of them are read from the bus, and the cache is updated.
+	 *
+	 * @param address
+	 *            The slave address.
+	 * @param tenBitAddr
+	 *            Whether this is a 10-bit address.
+	 * @param register
+	 *            The first register address.
+	 * @param data
+	 *            Receives the register values.
+	 * @param size
+	 *            The number of registers to read.
+	 * @return true if the values are valid, either from the cache or from a
+	 *         successful transaction. false if the transaction failed.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 * @throws InterruptedException
+	 *             Calling thread has been interrupted.
+	 */
+	public synchronized boolean read(int address, boolean tenBitAddr,
+			int register, byte[] data, int size)
+			throws ConnectionLostException, InterruptedException {
+		checkRange(register, size);
+		Device device = getDevice(address, tenBitAddr);
+		long now = System.nanoTime();
+		int i = 0;
+		while (i < size && device.isFresh(register + i, now)) {
+			++i;
+		}
+		if (i == size) {
+			System.arraycopy(device.values_, register, data, 0, size);
+			++hits_;
+			return true;
+		}
+		++misses_;
+		request_[0] = (byte) register;
+		if (!twi_.writeRead(address, tenBitAddr, request_, 1, data, size)) {
+			return false;
+		}
+		now = System.nanoTime();
+		for (i = 0; i < size; ++i) {
+			device.store(register + i, data[i], now);
+		}
+		return true;
+	}
+
+	/**
+	 * Write consecutive registers. The write always goes to the bus, and the
+	 * cached values of the written registers are invalidated, whether or not
+	 * it succeeds.
+	 *
+	 * @param address
+	 *            The slave address.
+	 * @param tenBitAddr
+	 *            Whether this is a 10-bit address.
+	 * @param register
+	 *            The first register address.
+	 * @param data
+	 *            The values to write.
+	 * @param size
+	 *            The number of registers to write.
+	 * @return true if the transaction succeeded.
+	 * @throws ConnectionLostException
+	 *             Connection to the IOIO has been lost.
+	 * @throws InterruptedException
+	 *             Calling thread has been interrupted.
+	 */
+	public synchronized boolean write(int address, boolean tenBitAddr,
+			int register, byte[] data, int size)
+			throws ConnectionLostException, InterruptedException {
+		checkRange(register, size);
+		Device device = getDevice(address, tenBitAddr);
+		for (int i = register; i < register + size; ++i) {
+			device.valid_[i] = false;
+		}
+		if (writeBuf_.length < size + 1) {
+			writeBuf_ = new byte[size + 1];
+		}
+		writeBuf_[0] = (byte) register;
+		System.arraycopy(data, 0, writeBuf_, 1, size);
+		return twi_.writeRead(address, tenBitAddr, writeBuf_, size + 1, null, 0);
+	}
+
+	/**
+	 * Drop all cached values of a slave, e.g. after resetting it.
+	 *
+	 * @param address
+	 *            The slave address.
+	 * @param tenBitAddr
+	 *            Whether this is a 10-bit address.
+	 */
+	public synchronized void invalidate(int address, boolean tenBitAddr) {
+		Device device = findDevice(address, tenBitAddr);
+		if (device != null) {
+			for (int i = 0; i < NUM_REGISTERS; ++i) {
+				device.valid_[i] = false;
+			}
+		}
+	}
+
+	/**
+	 * Drop all cached values.
+	 */
+	public synchronized void invalidateAll() {
+		for (Device device : devices_) {
+			invalidate(device.address_, device.tenBitAddr_);
+		}
+	}
+
+	/**
+	 * @return The number of reads served entirely from the cache.
+	 */
+	public synchronized long getHits() {
+		return hits_;
+	}
+
+	/**
+	 * @return The number of reads which went to the bus.
+	 */
+	public synchronized long getMisses() {
+		return misses_;
+	}
+
+	/**
+	 * Reset the hit and miss counters.
+	 */
+	public synchronized void resetStats() {
+		hits_ = 0;
+		misses_ = 0;
+	}
+
+	private Device findDevice(int address, boolean tenBitAddr) {
+		// Linear search, since a bus rarely has more than a handful of
+		// slaves, and this does not allocate.
+		for (int i = 0; i < devices_.size(); ++i) {
+			Device device = devices_.get(i);
+			if (device.address_ == address && device.tenBitAddr_ == tenBitAddr) {
+				return device;
+			}
+		}
+		return null;
+	}
+
+	private Device getDevice(int address, boolean tenBitAddr) {
+		Device device = findDevice(address, tenBitAddr);
+		if (device == null) {
+			device = new Device(address, tenBitAddr);
+			for (int i = 0; i < NUM_REGISTERS; ++i) {
+				device.policies_[i] = Policy.VOLATILE;
+			}
+			devices_.add(device);
+		}
+		return device;
+	}
+
+	private static void checkRange(int register, int count) {
+		if (register < 0 || count < 0 || register + count > NUM_REGISTERS) {
+			throw new IllegalArgumentException("Register range out of bounds");
+		}
+	}
+}
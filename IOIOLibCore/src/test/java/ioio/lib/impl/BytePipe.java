@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A one-directional, in-memory byte pipe.
+ * <p>
+ * Similar to {@link java.io.PipedInputStream}, but usable from any number of
+ * writer threads: the JDK pipe considers itself broken once the last thread
+ * that wrote to it has died, which is routinely the case for the threads
+ * calling into the IOIO protocol. The writer blocks while the buffer is full,
+ * rather than discarding data like {@link QueueInputStream} does.
+ * <p>
+ * Closing either end ends the pipe: a reader gets whatever is still buffered,
+ * followed by end-of-stream, and a writer gets an {@link IOException}.
+ */
+class BytePipe {
+	private final byte[] buffer_;
+	private int readPos_ = 0;
+	private int size_ = 0;
+	private boolean closed_ = false;
+	private final InputStream inputStream_ = new PipeInputStream();
+	private final OutputStream outputStream_ = new PipeOutputStream();
+
+	public BytePipe(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		buffer_ = new byte[capacity];
+	}
+
+	public InputStream getInputStream() {
+		return inputStream_;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream_;
+	}
+
+	synchronized public void close() {
+		closed_ = true;
+		notifyAll();
+	}
+
+	synchronized private int read() throws IOException {
+		if (!waitForData()) {
+			return -1;
+		}
+		final int b = ((int) buffer_[readPos_]) & 0xFF;
+		readPos_ = (readPos_ + 1) % buffer_.length;
+		--size_;
+		notifyAll();
+		return b;
+	}
+
+	synchronized private int read(byte[] b, int off, int len) throws IOException {
+		if (!waitForData()) {
+			return -1;
+		}
+		len = Math.min(len, size_);
+		final int first = Math.min(len, buffer_.length - readPos_);
+		System.arraycopy(buffer_, readPos_, b, off, first);
+		System.arraycopy(buffer_, 0, b, off + first, len - first);
+		readPos_ = (readPos_ + len) % buffer_.length;
+		size_ -= len;
+		notifyAll();
+		return len;
+	}
+
+	synchronized private void write(int b) throws IOException {
+		waitForSpace();
+		buffer_[(readPos_ + size_) % buffer_.length] = (byte) b;
+		++size_;
+		notifyAll();
+	}
+
+	synchronized private void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			waitForSpace();
+			final int writePos = (readPos_ + size_) % buffer_.length;
+			final int count = Math.min(len,
+					Math.min(buffer_.length - size_, buffer_.length - writePos));
+			System.arraycopy(b, off, buffer_, writePos, count);
+			size_ += count;
+			off += count;
+			len -= count;
+			notifyAll();
+		}
+	}
+
+	/** Returns false on end-of-stream. */
+	private boolean waitForData() throws IOException {
+		try {
+			while (size_ == 0 && !closed_) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		return size_ > 0;
+	}
+
+	private void waitForSpace() throws IOException {
+		try {
+			while (size_ == buffer_.length && !closed_) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		if (closed_) {
+			throw new IOException("Pipe closed");
+		}
+	}
+
+	synchronized private int available() {
+		return size_;
+	}
+
+	private class PipeInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			return BytePipe.this.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return BytePipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return BytePipe.this.available();
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	}
+
+	private class PipeOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			BytePipe.this.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			BytePipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	}
+}
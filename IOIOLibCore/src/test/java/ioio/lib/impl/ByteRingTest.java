@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import ioio.lib.impl.PipeIOIOConnection.WaitStrategy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link ByteRing} with one reader and one writer, as the protocol uses it.
+ */
+public class ByteRingTest {
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsZeroCapacity() {
+		new ByteRing(0, WaitStrategy.BLOCKING);
+	}
+
+	@Test
+	public void wrapsAround() throws Exception {
+		ByteRing ring = new ByteRing(8, WaitStrategy.BLOCKING);
+		OutputStream out = ring.getOutputStream();
+		InputStream in = ring.getInputStream();
+		byte[] read = new byte[6];
+		for (int i = 0; i < 5; ++i) {
+			byte[] data = { (byte) i, 1, 2, 3, 4, (byte) (10 * i) };
+			out.write(data);
+			assertEquals(6, in.available());
+			assertEquals(6, in.read(read, 0, 6));
+			assertArrayEquals(data, read);
+		}
+	}
+
+	@Test
+	public void capacityIsRoundedUpToPowerOfTwo() throws Exception {
+		ByteRing ring = new ByteRing(5, WaitStrategy.BLOCKING);
+		ring.getOutputStream().write(new byte[8]);
+		assertEquals(8, ring.getInputStream().available());
+	}
+
+	@Test
+	public void readReturnsUnsignedBytes() throws Exception {
+		ByteRing ring = new ByteRing(4, WaitStrategy.BLOCKING);
+		ring.getOutputStream().write(0xFF);
+		ring.getOutputStream().write(0x80);
+		assertEquals(0xFF, ring.getInputStream().read());
+		assertEquals(0x80, ring.getInputStream().read());
+	}
+
+	@Test
+	public void closeDrainsThenEnds() throws Exception {
+		ByteRing ring = new ByteRing(16, WaitStrategy.BLOCKING);
+		ring.getOutputStream().write(new byte[] { 1, 2, 3 });
+		ring.close();
+		byte[] read = new byte[16];
+		assertEquals(3, ring.getInputStream().read(read, 0, 16));
+		assertEquals(-1, ring.getInputStream().read(read, 0, 16));
+		try {
+			ring.getOutputStream().write(4);
+			fail("Wrote to a closed ring");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void closeWakesBlockedReader() throws Exception {
+		final ByteRing ring = new ByteRing(16, WaitStrategy.BLOCKING);
+		Thread closer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				ring.close();
+			}
+		};
+		closer.start();
+		assertEquals(-1, ring.getInputStream().read());
+		closer.join();
+	}
+
+	@Test(timeout = 10000)
+	public void transfersAcrossThreadsBlocking() throws Exception {
+		transferAcrossThreads(WaitStrategy.BLOCKING);
+	}
+
+	@Test(timeout = 10000)
+	public void transfersAcrossThreadsSpinning() throws Exception {
+		transferAcrossThreads(WaitStrategy.SPINNING);
+	}
+
+	/**
+	 * Stream more than the ring holds, in odd sized chunks on both ends, so
+	 * that both sides have to wait and every chunk boundary gets to wrap.
+	 */
+	private static void transferAcrossThreads(WaitStrategy waitStrategy) throws Exception {
+		final ByteRing ring = new ByteRing(64, waitStrategy);
+		final byte[] data = new byte[256 * 1024];
+		new Random(1).nextBytes(data);
+		final IOException[] error = new IOException[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				Random random = new Random(2);
+				OutputStream out = ring.getOutputStream();
+				try {
+					for (int off = 0; off < data.length;) {
+						int len = Math.min(data.length - off, 1 + random.nextInt(100));
+						out.write(data, off, len);
+						off += len;
+					}
+				} catch (IOException e) {
+					error[0] = e;
+				}
+				ring.close();
+			}
+		};
+		writer.start();
+
+		Random random = new Random(3);
+		InputStream in = ring.getInputStream();
+		byte[] read = new byte[data.length];
+		int total = 0;
+		int count;
+		while ((count = in.read(read, total, Math.min(read.length - total, 1 + random.nextInt(50)))) > 0) {
+			total += count;
+		}
+		writer.join();
+		if (error[0] != null) {
+			throw error[0];
+		}
+		assertEquals(data.length, total);
+		assertArrayEquals(data, read);
+	}
+}
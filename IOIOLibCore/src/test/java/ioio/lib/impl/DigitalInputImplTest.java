@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import ioio.lib.api.DigitalInput;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Digital input levels and change listeners, against an {@link IOIOEmulator}.
+ */
+public class DigitalInputImplTest {
+	private static final int PIN = 12;
+
+	private IOIOEmulator emulator_;
+	private IOIO ioio_;
+
+	@Before
+	public void setUp() throws Exception {
+		emulator_ = new IOIOEmulator();
+		emulator_.setSampleRate(0);
+		emulator_.setDigitalInLevel(PIN, true);
+		ioio_ = IOIOFactory.create(emulator_.createConnection());
+		ioio_.waitForConnect();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+	}
+
+	@Test(timeout = 10000)
+	public void listenerIsNotifiedOfChanges() throws Exception {
+		final BlockingQueue<Boolean> values = new LinkedBlockingQueue<Boolean>();
+		final DigitalInput input = ioio_.openDigitalInput(PIN);
+		input.setChangeListener(new DigitalInput.ChangeListener() {
+			@Override
+			public void onChange(DigitalInput changed, boolean value) {
+				assertSame(input, changed);
+				values.add(value);
+			}
+		});
+		assertTrue(input.read());
+
+		// The initial level may or may not reach the listener, depending on
+		// whether it was sensed before the listener was set.
+		emulator_.setDigitalInLevel(PIN, false);
+		Boolean value = values.poll(5, TimeUnit.SECONDS);
+		if (Boolean.TRUE.equals(value)) {
+			value = values.poll(5, TimeUnit.SECONDS);
+		}
+		assertEquals(Boolean.FALSE, value);
+		assertFalse(input.read());
+		emulator_.setDigitalInLevel(PIN, true);
+		assertEquals(Boolean.TRUE, values.poll(5, TimeUnit.SECONDS));
+
+		input.setChangeListener(null);
+		emulator_.setDigitalInLevel(PIN, false);
+		input.waitForValue(false);
+		assertTrue(values.isEmpty());
+	}
+}
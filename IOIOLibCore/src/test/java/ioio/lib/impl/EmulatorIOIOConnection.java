@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connection to an {@link IOIOEmulator}, over in-memory pipes.
+ * <p>
+ * Connecting starts a new emulator session, and disconnecting ends it, the
+ * same as plugging and unplugging a board. Since nothing goes through a
+ * driver or a socket, the latency measured over this connection is that of
+ * the library itself.
+ */
+class EmulatorIOIOConnection implements IOIOConnection {
+	/** Default capacity of each pipe, in bytes. */
+	public static final int DEFAULT_PIPE_SIZE = 4096;
+
+	private final IOIOEmulator emulator_;
+	private final int pipeSize_;
+	private BytePipe toDevice_;
+	private BytePipe fromDevice_;
+	private boolean disconnect_ = false;
+
+	EmulatorIOIOConnection(IOIOEmulator emulator) {
+		this(emulator, DEFAULT_PIPE_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param emulator
+	 *            The emulator to connect to.
+	 * @param pipeSize
+	 *            Capacity of each direction, in bytes. A writer blocks while
+	 *            its pipe is full.
+	 */
+	EmulatorIOIOConnection(IOIOEmulator emulator, int pipeSize) {
+		emulator_ = emulator;
+		pipeSize_ = pipeSize;
+	}
+
+	@Override
+	synchronized public void waitForConnect() throws ConnectionLostException {
+		if (disconnect_) {
+			throw new ConnectionLostException();
+		}
+		toDevice_ = new BytePipe(pipeSize_);
+		fromDevice_ = new BytePipe(pipeSize_);
+		emulator_.start(toDevice_.getInputStream(), fromDevice_.getOutputStream());
+	}
+
+	@Override
+	synchronized public void disconnect() {
+		if (disconnect_) {
+			return;
+		}
+		disconnect_ = true;
+		if (toDevice_ != null) {
+			toDevice_.close();
+			fromDevice_.close();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws ConnectionLostException {
+		return fromDevice_.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws ConnectionLostException {
+		return toDevice_.getOutputStream();
+	}
+
+	@Override
+	public boolean canClose() {
+		return true;
+	}
+}
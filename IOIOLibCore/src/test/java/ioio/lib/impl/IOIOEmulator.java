@@ -0,0 +1,1114 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.spi.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A software IOIO: speaks the device side of the protocol in
+ * {@link IOIOProtocol}, so that {@link IOIOImpl} and everything above it can
+ * be run, and benchmarked, without a board.
+ * <p>
+ * The emulator connects to the host either over in-memory pipes, through
+ * {@link #createConnection()}, or over TCP, through
+ * {@link #connect(String, int)}, which connects to a host listening with
+ * {@link NioSocketIOIOConnection} or {@link SocketIOIOConnection} like a
+ * board forwarded over ADB would.
+ * <p>
+ * It emulates the firmware's behavior rather than the hardware's:
+ * <ul>
+ * <li>Digital outputs and PWM settings are recorded, and can be read back
+ * with {@link #getDigitalOutLevel(int)} and {@link #getPwmDutyCycle(int)}.
+ * Digital input levels are set with {@link #setDigitalInLevel(int, boolean)},
+ * and reported to the host when change notification is enabled.</li>
+ * <li>Analog inputs, cap sense and input capture are sampled at
+ * {@link #setSampleRate(int)} (1kHz by default, like the board). Unless set
+ * with {@link #setAnalogValue(int, int)}, an analog pin reads a sawtooth, so
+ * that consecutive frames differ.</li>
+ * <li>UART and SPI are looped back: what the host sends is what it
+ * receives.</li>
+ * <li>Every TWI address is a 256 byte register file: the first byte written
+ * sets the register pointer, the rest is written from there, and reads
+ * continue from the pointer.</li>
+ * <li>The sequencer executes pushed cues for their duration, and reports the
+ * same events as the firmware.</li>
+ * </ul>
+ * Flow control credit is granted and returned like the firmware does, so the
+ * host's flow controlled senders behave as they would with a board.
+ * <p>
+ * An emulator is one board, so it serves one connection at a time. Starting
+ * a new session ends the previous one, and all of its state is reset, as a
+ * board is when it reconnects.
+ * <p>
+ * This is a test fixture, and is not part of the library: it is public only
+ * so that the tests of the other packages can use it.
+ */
+public class IOIOEmulator {
+	private static final String TAG = "IOIOEmulator";
+
+	/** The hardware ID reported. Must be a known {@link Board}. */
+	public static final String HARDWARE_ID = "SPRK0020";
+	/** The bootloader ID reported. */
+	public static final String BOOTLOADER_ID = "IOIO0400";
+	/** The firmware ID reported. */
+	public static final String FIRMWARE_ID = "IOIO0506";
+	/** The default rate of analog, cap sense and input capture samples. */
+	public static final int DEFAULT_SAMPLE_RATE_HZ = 1000;
+
+	private static final int NUM_PINS = 64;
+	private static final int NUM_PWMS = 16;
+	private static final int NUM_UARTS = 4;
+	private static final int NUM_SPIS = 4;
+	private static final int NUM_TWIS = 4;
+	private static final int NUM_INCAPS = 16;
+	/** Transmit buffer credit granted to each UART, SPI and TWI when opened. */
+	private static final int TX_BUFFER_SIZE = 256;
+	/** Receive buffer credit granted to ICSP when opened. */
+	private static final int ICSP_RX_BUFFER_SIZE = 64;
+	/** Number of cues the sequencer FIFO holds. */
+	private static final int SEQUENCER_FIFO_SIZE = 32;
+	/** The sequencer's time base: cue durations are in 16us units. */
+	private static final long SEQUENCER_TICK_NANOS = 16000;
+	/** Cue size, in bytes, of each sequencer channel type, by type tag. */
+	private static final int[] SEQUENCER_CUE_SIZE = { 2, 2, 2, 5, 1 };
+	/** Config size, in bytes, of each sequencer channel type, by type tag. */
+	private static final int[] SEQUENCER_CONFIG_SIZE = { 6, 6, 4, 2, 2 };
+
+	private static final int SEQUENCER_PAUSED = 0;
+	private static final int SEQUENCER_STALLED = 1;
+	private static final int SEQUENCER_OPENED = 2;
+	private static final int SEQUENCER_NEXT_CUE = 3;
+	private static final int SEQUENCER_STOPPED = 4;
+	private static final int SEQUENCER_CLOSED = 5;
+
+	private enum SequencerState {
+		CLOSED, IDLE, RUNNING, STALLED, PAUSING
+	}
+
+	// Values set by the client, which survive sessions.
+	private int sampleRateHz_ = DEFAULT_SAMPLE_RATE_HZ;
+	private final int[] analogValues_ = new int[NUM_PINS];
+	private final boolean[] digitalInLevels_ = new boolean[NUM_PINS];
+	private final int[] capSenseValues_ = new int[NUM_PINS];
+	private final int[] incapValues_ = new int[NUM_INCAPS];
+	private boolean twiStalled_ = false;
+
+	// Session state, reset on connection and on soft reset.
+	private final boolean[] digitalOutLevels_ = new boolean[NUM_PINS];
+	private final boolean[] changeNotify_ = new boolean[NUM_PINS];
+	private final boolean[] capSenseSampling_ = new boolean[NUM_PINS];
+	private final int[] pwmDutyCycles_ = new int[NUM_PWMS];
+	private final int[] pwmPeriods_ = new int[NUM_PWMS];
+	private final int[] analogPins_ = new int[NUM_PINS];
+	private int numAnalogPins_;
+	private boolean analogFormatChanged_;
+	private final boolean[] uartOpen_ = new boolean[NUM_UARTS];
+	private final boolean[] spiOpen_ = new boolean[NUM_SPIS];
+	private final boolean[] twiOpen_ = new boolean[NUM_TWIS];
+	private final byte[][][] twiRegisters_ = new byte[NUM_TWIS][][];
+	private final int[][] twiPointers_ = new int[NUM_TWIS][];
+	private final boolean[] incapOpen_ = new boolean[NUM_INCAPS];
+	private SequencerState sequencerState_;
+	private int sequencerCueSize_;
+	private final int[] sequencerFifo_ = new int[SEQUENCER_FIFO_SIZE];
+	private int sequencerFifoStart_;
+	private int sequencerFifoCount_;
+	private long sequencerCueEndNanos_;
+
+	// Statistics, accumulated over all sessions.
+	// Only written by the reader thread, so that it does not need the lock
+	// for every byte.
+	private volatile long bytesReceived_ = 0;
+	private long bytesSent_ = 0;
+	private long analogFramesSent_ = 0;
+	private long cuesExecuted_ = 0;
+
+	private InputStream in_;
+	private OutputStream out_;
+	private ReaderThread reader_;
+	private TickerThread ticker_;
+	private boolean running_ = false;
+	private long sampleCount_ = 0;
+
+	public IOIOEmulator() {
+		Arrays.fill(analogValues_, -1);
+		Arrays.fill(capSenseValues_, 0x200);
+		Arrays.fill(incapValues_, 1000);
+	}
+
+	/**
+	 * Create a connection to this emulator over in-memory pipes, to pass to
+	 * {@link ioio.lib.api.IOIOFactory#create(IOIOConnection)}.
+	 */
+	public IOIOConnection createConnection() {
+		return new EmulatorIOIOConnection(this);
+	}
+
+	/**
+	 * Create a connection to this emulator over lock-free rings, which are
+	 * cheaper than the pipes of {@link #createConnection()}, at the cost of
+	 * some spinning.
+	 *
+	 * @param waitStrategy
+	 *            How the host and the emulator wait for each other.
+	 */
+	public IOIOConnection createPipeConnection(PipeIOIOConnection.WaitStrategy waitStrategy) {
+		return new PipeIOIOConnection(new PipeIOIOConnection.Device() {
+			@Override
+			public void connected(InputStream fromHost, OutputStream toHost) {
+				start(fromHost, toHost);
+			}
+		}, PipeIOIOConnection.DEFAULT_CAPACITY, waitStrategy);
+	}
+
+	/**
+	 * Connect to a host listening on a TCP port, and serve it until either
+	 * side disconnects. Returns once connected.
+	 *
+	 * @param host
+	 *            The host to connect to, normally "localhost".
+	 * @param port
+	 *            The port the host listens on.
+	 * @throws IOException
+	 *             The connection failed.
+	 */
+	public void connect(String host, int port) throws IOException {
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		start(new BufferedInputStream(socket.getInputStream()),
+				new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Start serving a host over the given streams, ending the previous
+	 * session, if any. The emulator closes both streams when the session
+	 * ends.
+	 *
+	 * @param fromHost
+	 *            The stream the host's commands are read from.
+	 * @param toHost
+	 *            The stream the emulator's reports are written to.
+	 */
+	public void start(InputStream fromHost, OutputStream toHost) {
+		stop();
+		synchronized (this) {
+			in_ = fromHost;
+			out_ = toHost;
+			resetState();
+			running_ = true;
+			reader_ = new ReaderThread();
+			ticker_ = new TickerThread();
+			reader_.start();
+			ticker_.start();
+		}
+	}
+
+	/**
+	 * End the current session, if any, closing its streams, and wait for it
+	 * to end.
+	 */
+	public void stop() {
+		ReaderThread reader;
+		TickerThread ticker;
+		synchronized (this) {
+			reader = reader_;
+			ticker = ticker_;
+			endSession();
+		}
+		// The threads of a session that ended on its own may still be
+		// finishing, so they are waited for as well.
+		if (reader != null && reader != Thread.currentThread()) {
+			joinUninterruptibly(reader);
+		}
+		if (ticker != null && ticker != Thread.currentThread()) {
+			joinUninterruptibly(ticker);
+		}
+	}
+
+	/**
+	 * Set the rate of analog input frames, cap sense reports and input capture
+	 * reports. 0 stops sampling, so that the only traffic is in response to
+	 * the host.
+	 */
+	synchronized public void setSampleRate(int hz) {
+		if (hz < 0) {
+			throw new IllegalArgumentException("Rate must be non-negative");
+		}
+		sampleRateHz_ = hz;
+		wakeTicker();
+	}
+
+	/**
+	 * Set the value an analog pin reads.
+	 *
+	 * @param pin
+	 *            The pin number.
+	 * @param value
+	 *            A 10 bit value, or -1 to go back to the default sawtooth.
+	 */
+	synchronized public void setAnalogValue(int pin, int value) {
+		if (value < -1 || value > 0x3FF) {
+			throw new IllegalArgumentException("Value must be -1 or between [0..1023]");
+		}
+		analogValues_[pin] = value;
+	}
+
+	/**
+	 * Set the level a digital input pin reads. If the host has change
+	 * notification enabled on the pin, the change is reported to it.
+	 */
+	synchronized public void setDigitalInLevel(int pin, boolean level) {
+		if (digitalInLevels_[pin] == level) {
+			return;
+		}
+		digitalInLevels_[pin] = level;
+		if (running_ && changeNotify_[pin]) {
+			try {
+				send(IOIOProtocol.REPORT_DIGITAL_IN_STATUS, pin << 2 | (level ? 1 : 0));
+			} catch (IOException e) {
+				endSession();
+			}
+		}
+	}
+
+	/** Set the value reported by a cap sense pin, a 10 bit number. */
+	synchronized public void setCapSenseValue(int pin, int value) {
+		capSenseValues_[pin] = value & 0x3FF;
+	}
+
+	/** Set the pulse duration or period reported by an input capture module, in its clock ticks. */
+	synchronized public void setIncapValue(int incapNum, int value) {
+		if (value <= 0 || value > 0xFFFF) {
+			throw new IllegalArgumentException("Value must be between [1..65535]");
+		}
+		incapValues_[incapNum] = value;
+	}
+
+	/**
+	 * Stall all TWI buses, as a slave holding the clock low would: while
+	 * stalled, transactions are accepted but never complete.
+	 */
+	synchronized public void setTwiStalled(boolean stalled) {
+		twiStalled_ = stalled;
+	}
+
+	/** The level the host last set on a digital output pin. */
+	synchronized public boolean getDigitalOutLevel(int pin) {
+		return digitalOutLevels_[pin];
+	}
+
+	/** The duty cycle the host last set on a PWM module, in its clock ticks. */
+	synchronized public int getPwmDutyCycle(int pwmNum) {
+		return pwmDutyCycles_[pwmNum];
+	}
+
+	/** The period the host last set on a PWM module, in its clock ticks. */
+	synchronized public int getPwmPeriod(int pwmNum) {
+		return pwmPeriods_[pwmNum];
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived_;
+	}
+
+	synchronized public long getBytesSent() {
+		return bytesSent_;
+	}
+
+	synchronized public long getAnalogFramesSent() {
+		return analogFramesSent_;
+	}
+
+	synchronized public long getCuesExecuted() {
+		return cuesExecuted_;
+	}
+
+	synchronized public boolean isRunning() {
+		return running_;
+	}
+
+	private void resetState() {
+		Arrays.fill(digitalOutLevels_, false);
+		Arrays.fill(changeNotify_, false);
+		Arrays.fill(capSenseSampling_, false);
+		Arrays.fill(pwmDutyCycles_, 0);
+		Arrays.fill(pwmPeriods_, 0);
+		numAnalogPins_ = 0;
+		analogFormatChanged_ = false;
+		Arrays.fill(uartOpen_, false);
+		Arrays.fill(spiOpen_, false);
+		Arrays.fill(twiOpen_, false);
+		Arrays.fill(twiRegisters_, null);
+		Arrays.fill(incapOpen_, false);
+		sequencerState_ = SequencerState.CLOSED;
+		sequencerCueSize_ = 0;
+		sequencerFifoStart_ = 0;
+		sequencerFifoCount_ = 0;
+	}
+
+	private void endSession() {
+		if (!running_) {
+			return;
+		}
+		running_ = false;
+		wakeTicker();
+		try {
+			in_.close();
+		} catch (IOException e) {
+		}
+		try {
+			out_.close();
+		} catch (IOException e) {
+		}
+		notifyAll();
+	}
+
+	private void wakeTicker() {
+		if (ticker_ != null) {
+			LockSupport.unpark(ticker_);
+		}
+	}
+
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Outgoing messages. Each is written and flushed as a unit, under the
+	// emulator's lock, so that messages from the reader and ticker threads
+	// never interleave.
+
+	private final byte[] sendBuf_ = new byte[512];
+
+	private void send1(int b0) throws IOException {
+		sendBuf_[0] = (byte) b0;
+		flush(1);
+	}
+
+	private void send(int b0, int b1) throws IOException {
+		sendBuf_[0] = (byte) b0;
+		sendBuf_[1] = (byte) b1;
+		flush(2);
+	}
+
+	private void send(int b0, int b1, int b2) throws IOException {
+		sendBuf_[0] = (byte) b0;
+		sendBuf_[1] = (byte) b1;
+		sendBuf_[2] = (byte) b2;
+		flush(3);
+	}
+
+	private void send(int b0, int b1, int b2, int b3) throws IOException {
+		sendBuf_[0] = (byte) b0;
+		sendBuf_[1] = (byte) b1;
+		sendBuf_[2] = (byte) b2;
+		sendBuf_[3] = (byte) b3;
+		flush(4);
+	}
+
+	private void flush(int size) throws IOException {
+		out_.write(sendBuf_, 0, size);
+		out_.flush();
+		bytesSent_ += size;
+	}
+
+	private void sendEstablishConnection() throws IOException {
+		int pos = 0;
+		sendBuf_[pos++] = IOIOProtocol.ESTABLISH_CONNECTION;
+		pos = putAscii("IOIO", pos);
+		pos = putAscii(HARDWARE_ID, pos);
+		pos = putAscii(BOOTLOADER_ID, pos);
+		pos = putAscii(FIRMWARE_ID, pos);
+		flush(pos);
+	}
+
+	private int putAscii(String s, int pos) {
+		for (int i = 0; i < s.length(); ++i) {
+			sendBuf_[pos++] = (byte) s.charAt(i);
+		}
+		return pos;
+	}
+
+	private void sendTxStatus(int command, int num, int credit) throws IOException {
+		send(command, (num | (credit << 2)) & 0xFF, credit >> 6);
+	}
+
+	private void sendSequencerEvent(int event) throws IOException {
+		send(IOIOProtocol.SEQUENCER_EVENT, event);
+	}
+
+	private void sendAnalogFormat() throws IOException {
+		int pos = 0;
+		sendBuf_[pos++] = IOIOProtocol.REPORT_ANALOG_IN_FORMAT;
+		sendBuf_[pos++] = (byte) numAnalogPins_;
+		for (int i = 0; i < numAnalogPins_; ++i) {
+			sendBuf_[pos++] = (byte) analogPins_[i];
+		}
+		flush(pos);
+	}
+
+	private void sendAnalogFrame() throws IOException {
+		int pos = 0;
+		sendBuf_[pos++] = IOIOProtocol.REPORT_ANALOG_IN_STATUS;
+		int headerPos = 0;
+		for (int i = 0; i < numAnalogPins_; ++i) {
+			final int pin = analogPins_[i];
+			int value = analogValues_[pin];
+			if (value < 0) {
+				value = (int) ((sampleCount_ + pin * 64) & 0x3FF);
+			}
+			// The low 2 bits of every 4 pins go in a header byte before them.
+			if (i % 4 == 0) {
+				headerPos = pos++;
+				sendBuf_[headerPos] = 0;
+			}
+			sendBuf_[headerPos] |= (byte) ((value & 0x03) << (2 * (i % 4)));
+			sendBuf_[pos++] = (byte) (value >> 2);
+		}
+		flush(pos);
+		++analogFramesSent_;
+	}
+
+	// Periodic work, run from the ticker thread.
+
+	/** Send one round of samples. */
+	synchronized private void sample() throws IOException {
+		if (!running_) {
+			return;
+		}
+		++sampleCount_;
+		if (analogFormatChanged_) {
+			sendAnalogFormat();
+			analogFormatChanged_ = false;
+		}
+		if (numAnalogPins_ > 0) {
+			sendAnalogFrame();
+		}
+		for (int pin = 0; pin < NUM_PINS; ++pin) {
+			if (capSenseSampling_[pin]) {
+				final int value = capSenseValues_[pin];
+				send(IOIOProtocol.CAPSENSE_REPORT, (pin | (value << 6)) & 0xFF, value >> 2);
+			}
+		}
+		for (int num = 0; num < NUM_INCAPS; ++num) {
+			if (incapOpen_[num]) {
+				final int value = incapValues_[num];
+				// Size code 2: a 2 byte, little endian value.
+				send(IOIOProtocol.INCAP_REPORT, (2 << 6) | num, value & 0xFF, value >> 8);
+			}
+		}
+	}
+
+	/**
+	 * Advance the sequencer to the current time.
+	 *
+	 * @return When the executing cue ends, or Long.MAX_VALUE if none is.
+	 */
+	synchronized private long serviceSequencer(long now) throws IOException {
+		while (running_ && sequencerCueEnded(now)) {
+			nextCue(sequencerCueEndNanos_);
+		}
+		return isSequencerExecuting() ? sequencerCueEndNanos_ : Long.MAX_VALUE;
+	}
+
+	private boolean isSequencerExecuting() {
+		return sequencerState_ == SequencerState.RUNNING
+				|| sequencerState_ == SequencerState.PAUSING;
+	}
+
+	private boolean sequencerCueEnded(long now) {
+		return isSequencerExecuting() && now - sequencerCueEndNanos_ >= 0;
+	}
+
+	/** Start executing the next cue at the given time, or stall or pause if there is none. */
+	private void nextCue(long startNanos) throws IOException {
+		if (sequencerState_ == SequencerState.PAUSING) {
+			sequencerState_ = SequencerState.IDLE;
+			sendSequencerEvent(SEQUENCER_PAUSED);
+			return;
+		}
+		if (sequencerFifoCount_ == 0) {
+			sequencerState_ = SequencerState.STALLED;
+			sendSequencerEvent(SEQUENCER_STALLED);
+			return;
+		}
+		final int duration = sequencerFifo_[sequencerFifoStart_];
+		sequencerFifoStart_ = (sequencerFifoStart_ + 1) % SEQUENCER_FIFO_SIZE;
+		--sequencerFifoCount_;
+		sequencerState_ = SequencerState.RUNNING;
+		sequencerCueEndNanos_ = startNanos + duration * SEQUENCER_TICK_NANOS;
+		++cuesExecuted_;
+		sendSequencerEvent(SEQUENCER_NEXT_CUE);
+		wakeTicker();
+	}
+
+	// Command handling shared by the threads, called with the lock held.
+
+	private void setAnalogSampling(int pin, boolean enable) {
+		int index = 0;
+		while (index < numAnalogPins_ && analogPins_[index] != pin) {
+			++index;
+		}
+		final boolean sampled = index < numAnalogPins_;
+		if (enable && !sampled) {
+			analogPins_[numAnalogPins_++] = pin;
+			analogFormatChanged_ = true;
+		} else if (!enable && sampled) {
+			System.arraycopy(analogPins_, index + 1, analogPins_, index,
+					numAnalogPins_ - index - 1);
+			--numAnalogPins_;
+			analogFormatChanged_ = true;
+		}
+	}
+
+	private void pushCue(int duration) throws IOException {
+		if (sequencerState_ == SequencerState.CLOSED
+				|| sequencerFifoCount_ == SEQUENCER_FIFO_SIZE) {
+			throw new IllegalStateException("Unexpected sequencer push");
+		}
+		sequencerFifo_[(sequencerFifoStart_ + sequencerFifoCount_) % SEQUENCER_FIFO_SIZE] = duration;
+		++sequencerFifoCount_;
+		if (sequencerState_ == SequencerState.STALLED) {
+			// A stalled sequencer resumes as soon as a cue is available.
+			nextCue(System.nanoTime());
+		}
+	}
+
+	private void controlSequencer(int command) throws IOException {
+		switch (command) {
+		case 0:
+			// Stop: discard the queued cues, and return their slots.
+			final int discarded = sequencerFifoCount_;
+			sequencerFifoStart_ = 0;
+			sequencerFifoCount_ = 0;
+			sequencerState_ = SequencerState.IDLE;
+			send(IOIOProtocol.SEQUENCER_EVENT, SEQUENCER_STOPPED, discarded);
+			break;
+
+		case 1:
+			if (sequencerState_ == SequencerState.IDLE) {
+				nextCue(System.nanoTime());
+			}
+			break;
+
+		case 2:
+			// Pause once the executing cue is done.
+			if (sequencerState_ == SequencerState.RUNNING) {
+				sequencerState_ = SequencerState.PAUSING;
+			} else if (sequencerState_ == SequencerState.STALLED) {
+				sequencerState_ = SequencerState.IDLE;
+				sendSequencerEvent(SEQUENCER_PAUSED);
+			}
+			break;
+
+		case 3:
+		case 4:
+			// Manual start and stop only affect the pins.
+			break;
+
+		default:
+			throw new IllegalStateException("Unknown sequencer control: " + command);
+		}
+	}
+
+	/** Parse the channel types out of a sequencer configuration, to know the cue size. */
+	private void configureSequencer(byte[] config, int size) throws IOException {
+		if (size == 0) {
+			sequencerState_ = SequencerState.CLOSED;
+			sendSequencerEvent(SEQUENCER_CLOSED);
+			return;
+		}
+		int cueSize = 0;
+		for (int pos = 0; pos < size;) {
+			final int type = config[pos];
+			if (type < 0 || type >= SEQUENCER_CONFIG_SIZE.length) {
+				throw new IllegalStateException("Unknown sequencer channel type: " + type);
+			}
+			cueSize += SEQUENCER_CUE_SIZE[type];
+			pos += SEQUENCER_CONFIG_SIZE[type];
+		}
+		sequencerCueSize_ = cueSize;
+		sequencerFifoStart_ = 0;
+		sequencerFifoCount_ = 0;
+		sequencerState_ = SequencerState.IDLE;
+		send(IOIOProtocol.SEQUENCER_EVENT, SEQUENCER_OPENED, SEQUENCER_FIFO_SIZE);
+	}
+
+	class TickerThread extends Thread {
+		TickerThread() {
+			super(TAG + " ticker");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long nextSample = System.nanoTime();
+			try {
+				while (isRunning()) {
+					final long now = System.nanoTime();
+					final int rate;
+					synchronized (IOIOEmulator.this) {
+						rate = sampleRateHz_;
+					}
+					long wakeup = serviceSequencer(now);
+					if (rate > 0) {
+						final long period = 1000000000L / rate;
+						if (now - nextSample >= 0) {
+							sample();
+							nextSample += period;
+							if (now - nextSample >= period) {
+								// Fell behind, e.g. after a long GC pause. Skip
+								// the missed samples rather than bursting them.
+								nextSample = now + period;
+							}
+						}
+						wakeup = Math.min(wakeup, nextSample);
+					} else {
+						nextSample = now;
+					}
+					if (wakeup == Long.MAX_VALUE) {
+						LockSupport.park(this);
+					} else {
+						LockSupport.parkNanos(this, wakeup - System.nanoTime());
+					}
+				}
+			} catch (IOException e) {
+				synchronized (IOIOEmulator.this) {
+					endSession();
+				}
+			}
+		}
+	}
+
+	// Incoming commands, parsed on the reader thread.
+
+	class ReaderThread extends Thread {
+		private final byte[] data_ = new byte[256];
+
+		ReaderThread() {
+			super(TAG + " reader");
+			setDaemon(true);
+		}
+
+		private int readByte() throws IOException {
+			final int b = in_.read();
+			if (b < 0) {
+				throw new IOException("Host disconnected");
+			}
+			++bytesReceived_;
+			return b;
+		}
+
+		private int readTwoBytes() throws IOException {
+			return readByte() | (readByte() << 8);
+		}
+
+		private void readBytes(int size) throws IOException {
+			for (int i = 0; i < size; ++i) {
+				data_[i] = (byte) readByte();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				synchronized (IOIOEmulator.this) {
+					sendEstablishConnection();
+				}
+				while (true) {
+					handleCommand(readByte());
+				}
+			} catch (IOException e) {
+				// The host disconnected, or the session was stopped.
+			} catch (RuntimeException e) {
+				// Invalid data from the host.
+				Log.e(TAG, "Protocol error: ", e);
+			} finally {
+				synchronized (IOIOEmulator.this) {
+					endSession();
+				}
+			}
+		}
+
+		private void handleCommand(int command) throws IOException {
+			int arg1;
+			int arg2;
+			int size;
+			switch (command) {
+			case IOIOProtocol.HARD_RESET:
+				readBytes(4);
+				// The board reboots, which the host sees as a lost connection.
+				throw new IOException("Hard reset");
+
+			case IOIOProtocol.SOFT_RESET:
+				synchronized (IOIOEmulator.this) {
+					resetState();
+					send1(IOIOProtocol.SOFT_RESET);
+				}
+				break;
+
+			case IOIOProtocol.CHECK_INTERFACE:
+				readBytes(8);
+				final String interfaceId = new String(data_, 0, 8, "US-ASCII");
+				// This emulates every interface revision up to the one the
+				// library requires.
+				final boolean supported = interfaceId.compareTo("IOIO0001") >= 0
+						&& interfaceId.compareTo("IOIO0005") <= 0;
+				synchronized (IOIOEmulator.this) {
+					send(IOIOProtocol.CHECK_INTERFACE_RESPONSE, supported ? 1 : 0);
+				}
+				break;
+
+			case IOIOProtocol.SET_PIN_DIGITAL_OUT:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					changeNotify_[arg1 >> 2] = false;
+					digitalOutLevels_[arg1 >> 2] = (arg1 & 0x02) != 0;
+				}
+				break;
+
+			case IOIOProtocol.SET_DIGITAL_OUT_LEVEL:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					digitalOutLevels_[arg1 >> 2] = (arg1 & 0x01) != 0;
+				}
+				break;
+
+			case IOIOProtocol.SET_PIN_DIGITAL_IN:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					changeNotify_[arg1 >> 2] = false;
+				}
+				break;
+
+			case IOIOProtocol.SET_CHANGE_NOTIFY:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					final int pin = arg1 >> 2;
+					changeNotify_[pin] = (arg1 & 0x01) != 0;
+					send(IOIOProtocol.SET_CHANGE_NOTIFY, arg1);
+					if (changeNotify_[pin]) {
+						// The current level is always reported when enabled.
+						send(IOIOProtocol.REPORT_DIGITAL_IN_STATUS,
+								pin << 2 | (digitalInLevels_[pin] ? 1 : 0));
+					}
+				}
+				break;
+
+			case IOIOProtocol.SET_PIN_PWM:
+			case IOIOProtocol.SET_PIN_UART:
+			case IOIOProtocol.SET_PIN_SPI:
+			case IOIOProtocol.SET_PIN_INCAP:
+				readBytes(2);
+				break;
+
+			case IOIOProtocol.SET_PWM_DUTY_CYCLE:
+				arg1 = readByte();
+				arg2 = readTwoBytes();
+				synchronized (IOIOEmulator.this) {
+					pwmDutyCycles_[arg1 >> 2] = arg2;
+				}
+				break;
+
+			case IOIOProtocol.SET_PWM_PERIOD:
+				arg1 = readByte();
+				arg2 = readTwoBytes();
+				synchronized (IOIOEmulator.this) {
+					pwmPeriods_[(arg1 >> 1) & 0x1F] = arg2;
+				}
+				break;
+
+			case IOIOProtocol.SET_PIN_ANALOG_IN:
+			case IOIOProtocol.SET_PIN_CAPSENSE:
+				readByte();
+				break;
+
+			case IOIOProtocol.SET_ANALOG_IN_SAMPLING:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					setAnalogSampling(arg1 & 0x3F, (arg1 & 0x80) != 0);
+				}
+				break;
+
+			case IOIOProtocol.UART_CONFIG:
+				arg1 = readByte();
+				arg2 = readTwoBytes();
+				synchronized (IOIOEmulator.this) {
+					final int uart = arg1 >> 6;
+					// A zero rate closes the UART.
+					uartOpen_[uart] = arg2 != 0;
+					if (uartOpen_[uart]) {
+						send(IOIOProtocol.UART_STATUS, 0x80 | uart);
+						sendTxStatus(IOIOProtocol.UART_REPORT_TX_STATUS, uart, TX_BUFFER_SIZE);
+					} else {
+						send(IOIOProtocol.UART_STATUS, uart);
+					}
+				}
+				break;
+
+			case IOIOProtocol.UART_DATA:
+				arg1 = readByte();
+				size = (arg1 & 0x3F) + 1;
+				readBytes(size);
+				synchronized (IOIOEmulator.this) {
+					final int uart = arg1 >> 6;
+					if (uartOpen_[uart]) {
+						sendBuf_[0] = IOIOProtocol.UART_DATA;
+						sendBuf_[1] = (byte) arg1;
+						System.arraycopy(data_, 0, sendBuf_, 2, size);
+						flush(size + 2);
+						sendTxStatus(IOIOProtocol.UART_REPORT_TX_STATUS, uart, size);
+					}
+				}
+				break;
+
+			case IOIOProtocol.SPI_CONFIGURE_MASTER:
+				arg1 = readByte();
+				readByte();
+				synchronized (IOIOEmulator.this) {
+					final int spi = arg1 >> 5;
+					// A zero clock scale closes the SPI.
+					spiOpen_[spi] = (arg1 & 0x1F) != 0;
+					if (spiOpen_[spi]) {
+						send(IOIOProtocol.SPI_STATUS, 0x80 | spi);
+						sendTxStatus(IOIOProtocol.SPI_REPORT_TX_STATUS, spi, TX_BUFFER_SIZE);
+					} else {
+						send(IOIOProtocol.SPI_STATUS, spi);
+					}
+				}
+				break;
+
+			case IOIOProtocol.SPI_MASTER_REQUEST:
+				handleSpiMasterRequest();
+				break;
+
+			case IOIOProtocol.I2C_CONFIGURE_MASTER:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					final int twi = arg1 & 0x03;
+					// A zero rate closes the TWI.
+					twiOpen_[twi] = (arg1 & 0x60) != 0;
+					if (twiOpen_[twi]) {
+						send(IOIOProtocol.I2C_STATUS, 0x80 | twi);
+						sendTxStatus(IOIOProtocol.I2C_REPORT_TX_STATUS, twi, TX_BUFFER_SIZE);
+					} else {
+						send(IOIOProtocol.I2C_STATUS, twi);
+					}
+				}
+				break;
+
+			case IOIOProtocol.I2C_WRITE_READ:
+				handleI2cWriteRead();
+				break;
+
+			case IOIOProtocol.ICSP_SIX:
+				readBytes(3);
+				break;
+
+			case IOIOProtocol.ICSP_REGOUT:
+				synchronized (IOIOEmulator.this) {
+					send(IOIOProtocol.ICSP_RESULT, 0, 0);
+					send(IOIOProtocol.ICSP_REPORT_RX_STATUS, 2, 0);
+				}
+				break;
+
+			case IOIOProtocol.ICSP_PROG_ENTER:
+			case IOIOProtocol.ICSP_PROG_EXIT:
+				break;
+
+			case IOIOProtocol.ICSP_CONFIG:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					send(IOIOProtocol.ICSP_CONFIG, arg1);
+					if ((arg1 & 0x01) != 0) {
+						send(IOIOProtocol.ICSP_REPORT_RX_STATUS, ICSP_RX_BUFFER_SIZE & 0xFF,
+								ICSP_RX_BUFFER_SIZE >> 8);
+					}
+				}
+				break;
+
+			case IOIOProtocol.INCAP_CONFIGURE:
+				arg1 = readByte();
+				arg2 = readByte();
+				synchronized (IOIOEmulator.this) {
+					final int incap = arg1 & 0x0F;
+					// A zero mode closes the module.
+					incapOpen_[incap] = (arg2 & 0x38) != 0;
+					send(IOIOProtocol.INCAP_STATUS, (incapOpen_[incap] ? 0x80 : 0x00) | incap);
+				}
+				break;
+
+			case IOIOProtocol.SOFT_CLOSE:
+				synchronized (IOIOEmulator.this) {
+					send1(IOIOProtocol.SOFT_CLOSE);
+				}
+				throw new IOException("Soft close");
+
+			case IOIOProtocol.SET_CAPSENSE_SAMPLING:
+				arg1 = readByte();
+				synchronized (IOIOEmulator.this) {
+					capSenseSampling_[arg1 & 0x3F] = (arg1 & 0x80) != 0;
+					send(IOIOProtocol.SET_CAPSENSE_SAMPLING, arg1);
+				}
+				break;
+
+			case IOIOProtocol.SEQUENCER_CONFIGURE:
+				size = readByte();
+				readBytes(size);
+				synchronized (IOIOEmulator.this) {
+					configureSequencer(data_, size);
+				}
+				break;
+
+			case IOIOProtocol.SEQUENCER_PUSH:
+				arg1 = readTwoBytes();
+				readBytes(sequencerCueSize());
+				synchronized (IOIOEmulator.this) {
+					pushCue(arg1);
+				}
+				break;
+
+			case IOIOProtocol.SEQUENCER_CONTROL:
+				arg1 = readByte();
+				if (arg1 == 3) {
+					// Manual start: the cue is applied, and stays until stopped.
+					readBytes(sequencerCueSize());
+				}
+				synchronized (IOIOEmulator.this) {
+					controlSequencer(arg1);
+				}
+				break;
+
+			case IOIOProtocol.SYNC:
+				synchronized (IOIOEmulator.this) {
+					send1(IOIOProtocol.SYNC);
+				}
+				break;
+
+			default:
+				throw new IllegalStateException("Received unexpected command: 0x"
+						+ Integer.toHexString(command));
+			}
+		}
+
+		private void handleSpiMasterRequest() throws IOException {
+			final int arg1 = readByte();
+			final int arg2 = readByte();
+			final int total = (arg2 & 0x3F) + 1;
+			final int dataBytes = (arg2 & 0x80) != 0 ? readByte() : total;
+			final int responseBytes = (arg2 & 0x40) != 0 ? readByte() : total;
+			readBytes(dataBytes);
+			synchronized (IOIOEmulator.this) {
+				final int spi = arg1 >> 6;
+				if (!spiOpen_[spi]) {
+					return;
+				}
+				if (responseBytes > 0) {
+					// MISO is looped back to MOSI, which idles high once the
+					// data is exhausted. The response is the tail of what was
+					// clocked in.
+					sendBuf_[0] = IOIOProtocol.SPI_DATA;
+					sendBuf_[1] = (byte) ((responseBytes - 1) | (spi << 6));
+					sendBuf_[2] = (byte) (arg1 & 0x3F);
+					for (int i = 0; i < responseBytes; ++i) {
+						final int index = total - responseBytes + i;
+						sendBuf_[3 + i] = index < dataBytes ? data_[index] : (byte) 0xFF;
+					}
+					flush(responseBytes + 3);
+				}
+				sendTxStatus(IOIOProtocol.SPI_REPORT_TX_STATUS, spi, dataBytes + 4);
+			}
+		}
+
+		private void handleI2cWriteRead() throws IOException {
+			final int arg1 = readByte();
+			final int address = ((arg1 >> 6) << 8) | readByte();
+			final int writeSize = readByte();
+			final int readSize = readByte();
+			readBytes(writeSize);
+			synchronized (IOIOEmulator.this) {
+				final int twi = arg1 & 0x03;
+				if (!twiOpen_[twi] || twiStalled_) {
+					return;
+				}
+				if (twiRegisters_[twi] == null) {
+					twiRegisters_[twi] = new byte[1 << 10][];
+					twiPointers_[twi] = new int[1 << 10];
+				}
+				if (twiRegisters_[twi][address] == null) {
+					twiRegisters_[twi][address] = new byte[256];
+				}
+				final byte[] registers = twiRegisters_[twi][address];
+				final int[] pointers = twiPointers_[twi];
+				if (writeSize > 0) {
+					pointers[address] = data_[0] & 0xFF;
+					for (int i = 1; i < writeSize; ++i) {
+						registers[pointers[address]] = data_[i];
+						pointers[address] = (pointers[address] + 1) & 0xFF;
+					}
+				}
+				sendBuf_[0] = IOIOProtocol.I2C_RESULT;
+				sendBuf_[1] = (byte) twi;
+				sendBuf_[2] = (byte) readSize;
+				for (int i = 0; i < readSize; ++i) {
+					sendBuf_[3 + i] = registers[pointers[address]];
+					pointers[address] = (pointers[address] + 1) & 0xFF;
+				}
+				flush(readSize + 3);
+				sendTxStatus(IOIOProtocol.I2C_REPORT_TX_STATUS, twi, writeSize + 4);
+			}
+		}
+
+		private int sequencerCueSize() {
+			synchronized (IOIOEmulator.this) {
+				return sequencerCueSize_;
+			}
+		}
+	}
+}
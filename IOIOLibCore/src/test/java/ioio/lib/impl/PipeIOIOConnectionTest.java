@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import ioio.lib.api.DigitalOutput;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.IOIOFactory;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.impl.PipeIOIOConnection.WaitStrategy;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+/**
+ * The library over a {@link PipeIOIOConnection}, against an
+ * {@link IOIOEmulator}.
+ */
+public class PipeIOIOConnectionTest {
+	@Test(timeout = 10000)
+	public void runsProtocolBlocking() throws Exception {
+		runProtocol(WaitStrategy.BLOCKING);
+	}
+
+	@Test(timeout = 10000)
+	public void runsProtocolSpinning() throws Exception {
+		runProtocol(WaitStrategy.SPINNING);
+	}
+
+	@Test(expected = ConnectionLostException.class)
+	public void disconnectBeforeConnect() throws Exception {
+		IOIOConnection connection = new PipeIOIOConnection(new PipeIOIOConnection.Device() {
+			@Override
+			public void connected(InputStream fromHost, OutputStream toHost) {
+			}
+		});
+		connection.disconnect();
+		connection.waitForConnect();
+	}
+
+	private static void runProtocol(WaitStrategy waitStrategy) throws Exception {
+		IOIOEmulator emulator = new IOIOEmulator();
+		emulator.setSampleRate(0);
+		IOIO ioio = IOIOFactory.create(emulator.createPipeConnection(waitStrategy));
+		ioio.waitForConnect();
+		DigitalOutput out = ioio.openDigitalOutput(3, false);
+		for (int i = 0; i < 100; ++i) {
+			out.write(i % 2 == 0);
+			ioio.sync();
+			assertTrue(emulator.getDigitalOutLevel(3) == (i % 2 == 0));
+		}
+		ioio.disconnect();
+		ioio.waitForDisconnect();
+		// The device sees end-of-stream and ends its session.
+		for (int i = 0; i < 100 && emulator.isRunning(); ++i) {
+			Thread.sleep(10);
+		}
+		assertFalse(emulator.isRunning());
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.DigitalOutput;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOFactory;
+import ioio.lib.api.Sequencer;
+import ioio.lib.api.Sequencer.ChannelConfig;
+import ioio.lib.api.Sequencer.ChannelConfigBinary;
+import ioio.lib.api.exception.ConnectionLostException;
+
+/**
+ * Benchmark for how long it takes to get a 32 channel sequencer from
+ * {@link IOIO#openSequencer(ChannelConfig[])} to ready (the IOIO reporting it
+ * open), which is what happens on every reconnect of a client driving its
+ * outputs through the sequencer.
+ * <p>
+ * The first iteration is reported separately, since it includes the one time
+ * class loading and initialization costs.
+ * <p>
+ * {@link #main(String[])} runs it against an {@link IOIOEmulator}, which
+ * measures the host side. To include the firmware, call
+ * {@link #run(IOIO, int)} on a connected board. It needs 32 free pins, so it
+ * soft resets the IOIO first, closing everything opened on it: only run it on
+ * a bench IOIO.
+ */
+public class SequencerOpenBenchmark {
+	/** The number of channels to open, the maximum the sequencer supports. */
+	public static final int NUM_CHANNELS = 32;
+	/** Pins FIRST_PIN through FIRST_PIN + NUM_CHANNELS - 1 are used. */
+	public static final int FIRST_PIN = 1;
+
+	private long firstNanos_ = 0;
+	private long minNanos_ = Long.MAX_VALUE;
+	private long maxNanos_ = 0;
+	private long totalNanos_ = 0;
+	private int iterations_ = 0;
+
+	public static void main(String[] args) throws Exception {
+		IOIOEmulator emulator = new IOIOEmulator();
+		emulator.setSampleRate(0);
+		IOIO ioio = IOIOFactory.create(emulator.createConnection());
+		ioio.waitForConnect();
+		SequencerOpenBenchmark benchmark = new SequencerOpenBenchmark();
+		benchmark.run(ioio, args.length > 0 ? Integer.parseInt(args[0]) : 100);
+		System.out.println(benchmark);
+		ioio.disconnect();
+		ioio.waitForDisconnect();
+	}
+
+	/**
+	 * Open and close a 32 channel sequencer the given number of times, timing
+	 * each open until the sequencer is ready.
+	 *
+	 * @param ioio
+	 *            A connected IOIO, which will be soft reset.
+	 * @param count
+	 *            The number of iterations.
+	 */
+	public void run(IOIO ioio, int count) throws ConnectionLostException,
+			InterruptedException {
+		ioio.softReset();
+
+		ChannelConfig[] config = new ChannelConfig[NUM_CHANNELS];
+		for (int i = 0; i < NUM_CHANNELS; i++) {
+			config[i] = new ChannelConfigBinary(false, true,
+					new DigitalOutput.Spec(FIRST_PIN + i));
+		}
+
+		for (int i = 0; i < count; i++) {
+			long start = System.nanoTime();
+			Sequencer sequencer = ioio.openSequencer(config);
+			// The first event is always STOPPED, sent once the IOIO has opened
+			// the sequencer.
+			sequencer.waitEventType(Sequencer.Event.Type.STOPPED);
+			long elapsed = System.nanoTime() - start;
+			sequencer.close();
+
+			if (iterations_ == 0) {
+				firstNanos_ = elapsed;
+			} else {
+				minNanos_ = Math.min(minNanos_, elapsed);
+				maxNanos_ = Math.max(maxNanos_, elapsed);
+				totalNanos_ += elapsed;
+			}
+			iterations_++;
+		}
+	}
+
+	/** The mean of all but the first iteration, in nanoseconds. */
+	public long getMeanNanos() {
+		return iterations_ > 1 ? totalNanos_ / (iterations_ - 1) : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "Sequencer open to ready, " + NUM_CHANNELS + " channels, "
+				+ iterations_ + " iterations." + " First: "
+				+ (firstNanos_ / 1000) + "us" + " Min: "
+				+ (iterations_ > 1 ? minNanos_ / 1000 : 0) + "us" + " Mean: "
+				+ (getMeanNanos() / 1000) + "us" + " Max: "
+				+ (maxNanos_ / 1000) + "us";
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Loopback benchmark for the TCP connections.
+ * <p>
+ * A local thread plays the part of the IOIO: it connects to the connection
+ * being measured and echoes back everything it receives. That measures the
+ * connection itself, with no IOIO or network in the way:
+ * <ul>
+ * <li>Latency: a single byte written and flushed, until its echo is read
+ * back. This is what each small command batch costs.</li>
+ * <li>Throughput: a block of data streamed out, while reading the echo
+ * back.</li>
+ * </ul>
+ * {@link #main(String[])} measures {@link SocketIOIOConnection} and
+ * {@link NioSocketIOIOConnection}, one after the other. The port has to be
+ * free.
+ */
+public class SocketLoopbackBenchmark {
+	/** Default port, chosen not to clash with the IOIO's 4545. */
+	public static final int DEFAULT_PORT = 4546;
+	/** Chunk size used for the throughput test. */
+	private static final int CHUNK_SIZE = 256;
+
+	private long minNanos_ = Long.MAX_VALUE;
+	private long maxNanos_ = 0;
+	private long totalNanos_ = 0;
+	private int roundTrips_ = 0;
+	private double bytesPerSecond_ = 0;
+
+	public static void main(String[] args) throws Exception {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		final int roundTrips = 10000;
+		final int bulkBytes = 16 * 1024 * 1024;
+
+		SocketLoopbackBenchmark blocking = new SocketLoopbackBenchmark();
+		blocking.run(new SocketIOIOConnection(port), port, roundTrips, bulkBytes);
+		System.out.println("SocketIOIOConnection: " + blocking);
+
+		SocketLoopbackBenchmark nio = new SocketLoopbackBenchmark();
+		nio.run(new NioSocketIOIOConnection(port), port, roundTrips, bulkBytes);
+		System.out.println("NioSocketIOIOConnection: " + nio);
+	}
+
+	/**
+	 * Run the benchmark over the given connection, which must listen on the
+	 * given port. The connection is disconnected when done.
+	 *
+	 * @param count
+	 *            The number of round trips to time.
+	 * @param bulkBytes
+	 *            The number of bytes to stream for the throughput test.
+	 */
+	public void run(IOIOConnection connection, int port, int count, int bulkBytes)
+			throws Exception {
+		EchoThread echo = new EchoThread(port);
+		echo.start();
+		try {
+			connection.waitForConnect();
+			InputStream in = connection.getInputStream();
+			final OutputStream out = connection.getOutputStream();
+
+			// Latency.
+			for (int i = 0; i < count; i++) {
+				long start = System.nanoTime();
+				out.write(i & 0xFF);
+				out.flush();
+				if (in.read() < 0) {
+					throw new ConnectionLostException();
+				}
+				long elapsed = System.nanoTime() - start;
+				minNanos_ = Math.min(minNanos_, elapsed);
+				maxNanos_ = Math.max(maxNanos_, elapsed);
+				totalNanos_ += elapsed;
+				roundTrips_++;
+			}
+
+			// Throughput. Written from another thread, so the echo never backs
+			// up.
+			final int total = bulkBytes;
+			final IOException[] writeError = new IOException[1];
+			Thread writer = new Thread("SocketLoopbackBenchmarkWriter") {
+				@Override
+				public void run() {
+					byte[] chunk = new byte[CHUNK_SIZE];
+					try {
+						for (int sent = 0; sent < total; sent += CHUNK_SIZE) {
+							out.write(chunk, 0, Math.min(CHUNK_SIZE, total - sent));
+						}
+						out.flush();
+					} catch (IOException e) {
+						writeError[0] = e;
+					}
+				}
+			};
+			byte[] buffer = new byte[CHUNK_SIZE];
+			long start = System.nanoTime();
+			writer.start();
+			int received = 0;
+			while (received < total) {
+				int read = in.read(buffer, 0, buffer.length);
+				if (read < 0) {
+					throw new ConnectionLostException();
+				}
+				received += read;
+			}
+			long elapsed = System.nanoTime() - start;
+			writer.join();
+			if (writeError[0] != null) {
+				throw writeError[0];
+			}
+			bytesPerSecond_ = total * 1000000000.0 / elapsed;
+		} finally {
+			connection.disconnect();
+			echo.close();
+			echo.join();
+		}
+	}
+
+	/** The mean round trip, in nanoseconds. */
+	public long getMeanNanos() {
+		return roundTrips_ > 0 ? totalNanos_ / roundTrips_ : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "Round trips: " + roundTrips_ + " Min: "
+				+ (roundTrips_ > 0 ? minNanos_ / 1000 : 0) + "us" + " Mean: "
+				+ (getMeanNanos() / 1000) + "us" + " Max: " + (maxNanos_ / 1000)
+				+ "us" + " Throughput: " + Math.round(bytesPerSecond_ / 1024)
+				+ "KB/s";
+	}
+
+	/**
+	 * Plays the IOIO: connects to the connection and echoes everything back.
+	 */
+	private static class EchoThread extends Thread {
+		private final int port_;
+		private Socket socket_;
+		private boolean closed_ = false;
+
+		EchoThread(int port) {
+			super("SocketLoopbackBenchmarkEcho");
+			port_ = port;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket s = connect();
+				if (s == null) {
+					return;
+				}
+				s.setTcpNoDelay(true);
+				InputStream in = s.getInputStream();
+				OutputStream out = s.getOutputStream();
+				byte[] buffer = new byte[CHUNK_SIZE];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+				s.close();
+			} catch (IOException e) {
+				// Closed by the benchmark, or the connection dropped.
+			}
+		}
+
+		// The connection only starts listening in waitForConnect(), so retry
+		// until it does.
+		private Socket connect() throws IOException {
+			while (true) {
+				synchronized (this) {
+					if (closed_) {
+						return null;
+					}
+				}
+				try {
+					Socket s = new Socket(InetAddress.getByName("127.0.0.1"), port_);
+					synchronized (this) {
+						socket_ = s;
+					}
+					return s;
+				} catch (IOException e) {
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e1) {
+						return null;
+					}
+				}
+			}
+		}
+
+		synchronized void close() {
+			closed_ = true;
+			if (socket_ != null) {
+				try {
+					socket_.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
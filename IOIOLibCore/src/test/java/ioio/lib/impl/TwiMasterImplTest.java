@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOFactory;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.TwiMaster.Result;
+import ioio.lib.api.TwiMaster.ResultListener;
+import ioio.lib.api.TwiMaster.Transaction;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pooled transactions, batches and result listeners, run against an
+ * {@link IOIOEmulator}, whose TWI addresses are register files.
+ */
+public class TwiMasterImplTest {
+	private static final int ADDRESS = 0x20;
+
+	private IOIOEmulator emulator_;
+	private IOIO ioio_;
+	private TwiMaster twi_;
+
+	@Before
+	public void setUp() throws Exception {
+		emulator_ = new IOIOEmulator();
+		emulator_.setSampleRate(0);
+		ioio_ = IOIOFactory.create(emulator_.createConnection());
+		ioio_.waitForConnect();
+		twi_ = ioio_.openTwiMaster(0, TwiMaster.Rate.RATE_400KHz, false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+	}
+
+	@Test
+	public void transactionReadsIntoCallerBuffer() throws Exception {
+		twi_.writeRead(ADDRESS, false, new byte[] { 4, 10, 11, 12 }, 4, null, 0);
+
+		byte[] read = new byte[3];
+		Transaction t = twi_.obtainTransaction();
+		assertTrue(t.isReady());
+		t.set(ADDRESS, false, new byte[] { 4 }, 1, read, 3);
+		for (int i = 0; i < 3; ++i) {
+			read[0] = read[1] = read[2] = 0;
+			twi_.submit(t);
+			assertTrue(t.waitReady());
+			assertTrue(t.isSuccess());
+			assertArrayEquals(new byte[] { 10, 11, 12 }, read);
+		}
+		t.release();
+	}
+
+	@Test
+	public void releasedTransactionReturnsToPool() throws Exception {
+		Transaction[] all = new Transaction[Constants.TWI_TRANSACTION_POOL_SIZE];
+		for (int i = 0; i < all.length; ++i) {
+			all[i] = twi_.obtainTransaction();
+		}
+		all[3].release();
+		assertSame(all[3], twi_.obtainTransaction());
+
+		all[3].release();
+		try {
+			twi_.submit(all[3]);
+			fail("Released transaction submitted");
+		} catch (IllegalStateException e) {
+		}
+		for (int i = 0; i < all.length; ++i) {
+			if (i != 3) {
+				all[i].release();
+			}
+		}
+	}
+
+	@Test
+	public void abortedTransactionCanBeReleased() throws Exception {
+		emulator_.setTwiStalled(true);
+		Transaction t = twi_.obtainTransaction();
+		t.set(ADDRESS, false, new byte[] { 0 }, 1, new byte[1], 1);
+		twi_.submit(t);
+		assertFalse(t.isDone());
+		try {
+			t.release();
+			fail("Transaction in flight released");
+		} catch (IllegalStateException e) {
+		}
+
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+		assertTrue(t.isDone());
+		assertFalse(t.isReady());
+		t.release();
+	}
+
+	@Test
+	public void foreignTransactionIsRejected() throws Exception {
+		TwiMaster other = ioio_.openTwiMaster(1, TwiMaster.Rate.RATE_400KHz, false);
+		Transaction t = other.obtainTransaction();
+		t.set(ADDRESS, false, new byte[] { 0 }, 1, null, 0);
+		try {
+			twi_.submit(t);
+			fail("Transaction of another TwiMaster submitted");
+		} catch (IllegalArgumentException e) {
+		}
+		assertTrue(t.isReady());
+
+		Transaction own = twi_.obtainTransaction();
+		own.set(ADDRESS, false, new byte[] { 0 }, 1, null, 0);
+		try {
+			twi_.submitBatch(new Transaction[] { own, t });
+			fail("Batch with a transaction of another TwiMaster submitted");
+		} catch (IllegalArgumentException e) {
+		}
+		// Nothing in the batch was submitted, so it can still be.
+		assertTrue(own.isReady());
+		assertTrue(twi_.submitBatch(new Transaction[] { own }).waitReady());
+		own.release();
+		t.release();
+		other.close();
+	}
+
+	@Test
+	public void batchCompletesWhenAllTransactionsDo() throws Exception {
+		byte[][] reads = new byte[4][1];
+		Transaction[] writes = new Transaction[4];
+		Transaction[] readBacks = new Transaction[4];
+		for (int i = 0; i < 4; ++i) {
+			writes[i] = twi_.obtainTransaction();
+			writes[i].set(ADDRESS, false, new byte[] { (byte) i, (byte) (20 + i) }, 2, null, 0);
+			readBacks[i] = twi_.obtainTransaction();
+			readBacks[i].set(ADDRESS, false, new byte[] { (byte) i }, 1, reads[i], 1);
+		}
+		assertTrue(twi_.submitBatch(writes).waitReady());
+		Result batch = twi_.submitBatch(readBacks);
+		assertTrue(batch.waitReady());
+		assertTrue(batch.get());
+		for (int i = 0; i < 4; ++i) {
+			assertTrue(readBacks[i].isReady());
+			assertEquals(20 + i, reads[i][0]);
+			writes[i].release();
+			readBacks[i].release();
+		}
+	}
+
+	@Test
+	public void listenerIsNotifiedOnEveryCompletion() throws Exception {
+		final AtomicInteger completions = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(3);
+		Transaction t = twi_.obtainTransaction();
+		t.set(ADDRESS, false, new byte[] { 0 }, 1, new byte[1], 1);
+		t.addListener(new ResultListener() {
+			@Override
+			public void onComplete(Result result, boolean success) {
+				if (success) {
+					completions.incrementAndGet();
+				}
+				done.countDown();
+			}
+
+			@Override
+			public void onAborted(Result result) {
+			}
+		});
+		// A ready transaction does not notify a new listener.
+		assertEquals(0, completions.get());
+		for (int i = 0; i < 3; ++i) {
+			twi_.submit(t);
+			t.waitReady();
+		}
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals(3, completions.get());
+		t.release();
+	}
+
+	@Test
+	public void listenerOnExecutorAndFuture() throws Exception {
+		final AtomicInteger executed = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		Result result = twi_.writeReadAsync(ADDRESS, false, new byte[] { 0 }, 1, null, 0);
+		result.addListener(new ResultListener() {
+			@Override
+			public void onComplete(Result result, boolean success) {
+				done.countDown();
+			}
+
+			@Override
+			public void onAborted(Result result) {
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				command.run();
+			}
+		});
+		assertTrue(result.get(1, TimeUnit.SECONDS));
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals(1, executed.get());
+		assertTrue(result.isDone());
+		assertFalse(result.cancel(true));
+	}
+}
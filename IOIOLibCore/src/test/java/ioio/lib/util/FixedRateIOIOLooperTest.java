@@ -0,0 +1,159 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ioio.lib.api.DigitalOutput;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOFactory;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.impl.IOIOEmulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link FixedRateIOIOLooper} scheduling and accounting, with ticks that
+ * toggle the LED of an {@link IOIOEmulator}. The loop is driven from the test
+ * thread, the same way {@link IOIOConnectionManager} drives it.
+ */
+public class FixedRateIOIOLooperTest {
+	private static final long PERIOD_NS = 20000000L;
+
+	/** Toggles the LED every tick, and takes longer on the given ticks. */
+	private static class Looper extends FixedRateIOIOLooper {
+		private final int slowTick_;
+		private final long slowTickMs_;
+		private DigitalOutput led_;
+		private boolean on_ = false;
+		final long[] starts_ = new long[64];
+		int count_ = 0;
+
+		Looper(OverrunPolicy policy, int slowTick, long slowTickMs) {
+			super(PERIOD_NS, policy);
+			slowTick_ = slowTick;
+			slowTickMs_ = slowTickMs;
+		}
+
+		@Override
+		protected void setup() throws ConnectionLostException {
+			led_ = ioio_.openDigitalOutput(IOIO.LED_PIN, false);
+		}
+
+		@Override
+		protected void tick() throws ConnectionLostException,
+				InterruptedException {
+			starts_[count_] = System.nanoTime();
+			on_ = !on_;
+			led_.write(on_);
+			if (count_++ == slowTick_) {
+				Thread.sleep(slowTickMs_);
+			}
+		}
+	}
+
+	private IOIO ioio_;
+
+	@Before
+	public void setUp() throws Exception {
+		IOIOEmulator emulator = new IOIOEmulator();
+		emulator.setSampleRate(0);
+		ioio_ = IOIOFactory.create(emulator.createConnection());
+		ioio_.waitForConnect();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+	}
+
+	@Test(timeout = 10000)
+	public void ticksOnAFixedGrid() throws Exception {
+		Looper looper = run(FixedRateIOIOLooper.OverrunPolicy.SKIP, -1, 0, 20);
+		assertEquals(20, looper.getTickCount());
+		assertEquals(0, looper.getOverrunCount());
+		assertEquals(0, looper.getSkippedCount());
+		assertEquals(19, looper.getPeriodHistogram().getTotal());
+		// Every tick starts on the grid, however long the previous one took.
+		for (int i = 1; i < 20; ++i) {
+			assertOnGrid(looper, i, i);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void catchUpRunsEveryTick() throws Exception {
+		// Tick 2 takes two and a half periods, making ticks 3 and 4 late.
+		Looper looper = run(FixedRateIOIOLooper.OverrunPolicy.CATCH_UP, 2, 50, 10);
+		assertEquals(10, looper.getTickCount());
+		assertTrue(looper.getOverrunCount() >= 1);
+		assertEquals(looper.getOverrunCount(), looper.getOverrunHistogram().getTotal());
+		assertEquals(0, looper.getSkippedCount());
+		// Late ticks run back to back, and the schedule is back on its grid
+		// by the end.
+		assertTrue(looper.starts_[4] - looper.starts_[3] < PERIOD_NS / 2);
+		assertOnGrid(looper, 9, 9);
+	}
+
+	@Test(timeout = 10000)
+	public void skipDropsMissedTicks() throws Exception {
+		// Tick 2 takes two and a half periods: it finishes half a period
+		// past tick 4's deadline, so ticks 3 and 4 are skipped.
+		Looper looper = run(FixedRateIOIOLooper.OverrunPolicy.SKIP, 2, 50, 10);
+		assertEquals(10, looper.getTickCount());
+		assertEquals(1, looper.getOverrunCount());
+		assertEquals(1, looper.getOverrunHistogram().getTotal());
+		assertEquals(2, looper.getSkippedCount());
+		// The tick after the slow one is the one due at the fifth period.
+		assertOnGrid(looper, 3, 5);
+		assertOnGrid(looper, 9, 11);
+	}
+
+	private Looper run(FixedRateIOIOLooper.OverrunPolicy policy, int slowTick,
+			long slowTickMs, int ticks) throws Exception {
+		Looper looper = new Looper(policy, slowTick, slowTickMs);
+		looper.setup(ioio_);
+		for (int i = 0; i < ticks; ++i) {
+			looper.loop();
+		}
+		return looper;
+	}
+
+	/**
+	 * Assert that a tick started at the given deadline on the grid, allowing
+	 * a quarter of a period for the sleep to overshoot.
+	 */
+	private static void assertOnGrid(Looper looper, int tick, int deadline) {
+		long offset = looper.starts_[tick] - looper.starts_[0] - deadline * PERIOD_NS;
+		assertTrue("Tick " + tick + " started " + offset + "ns past deadline " + deadline,
+				offset >= 0 && offset < PERIOD_NS / 4);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOFactory;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.impl.IOIOEmulator;
+import ioio.lib.util.MultiBoardLooperProvider.Board;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link MultiBoardLooperProvider} and {@link PeripheralRegistry}, with two
+ * {@link IOIOEmulator} boards connected at once. The loopers the provider
+ * hands out are driven from the test thread, the same way
+ * {@link IOIOConnectionManager} drives them from each connection's thread.
+ */
+public class MultiBoardLooperProviderTest {
+	private static final String TYPE_A = "ioio.lib.impl.SocketIOIOConnection";
+	private static final String TYPE_B = "ioio.lib.android.accessory.AccessoryConnectionBootstrap.Connection";
+
+	/** Records what it was called for. */
+	private static class RecordingLooper extends BaseIOIOLooper {
+		IOIO setupIOIO_;
+		int loops_ = 0;
+		int disconnects_ = 0;
+		int incompatibles_ = 0;
+
+		@Override
+		protected void setup() {
+			setupIOIO_ = ioio_;
+		}
+
+		@Override
+		public void loop() {
+			++loops_;
+		}
+
+		@Override
+		public void disconnected() {
+			++disconnects_;
+		}
+
+		@Override
+		public void incompatible() {
+			++incompatibles_;
+		}
+	}
+
+	private IOIO ioioA_;
+	private IOIO ioioB_;
+	private MultiBoardLooperProvider provider_;
+	private RecordingLooper motorLooper_;
+
+	@Before
+	public void setUp() throws Exception {
+		ioioA_ = connect();
+		ioioB_ = connect();
+		provider_ = new MultiBoardLooperProvider();
+		motorLooper_ = new RecordingLooper();
+		provider_.addBoard("motor", IOIOEmulator.HARDWARE_ID, null, motorLooper_);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ioioA_.disconnect();
+		ioioB_.disconnect();
+		ioioA_.waitForDisconnect();
+		ioioB_.waitForDisconnect();
+	}
+
+	@Test(timeout = 10000)
+	public void secondConnectionIdlesUntilTheBoardIsReleased() throws Exception {
+		Board board = provider_.getBoard("motor");
+		IOIOLooper first = provider_.createIOIOLooper(TYPE_A, null);
+		IOIOLooper second = provider_.createIOIOLooper(TYPE_B, null);
+
+		first.setup(ioioA_);
+		assertSame(ioioA_, motorLooper_.setupIOIO_);
+		assertSame(ioioA_, board.getIOIO());
+		assertEquals(TYPE_A, board.getConnectedType());
+		assertEquals(IOIOEmulator.HARDWARE_ID, board.getConnectedHardwareId());
+
+		// The board is taken, so the second connection idles.
+		second.setup(ioioB_);
+		assertSame(ioioA_, motorLooper_.setupIOIO_);
+		first.loop();
+		second.loop();
+		assertEquals(1, motorLooper_.loops_);
+		assertEquals(1, board.getLoopCount());
+		second.disconnected();
+		assertEquals(0, motorLooper_.disconnects_);
+		assertTrue(board.isConnected());
+
+		// Once the first connection is gone, the next one claims the board.
+		first.disconnected();
+		assertEquals(1, motorLooper_.disconnects_);
+		assertFalse(board.isConnected());
+		try {
+			board.getIOIO();
+			fail("Disconnected board has an IOIO");
+		} catch (ConnectionLostException e) {
+		}
+		IOIOLooper third = provider_.createIOIOLooper(TYPE_B, null);
+		third.setup(ioioB_);
+		assertSame(ioioB_, motorLooper_.setupIOIO_);
+		assertSame(ioioB_, board.getIOIO());
+		assertEquals(TYPE_B, board.getConnectedType());
+		third.loop();
+		assertEquals(2, motorLooper_.loops_);
+		assertEquals(2, board.getConnectCount());
+		assertEquals(1, board.getDisconnectCount());
+		third.disconnected();
+	}
+
+	@Test(timeout = 10000)
+	public void boardsMatchHardwareIdAndConnectionType() throws Exception {
+		RecordingLooper sensorLooper = new RecordingLooper();
+		MultiBoardLooperProvider provider = new MultiBoardLooperProvider();
+		provider.addBoard("other", "SPRK0016", null, new RecordingLooper());
+		provider.addBoard("sensor", null, TYPE_B, sensorLooper);
+		try {
+			provider.addBoard("sensor", null, null, new RecordingLooper());
+			fail("Board added twice");
+		} catch (IllegalArgumentException e) {
+		}
+
+		// Matches neither board.
+		IOIOLooper first = provider.createIOIOLooper(TYPE_A, null);
+		first.setup(ioioA_);
+		first.loop();
+		assertFalse(provider.getBoard("other").isConnected());
+		assertFalse(provider.getBoard("sensor").isConnected());
+		first.disconnected();
+
+		IOIOLooper second = provider.createIOIOLooper(TYPE_B, null);
+		second.setup(ioioB_);
+		assertSame(ioioB_, sensorLooper.setupIOIO_);
+		assertSame(ioioB_, provider.getBoard("sensor").getIOIO());
+
+		// An incompatible IOIO is passed on to its board, which stays claimed.
+		provider.createIOIOLooper(TYPE_B, null).incompatible(ioioA_);
+		assertEquals(1, sensorLooper.incompatibles_);
+		assertSame(ioioB_, provider.getBoard("sensor").getIOIO());
+		second.disconnected();
+	}
+
+	@Test(timeout = 10000)
+	public void registryRoutesPeripheralsToTheirBoard() throws Exception {
+		PeripheralRegistry registry = new PeripheralRegistry(provider_);
+		registry.register("leftMotor", "motor");
+		registry.register("leftMotor", "motor");
+		registry.register("leftMotorEncoder", "motor");
+		try {
+			registry.register("sonar", "sensor");
+			fail("Peripheral registered against a missing board");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			registry.getBoard("sonar");
+			fail("Unknown peripheral looked up");
+		} catch (IllegalArgumentException e) {
+		}
+		assertSame(provider_.getBoard("motor"), registry.getBoard("leftMotor"));
+		assertEquals(2, registry.getPeripherals("motor").size());
+
+		try {
+			registry.getIOIO("leftMotor");
+			fail("IOIO of a disconnected board");
+		} catch (ConnectionLostException e) {
+		}
+		IOIOLooper looper = provider_.createIOIOLooper(TYPE_A, null);
+		looper.setup(ioioA_);
+		assertSame(ioioA_, registry.getIOIO("leftMotorEncoder"));
+		looper.disconnected();
+		assertNull(provider_.getBoard("sensor"));
+	}
+
+	private static IOIO connect() throws Exception {
+		IOIOEmulator emulator = new IOIOEmulator();
+		emulator.setSampleRate(0);
+		IOIO ioio = IOIOFactory.create(emulator.createConnection());
+		ioio.waitForConnect();
+		return ioio;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.IOIOFactory;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.TwiMaster.Transaction;
+import ioio.lib.impl.IOIOEmulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link TwiPoller} against an {@link IOIOEmulator}, whose TWI addresses
+ * are register files.
+ */
+public class TwiPollerTest {
+	private static final int ADDRESS = 0x40;
+
+	private IOIOEmulator emulator_;
+	private IOIO ioio_;
+	private TwiMaster twi_;
+
+	@Before
+	public void setUp() throws Exception {
+		emulator_ = new IOIOEmulator();
+		emulator_.setSampleRate(0);
+		ioio_ = IOIOFactory.create(emulator_.createConnection());
+		ioio_.waitForConnect();
+		twi_ = ioio_.openTwiMaster(0, TwiMaster.Rate.RATE_400KHz, false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+	}
+
+	@Test(timeout = 10000)
+	public void pollsSensor() throws Exception {
+		twi_.writeRead(ADDRESS, false, new byte[] { 7, 42, 43 }, 3, null, 0);
+		TwiPoller poller = new TwiPoller(twi_);
+		TwiPoller.Sensor sensor = poller.addSensor(ADDRESS, false, new byte[] { 7 }, 2, 200, 16);
+		poller.start();
+		while (sensor.getSampleCount() < 5) {
+			Thread.sleep(10);
+		}
+		poller.stop();
+		byte[] sample = new byte[2];
+		sensor.getLatest(sample);
+		assertEquals(42, sample[0]);
+		assertEquals(43, sample[1]);
+		assertEquals(0, sensor.getFailures());
+	}
+
+	@Test(timeout = 10000)
+	public void stopsAfterDisconnect() throws Exception {
+		// Keeps the transactions in flight until the connection is lost.
+		emulator_.setTwiStalled(true);
+		TwiPoller poller = new TwiPoller(twi_);
+		TwiPoller.Sensor sensor = poller.addSensor(ADDRESS, false, new byte[] { 0 }, 1, 200, 1);
+		TwiPoller.Sensor other = poller.addSensor(ADDRESS + 1, false, new byte[] { 0 }, 1, 200, 1);
+		poller.start();
+		Thread.sleep(50);
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+		// Releases the aborted transactions.
+		poller.stop();
+		assertEquals(0, sensor.getSampleCount());
+		assertEquals(0, other.getSampleCount());
+	}
+
+	@Test
+	public void rejectsMoreSensorsThanThePool() throws Exception {
+		TwiPoller poller = new TwiPoller(twi_);
+		for (int i = 0; i < TwiMaster.TRANSACTION_POOL_SIZE; ++i) {
+			poller.addSensor(ADDRESS, false, new byte[] { 0 }, 1, 10, 1);
+		}
+		try {
+			poller.addSensor(ADDRESS, false, new byte[] { 0 }, 1, 10, 1);
+			fail("More sensors than pooled transactions added");
+		} catch (IllegalStateException e) {
+		}
+		poller.start();
+		poller.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void failedStartReturnsTransactions() throws Exception {
+		// Another user of the TWI master holds all transactions but one.
+		Transaction[] held = new Transaction[TwiMaster.TRANSACTION_POOL_SIZE - 1];
+		for (int i = 0; i < held.length; ++i) {
+			held[i] = twi_.obtainTransaction();
+		}
+		final TwiPoller poller = new TwiPoller(twi_);
+		for (int i = 0; i < 2; ++i) {
+			poller.addSensor(ADDRESS, false, new byte[] { 0 }, 1, 10, 1);
+		}
+		final Exception[] error = new Exception[1];
+		Thread starter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					poller.start();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		starter.start();
+		// Once the pool is empty, start() waits for a transaction to be
+		// returned.
+		while (starter.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		starter.interrupt();
+		starter.join();
+		assertTrue(error[0] instanceof InterruptedException);
+		for (Transaction t : held) {
+			t.release();
+		}
+
+		// Blocks if the transaction taken by the failed start was kept.
+		TwiPoller other = new TwiPoller(twi_);
+		TwiPoller.Sensor sensor = null;
+		for (int i = 0; i < TwiMaster.TRANSACTION_POOL_SIZE; ++i) {
+			sensor = other.addSensor(ADDRESS, false, new byte[] { 0 }, 1, 200, 1);
+		}
+		other.start();
+		while (sensor.getSampleCount() == 0) {
+			Thread.sleep(10);
+		}
+		other.stop();
+	}
+}
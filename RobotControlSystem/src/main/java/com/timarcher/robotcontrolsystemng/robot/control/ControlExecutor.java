@@ -0,0 +1,482 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+import android.util.Log;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.util.Histogram;
+
+/**
+ * Runs all of the robot's periodic tasks (motor control, status LED, ...) on a
+ * single high priority thread, off one deterministic tick.
+ *
+ * Each task declares a rate, which is rounded to a whole number of ticks, and a
+ * phase. Whenever a tick comes due, every task due on it runs, one after the other,
+ * in phase order: sense (read the hardware), estimate (derive state from the
+ * readings), control (decide on outputs) and actuate (write the outputs). Tasks in
+ * the same phase run in the order they were added. This way a controller always
+ * works off the readings taken on the same tick, and outputs are written right
+ * after being computed.
+ *
+ * Tick deadlines are kept on a fixed grid from when the executor was started, so
+ * they do not drift with how long the tasks take. The thread only wakes up on ticks
+ * at which some task is due. If the tasks run so long that whole ticks go by, those
+ * ticks are skipped and counted, rather than run late back to back.
+ *
+ * A task's rate can be changed at any time, e.g. to run a controller faster while
+ * the robot moves, and a rate of 0 suspends it. While every task is suspended, the
+ * thread parks without any timeout, so an idle robot costs no wakeups at all. It
+ * resumes, on a new tick grid, as soon as a task's rate is raised again, or a task
+ * is triggered (see Task.trigger()) to run once on the next tick regardless of its
+ * rate, e.g. when a motor driver raises its thermal flag.
+ *
+ * For every task, the execution time and the jitter (how late it started relative
+ * to its tick's deadline) are kept in histograms.
+ *
+ * A task throwing does not stop the executor or the other tasks. The first failure
+ * of a series is logged, and all of them are counted.
+ *
+ */
+public class ControlExecutor implements Runnable {
+	/** Logging tag. */
+	protected static final String LOGTAG = "ControlExecutor";
+	/** Histogram buckets per tick. */
+	protected static final int HISTOGRAM_BUCKETS_PER_TICK = 10;
+	/** Histogram buckets in total, covering up to 4 ticks. */
+	protected static final int HISTOGRAM_BUCKETS = 40;
+
+	/** The phases of a tick, in the order they run. */
+	public enum Phase {
+		SENSE,
+		ESTIMATE,
+		CONTROL,
+		ACTUATE
+	}
+
+	/**
+	 * The body of a periodic task.
+	 */
+	public interface ControlTask {
+		/**
+		 * Called once every period of the task, from the executor's thread.
+		 *
+		 * @throws ConnectionLostException
+		 */
+		void execute() throws ConnectionLostException;
+	}
+
+	/**
+	 * A task registered with the executor, along with its statistics.
+	 */
+	public class Task {
+		protected final String name;
+		protected final Phase phase;
+		/** The period in ticks, 0 while suspended. */
+		protected volatile int periodTicks;
+		/** Whether to run on the next tick regardless of the period. */
+		protected volatile boolean isTriggered = false;
+		protected final ControlTask controlTask;
+		protected final Histogram executionHistogram;
+		protected final Histogram jitterHistogram;
+		protected volatile long runCount = 0;
+		protected volatile long errorCount = 0;
+		protected volatile boolean isFailing = false;
+
+		protected Task(String name, Phase phase, double rateHz, ControlTask controlTask) {
+			this.name = name;
+			this.phase = phase;
+			this.periodTicks = toPeriodTicks(rateHz);
+			this.controlTask = controlTask;
+			long bucketWidth = Math.max(1, tickNanos / HISTOGRAM_BUCKETS_PER_TICK);
+			this.executionHistogram = new Histogram(bucketWidth, HISTOGRAM_BUCKETS);
+			this.jitterHistogram = new Histogram(bucketWidth, HISTOGRAM_BUCKETS);
+		}
+
+		/**
+		 * Run the task for the tick due at deadlineNanos, recording its statistics.
+		 */
+		protected void run(long deadlineNanos) {
+			isTriggered = false;
+			long start = System.nanoTime();
+			jitterHistogram.record(start - deadlineNanos);
+			try {
+				controlTask.execute();
+				isFailing = false;
+			} catch (Exception e) {
+				errorCount++;
+				if (!isFailing) {
+					Log.e(LOGTAG, "Task " + name + " failed. " + e.toString(), e);
+				}
+				isFailing = true;
+			}
+			executionHistogram.record(System.nanoTime() - start);
+			runCount++;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		/**
+		 * Change how many times per second the task runs, taking effect at once.
+		 * A rate of 0 suspends the task.
+		 * 
+		 * @param rateHz
+		 */
+		public void setRateHz(double rateHz) {
+			int newPeriodTicks = toPeriodTicks(rateHz);
+			if (newPeriodTicks != periodTicks) {
+				periodTicks = newPeriodTicks;
+				wakeUp();
+			}
+		}
+
+		/**
+		 * Run the task once on the next tick, even if it is suspended or not due.
+		 */
+		public void trigger() {
+			isTriggered = true;
+			wakeUp();
+		}
+
+		/**
+		 * Whether the task is suspended, by a rate of 0.
+		 * 
+		 * @return
+		 */
+		public boolean isSuspended() {
+			return periodTicks == 0;
+		}
+
+		/**
+		 * Get the period of the task, in ticks, or 0 while suspended.
+		 * 
+		 * @return
+		 */
+		public int getPeriodTicks() {
+			return periodTicks;
+		}
+
+		public long getRunCount() {
+			return runCount;
+		}
+
+		/**
+		 * Get the number of runs which threw.
+		 * 
+		 * @return
+		 */
+		public long getErrorCount() {
+			return errorCount;
+		}
+
+		/**
+		 * Get the histogram of how long each run took.
+		 * 
+		 * @return
+		 */
+		public Histogram getExecutionHistogram() {
+			return executionHistogram;
+		}
+
+		/**
+		 * Get the histogram of how late each run started, relative to its tick's deadline.
+		 * 
+		 * @return
+		 */
+		public Histogram getJitterHistogram() {
+			return jitterHistogram;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + phase + ", " + (periodTicks == 0 ? "suspended" : "every " + periodTicks + " ticks") + ") Runs: " + runCount + " Errors: " + errorCount +
+					" Execution: " + executionHistogram + " Jitter: " + jitterHistogram;
+		}
+	}
+
+	/** The tick period, in nanoseconds. */
+	protected final long tickNanos;
+	/** The registered tasks, in the order they run on a tick. Replaced, never modified, when a task is added. */
+	protected volatile Task[] tasks = new Task[0];
+	/** The thread running the tasks, while started. */
+	protected Thread thread;
+	/** Whether the executor should keep running. */
+	protected volatile boolean isRunning = false;
+	/** Number of ticks on which tasks were run. */
+	protected volatile long tickCount = 0;
+	/** Number of ticks skipped because the tasks ran late. */
+	protected volatile long skippedTickCount = 0;
+	/** Number of times the thread woke up from sleeping or parking. */
+	protected volatile long wakeupCount = 0;
+	/** Number of times the thread parked because all tasks were suspended. */
+	protected volatile long parkCount = 0;
+	/** When the executor was started, from System.nanoTime(). */
+	protected volatile long startedNanos = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tickNanos The tick period, in nanoseconds. Task periods are whole multiples of it.
+	 */
+	public ControlExecutor(long tickNanos) {
+		if (tickNanos <= 0) {
+			throw new IllegalArgumentException("Tick period must be positive");
+		}
+		this.tickNanos = tickNanos;
+	}
+
+	/**
+	 * Register a task.
+	 * Its rate is rounded to a whole number of ticks, at most one run per tick.
+	 *
+	 * @param name A name for the task, used in logs and statistics.
+	 * @param phase The phase of the tick the task runs in.
+	 * @param rateHz How many times per second to run the task, 0 to add it suspended.
+	 * @param controlTask The task.
+	 * @return The registered task, for reading its statistics.
+	 */
+	public synchronized Task addTask(String name, Phase phase, double rateHz, ControlTask controlTask) {
+		Task task = new Task(name, phase, rateHz, controlTask);
+
+		//
+		//Insert after all the tasks of the same or earlier phases
+		//
+		List<Task> sorted = new ArrayList<Task>();
+		boolean isInserted = false;
+		for (Task existing : tasks) {
+			if (!isInserted && existing.phase.ordinal() > phase.ordinal()) {
+				sorted.add(task);
+				isInserted = true;
+			}
+			sorted.add(existing);
+		}
+		if (!isInserted) {
+			sorted.add(task);
+		}
+		tasks = sorted.toArray(new Task[sorted.size()]);
+		wakeUp();
+
+		Log.i(LOGTAG, "Added task " + name + " in phase " + phase + ", every " + task.periodTicks + " ticks");
+		return task;
+	}
+
+	/**
+	 * Wake the thread, to pick up changed task rates or triggers right away.
+	 */
+	public void wakeUp() {
+		Thread current = thread;
+		if (current != null) {
+			LockSupport.unpark(current);
+		}
+	}
+
+	/**
+	 * Convert a rate to a period in ticks, at most one run per tick. A rate of 0 is a period of 0.
+	 */
+	protected int toPeriodTicks(double rateHz) {
+		if (rateHz <= 0) {
+			return 0;
+		}
+		return (int) Math.max(1, Math.round(1000000000.0 / rateHz / tickNanos));
+	}
+
+	/**
+	 * Start running the tasks, on a new thread.
+	 */
+	public synchronized void start() {
+		if (isRunning) {
+			return;
+		}
+		isRunning = true;
+		startedNanos = System.nanoTime();
+		thread = new Thread(this, LOGTAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop running the tasks, waiting for the ones running to finish.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		final Thread stopping;
+		synchronized (this) {
+			isRunning = false;
+			stopping = thread;
+			thread = null;
+		}
+		if (stopping != null && stopping != Thread.currentThread()) {
+			stopping.interrupt();
+			stopping.join();
+		}
+	}
+
+	/**
+	 * The executor's thread.
+	 */
+	@Override
+	public void run() {
+		//Ahead of the UI, but behind audio
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+		long startNanos = System.nanoTime();
+		long tick = 0;
+		while (isRunning) {
+			Task[] current = tasks;
+			long dueTick = getNextDueTick(current, tick);
+			if (dueTick < 0) {
+				//
+				//Every task is suspended, park until woken up, then start a new tick grid
+				//
+				parkCount++;
+				LockSupport.park(this);
+				wakeupCount++;
+				startNanos = System.nanoTime();
+				tick = 0;
+				continue;
+			}
+
+			long deadline = startNanos + dueTick * tickNanos;
+			long wait = deadline - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				wakeupCount++;
+				if (System.nanoTime() < deadline) {
+					//Woken up early, e.g. by a rate change, re-evaluate what is due
+					continue;
+				}
+			}
+
+			for (Task task : current) {
+				int periodTicks = task.periodTicks;
+				if (task.isTriggered || (periodTicks != 0 && dueTick % periodTicks == 0)) {
+					task.run(deadline);
+				}
+			}
+			tickCount++;
+
+			//
+			//Skip the ticks whose deadline passed over a whole tick ago, the current one still runs
+			//
+			tick = dueTick + 1;
+			long currentTick = (System.nanoTime() - startNanos) / tickNanos;
+			if (currentTick > tick) {
+				skippedTickCount += currentTick - tick;
+				tick = currentTick;
+			}
+		}
+		Log.i(LOGTAG, "Stopped. " + toString());
+	}
+
+	/**
+	 * Get the first tick from the given one on, on which some task is due.
+	 * A triggered task is due right away.
+	 * 
+	 * @return The tick, or -1 if every task is suspended.
+	 */
+	protected long getNextDueTick(Task[] current, long tick) {
+		long next = -1;
+		for (Task task : current) {
+			if (task.isTriggered) {
+				return tick;
+			}
+			int periodTicks = task.periodTicks;
+			if (periodTicks != 0) {
+				long due = ((tick + periodTicks - 1) / periodTicks) * periodTicks;
+				if (next < 0 || due < next) {
+					next = due;
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Get the tick period, in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * Get the registered tasks, in the order they run on a tick.
+	 * 
+	 * @return
+	 */
+	public Task[] getTasks() {
+		return tasks.clone();
+	}
+
+	/**
+	 * Get the number of ticks on which tasks were run.
+	 * 
+	 * @return
+	 */
+	public long getTickCount() {
+		return tickCount;
+	}
+
+	/**
+	 * Get the number of ticks skipped because the tasks ran late.
+	 * 
+	 * @return
+	 */
+	public long getSkippedTickCount() {
+		return skippedTickCount;
+	}
+
+	/**
+	 * Get the number of times the thread woke up from sleeping or parking.
+	 * 
+	 * @return
+	 */
+	public long getWakeupCount() {
+		return wakeupCount;
+	}
+
+	/**
+	 * Get the average number of wakeups per minute since the executor was started.
+	 * 
+	 * @return
+	 */
+	public double getWakeupsPerMinute() {
+		long elapsed = System.nanoTime() - startedNanos;
+		return startedNanos == 0 || elapsed <= 0 ? 0 : wakeupCount * 60000000000.0 / elapsed;
+	}
+
+	/**
+	 * Get the number of times the thread parked because all tasks were suspended.
+	 * 
+	 * @return
+	 */
+	public long getParkCount() {
+		return parkCount;
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Tick: ").append(tickNanos / 1000).append("us Ticks: ").append(tickCount)
+			.append(" Skipped: ").append(skippedTickCount).append(" Wakeups: ").append(wakeupCount)
+			.append(" (").append(Math.round(getWakeupsPerMinute())).append("/min) Parked: ").append(parkCount);
+		for (Task task : tasks) {
+			sb.append("\n  ").append(task);
+		}
+		return sb.toString();
+	}
+}
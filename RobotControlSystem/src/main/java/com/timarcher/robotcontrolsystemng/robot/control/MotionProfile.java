@@ -0,0 +1,317 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+/**
+ * A motion profile for a move over a distance, to standstill. The move starts from
+ * standstill, or from the velocity the robot is already moving at.
+ *
+ * The move is planned as accelerate, cruise and decelerate phases within a maximum
+ * velocity, acceleration and jerk. With a jerk limit the acceleration itself ramps
+ * up and down (an S-curve), which avoids the wheel slip and jolts of stepping the
+ * acceleration. Without one (a jerk limit of 0) the acceleration steps, giving a
+ * trapezoidal velocity profile. If the distance is too short to reach the maximum
+ * velocity, the cruise phase is dropped and the peak velocity lowered.
+ *
+ * The final deceleration to standstill mirrors the acceleration from it. A move that
+ * starts from a velocity first ramps from it to the peak velocity, which may mean
+ * slowing down. If the distance is too short to stop in from that velocity, the
+ * profile stops as soon as it can, over a longer distance than asked for.
+ *
+ * The distance can be infinite, for moves without a destination, in which case the
+ * profile accelerates and then cruises forever.
+ *
+ * Units are up to the caller, e.g. encoder clicks and seconds, as long as they are
+ * consistent.
+ *
+ */
+public class MotionProfile {
+	/** The limits the profile was planned with. */
+	protected final double distance;
+	protected final double maxAcceleration;
+	protected final double maxJerk;
+	/** The velocity at the start of the move. */
+	protected final double initialVelocity;
+
+	/** The velocity reached, at most the max velocity. */
+	protected final double peakVelocity;
+	/** The ramp from the initial velocity to the peak one, and from the peak one to standstill. */
+	protected final Ramp startRamp;
+	protected final Ramp stopRamp;
+	/** Whether the start ramp accelerates, rather than slows down. */
+	protected final boolean isStartAccelerating;
+	/** Duration of the cruise phase. */
+	protected final double cruiseSeconds;
+	/** Distance covered by the start ramp, and by the stop ramp. */
+	protected final double startDistance;
+	protected final double stopDistance;
+
+	/**
+	 * A change of velocity, within the acceleration and jerk limits: jerk up,
+	 * constant acceleration, jerk down. The acceleration ramps symmetrically, so
+	 * the average velocity change is half the whole one.
+	 */
+	protected static class Ramp {
+		protected final double maxJerk;
+		/** Duration of each jerk segment (0 without a jerk limit), and of the constant acceleration segment. */
+		protected final double jerkSeconds;
+		protected final double constantAccelerationSeconds;
+		/** The acceleration reached, at most the max acceleration. */
+		protected final double peakAcceleration;
+		/** Duration of the whole ramp. */
+		protected final double seconds;
+
+		/**
+		 * Plan a ramp.
+		 *
+		 * @param change The velocity change, positive or 0.
+		 */
+		protected Ramp(double change, double maxAcceleration, double maxJerk) {
+			this.maxJerk = maxJerk;
+			if (maxJerk == 0) {
+				jerkSeconds = 0;
+				peakAcceleration = maxAcceleration;
+				constantAccelerationSeconds = change / maxAcceleration;
+			}
+			else if (change * maxJerk < maxAcceleration * maxAcceleration) {
+				//The acceleration never reaches its max, it ramps up and straight back down
+				jerkSeconds = Math.sqrt(change / maxJerk);
+				peakAcceleration = maxJerk * jerkSeconds;
+				constantAccelerationSeconds = 0;
+			}
+			else {
+				jerkSeconds = maxAcceleration / maxJerk;
+				peakAcceleration = maxAcceleration;
+				constantAccelerationSeconds = change / maxAcceleration - jerkSeconds;
+			}
+			seconds = 2 * jerkSeconds + constantAccelerationSeconds;
+		}
+
+		/**
+		 * The velocity change a time into the ramp.
+		 */
+		protected double getVelocity(double t) {
+			double j = maxJerk;
+			double jerkEndVelocity = j * jerkSeconds * jerkSeconds / 2;
+			if (t < jerkSeconds) {
+				return j * t * t / 2;
+			}
+			t -= jerkSeconds;
+			if (t < constantAccelerationSeconds) {
+				return jerkEndVelocity + peakAcceleration * t;
+			}
+			t -= constantAccelerationSeconds;
+			double v = jerkEndVelocity + peakAcceleration * constantAccelerationSeconds;
+			return v + peakAcceleration * t - j * t * t / 2;
+		}
+
+		/**
+		 * The distance the velocity change adds a time into the ramp, the integral of getVelocity().
+		 */
+		protected double getPosition(double t) {
+			double j = maxJerk;
+			double jerkEndVelocity = j * jerkSeconds * jerkSeconds / 2;
+			double jerkEndPosition = j * jerkSeconds * jerkSeconds * jerkSeconds / 6;
+			if (t < jerkSeconds) {
+				return j * t * t * t / 6;
+			}
+			t -= jerkSeconds;
+			if (t < constantAccelerationSeconds) {
+				return jerkEndPosition + jerkEndVelocity * t + peakAcceleration * t * t / 2;
+			}
+			double c = constantAccelerationSeconds;
+			double v = jerkEndVelocity + peakAcceleration * c;
+			double p = jerkEndPosition + jerkEndVelocity * c + peakAcceleration * c * c / 2;
+			t -= c;
+			return p + v * t + peakAcceleration * t * t / 2 - j * t * t * t / 6;
+		}
+	}
+
+	/**
+	 * Plan a profile from standstill.
+	 *
+	 * @param distance The distance to move, positive, or infinite to never stop.
+	 * @param maxVelocity The highest velocity, positive.
+	 * @param maxAcceleration The highest acceleration, positive.
+	 * @param maxJerk The highest jerk, or 0 for no limit (a trapezoidal profile).
+	 */
+	public MotionProfile(double distance, double maxVelocity, double maxAcceleration, double maxJerk) {
+		this(distance, maxVelocity, maxAcceleration, maxJerk, 0);
+	}
+
+	/**
+	 * Plan a profile.
+	 *
+	 * @param distance The distance to move, positive, or infinite to never stop.
+	 * @param maxVelocity The highest velocity, positive.
+	 * @param maxAcceleration The highest acceleration, positive.
+	 * @param maxJerk The highest jerk, or 0 for no limit (a trapezoidal profile).
+	 * @param initialVelocity The velocity already moving at, positive or 0. It is taken to be steady.
+	 */
+	public MotionProfile(double distance, double maxVelocity, double maxAcceleration, double maxJerk, double initialVelocity) {
+		if (distance < 0 || maxVelocity < 0 || maxAcceleration <= 0 || maxJerk < 0 || initialVelocity < 0) {
+			throw new IllegalArgumentException("Invalid motion limits");
+		}
+		this.maxAcceleration = maxAcceleration;
+		this.maxJerk = maxJerk;
+		this.initialVelocity = initialVelocity;
+
+		//
+		//Lower the peak velocity until both ramps fit in the distance. If even stopping
+		//right away does not fit, stop right away and go further.
+		//
+		double velocity = maxVelocity;
+		if (!Double.isInfinite(distance)) {
+			double stoppingDistance = getRampsDistance(0);
+			if (stoppingDistance >= distance) {
+				distance = stoppingDistance;
+				velocity = 0;
+			}
+			else if (getRampsDistance(velocity) > distance) {
+				double low = 0;
+				double high = maxVelocity;
+				for (int i = 0; i < 60; i++) {
+					velocity = (low + high) / 2;
+					if (getRampsDistance(velocity) > distance) {
+						high = velocity;
+					}
+					else {
+						low = velocity;
+					}
+				}
+				velocity = low;
+			}
+		}
+		this.distance = distance;
+		peakVelocity = velocity;
+
+		startRamp = new Ramp(Math.abs(velocity - initialVelocity), maxAcceleration, maxJerk);
+		stopRamp = new Ramp(velocity, maxAcceleration, maxJerk);
+		isStartAccelerating = velocity >= initialVelocity;
+		startDistance = (initialVelocity + velocity) * startRamp.seconds / 2;
+		stopDistance = velocity * stopRamp.seconds / 2;
+		if (Double.isInfinite(distance)) {
+			cruiseSeconds = Double.POSITIVE_INFINITY;
+		}
+		else if (peakVelocity == 0) {
+			cruiseSeconds = 0;
+		}
+		else {
+			cruiseSeconds = Math.max(0, (distance - startDistance - stopDistance) / peakVelocity);
+		}
+	}
+
+	/**
+	 * The distance it takes to ramp from the initial velocity to a peak velocity, and
+	 * from it to standstill, within the limits.
+	 */
+	protected double getRampsDistance(double velocity) {
+		return (initialVelocity + velocity) * getRampSeconds(Math.abs(velocity - initialVelocity)) / 2
+				+ velocity * getRampSeconds(velocity) / 2;
+	}
+
+	/**
+	 * The time it takes to change velocity, within the limits. See Ramp.
+	 */
+	protected double getRampSeconds(double change) {
+		if (maxJerk == 0) {
+			return change / maxAcceleration;
+		}
+		else if (change * maxJerk < maxAcceleration * maxAcceleration) {
+			return 2 * Math.sqrt(change / maxJerk);
+		}
+		else {
+			return change / maxAcceleration + maxAcceleration / maxJerk;
+		}
+	}
+
+	/**
+	 * Get the velocity at a time into the move.
+	 *
+	 * @param seconds Time since the start of the move.
+	 * @return The velocity, the initial velocity before the start and 0 after the end.
+	 */
+	public double getVelocity(double seconds) {
+		if (seconds <= 0) {
+			return initialVelocity;
+		}
+		if (seconds < startRamp.seconds) {
+			double change = startRamp.getVelocity(seconds);
+			return isStartAccelerating ? initialVelocity + change : initialVelocity - change;
+		}
+		if (seconds < startRamp.seconds + cruiseSeconds) {
+			return peakVelocity;
+		}
+		double remaining = getDurationSeconds() - seconds;
+		return remaining > 0 ? stopRamp.getVelocity(remaining) : 0;
+	}
+
+	/**
+	 * Get the distance covered at a time into the move.
+	 *
+	 * @param seconds Time since the start of the move.
+	 * @return The distance, 0 before the start and the whole distance after the end.
+	 */
+	public double getPosition(double seconds) {
+		if (seconds <= 0) {
+			return 0;
+		}
+		if (seconds < startRamp.seconds) {
+			double change = startRamp.getPosition(seconds);
+			return initialVelocity * seconds + (isStartAccelerating ? change : -change);
+		}
+		if (seconds < startRamp.seconds + cruiseSeconds) {
+			return startDistance + peakVelocity * (seconds - startRamp.seconds);
+		}
+		double remaining = getDurationSeconds() - seconds;
+		return remaining > 0 ? distance - stopRamp.getPosition(remaining) : distance;
+	}
+
+	/**
+	 * Get how long the move takes, infinite for an infinite distance.
+	 * 
+	 * @return
+	 */
+	public double getDurationSeconds() {
+		return startRamp.seconds + cruiseSeconds + stopRamp.seconds;
+	}
+
+	/**
+	 * Get whether the move is over at a time into it.
+	 * 
+	 * @param seconds
+	 * @return
+	 */
+	public boolean isFinished(double seconds) {
+		return seconds >= getDurationSeconds();
+	}
+
+	/**
+	 * Get the highest velocity of the move, which is lower than the max velocity if the
+	 * distance is too short to reach it.
+	 * 
+	 * @return
+	 */
+	public double getPeakVelocity() {
+		return peakVelocity;
+	}
+
+	/**
+	 * Get the distance of the move, which is longer than asked for if it is too short to
+	 * stop in from the initial velocity.
+	 * 
+	 * @return
+	 */
+	public double getDistance() {
+		return distance;
+	}
+
+	public double getInitialVelocity() {
+		return initialVelocity;
+	}
+
+	@Override
+	public String toString() {
+		return "Distance: " + distance + " Initial velocity: " + initialVelocity + " Peak velocity: " + peakVelocity +
+				" Start: " + startRamp.seconds + "s Cruise: " + cruiseSeconds + "s Stop: " + stopRamp.seconds +
+				"s Duration: " + getDurationSeconds() + "s";
+	}
+}
@@ -0,0 +1,210 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+/**
+ * A PID controller with feedforward, for running on a periodic task whose
+ * period is not exactly constant.
+ *
+ * Every update uses the actual time since the previous one, so the gains are in
+ * per-second units, independent of the rate the controller runs at, and jitter
+ * in that rate does not turn into control error:
+ *
+ * output = kf * setpoint + kp * error + ki * integral(error dt) - kd * d(measurement)/dt
+ *
+ * The derivative is taken on the measurement rather than on the error, so a step in
+ * the setpoint does not kick the output. The measurement can be low pass filtered
+ * first, which keeps the proportional and derivative terms from amplifying
+ * quantization noise (e.g. from counting encoder clicks) at high rates.
+ *
+ * The output is clamped to a range. While it is saturated, the integral stops
+ * accumulating in the direction of the saturation (clamping anti-windup), so the
+ * controller does not overshoot once it comes out of saturation.
+ *
+ * Not thread safe, each controller is meant to be updated from a single task.
+ *
+ */
+public class PidController {
+	/**
+	 * The longest gap between updates, in seconds, which is still integrated.
+	 * After a longer gap (e.g. the controller was parked) the next update only
+	 * restarts the timing.
+	 */
+	public static final double MAX_DT_SECONDS = 0.5;
+
+	/** Gains. */
+	protected double kp;
+	protected double ki;
+	protected double kd;
+	protected double kf;
+	/** The output range. */
+	protected double outputMin;
+	protected double outputMax;
+	/** Time constant of the measurement filter, in seconds. 0 for none. */
+	protected double measurementFilterSeconds = 0;
+
+	/** The integral term, in output units. */
+	protected double integral = 0;
+	/** The filtered measurement of the last update. */
+	protected double measurement = 0;
+	/** When the last update was, from System.nanoTime(), and whether there has been one. */
+	protected long lastNanos = 0;
+	protected boolean isStarted = false;
+
+	/** The terms of the last update, for telemetry. */
+	protected double error = 0;
+	protected double derivative = 0;
+	protected double output = 0;
+	protected double dtSeconds = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param kp Proportional gain, output per unit of error.
+	 * @param ki Integral gain, output per unit of error per second.
+	 * @param kd Derivative gain, output per unit of measurement change per second.
+	 * @param kf Feedforward gain, output per unit of setpoint.
+	 * @param outputMin The lowest output.
+	 * @param outputMax The highest output.
+	 */
+	public PidController(double kp, double ki, double kd, double kf, double outputMin, double outputMax) {
+		if (outputMin > outputMax) {
+			throw new IllegalArgumentException("Output min is above max");
+		}
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+		this.kf = kf;
+		this.outputMin = outputMin;
+		this.outputMax = outputMax;
+	}
+
+	/**
+	 * Set the time constant of the low pass filter on the measurement.
+	 * It should be well below the response time of what is controlled.
+	 *
+	 * @param seconds The time constant, 0 to not filter.
+	 */
+	public void setMeasurementFilter(double seconds) {
+		measurementFilterSeconds = Math.max(0, seconds);
+	}
+
+	/**
+	 * Set the gains. The integral is kept as it is, in output units, so changing
+	 * gains on the fly does not bump the output.
+	 */
+	public void setGains(double kp, double ki, double kd, double kf) {
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+		this.kf = kf;
+	}
+
+	/**
+	 * Forget the integral and the timing, e.g. at the start of a new move.
+	 */
+	public void reset() {
+		integral = 0;
+		isStarted = false;
+		error = 0;
+		derivative = 0;
+		output = 0;
+		dtSeconds = 0;
+	}
+
+	/**
+	 * Compute the output for a new measurement.
+	 *
+	 * @param setpoint The value wanted.
+	 * @param rawMeasurement The value measured.
+	 * @param nowNanos When it was measured, from System.nanoTime().
+	 * @return The output, within the output range.
+	 */
+	public double update(double setpoint, double rawMeasurement, long nowNanos) {
+		double dt = isStarted ? (nowNanos - lastNanos) / 1000000000.0 : 0;
+		if (dt <= 0 || dt > MAX_DT_SECONDS) {
+			//First update, or after a gap, start from the measurement as it is
+			dt = 0;
+			measurement = rawMeasurement;
+			derivative = 0;
+		}
+		else {
+			double previous = measurement;
+			double alpha = dt / (measurementFilterSeconds + dt);
+			measurement += alpha * (rawMeasurement - measurement);
+			derivative = (measurement - previous) / dt;
+		}
+		lastNanos = nowNanos;
+		isStarted = true;
+		dtSeconds = dt;
+
+		error = setpoint - measurement;
+		double unclamped = kf * setpoint + kp * error + integral - kd * derivative;
+
+		//
+		//Only integrate when it would not push the output further into saturation
+		//
+		double step = ki * error * dt;
+		if ((step > 0 && unclamped < outputMax) || (step < 0 && unclamped > outputMin)) {
+			integral = limitRange(integral + step, outputMin - outputMax, outputMax - outputMin);
+			unclamped += step;
+		}
+
+		output = limitRange(unclamped, outputMin, outputMax);
+		return output;
+	}
+
+	/**
+	 * Get the error of the last update, against the filtered measurement.
+	 * 
+	 * @return
+	 */
+	public double getError() {
+		return error;
+	}
+
+	/**
+	 * Get the integral term of the last update, in output units.
+	 * 
+	 * @return
+	 */
+	public double getIntegral() {
+		return integral;
+	}
+
+	/**
+	 * Get the rate of change of the filtered measurement at the last update, per second.
+	 * 
+	 * @return
+	 */
+	public double getDerivative() {
+		return derivative;
+	}
+
+	/**
+	 * Get the filtered measurement of the last update.
+	 * 
+	 * @return
+	 */
+	public double getMeasurement() {
+		return measurement;
+	}
+
+	public double getOutput() {
+		return output;
+	}
+
+	/**
+	 * Get the time between the last two updates, in seconds, 0 if it was not integrated.
+	 * 
+	 * @return
+	 */
+	public double getDtSeconds() {
+		return dtSeconds;
+	}
+
+	/**
+	 * Limits a number to the given range.
+	 */
+	protected static double limitRange(double actualValue, double lowLimitValue, double highLimitValue) {
+		return Math.max(lowLimitValue, Math.min(highLimitValue, actualValue));
+	}
+}
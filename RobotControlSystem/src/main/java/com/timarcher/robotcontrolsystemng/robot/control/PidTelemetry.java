@@ -0,0 +1,263 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * A ring of the most recent motor PID ticks, for tuning the control loop.
+ *
+ * Every tick's record is kept in preallocated primitive arrays, so recording never
+ * allocates and never logs, and costs the control loop next to nothing. Once the
+ * ring is full, each new record overwrites the oldest.
+ *
+ * The records are written out only on demand, as CSV or binary, from whatever
+ * thread asks for them. The ring is copied into a preallocated snapshot first,
+ * so recording is only held up for the copy and not for the file I/O.
+ *
+ * Binary layout, big endian (as written by DataOutputStream):
+ * int magic (BINARY_MAGIC), int version (BINARY_VERSION), int record count,
+ * then for each record, oldest first: long timestamp (System.nanoTime()),
+ * int sampled left clicks, int sampled right clicks, double sync difference,
+ * double left error, double right error, double left integral,
+ * double right integral, double commanded left velocity,
+ * double commanded right velocity.
+ *
+ * The sync difference is how many clicks the left wheel is ahead of the right,
+ * which the synchronization controller works on. Version 1 had only it, under
+ * the name integral, and no integrals.
+ *
+ */
+public class PidTelemetry {
+	/** Magic number at the start of a binary dump, "PIDT". */
+	public static final int BINARY_MAGIC = 0x50494454;
+	/** Version of the binary dump layout. */
+	public static final int BINARY_VERSION = 2;
+	/** The CSV header line. */
+	protected static final String CSV_HEADER = "timestampNanos,sampledLeftClicks,sampledRightClicks,syncDifference,leftError,rightError,leftIntegral,rightIntegral,leftVelocity,rightVelocity";
+
+	/** The ring, one array per field. */
+	protected final long[] timestamps;
+	protected final int[] sampledLeftClicks;
+	protected final int[] sampledRightClicks;
+	protected final double[] syncDifferences;
+	protected final double[] leftErrors;
+	protected final double[] rightErrors;
+	protected final double[] leftIntegrals;
+	protected final double[] rightIntegrals;
+	protected final double[] leftVelocities;
+	protected final double[] rightVelocities;
+	/** Total number of records written, the next one goes to written % capacity. */
+	protected long written = 0;
+
+	/** Snapshot the ring is copied into for dumping, guarded by itself. */
+	protected final PidTelemetry snapshot;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The number of ticks kept.
+	 */
+	public PidTelemetry(int capacity) {
+		this(capacity, true);
+	}
+
+	protected PidTelemetry(int capacity, boolean hasSnapshot) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		timestamps = new long[capacity];
+		sampledLeftClicks = new int[capacity];
+		sampledRightClicks = new int[capacity];
+		syncDifferences = new double[capacity];
+		leftErrors = new double[capacity];
+		rightErrors = new double[capacity];
+		leftIntegrals = new double[capacity];
+		rightIntegrals = new double[capacity];
+		leftVelocities = new double[capacity];
+		rightVelocities = new double[capacity];
+		snapshot = hasSnapshot ? new PidTelemetry(capacity, false) : null;
+	}
+
+	/**
+	 * Record a tick. Never allocates.
+	 */
+	public synchronized void record(long timestampNanos, int sampledLeft, int sampledRight, double syncDifference,
+			double leftError, double rightError, double leftIntegral, double rightIntegral,
+			double leftVelocity, double rightVelocity) {
+		int i = (int) (written % timestamps.length);
+		timestamps[i] = timestampNanos;
+		sampledLeftClicks[i] = sampledLeft;
+		sampledRightClicks[i] = sampledRight;
+		syncDifferences[i] = syncDifference;
+		leftErrors[i] = leftError;
+		rightErrors[i] = rightError;
+		leftIntegrals[i] = leftIntegral;
+		rightIntegrals[i] = rightIntegral;
+		leftVelocities[i] = leftVelocity;
+		rightVelocities[i] = rightVelocity;
+		written++;
+	}
+
+	/**
+	 * Forget all the records.
+	 */
+	public synchronized void clear() {
+		written = 0;
+	}
+
+	/**
+	 * Get the number of records held, at most the capacity.
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return (int) Math.min(written, timestamps.length);
+	}
+
+	/**
+	 * Get the total number of records written, including the ones overwritten.
+	 * 
+	 * @return
+	 */
+	public synchronized long getWrittenCount() {
+		return written;
+	}
+
+	public int getCapacity() {
+		return timestamps.length;
+	}
+
+	/**
+	 * Write the records to a file, as CSV.
+	 *
+	 * @param file
+	 * @return The number of records written.
+	 * @throws IOException
+	 */
+	public int writeCsv(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			return writeCsv(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the records to a stream, as CSV, oldest first.
+	 * The stream is flushed but not closed.
+	 *
+	 * @param out
+	 * @return The number of records written.
+	 * @throws IOException
+	 */
+	public int writeCsv(OutputStream out) throws IOException {
+		synchronized (snapshot) {
+			int count = copyTo(snapshot);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.write(CSV_HEADER);
+			writer.write('\n');
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < count; i++) {
+				line.setLength(0);
+				line.append(snapshot.timestamps[i]).append(',')
+					.append(snapshot.sampledLeftClicks[i]).append(',')
+					.append(snapshot.sampledRightClicks[i]).append(',')
+					.append(snapshot.syncDifferences[i]).append(',')
+					.append(snapshot.leftErrors[i]).append(',')
+					.append(snapshot.rightErrors[i]).append(',')
+					.append(snapshot.leftIntegrals[i]).append(',')
+					.append(snapshot.rightIntegrals[i]).append(',')
+					.append(snapshot.leftVelocities[i]).append(',')
+					.append(snapshot.rightVelocities[i]).append('\n');
+				writer.append(line);
+			}
+			writer.flush();
+			return count;
+		}
+	}
+
+	/**
+	 * Write the records to a file, in the binary layout.
+	 *
+	 * @param file
+	 * @return The number of records written.
+	 * @throws IOException
+	 */
+	public int writeBinary(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			return writeBinary(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the records to a stream, in the binary layout, oldest first.
+	 * The stream is flushed but not closed.
+	 *
+	 * @param out
+	 * @return The number of records written.
+	 * @throws IOException
+	 */
+	public int writeBinary(OutputStream out) throws IOException {
+		synchronized (snapshot) {
+			int count = copyTo(snapshot);
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			data.writeInt(BINARY_MAGIC);
+			data.writeInt(BINARY_VERSION);
+			data.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				data.writeLong(snapshot.timestamps[i]);
+				data.writeInt(snapshot.sampledLeftClicks[i]);
+				data.writeInt(snapshot.sampledRightClicks[i]);
+				data.writeDouble(snapshot.syncDifferences[i]);
+				data.writeDouble(snapshot.leftErrors[i]);
+				data.writeDouble(snapshot.rightErrors[i]);
+				data.writeDouble(snapshot.leftIntegrals[i]);
+				data.writeDouble(snapshot.rightIntegrals[i]);
+				data.writeDouble(snapshot.leftVelocities[i]);
+				data.writeDouble(snapshot.rightVelocities[i]);
+			}
+			data.flush();
+			return count;
+		}
+	}
+
+	/**
+	 * Copy the records, oldest first, to the start of another ring of the same capacity.
+	 * 
+	 * @return The number of records copied.
+	 */
+	protected synchronized int copyTo(PidTelemetry dest) {
+		int capacity = timestamps.length;
+		int count = (int) Math.min(written, capacity);
+		int first = (int) ((written - count) % capacity);
+		//The records wrap around the end of the arrays at most once
+		int tail = Math.min(count, capacity - first);
+		copyRange(dest, first, 0, tail);
+		copyRange(dest, 0, tail, count - tail);
+		return count;
+	}
+
+	protected void copyRange(PidTelemetry dest, int from, int to, int length) {
+		System.arraycopy(timestamps, from, dest.timestamps, to, length);
+		System.arraycopy(sampledLeftClicks, from, dest.sampledLeftClicks, to, length);
+		System.arraycopy(sampledRightClicks, from, dest.sampledRightClicks, to, length);
+		System.arraycopy(syncDifferences, from, dest.syncDifferences, to, length);
+		System.arraycopy(leftErrors, from, dest.leftErrors, to, length);
+		System.arraycopy(rightErrors, from, dest.rightErrors, to, length);
+		System.arraycopy(leftIntegrals, from, dest.leftIntegrals, to, length);
+		System.arraycopy(rightIntegrals, from, dest.rightIntegrals, to, length);
+		System.arraycopy(leftVelocities, from, dest.leftVelocities, to, length);
+		System.arraycopy(rightVelocities, from, dest.rightVelocities, to, length);
+	}
+}
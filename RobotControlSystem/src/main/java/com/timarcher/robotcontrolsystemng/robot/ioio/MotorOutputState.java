@@ -0,0 +1,91 @@
+package com.timarcher.robotcontrolsystemng.robot.ioio;
+
+/**
+ * The last motor outputs commanded by the motor control service.
+ * 
+ * This is recorded independently of the IOIO pins, so that it survives a
+ * lost connection. When the IOIO reconnects, RobotIOIOInterface opens the
+ * motor pins with the brakes engaged and restores the directions, but does
+ * not resume the last command: it records the motors as braked and stopped,
+ * until the motor control service commands them again.
+ * 
+ * Before anything has been commanded, the state is braked and stopped.
+ * 
+ */
+public class MotorOutputState {
+	/** Whether the brakes are engaged. */
+	protected boolean brakesEnabled = true;
+	/** Motor velocities, 0 to 100. */
+	protected double leftMotorVelocity = 0;
+	protected double rightMotorVelocity = 0;
+	/** Motor directions. */
+	protected boolean isLeftMotorGoingForward = true;
+	protected boolean isRightMotorGoingForward = true;
+
+	public synchronized boolean isBrakesEnabled() {
+		return brakesEnabled;
+	}
+
+	public synchronized void setBrakesEnabled(boolean brakesEnabled) {
+		this.brakesEnabled = brakesEnabled;
+	}
+
+	public synchronized double getLeftMotorVelocity() {
+		return leftMotorVelocity;
+	}
+
+	public synchronized void setLeftMotorVelocity(double leftMotorVelocity) {
+		this.leftMotorVelocity = leftMotorVelocity;
+	}
+
+	public synchronized double getRightMotorVelocity() {
+		return rightMotorVelocity;
+	}
+
+	public synchronized void setRightMotorVelocity(double rightMotorVelocity) {
+		this.rightMotorVelocity = rightMotorVelocity;
+	}
+
+	public synchronized boolean isLeftMotorGoingForward() {
+		return isLeftMotorGoingForward;
+	}
+
+	public synchronized boolean isRightMotorGoingForward() {
+		return isRightMotorGoingForward;
+	}
+
+	/**
+	 * Set the direction of both motors.
+	 * 
+	 * @param isLeftMotorGoingForward
+	 * @param isRightMotorGoingForward
+	 */
+	public synchronized void setDirections(boolean isLeftMotorGoingForward, boolean isRightMotorGoingForward) {
+		this.isLeftMotorGoingForward = isLeftMotorGoingForward;
+		this.isRightMotorGoingForward = isRightMotorGoingForward;
+	}
+
+	/**
+	 * Copy another state into this one, as a consistent snapshot.
+	 * 
+	 * @param other
+	 */
+	public void copyFrom(MotorOutputState other) {
+		synchronized (other) {
+			synchronized (this) {
+				brakesEnabled = other.brakesEnabled;
+				leftMotorVelocity = other.leftMotorVelocity;
+				rightMotorVelocity = other.rightMotorVelocity;
+				isLeftMotorGoingForward = other.isLeftMotorGoingForward;
+				isRightMotorGoingForward = other.isRightMotorGoingForward;
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Brakes: " + brakesEnabled +
+				" Left: " + leftMotorVelocity + (isLeftMotorGoingForward ? " fwd" : " rev") +
+				" Right: " + rightMotorVelocity + (isRightMotorGoingForward ? " fwd" : " rev");
+	}
+}
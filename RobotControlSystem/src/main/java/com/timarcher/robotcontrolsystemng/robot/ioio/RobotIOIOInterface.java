@@ -5,6 +5,7 @@ import ioio.lib.api.AnalogInput;
 import ioio.lib.api.DigitalInput;
 import ioio.lib.api.DigitalOutput;
 import ioio.lib.api.IOIO;
+import ioio.lib.api.PinPlan;
 import ioio.lib.api.PwmOutput;
 import ioio.lib.api.exception.ConnectionLostException;
 import ioio.lib.util.BaseIOIOLooper;
@@ -24,12 +25,14 @@ public class RobotIOIOInterface extends BaseIOIOLooper {
 	protected static final String LOGTAG = "RobotIOIOInterface";
 	
 	/** Whether the IOIO device is currently connected. */
-	protected boolean _isIOIOConnected = false;
+	protected volatile boolean _isIOIOConnected = false;
 	/** Counter for how many times the loop has been executed. */
 	protected int ioioLoopCount = 0;
 	
 	/** The onboard LED on the IOIO board. */
 	protected DigitalOutput onboardLed;
+	/** Whether the onboard LED was last lit. */
+	protected volatile boolean isOnboardLedLit = false;
 
 	/** Left motor control pins. */
 	protected PwmOutput leftMotorPwm;
@@ -53,6 +56,68 @@ public class RobotIOIOInterface extends BaseIOIOLooper {
 	protected DigitalInput rightMotorEncoder1;		
 	protected DigitalInput rightMotorEncoder2;		
 
+	/**
+	 * Whether to drive the motor PWM and direction pins through the IOIO Sequencer
+	 * (hardware timed speed ramps) instead of PwmOutput/DigitalOutput.
+	 * Takes effect on the next connection to the IOIO.
+	 */
+	protected boolean useSequencerMotorPwm = false;
+	/** The sequencer based motor drive, when useSequencerMotorPwm is set. */
+	protected SequencerMotorPwm sequencerMotorPwm;
+
+	/** When setup was last called, from System.nanoTime(). */
+	protected long setupStartNanos = 0;
+	/** How long the last setup took to open all the pins, in nanoseconds. */
+	protected long setupNanos = 0;
+	/** Time from the last setup call until the first loop, in nanoseconds. */
+	protected long firstLoopNanos = 0;
+	/** When the connection was last lost, from System.nanoTime(). 0 once recovered. */
+	protected long disconnectedNanos = 0;
+	/** Time from the last lost connection until the first loop after reconnecting, in nanoseconds. */
+	protected long lastOutageNanos = 0;
+	/** Number of lost connections which have been recovered from. */
+	protected int outageCount = 0;
+
+	/** Number of times setup has completed, i.e. connections to the IOIO. */
+	protected volatile int connectionCount = 0;
+
+	/** The motor outputs last commanded. The directions are restored whenever the IOIO (re)connects. */
+	protected final MotorOutputState motorOutputState = new MotorOutputState();
+
+	/**
+	 * Notified whenever a motor driver raises or clears its thermal flag.
+	 */
+	public interface ThermalListener {
+		/**
+		 * Called on the IOIO's incoming data thread, so it has to return quickly.
+		 * 
+		 * @param isMotorOverheated Whether either motor driver is over temperature.
+		 */
+		void thermalFlagChanged(boolean isMotorOverheated);
+	}
+	/** The listener for the thermal flags, if any. */
+	protected volatile ThermalListener thermalListener;
+	/** Whether each motor driver's thermal flag is raised. */
+	protected volatile boolean isLeftMotorOverheated = false;
+	protected volatile boolean isRightMotorOverheated = false;
+
+	/**
+	 * Follows the thermal flags as the IOIO reports them, rather than polling them.
+	 * The motor drivers pull their flag low while over temperature.
+	 */
+	protected final DigitalInput.ChangeListener thermalFlagListener = new DigitalInput.ChangeListener() {
+		@Override
+		public void onChange(DigitalInput input, boolean value) {
+			if (input == leftMotorThermalFlag) {
+				isLeftMotorOverheated = !value;
+			}
+			else {
+				isRightMotorOverheated = !value;
+			}
+			notifyThermalListener();
+		}
+	};
+
 	
 	/**
 	 * Called when the Android OS is successfully connected to the 
@@ -62,8 +127,7 @@ public class RobotIOIOInterface extends BaseIOIOLooper {
 	@Override
 	protected void setup() throws ConnectionLostException, InterruptedException {
 		Log.i(LOGTAG,  "RobotIOIOInterface.setup called");
-		
-		onboardLed = ioio_.openDigitalOutput(IOIO.LED_PIN);
+		setupStartNanos = System.nanoTime();
 		
 		//
 		//Configure the pins which control the motors
@@ -72,40 +136,176 @@ public class RobotIOIOInterface extends BaseIOIOLooper {
 		//Borrowed some example code from here: http://robotfreak.googlecode.com/svn/trunk/ioio/IOIORobotController/src/ioio/examples/robot_controller/IOIORobotControllerActivity.java
 		//1000 seems to be the fastest speed/frequency for controlling the motor speed
 		//
-		leftMotorPwm = ioio_.openPwmOutput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_PWM, 1000);  //pin, freq
-		leftMotorDirection = ioio_.openDigitalOutput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_DIRECTION);
-		leftMotorBrake = ioio_.openDigitalOutput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_BRAKE);
-		leftMotorThermalFlag = ioio_.openDigitalInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_THERMAL_FLAG);
-		leftMotorCurrent = ioio_.openAnalogInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_CURRENT);
-		leftMotorEncoder1 = ioio_.openDigitalInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_ENCODER_1);
-		leftMotorEncoder2 = ioio_.openDigitalInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_ENCODER_2);
-		
-		rightMotorPwm = ioio_.openPwmOutput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_PWM, 1000);  //pin, freq
-		rightMotorDirection = ioio_.openDigitalOutput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_DIRECTION);
-		rightMotorBrake = ioio_.openDigitalOutput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_BRAKE);
-		rightMotorThermalFlag = ioio_.openDigitalInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_THERMAL_FLAG);
-		rightMotorCurrent = ioio_.openAnalogInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_CURRENT);		
-		rightMotorEncoder1 = ioio_.openDigitalInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_ENCODER_1);
-		rightMotorEncoder2 = ioio_.openDigitalInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_ENCODER_2);
+		//When using the sequencer, it owns the PWM and direction pins instead.
+		//
+		//All the pins are opened at once through a pin plan, which sends their
+		//whole configuration to the IOIO in one batch rather than one open at a time.
+		//
+		//The brakes come first and start engaged, so the motors are held before
+		//anything else is configured. They stay engaged until a fresh command.
+		//
+		PinPlan plan = new PinPlan();
+		PinPlan.Handle<DigitalOutput> leftMotorBrakeHandle = plan.addDigitalOutput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_BRAKE, true);
+		PinPlan.Handle<DigitalOutput> rightMotorBrakeHandle = plan.addDigitalOutput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_BRAKE, true);
+		PinPlan.Handle<DigitalOutput> onboardLedHandle = plan.addDigitalOutput(IOIO.LED_PIN, false);
+		PinPlan.Handle<PwmOutput> leftMotorPwmHandle = null;
+		PinPlan.Handle<DigitalOutput> leftMotorDirectionHandle = null;
+		PinPlan.Handle<PwmOutput> rightMotorPwmHandle = null;
+		PinPlan.Handle<DigitalOutput> rightMotorDirectionHandle = null;
+		if (!useSequencerMotorPwm) {
+			leftMotorPwmHandle = plan.addPwmOutput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_PWM, 1000);  //pin, freq
+			leftMotorDirectionHandle = plan.addDigitalOutput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_DIRECTION, false);
+			rightMotorPwmHandle = plan.addPwmOutput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_PWM, 1000);  //pin, freq
+			rightMotorDirectionHandle = plan.addDigitalOutput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_DIRECTION, false);
+		}
+		PinPlan.Handle<DigitalInput> leftMotorThermalFlagHandle = plan.addDigitalInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_THERMAL_FLAG);
+		PinPlan.Handle<AnalogInput> leftMotorCurrentHandle = plan.addAnalogInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_CURRENT);
+		PinPlan.Handle<DigitalInput> leftMotorEncoder1Handle = plan.addDigitalInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_ENCODER_1);
+		PinPlan.Handle<DigitalInput> leftMotorEncoder2Handle = plan.addDigitalInput(RobotIOIOPinConstants.PIN_LEFT_MOTOR_ENCODER_2);
+
+		PinPlan.Handle<DigitalInput> rightMotorThermalFlagHandle = plan.addDigitalInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_THERMAL_FLAG);
+		PinPlan.Handle<AnalogInput> rightMotorCurrentHandle = plan.addAnalogInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_CURRENT);
+		PinPlan.Handle<DigitalInput> rightMotorEncoder1Handle = plan.addDigitalInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_ENCODER_1);
+		PinPlan.Handle<DigitalInput> rightMotorEncoder2Handle = plan.addDigitalInput(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_ENCODER_2);
+
+		PinPlan.Pins pins = ioio_.openAll(plan);
+
+		onboardLed = pins.get(onboardLedHandle);
+		//Opened low, which lights it
+		isOnboardLedLit = true;
+		if (useSequencerMotorPwm) {
+			sequencerMotorPwm = new SequencerMotorPwm(ioio_);
+			leftMotorPwm = null;
+			leftMotorDirection = null;
+			rightMotorPwm = null;
+			rightMotorDirection = null;
+		}
+		else {
+			sequencerMotorPwm = null;
+			leftMotorPwm = pins.get(leftMotorPwmHandle);
+			leftMotorDirection = pins.get(leftMotorDirectionHandle);
+			rightMotorPwm = pins.get(rightMotorPwmHandle);
+			rightMotorDirection = pins.get(rightMotorDirectionHandle);
+		}
+		leftMotorBrake = pins.get(leftMotorBrakeHandle);
+		leftMotorThermalFlag = pins.get(leftMotorThermalFlagHandle);
+		leftMotorCurrent = pins.get(leftMotorCurrentHandle);
+		leftMotorEncoder1 = pins.get(leftMotorEncoder1Handle);
+		leftMotorEncoder2 = pins.get(leftMotorEncoder2Handle);
+
+		rightMotorBrake = pins.get(rightMotorBrakeHandle);
+		rightMotorThermalFlag = pins.get(rightMotorThermalFlagHandle);
+		rightMotorCurrent = pins.get(rightMotorCurrentHandle);
+		rightMotorEncoder1 = pins.get(rightMotorEncoder1Handle);
+		rightMotorEncoder2 = pins.get(rightMotorEncoder2Handle);
+
+		holdMotors();
+
+		//
+		//Watch the thermal flags. Their first levels may have been reported before
+		//the listener was set, so they are read once as well.
+		//
+		leftMotorThermalFlag.setChangeListener(thermalFlagListener);
+		rightMotorThermalFlag.setChangeListener(thermalFlagListener);
+		isLeftMotorOverheated = !leftMotorThermalFlag.read();
+		isRightMotorOverheated = !rightMotorThermalFlag.read();
+		if (isMotorOverheated()) {
+			Log.w(LOGTAG, "Connected with a motor driver over temperature");
+			notifyThermalListener();
+		}
+
+		setupNanos = System.nanoTime() - setupStartNanos;
+		Log.i(LOGTAG, "RobotIOIOInterface.setup took " + (setupNanos / 1000) + "us");
 
 		//Set variable so other services will know the IOIO is connected
 		ioioLoopCount = 0;	
+		connectionCount++;
 		_isIOIOConnected = true;		
 	}
 
 	/**
-	 * Called repeatedly from the Service when the android OS
-	 * is connected to the IOIO. 
+	 * Hold the motors on the freshly opened pins: braked and stopped, with the
+	 * last commanded directions.
+	 * 
+	 * The last command is not resumed. The encoder counts and the PID state of the
+	 * motor control service are stale after an outage, so a move in progress is
+	 * ended instead (see MotorControlService), and the robot only moves again on
+	 * a fresh command, which releases the brakes.
+	 * 
+	 * @throws ConnectionLostException
+	 */
+	protected void holdMotors() throws ConnectionLostException {
+		if (!motorOutputState.isBrakesEnabled()) {
+			Log.w(LOGTAG, "Reconnected while moving, holding the motors. Was: " + motorOutputState);
+		}
+		motorOutputState.setBrakesEnabled(true);
+		motorOutputState.setLeftMotorVelocity(0);
+		motorOutputState.setRightMotorVelocity(0);
+
+		boolean isLeftMotorGoingForward = motorOutputState.isLeftMotorGoingForward();
+		boolean isRightMotorGoingForward = motorOutputState.isRightMotorGoingForward();
+		if (sequencerMotorPwm != null) {
+			sequencerMotorPwm.setDirections(isLeftMotorGoingForward, isRightMotorGoingForward);
+		}
+		else {
+			ioio_.beginBatch();
+			try {
+				leftMotorDirection.write(isLeftMotorGoingForward);
+				rightMotorDirection.write(isRightMotorGoingForward);
+			}
+			finally {
+				ioio_.endBatch();
+			}
+		}
+	}
+
+	/**
+	 * Called from the Service when the android OS is connected to the IOIO,
+	 * and again every time it returns while still connected.
+	 * 
+	 * All the periodic robot work runs on the ControlExecutor, so after the
+	 * bookkeeping this just blocks until the connection drops, rather than waking
+	 * up the thread periodically for nothing.
 	 */
 	@Override
 	public void loop() throws ConnectionLostException, InterruptedException {
+		if (ioioLoopCount == 0) {
+			firstLoopNanos = System.nanoTime() - setupStartNanos;
+			Log.i(LOGTAG, "First loop " + (firstLoopNanos / 1000) + "us after setup was called");
+			if (disconnectedNanos != 0) {
+				lastOutageNanos = System.nanoTime() - disconnectedNanos;
+				disconnectedNanos = 0;
+				outageCount++;
+				Log.i(LOGTAG, "Recovered from a " + (lastOutageNanos / 1000000) + "ms IOIO outage. Outages: " + outageCount);
+			}
+		}
 		ioioLoopCount ++;
 		
-		//blink the onboard led
-		onboardLed.write(false);
-		Thread.sleep(500);
-		onboardLed.write(true);
-		Thread.sleep(500);
+		ioio_.waitForDisconnect();
+	}
+	
+	/**
+	 * Toggle the onboard LED, if the IOIO is connected.
+	 * Called periodically by the control executor to blink it.
+	 * 
+	 * @throws ConnectionLostException
+	 */
+	public void toggleOnboardLed() throws ConnectionLostException {
+		setOnboardLedLit(!isOnboardLedLit);
+	}
+
+	/**
+	 * Light or turn off the onboard LED, if the IOIO is connected.
+	 * 
+	 * @param isLit
+	 * @throws ConnectionLostException
+	 */
+	public void setOnboardLedLit(boolean isLit) throws ConnectionLostException {
+		if (_isIOIOConnected && onboardLed != null) {
+			isOnboardLedLit = isLit;
+			//The LED is lit when the pin is low
+			onboardLed.write(!isLit);
+		}
 	}
 	
 	/**
@@ -115,6 +315,7 @@ public class RobotIOIOInterface extends BaseIOIOLooper {
 	@Override
 	public void disconnected() {
 		_isIOIOConnected = false;
+		disconnectedNanos = System.nanoTime();
 	}
 	
 	/**
@@ -222,4 +423,115 @@ public class RobotIOIOInterface extends BaseIOIOLooper {
 	public DigitalInput getRightMotorEncoder2() {
 		return rightMotorEncoder2;
 	}	
+
+	/**
+	 * Return whether either motor driver has its thermal flag raised.
+	 * 
+	 * @return
+	 */
+	public boolean isMotorOverheated() {
+		return isLeftMotorOverheated || isRightMotorOverheated;
+	}
+
+	/**
+	 * Set the listener notified whenever a motor driver raises or clears its
+	 * thermal flag.
+	 * 
+	 * @param thermalListener The listener, or null for none.
+	 */
+	public void setThermalListener(ThermalListener thermalListener) {
+		this.thermalListener = thermalListener;
+	}
+
+	/**
+	 * Tell the thermal listener, if any, the state of the thermal flags.
+	 */
+	protected void notifyThermalListener() {
+		ThermalListener listener = thermalListener;
+		if (listener != null) {
+			listener.thermalFlagChanged(isMotorOverheated());
+		}
+	}
+
+	/**
+	 * Return the sequencer based motor drive, or null when the motors are
+	 * driven through PwmOutput/DigitalOutput.
+	 * 
+	 * @return
+	 */
+	public SequencerMotorPwm getSequencerMotorPwm() {
+		return sequencerMotorPwm;
+	}
+
+	/**
+	 * Return how long the last setup took to open all the pins, in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getSetupNanos() {
+		return setupNanos;
+	}
+
+	/**
+	 * Return the time from the last setup call until the first loop, that is until
+	 * the IOIO could first be controlled after connecting, in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getFirstLoopNanos() {
+		return firstLoopNanos;
+	}
+
+	/**
+	 * Return the number of connections to the IOIO so far. It changes whenever the
+	 * IOIO reconnects.
+	 * 
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Return the motor outputs last commanded. The motor control service records
+	 * everything it writes to the motor pins here.
+	 * 
+	 * @return
+	 */
+	public MotorOutputState getMotorOutputState() {
+		return motorOutputState;
+	}
+
+	/**
+	 * Return the duration of the last outage, from losing the connection to the
+	 * first loop after reconnecting, in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getLastOutageNanos() {
+		return lastOutageNanos;
+	}
+
+	/**
+	 * Return the number of lost connections which have been recovered from.
+	 * 
+	 * @return
+	 */
+	public int getOutageCount() {
+		return outageCount;
+	}
+
+	public boolean isUseSequencerMotorPwm() {
+		return useSequencerMotorPwm;
+	}
+
+	/**
+	 * Select whether to drive the motors through the IOIO Sequencer.
+	 * Takes effect on the next connection to the IOIO.
+	 * 
+	 * @param useSequencerMotorPwm
+	 */
+	public void setUseSequencerMotorPwm(boolean useSequencerMotorPwm) {
+		this.useSequencerMotorPwm = useSequencerMotorPwm;
+	}
 }
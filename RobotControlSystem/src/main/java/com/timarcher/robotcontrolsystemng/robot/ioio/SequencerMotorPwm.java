@@ -0,0 +1,240 @@
+package com.timarcher.robotcontrolsystemng.robot.ioio;
+
+import android.util.Log;
+import android.util.SparseArray;
+import ioio.lib.api.DigitalOutput;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.Sequencer;
+import ioio.lib.api.Sequencer.ChannelConfig;
+import ioio.lib.api.Sequencer.ChannelConfigBinary;
+import ioio.lib.api.Sequencer.ChannelConfigPwmSpeed;
+import ioio.lib.api.Sequencer.ChannelCue;
+import ioio.lib.api.Sequencer.ChannelCueBinary;
+import ioio.lib.api.Sequencer.ChannelCuePwmSpeed;
+import ioio.lib.api.Sequencer.CompiledCue;
+import ioio.lib.api.exception.ConnectionLostException;
+
+/**
+ * Drives the left/right motor PWM and direction pins of the Magnevation
+ * board through the IOIO Sequencer, rather than through PwmOutput and
+ * DigitalOutput.
+ *
+ * The speed of each motor is executed by the IOIO firmware as a stream of
+ * short, fixed length cues. Acceleration and deceleration ramps are
+ * computed ahead of time into that stream, so their timing is determined by
+ * the IOIO and not by when Android happens to schedule our threads. The host
+ * only sets target speeds (e.g. PID corrections along the planned move)
+ * and keeps a few cues queued ahead of execution by calling service()
+ * periodically.
+ *
+ * If the host stops feeding cues, the sequencer stalls and the PWM channels
+ * fall back to a 0 pulse width, so the motors stop rather than running away.
+ *
+ * Channel layout:
+ * 0 - Left motor speed (PWM)
+ * 1 - Right motor speed (PWM)
+ * 2 - Left motor direction
+ * 3 - Right motor direction
+ *
+ */
+public class SequencerMotorPwm {
+	/** Logging tag. */
+	protected static final String LOGTAG = "SequencerMotorPwm";
+
+	/** Sequencer clock for the PWM channels, 0.5us time base. */
+	protected static final Sequencer.Clock PWM_CLOCK = Sequencer.Clock.CLK_2M;
+	/** PWM period in time base units. 2000 * 0.5us = 1000Hz, the same frequency as the PwmOutput based drive. */
+	protected static final int PWM_PERIOD = 2000;
+	/** Duration of each cue, in the sequencer's 16us units. 625 * 16us = 10ms */
+	protected static final int CUE_DURATION = 625;
+	/**
+	 * How many cues to keep queued ahead of execution.
+	 * This has to cover at least one motor monitor interval (50ms) plus scheduling jitter.
+	 * It is also the latency of a speed correction, so we do not want it much larger.
+	 */
+	protected static final int CUES_AHEAD = 8;
+	/** Max change in speed per cue, in percent. 5% per 10ms cue ramps from stopped to full speed in 200ms. */
+	protected static final double ACCELERATION_PER_CUE = 5;
+	/** The max speed of the motor. */
+	protected static final int MAX_MOTOR_SPEED = 100;
+
+	/** The sequencer driving the pins. */
+	protected Sequencer sequencer;
+
+	/** Cues reused for compiling. */
+	protected final ChannelCuePwmSpeed leftSpeedCue = new ChannelCuePwmSpeed();
+	protected final ChannelCuePwmSpeed rightSpeedCue = new ChannelCuePwmSpeed();
+	protected final ChannelCueBinary leftDirectionCue = new ChannelCueBinary();
+	protected final ChannelCueBinary rightDirectionCue = new ChannelCueBinary();
+	protected final ChannelCue[] cues = { leftSpeedCue, rightSpeedCue, leftDirectionCue, rightDirectionCue };
+
+	/**
+	 * Compiled cues, keyed by the speeds (in whole percent) and directions.
+	 * Ramps keep going through the same speeds, so after a few moves everything
+	 * pushed comes from here.
+	 */
+	protected final SparseArray<CompiledCue> compiledCues = new SparseArray<CompiledCue>();
+	/** Batch of cues pushed on each service call. */
+	protected final CompiledCue[] batch = new CompiledCue[CUES_AHEAD];
+	protected final int[] batchDurations = new int[CUES_AHEAD];
+
+	/** The speeds we are ramping towards, 0 to 100. */
+	protected double leftTargetVelocity = 0;
+	protected double rightTargetVelocity = 0;
+	/** The speeds of the last cue queued, 0 to 100. */
+	protected double leftQueuedVelocity = 0;
+	protected double rightQueuedVelocity = 0;
+	/** Motor directions. */
+	protected boolean isLeftMotorGoingForward = true;
+	protected boolean isRightMotorGoingForward = true;
+	/** Number of cues pushed since the sequencer was last stopped. */
+	protected int cuesPushed = 0;
+
+	/**
+	 * Constructor.
+	 * Opens the sequencer on the motor PWM and direction pins, and starts it.
+	 * Until a target velocity is set, the motors are stopped.
+	 *
+	 * @param ioio
+	 * @throws ConnectionLostException
+	 */
+	public SequencerMotorPwm(IOIO ioio) throws ConnectionLostException {
+		ChannelConfig[] config = {
+			new ChannelConfigPwmSpeed(PWM_CLOCK, PWM_PERIOD, 0, new DigitalOutput.Spec(RobotIOIOPinConstants.PIN_LEFT_MOTOR_PWM)),
+			new ChannelConfigPwmSpeed(PWM_CLOCK, PWM_PERIOD, 0, new DigitalOutput.Spec(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_PWM)),
+			new ChannelConfigBinary(true, false, new DigitalOutput.Spec(RobotIOIOPinConstants.PIN_LEFT_MOTOR_DIRECTION)),
+			new ChannelConfigBinary(true, false, new DigitalOutput.Spec(RobotIOIOPinConstants.PIN_RIGHT_MOTOR_DIRECTION))
+		};
+		for (int i = 0; i < CUES_AHEAD; i++) {
+			batchDurations[i] = CUE_DURATION;
+		}
+		sequencer = ioio.openSequencer(config);
+		//
+		//Start right away. The sequencer stalls until the first cue is pushed,
+		//and resumes as soon as one is.
+		//
+		sequencer.start();
+	}
+
+	/**
+	 * Set the speed to ramp the left motor to, between 0 and 100.
+	 *
+	 * @param motorVelocity
+	 */
+	public synchronized void setLeftMotorVelocity(double motorVelocity) {
+		leftTargetVelocity = limitRange(motorVelocity, 0, MAX_MOTOR_SPEED);
+	}
+
+	/**
+	 * Set the speed to ramp the right motor to, between 0 and 100.
+	 *
+	 * @param motorVelocity
+	 */
+	public synchronized void setRightMotorVelocity(double motorVelocity) {
+		rightTargetVelocity = limitRange(motorVelocity, 0, MAX_MOTOR_SPEED);
+	}
+
+	/**
+	 * Set the direction of the motors. Applied from the next cue queued.
+	 *
+	 * @param isLeftMotorGoingForward
+	 * @param isRightMotorGoingForward
+	 */
+	public synchronized void setDirections(boolean isLeftMotorGoingForward, boolean isRightMotorGoingForward) {
+		this.isLeftMotorGoingForward = isLeftMotorGoingForward;
+		this.isRightMotorGoingForward = isRightMotorGoingForward;
+	}
+
+	/**
+	 * Top up the cue FIFO, so that CUES_AHEAD cues are queued ahead of the one executing.
+	 * Each new cue moves the speeds one acceleration step closer to their targets, and all
+	 * of them are pushed in a single batch.
+	 * This needs to be called at least once every CUES_AHEAD * 10ms while the motors are running.
+	 *
+	 * @throws ConnectionLostException
+	 */
+	public synchronized void service() throws ConnectionLostException {
+		int queued = cuesPushed - sequencer.getLastEvent().numCuesStarted;
+		int count = Math.min(CUES_AHEAD - queued, sequencer.available());
+		for (int i = 0; i < count; i++) {
+			leftQueuedVelocity = rampTowards(leftQueuedVelocity, leftTargetVelocity);
+			rightQueuedVelocity = rampTowards(rightQueuedVelocity, rightTargetVelocity);
+			batch[i] = getCompiledCue((int) Math.round(leftQueuedVelocity), (int) Math.round(rightQueuedVelocity),
+					isLeftMotorGoingForward, isRightMotorGoingForward);
+		}
+		if (count > 0) {
+			cuesPushed += sequencer.pushAll(batch, batchDurations, 0, count);
+		}
+	}
+
+	/**
+	 * Stop both motors immediately, discarding any queued cues, including
+	 * ramps in progress.
+	 *
+	 * @throws ConnectionLostException
+	 */
+	public synchronized void stop() throws ConnectionLostException {
+		leftTargetVelocity = 0;
+		rightTargetVelocity = 0;
+		leftQueuedVelocity = 0;
+		rightQueuedVelocity = 0;
+		//Stopping drops the PWM channels to their initial 0 pulse width.
+		sequencer.stop();
+		cuesPushed = 0;
+		sequencer.start();
+	}
+
+	/**
+	 * Close the sequencer and free its pins.
+	 */
+	public synchronized void close() {
+		sequencer.close();
+	}
+
+	/**
+	 * Move a velocity one acceleration step towards its target.
+	 */
+	protected double rampTowards(double current, double target) {
+		if (current < target) {
+			return Math.min(current + ACCELERATION_PER_CUE, target);
+		}
+		else {
+			return Math.max(current - ACCELERATION_PER_CUE, target);
+		}
+	}
+
+	/**
+	 * Return the compiled cue for the given speeds and directions, compiling it
+	 * the first time it is needed.
+	 */
+	protected CompiledCue getCompiledCue(int leftVelocity, int rightVelocity, boolean isLeftForward, boolean isRightForward) {
+		int key = leftVelocity | (rightVelocity << 7) | (isLeftForward ? 1 << 14 : 0) | (isRightForward ? 1 << 15 : 0);
+		CompiledCue cue = compiledCues.get(key);
+		if (cue == null) {
+			leftSpeedCue.pulseWidth = toPulseWidth(leftVelocity);
+			rightSpeedCue.pulseWidth = toPulseWidth(rightVelocity);
+			leftDirectionCue.value = isLeftForward;
+			rightDirectionCue.value = isRightForward;
+			cue = sequencer.compile(cues);
+			compiledCues.put(key, cue);
+			Log.d(LOGTAG, "Compiled cue. Left: " + leftVelocity + " Right: " + rightVelocity + " Cached cues: " + compiledCues.size());
+		}
+		return cue;
+	}
+
+	/**
+	 * Convert a speed in percent to a pulse width in time base units.
+	 * The sequencer accepts 0 or a pulse width of at least 2.
+	 */
+	protected int toPulseWidth(int velocity) {
+		int pulseWidth = (PWM_PERIOD * velocity) / MAX_MOTOR_SPEED;
+		return pulseWidth < 2 ? 0 : pulseWidth;
+	}
+
+	/**
+	 * Limits a number to the given range.
+	 */
+	protected double limitRange(double actualValue, double lowLimitValue, double highLimitValue) {
+		return Math.max(lowLimitValue, Math.min(highLimitValue, actualValue));
+	}
+}
@@ -5,7 +5,13 @@ import ioio.lib.api.exception.ConnectionLostException;
 
 import android.util.Log;
 
+import com.timarcher.robotcontrolsystemng.robot.control.ControlExecutor;
+import com.timarcher.robotcontrolsystemng.robot.control.MotionProfile;
+import com.timarcher.robotcontrolsystemng.robot.control.PidController;
+import com.timarcher.robotcontrolsystemng.robot.control.PidTelemetry;
+import com.timarcher.robotcontrolsystemng.robot.ioio.MotorOutputState;
 import com.timarcher.robotcontrolsystemng.robot.ioio.RobotIOIOInterface;
+import com.timarcher.robotcontrolsystemng.robot.ioio.SequencerMotorPwm;
 
 /**
  * This is the class which is responsible for controlling the robots 
@@ -75,30 +81,91 @@ import com.timarcher.robotcontrolsystemng.robot.ioio.RobotIOIOInterface;
  * Shorted load protection 
  * Internal charge pump with external bootstrap capability   
  * 
+ * 
+ * '''''''''''''''''''' Sequencer Motor PWM ''''''''''''''''''''''''' 
+ * Optionally (see RobotIOIOInterface.setUseSequencerMotorPwm), the speed and direction
+ * pins are driven by the IOIO Sequencer instead of PwmOutput/DigitalOutput. The velocities
+ * set here then become targets, which the firmware ramps towards with hardware timed cues
+ * (see SequencerMotorPwm), so the steps between corrections no longer depend on Android
+ * thread scheduling. The motor monitor keeps the cue queue topped up and applies the PID
+ * corrections to the targets.
+ * 
+ * 
+ * '''''''''''''''''''' Motion Profile ''''''''''''''''''''''''' 
+ * Each move is planned as a jerk limited motion profile (see MotionProfile): the robot
+ * accelerates, cruises and decelerates so that it comes to rest at the destination. Every
+ * control tick the wheel velocity targets are scaled along the planned velocity and
+ * corrected towards the planned position, and the wheel PID controllers track them all
+ * the way in.
+ * 
  */
 public class MotorControlService {
 	/** Logging tag. */
 	protected static final String LOGTAG = "MotorControlService";
-	/** A thread which monitors the motors. */
-	Thread motorMonitorThread;	
 	/** The IOIO interface class. */
 	RobotIOIOInterface ioio;
 
 	/** Boolean as to if the robot is currently moving or not. */
-	protected boolean _isRobotMoving = false;
+	protected volatile boolean _isRobotMoving = false;
+	/** When the robot last stopped, from System.nanoTime(). 0 once it has settled. Guarded by this. */
+	protected long stoppedNanos = 0;
+
+	/**
+	 * The motor monitor tasks on the control executor. They run at MOTOR_MONITOR_RATE_HZ
+	 * while the robot moves, and are suspended while it stands still, so an idle robot
+	 * does not wake up the CPU.
+	 */
+	protected ControlExecutor.Task encoderTask;
+	protected ControlExecutor.Task motorControlTask;
+	protected ControlExecutor.Task sequencerTask;
+	/** Checks the motor drivers' thermal flags. It has no rate, and runs whenever a flag changes. */
+	protected ControlExecutor.Task thermalTask;
+	/** Whether a motor driver was over temperature when the thermal flags were last checked. */
+	protected boolean isMotorOverheated = false;
+
+	/**
+	 * Notified whenever the robot starts or stops moving.
+	 */
+	public interface MotionListener {
+		/**
+		 * Called from the thread which started or stopped the robot.
+		 * 
+		 * @param isRobotMoving
+		 */
+		void motionChanged(boolean isRobotMoving);
+	}
+	/** The listener for the robot starting and stopping, if any. */
+	protected volatile MotionListener motionListener;
 	
-	/** How long the motor monitor thread should sleep for between runs. */
-	protected static final int MOTOR_MONITOR_THREAD_SLEEP_MS = 50;
-	/** Max # of encoder clicks per speed control interval at max speed. This is dependent on how often the motor
-	 * monitor thread runs. This is how many clicks should be expected per interval at MAX speed.
+	/** How often the motor monitor runs, in milliseconds. The controllers use the measured time between samples, so anything from 20 to 500Hz works without retuning. */
+	protected static final int MOTOR_MONITOR_INTERVAL_MS = 50;
+	/** How many times per second the motor monitor runs while the robot moves. */
+	protected static final double MOTOR_MONITOR_RATE_HZ = 1000.0 / MOTOR_MONITOR_INTERVAL_MS;
+	/** How many times per second the encoders are sampled while the robot settles after stopping. */
+	protected static final double MOTOR_SETTLE_RATE_HZ = 5;
+	/** How long the robot settles after stopping, in milliseconds. The encoders keep counting the coasting, then the monitor parks. */
+	protected static final long MOTOR_SETTLE_MS = 1000;
+	/** Max # of encoder clicks per second at max speed.
 	 * 150 encoder clicks seems to be possible at max speed when the thread polls every 100ms
 	 * 70 encoder clicks seems to be possible at max speed when the thread polls every 50ms
+	 * 68 clicks per 50ms were used when the control loop was tuned per interval
 	 */
-	protected static final int MAX_SPEED_PER_INTERVAL = 68; //400;
+	protected static final double MAX_CLICKS_PER_SECOND = 1360;
 	/** The max speed of the motor. */
 	protected static final int MAX_MOTOR_SPEED = 100;
-	/** The speed of the motor to slow down to when positioning the robot and nearing its destination distance/degrees to turn. */
-	protected static final int SLOW_MOTOR_POSITIONING_SPEED = 25;
+	/**
+	 * Limits the moves are planned with (see MotionProfile), in encoder clicks per second,
+	 * per second squared and per second cubed. The acceleration ramps up in 0.2s, and full
+	 * speed is reached in 0.7s.
+	 */
+	protected static final double MAX_ACCELERATION_CLICKS_PER_SECOND2 = 2720;
+	protected static final double MAX_JERK_CLICKS_PER_SECOND3 = 13600;
+	/** Clicks per second of correction per click the robot is behind (or ahead of) the planned position. */
+	protected static final double POSITION_GAIN = 5.0;
+	/** The largest position correction, in clicks per second. */
+	protected static final double MAX_POSITION_CORRECTION_CLICKS_PER_SECOND = 200;
+	/** The slowest the wheels are driven once the planned move is over but the destination is not reached yet, in clicks per second. */
+	protected static final double MIN_APPROACH_CLICKS_PER_SECOND = 100;
 	/** The number of encoder clicks that occur per degree of turning the robot. */
 	//protected static final double ENCODER_CLICKS_PER_TURN_DEGREE = 4.701;
 	protected static final double ENCODER_CLICKS_PER_TURN_DEGREE = 4.85;
@@ -113,53 +180,170 @@ public class MotorControlService {
 	protected double leftMotorVelocity = 0;
 	/** The velocity to move the right motor at: 0 to 100 */
 	protected double rightMotorVelocity = 0;
-	/** Desired velocity clicks per interval we want to achieve. */
-	protected int desiredVelocityClicks = 0;
-    /** Desired bias clicks per interval we want to achieve. */
-	protected int desiredBiasClicks = 0;
+	/** Desired velocity of the left wheel, in encoder clicks per second. */
+	protected double leftTargetClicksPerSecond = 0;
+	/** Desired velocity of the right wheel, in encoder clicks per second. */
+	protected double rightTargetClicksPerSecond = 0;
 
 	/** The number of left encoder clicks the robot has moved. */ 
 	protected long leftClicksMoved = 0;
 	/** The number of right encoder clicks the robot has moved. */ 
 	protected long rightClicksMoved = 0;
-	/** If the robots speed has been reduced for final positioning or not. */
-	protected boolean isSpeedReduced = false;
+	/**
+	 * The planned move, which the wheel velocity targets are scaled along, so that
+	 * the robot accelerates, cruises and decelerates to its destination smoothly.
+	 */
+	protected volatile MotionProfile motionProfile;
+	/** When the planned move started, from System.nanoTime(). */
+	protected volatile long motionProfileStartNanos = 0;
+	/** The IOIO connection the current move was started on (see RobotIOIOInterface.getConnectionCount()). */
+	protected volatile int moveConnectionCount = 0;
 	/** If the PID algorithm is enabled or not. */
 	protected boolean isPIDEnabled = true;
+	/** When the encoders were last sampled, or the move started, from System.nanoTime(). */
+	protected long lastSampleNanos = 0;
+	/**
+	 * Set when a move starts, for the control task to reset the distance moved and the
+	 * controllers before its next sample (see resetMotorEncoderTrackingVariables()).
+	 */
+	protected volatile boolean isTrackingResetPending = false;
+	/** When the pending reset was asked for, from System.nanoTime(). Written before isTrackingResetPending. */
+	protected volatile long trackingResetNanos = 0;
+	/** Whether the pending reset keeps the wheel controllers, as the move continues at the velocity they hold. */
+	protected volatile boolean isTrackingResetKeepingWheels = false;
+	/** The velocity of the faster wheel on the latest sample, in clicks per second. A move continuing the current one starts from it. */
+	protected volatile double sampledClicksPerSecond = 0;
+
+	/**
+	 * Wheel velocity controller gains. The velocity is in encoder clicks per second and the
+	 * output in percent of the max motor speed, so the gains do not depend on how often
+	 * the controllers run. The feedforward alone drives a wheel at about its target.
+	 */
+	protected static final double WHEEL_PROPORTIONAL_GAIN = 0.02;
+	protected static final double WHEEL_INTEGRAL_GAIN = 0.1;
+	protected static final double WHEEL_DERIVATIVE_GAIN = 0.0002;
+	protected static final double WHEEL_FEEDFORWARD_GAIN = MAX_MOTOR_SPEED / MAX_CLICKS_PER_SECOND;
+	/** Time constant of the filter on the measured wheel velocities, in seconds. Smooths the click counting at high rates. */
+	protected static final double WHEEL_MEASUREMENT_FILTER_SECONDS = 0.03;
+	/**
+	 * Wheel synchronization gain, clicks per second of correction per click one wheel is
+	 * ahead of the other, which keeps the robot straight when both wheels should turn alike.
+	 */
+	protected static final double SYNC_PROPORTIONAL_GAIN = 2.0;
+	/** The largest synchronization correction, in clicks per second. */
+	protected static final double SYNC_MAX_CLICKS_PER_SECOND = 200;
+
+	/** The PID controllers for the velocity of each wheel. */
+	protected final PidController leftWheelController = new PidController(WHEEL_PROPORTIONAL_GAIN, WHEEL_INTEGRAL_GAIN,
+			WHEEL_DERIVATIVE_GAIN, WHEEL_FEEDFORWARD_GAIN, 0, MAX_MOTOR_SPEED);
+	protected final PidController rightWheelController = new PidController(WHEEL_PROPORTIONAL_GAIN, WHEEL_INTEGRAL_GAIN,
+			WHEEL_DERIVATIVE_GAIN, WHEEL_FEEDFORWARD_GAIN, 0, MAX_MOTOR_SPEED);
+	/** The controller keeping the distance moved by both wheels alike. */
+	protected final PidController syncController = new PidController(SYNC_PROPORTIONAL_GAIN, 0, 0, 0,
+			-SYNC_MAX_CLICKS_PER_SECOND, SYNC_MAX_CLICKS_PER_SECOND);
 
-	/** Variables for the PID algorithm to maintain the error. */ 
-	double integral = 0;
-	double integralError = 0;							
+	/** Variables for the PID algorithm to maintain the error, kept for telemetry. clicksDifference is what the sync controller works on. */ 
+	double clicksDifference = 0;
 	double leftError = 0;
 	double rightError = 0;
-	protected static final double INTEGRAL_ERROR_GAIN = 0.1;
-	protected static final double PROPORTIONAL_GAIN = 0.1;
+
+	/** The number of PID ticks kept in the telemetry ring. 4096 ticks is over 3 minutes of driving. */
+	protected static final int PID_TELEMETRY_CAPACITY = 4096;
+	/** The most recent PID ticks, dumped on demand. */
+	protected final PidTelemetry pidTelemetry = new PidTelemetry(PID_TELEMETRY_CAPACITY);
 	
 	/**
 	 * Constructor
+	 * Registers the motor monitor tasks with the control executor.
 	 * 
 	 */
-	public MotorControlService (RobotIOIOInterface ioio) {
+	public MotorControlService (RobotIOIOInterface ioio, ControlExecutor controlExecutor) {
 		this.ioio = ioio;
+		leftWheelController.setMeasurementFilter(WHEEL_MEASUREMENT_FILTER_SECONDS);
+		rightWheelController.setMeasurementFilter(WHEEL_MEASUREMENT_FILTER_SECONDS);
 		
 		//
-		//Initialize a thread to perform our service activities
+		//The motor monitor runs as one task per phase, so the encoders are sampled,
+		//the PID applied and the sequencer fed in that order on the same tick.
+		//The tasks start suspended, until the robot moves.
 		//
-		if (motorMonitorThread != null) {
-			motorMonitorThread.stop();
+		final MotorMonitorJob motorMonitorJob = new MotorMonitorJob(this);
+		encoderTask = controlExecutor.addTask("motorEncoders", ControlExecutor.Phase.SENSE, 0, new ControlExecutor.ControlTask() {
+			@Override
+			public void execute() throws ConnectionLostException {
+				motorMonitorJob.sampleEncoders();
+			}
+		});
+		motorControlTask = controlExecutor.addTask("motorControl", ControlExecutor.Phase.CONTROL, 0, new ControlExecutor.ControlTask() {
+			@Override
+			public void execute() throws ConnectionLostException {
+				motorMonitorJob.controlMotors();
+			}
+		});
+		sequencerTask = controlExecutor.addTask("motorSequencer", ControlExecutor.Phase.ACTUATE, 0, new ControlExecutor.ControlTask() {
+			@Override
+			public void execute() throws ConnectionLostException {
+				motorMonitorJob.serviceSequencer();
+			}
+		});
+		
+		//
+		//The thermal flags are not polled. The IOIO reports their changes, which
+		//trigger the check on the next tick, waking up the executor if it is parked.
+		//
+		thermalTask = controlExecutor.addTask("motorThermal", ControlExecutor.Phase.SENSE, 0, new ControlExecutor.ControlTask() {
+			@Override
+			public void execute() throws ConnectionLostException {
+				checkThermalFlags();
+			}
+		});
+		ioio.setThermalListener(new RobotIOIOInterface.ThermalListener() {
+			@Override
+			public void thermalFlagChanged(boolean isMotorOverheated) {
+				thermalTask.trigger();
+			}
+		});
+	}
+
+	/**
+	 * Stop the motors once a motor driver is over temperature.
+	 * Run by the control executor whenever a thermal flag changes.
+	 * 
+	 * @throws ConnectionLostException
+	 */
+	public void checkThermalFlags() throws ConnectionLostException {
+		boolean isOverheated = ioio.isMotorOverheated();
+		if (isOverheated == isMotorOverheated) {
+			return;
+		}
+		isMotorOverheated = isOverheated;
+		if (isOverheated) {
+			Log.e(LOGTAG, "A motor driver is over temperature, stopping the motors.");
+			stopMotors();
+		}
+		else {
+			Log.i(LOGTAG, "The motor drivers are back below their temperature limit.");
 		}
-		motorMonitorThread = new Thread(new MotorMonitorJob(this));
-		motorMonitorThread.setDaemon(true);
-		motorMonitorThread.start();
 	}
 
 	/**
 	 * Code which monitors the motors and stops them when the desired distance is reached,
 	 * and also applies the PID algorithm to keep the robot on course.
+	 * Run by the control executor, every MOTOR_MONITOR_INTERVAL_MS.
 	 *
 	 */
-	public class MotorMonitorJob implements Runnable {
+	public class MotorMonitorJob {
 		MotorControlService motorControlService;
+		/** The encoder clicks sampled on the current tick. */
+		long sampledLeftClicks = 0;
+		long sampledRightClicks = 0;
+		/** When the encoders were sampled on the current tick, from System.nanoTime(). */
+		long sampleNanos = 0;
+		/** The wheel velocities over the time since the previous sample, in clicks per second. */
+		double sampledLeftClicksPerSecond = 0;
+		double sampledRightClicksPerSecond = 0;
+		/** Whether the encoders were sampled on the current tick, and the sample is yet to be used. */
+		boolean isSampled = false;
 		
 		/**
 		 * Constructor
@@ -171,131 +355,193 @@ public class MotorControlService {
 		}
 		
 		/**
-		 * Thread runnable method
+		 * Sense phase.
+		 * Sample and clear the encoder counts, and add them to the distance traveled.
+		 * After the robot stops, this keeps counting the coasting for MOTOR_SETTLE_MS,
+		 * and then parks the motor monitor.
 		 * 
+		 * @throws ConnectionLostException
 		 */
-		@Override
-		public void run() {
-			try {	
-				for (;;) {
-					if (ioio != null && ioio.isIOIOConnected() && motorControlService.isRobotMoving()) {
-						//Log.d(LOGTAG,  "******************************");
-
-						//
-						//Get our encoder values
-						//Because this is a quadrature encoder, we add together both encoders clicks
-						//
-						long sampledRightClicks = ioio.getRightMotorEncoder1().getPulseCount() + ioio.getRightMotorEncoder2().getPulseCount();
-						long sampledLeftClicks = ioio.getLeftMotorEncoder1().getPulseCount() + ioio.getLeftMotorEncoder2().getPulseCount();
-
-						motorControlService.clearMotorEncoderPulseCounts();
-						
-						//Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     Sampled Left Clicks: " + sampledLeftClicks + " Sampled Right Clicks: " + sampledRightClicks);
-								
-						//
-						//Store total distance traveled
-						//
-						leftClicksMoved += sampledLeftClicks;
-						rightClicksMoved += sampledRightClicks;
-
-						Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob      Left Clicks Moved: " + leftClicksMoved + " Right Clicks Moved: " + rightClicksMoved);
-						Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob      Left Clicks To Move: " + leftClicksToMove + " Right Clicks To Move: " + rightClicksToMove);
-						
-						//
-						//Apply the PID algorithm and adjust the motors
-						//
-						if (isPIDEnabled) {
-							integral = motorControlService.limitRange(((integral + sampledLeftClicks - sampledRightClicks)), -1000, 1000);							
-							integralError = INTEGRAL_ERROR_GAIN * integral;							
-
-							//Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     Integral: " + integral + " Integral Error: " + integralError);							
-							//Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     desiredVelocityClicks: " + desiredVelocityClicks + " desiredBiasClicks: " + desiredBiasClicks);
- 
-							leftError = PROPORTIONAL_GAIN * (desiredVelocityClicks + desiredBiasClicks - sampledLeftClicks - integralError);
-							rightError = PROPORTIONAL_GAIN * (desiredVelocityClicks + desiredBiasClicks - sampledRightClicks + integralError);
-							
-							
-							Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     Left Velocity: " + motorControlService.getLeftMotorVelocity() + " Left Error: " + leftError);
-							Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     Right Velocity: " + motorControlService.getRightMotorVelocity() + " Right Error: " + rightError);
-							
-							
-						    //Take (Max motor Speed * ((Motor Speed Converted To %) + Error) ) / 100
-						    //Adjust the left motor Speed
-							//What percent of max speed is it currently going. Add on the error, and then set that
-							//as the new percent of max speed
-							double newLeftVelocityPct = (motorControlService.getLeftMotorVelocity() * 100) / MAX_MOTOR_SPEED;
-							newLeftVelocityPct += leftError;
-							double newLeftVelocity = (MAX_MOTOR_SPEED * newLeftVelocityPct) / 100;
-							//Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     New Left Velocity Pct: " + newLeftVelocityPct + " New Left Velocity: " + newLeftVelocity);
-							
-							//Enable after we debug
-							//This should be a value between 0 and 100
-							motorControlService.setLeftMotorVelocity(newLeftVelocity);
-
-							
-						    //Adjust the right motor Speed
-							double newRightVelocityPct = (motorControlService.getRightMotorVelocity() * 100) / MAX_MOTOR_SPEED;
-							newRightVelocityPct += rightError;
-							double newRightVelocity = (MAX_MOTOR_SPEED * newRightVelocityPct) / 100;
-							//Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     New Right Velocity Pct: " + newRightVelocityPct + " New Right Velocity: " + newRightVelocity);
-
-							//Enable after we debug
-							//This should be a value between 0 and 100
-							motorControlService.setRightMotorVelocity(newRightVelocity);
-							
-							/*
-							int newRightVelocity = (motorControlService.getRightMotorVelocity() * 100) / MAX_MOTOR_SPEED;
-							newRightVelocity = motorControlService.limitRange( (int) (newRightVelocity + rightError), 0, 100);
-							newRightVelocity = (MAX_MOTOR_SPEED * newRightVelocity) / 100;
-							motorControlService.setRightMotorVelocity(newRightVelocity);
-							*/
-						}
-						
-						//
-						//Monitor the encoders for the distance traveled to see if we need to stop the robot
-						//
-						//Left encoder clicks
-						if (leftClicksToMove > 0) {
-							if (leftClicksToMove > 0  && leftClicksMoved >= leftClicksToMove) {
-								motorControlService.stopMotors();
-								//motorControlService.setLeftMotorVelocity(0);														
-							}
-							else if (!isSpeedReduced && leftClicksMoved >= (leftClicksToMove - 100)) {
-								motorControlService.slowMotorsForFinalPositioning();
-							}
-						}
-	
-						//Right encoder clicks
-						if (rightClicksToMove > 0) {
-							if (rightClicksToMove > 0  && rightClicksMoved >= rightClicksToMove) {
-								motorControlService.stopMotors();
-								//motorControlService.setRightMotorVelocity(0);														
-							}
-							else if (!isSpeedReduced && rightClicksMoved >= (rightClicksToMove - 100)) {
-								motorControlService.slowMotorsForFinalPositioning();
-							}
-						}	
-												
-						//
-						//Stop motors once we reach the destination
-						//
-						if (leftClicksToMove > 0  && leftClicksMoved >= leftClicksToMove &&
-							rightClicksToMove > 0  && rightClicksMoved >= rightClicksToMove) {
-							motorControlService.stopMotors();
-						}
-												
-					}
+		public void sampleEncoders() throws ConnectionLostException {
+			isSampled = false;
+			//Under the service's lock, so a move starting meanwhile cannot be parked
+			synchronized (motorControlService) {
+				if (!_isRobotMoving && (stoppedNanos == 0 || System.nanoTime() - stoppedNanos >= MOTOR_SETTLE_MS * 1000000L)) {
+					stoppedNanos = 0;
+					encoderTask.setRateHz(0);
+					return;
+				}
+			}
+			if (ioio == null || !ioio.isIOIOConnected()) {
+				return;
+			}
+			//
+			//If the IOIO reconnected during the move, it came back with the motors held
+			//(see RobotIOIOInterface.holdMotors). The encoder counts and the PID state are
+			//stale from the outage, so end the move rather than resume it.
+			//
+			if (motorControlService.isRobotMoving() && ioio.getConnectionCount() != moveConnectionCount) {
+				Log.w(LOGTAG, "MotorControlService IOIO reconnected during the move, stopping");
+				motorControlService.stopMotors();
+				return;
+			}
+			//Log.d(LOGTAG,  "******************************");
+
+			if (isTrackingResetPending) {
+				motorControlService.applyTrackingReset();
+			}
+
+			//
+			//Get our encoder values
+			//Because this is a quadrature encoder, we add together both encoders clicks
+			//
+			sampledRightClicks = ioio.getRightMotorEncoder1().getPulseCount() + ioio.getRightMotorEncoder2().getPulseCount();
+			sampledLeftClicks = ioio.getLeftMotorEncoder1().getPulseCount() + ioio.getLeftMotorEncoder2().getPulseCount();
+
+			motorControlService.clearMotorEncoderPulseCounts();
+
+			//
+			//Velocities over the actual time since the previous sample, whatever the tick jitter
+			//
+			long now = System.nanoTime();
+			double dtSeconds = (now - lastSampleNanos) / 1000000000.0;
+			sampleNanos = now;
+			lastSampleNanos = now;
+			if (dtSeconds > 0) {
+				sampledLeftClicksPerSecond = sampledLeftClicks / dtSeconds;
+				sampledRightClicksPerSecond = sampledRightClicks / dtSeconds;
+				sampledClicksPerSecond = Math.max(sampledLeftClicksPerSecond, sampledRightClicksPerSecond);
+			}
+			
+			//Log.d(LOGTAG,  "MotorControlService.MotorMonitorJob     Sampled Left Clicks: " + sampledLeftClicks + " Sampled Right Clicks: " + sampledRightClicks);
 					
-					//Sleep
-					try {
-						Thread.sleep(MOTOR_MONITOR_THREAD_SLEEP_MS);
-					} catch (Exception e) {
+			//
+			//Store total distance traveled
+			//
+			leftClicksMoved += sampledLeftClicks;
+			rightClicksMoved += sampledRightClicks;
+			isSampled = true;
+		}
+
+		/**
+		 * Control phase.
+		 * Apply the PID algorithm to this tick's sample, and stop or slow the motors
+		 * as the destination is reached.
+		 * 
+		 * @throws ConnectionLostException
+		 */
+		public void controlMotors() throws ConnectionLostException {
+			if (!isSampled || !motorControlService.isRobotMoving()) {
+				return;
+			}
+			isSampled = false;
+			//A move started since the sample, which predates it. Wait for the next one.
+			if (isTrackingResetPending) {
+				return;
+			}
+			
+			//
+			//Apply the PID algorithm and adjust the motors.
+			//Each wheel runs its own velocity controller. When both wheels should turn alike
+			//(driving straight or turning in place), their targets are also nudged to keep
+			//the distance they moved alike.
+			//
+			if (isPIDEnabled) {
+				double leftSetpoint = leftTargetClicksPerSecond;
+				double rightSetpoint = rightTargetClicksPerSecond;
+
+				//
+				//Follow the planned move. The targets are scaled along its velocity, and
+				//corrected towards its position, so the robot ends up at the destination
+				//as the planned velocity reaches 0.
+				//
+				MotionProfile profile = motionProfile;
+				double maxTarget = Math.max(leftTargetClicksPerSecond, rightTargetClicksPerSecond);
+				if (profile != null && maxTarget > 0) {
+					double seconds = (sampleNanos - motionProfileStartNanos) / 1000000000.0;
+					double scale = profile.getVelocity(seconds) / maxTarget;
+					leftSetpoint *= scale;
+					rightSetpoint *= scale;
+					if (!Double.isInfinite(profile.getDistance())) {
+						double moved = (leftClicksMoved + rightClicksMoved) / 2.0;
+						double correction = limitRange(POSITION_GAIN * (profile.getPosition(seconds) - moved),
+								-MAX_POSITION_CORRECTION_CLICKS_PER_SECOND, MAX_POSITION_CORRECTION_CLICKS_PER_SECOND);
+						leftSetpoint += correction;
+						rightSetpoint += correction;
+						if (profile.isFinished(seconds)) {
+							//Short of the destination, keep creeping towards it
+							leftSetpoint = Math.max(leftSetpoint, MIN_APPROACH_CLICKS_PER_SECOND);
+							rightSetpoint = Math.max(rightSetpoint, MIN_APPROACH_CLICKS_PER_SECOND);
+						}
 					}
-				}					
-			} catch (Exception e) {
-				Log.e(LOGTAG, "An error occurred in the MotorMonitorJob. " + e.toString(), e);
+				}
+
+				clicksDifference = leftClicksMoved - rightClicksMoved;
+				double sync = 0;
+				if (leftTargetClicksPerSecond == rightTargetClicksPerSecond) {
+					sync = syncController.update(0, clicksDifference, sampleNanos);
+				}
+
+				double newLeftVelocity = leftWheelController.update(Math.max(0, leftSetpoint + sync), sampledLeftClicksPerSecond, sampleNanos);
+				double newRightVelocity = rightWheelController.update(Math.max(0, rightSetpoint - sync), sampledRightClicksPerSecond, sampleNanos);
+				leftError = leftWheelController.getError();
+				rightError = rightWheelController.getError();
+
+				//This should be a value between 0 and 100
+				motorControlService.setLeftMotorVelocity(newLeftVelocity);
+				motorControlService.setRightMotorVelocity(newRightVelocity);
 			}
-		}		
+
+			//
+			//Record the tick, rather than logging it, see getPidTelemetry()
+			//
+			pidTelemetry.record(sampleNanos, (int) sampledLeftClicks, (int) sampledRightClicks, clicksDifference,
+					leftError, rightError, leftWheelController.getIntegral(), rightWheelController.getIntegral(),
+					motorControlService.getLeftMotorVelocity(), motorControlService.getRightMotorVelocity());
+			
+			//
+			//Monitor the encoders for the distance traveled to see if we need to stop the robot
+			//
+			//Left encoder clicks
+			if (leftClicksToMove > 0) {
+				if (leftClicksToMove > 0  && leftClicksMoved >= leftClicksToMove) {
+					motorControlService.stopMotors();
+					//motorControlService.setLeftMotorVelocity(0);														
+				}
+			}
+	
+			//Right encoder clicks
+			if (rightClicksToMove > 0) {
+				if (rightClicksToMove > 0  && rightClicksMoved >= rightClicksToMove) {
+					motorControlService.stopMotors();
+					//motorControlService.setRightMotorVelocity(0);														
+				}
+			}	
+									
+			//
+			//Stop motors once we reach the destination
+			//
+			if (leftClicksToMove > 0  && leftClicksMoved >= leftClicksToMove &&
+				rightClicksToMove > 0  && rightClicksMoved >= rightClicksToMove) {
+				motorControlService.stopMotors();
+			}
+		}
+
+		/**
+		 * Actuate phase.
+		 * When driving through the sequencer, queue the next cues.
+		 * 
+		 * @throws ConnectionLostException
+		 */
+		public void serviceSequencer() throws ConnectionLostException {
+			if (ioio == null || !ioio.isIOIOConnected()) {
+				return;
+			}
+			SequencerMotorPwm sequencerMotorPwm = ioio.getSequencerMotorPwm();
+			if (sequencerMotorPwm != null && motorControlService.isRobotMoving()) {
+				sequencerMotorPwm.service();
+			}
+		}
 	}
 	
 	
@@ -303,7 +549,7 @@ public class MotorControlService {
 	 * Stops the motors and sets the brakes to enabled.
 	 */
 	public void stopMotors() throws ConnectionLostException {
-		_isRobotMoving = false;		
+		setRobotMoving(false);
 		setBrakesEnabled(true);		
 	}
 	
@@ -312,6 +558,8 @@ public class MotorControlService {
 	 * @param areBrakesEnabled
 	 */
 	public void setBrakesEnabled(boolean areBrakesEnabled) throws ConnectionLostException {
+		//Recorded first, so it is known even if the write below fails
+		ioio.getMotorOutputState().setBrakesEnabled(areBrakesEnabled);
 		if (ioio.getLeftMotorBrake() != null) {
 			ioio.getLeftMotorBrake().write(areBrakesEnabled);
 		}
@@ -323,9 +571,14 @@ public class MotorControlService {
 		//If we enable brakes, also stop the motors.
 		//
 		if (areBrakesEnabled) {
-			_isRobotMoving = false;	
+			setRobotMoving(false);
 			setLeftMotorVelocity(0);
 			setRightMotorVelocity(0);				        
+			
+			//Don't wait for the sequencer to ramp down, drop whatever is queued
+			if (ioio.getSequencerMotorPwm() != null) {
+				ioio.getSequencerMotorPwm().stop();
+			}
 		}		
  	}
 	
@@ -341,15 +594,14 @@ public class MotorControlService {
 		//Calculate the desired shaft encoder clicks to move
 	    //Robot travels 1 degree per 4.701 encoder clicks, DesiredClicks = Degrees * 4.701
 		//		
-		rightClicksToMove = (int) (degreesToTurn * ENCODER_CLICKS_PER_TURN_DEGREE);		
-		leftClicksToMove = rightClicksToMove;
+		int clicksToMove = (int) (degreesToTurn * ENCODER_CLICKS_PER_TURN_DEGREE);		
 		
-		Log.i(LOGTAG,  "MotorControlService.turn called. Left Clicks to Move: " + leftClicksToMove + " Right Clicks to Move: " + rightClicksToMove);
+		Log.i(LOGTAG,  "MotorControlService.turn called. Clicks to Move: " + clicksToMove);
 		
 		//
 		//Start the robot turning
 		//
-	    this.move (0, velocity);		
+	    this.move (0, velocity, clicksToMove);		
 	}
 	
 	/**
@@ -363,13 +615,12 @@ public class MotorControlService {
 		//Calculate the desired shaft encoder clicks to move
 	    //Robot travels .0459 centimeters per shaft click
 		//
-		rightClicksToMove = (int) (distanceToMoveCM / ENCODER_CLICKS_PER_CM);
-		leftClicksToMove = rightClicksToMove;
+		int clicksToMove = (int) (distanceToMoveCM / ENCODER_CLICKS_PER_CM);
 		
 		//
 		//Start the robot turning
 		//
-	    this.move (velocity, 0);			
+	    this.move (velocity, 0, clicksToMove);			
 	}
 	
 	/**
@@ -380,6 +631,19 @@ public class MotorControlService {
 	 * 
 	 */
 	public void move (int velocity, int bias) throws ConnectionLostException {
+		move(velocity, bias, 0);
+	}
+	
+	/**
+	 * Move the robot, stopping once each wheel has moved the given number of
+	 * encoder clicks.
+	 * 
+	 * @param velocity
+	 * @param bias
+	 * @param clicksToMove The clicks each wheel should move, 0 to keep moving until stopped.
+	 * @throws ConnectionLostException
+	 */
+	protected void move (int velocity, int bias, int clicksToMove) throws ConnectionLostException {
 		
 		if (!ioio.isIOIOConnected()) {
 			Log.e(LOGTAG, "Unable to move. The IOIO is not yet connected and initialized.");
@@ -397,36 +661,58 @@ public class MotorControlService {
 		Log.d(LOGTAG, "MotorControlService.move After limit range applied to velocity and bias. Velocity: " + velocity + " Bias: " + bias);
 		
         //
-		//Calculate the encoder clicks per time interval we want to achieve
+		//Calculate the encoder clicks per second we want each wheel to achieve
 		//
-        desiredVelocityClicks = (MAX_SPEED_PER_INTERVAL * Math.abs(velocity)) / 100;
-        desiredBiasClicks = (MAX_SPEED_PER_INTERVAL * Math.abs(bias)) / 100;
+        leftTargetClicksPerSecond = limitRange((MAX_CLICKS_PER_SECOND * Math.abs(velocity + bias)) / 100, 0, MAX_CLICKS_PER_SECOND);
+        rightTargetClicksPerSecond = limitRange((MAX_CLICKS_PER_SECOND * Math.abs(velocity - bias)) / 100, 0, MAX_CLICKS_PER_SECOND);
 
-        Log.d(LOGTAG, "MotorControlService.move desiredVelocityClicks: " + desiredVelocityClicks + " desiredBiasClicks: " + desiredBiasClicks);
+        Log.d(LOGTAG, "MotorControlService.move leftTargetClicksPerSecond: " + leftTargetClicksPerSecond + " rightTargetClicksPerSecond: " + rightTargetClicksPerSecond);
                 
+        //
+        //A move in the directions the wheels are already turning continues from their
+        //velocity, keeping the motor outputs, rather than stepping them to 0 and back up.
+        //Reversing a wheel, or a move with no velocity, still starts from a standstill.
+        //
+        boolean isLeftMotorGoingForward = ((velocity + bias) >= 0);
+        boolean isRightMotorGoingForward = ((velocity - bias) >= 0);
+        MotorOutputState outputState = ioio.getMotorOutputState();
+        boolean isContinuing = isRobotMoving() && (velocity != 0 || bias != 0) && isLeftMotorGoingForward == outputState.isLeftMotorGoingForward()
+        		&& isRightMotorGoingForward == outputState.isRightMotorGoingForward();
+        double initialClicksPerSecond = isContinuing ? sampledClicksPerSecond : 0;
+        
         //
         //Clear out all tracking variables for encoder counts and distance traveled
         //
-        resetMotorEncoderTrackingVariables();
+        resetMotorEncoderTrackingVariables(isContinuing);
         clearMotorEncoderPulseCounts();
+        leftClicksToMove = clicksToMove;
+        rightClicksToMove = leftClicksToMove;
         
         //
-        //Set our intial Velocities
-        //        
-        leftMotorVelocity = limitRange (((MAX_MOTOR_SPEED * Math.abs((velocity + bias)))/100), 0, MAX_MOTOR_SPEED);
-        setLeftMotorVelocity(leftMotorVelocity);
-        
-        rightMotorVelocity = limitRange (((MAX_MOTOR_SPEED * Math.abs((velocity - bias)))/100), 0, MAX_MOTOR_SPEED);
-        setRightMotorVelocity(rightMotorVelocity);
+        //Plan the move, to the destination if there is one, from the velocity the robot
+        //is moving at. The control loop ramps the motors along the plan.
+        //
+        double distance = leftClicksToMove > 0 ? leftClicksToMove : Double.POSITIVE_INFINITY;
+        motionProfile = new MotionProfile(distance, Math.max(leftTargetClicksPerSecond, rightTargetClicksPerSecond),
+        		MAX_ACCELERATION_CLICKS_PER_SECOND2, MAX_JERK_CLICKS_PER_SECOND3, initialClicksPerSecond);
+        Log.d(LOGTAG, "MotorControlService.move Planned " + motionProfile);
+        if (!isContinuing) {
+        	setLeftMotorVelocity(0);
+        	setRightMotorVelocity(0);
+        }
         
         //
         //Set the direction of the motors to turn
         //
-        //Left motor
-        boolean isLeftMotorGoingForward = ((velocity + bias) >= 0);
-        ioio.getLeftMotorDirection().write(isLeftMotorGoingForward);
-        boolean isRightMotorGoingForward = ((velocity - bias) >= 0);
-        ioio.getRightMotorDirection().write(isRightMotorGoingForward);
+        outputState.setDirections(isLeftMotorGoingForward, isRightMotorGoingForward);
+        SequencerMotorPwm sequencerMotorPwm = ioio.getSequencerMotorPwm();
+        if (sequencerMotorPwm != null) {
+        	sequencerMotorPwm.setDirections(isLeftMotorGoingForward, isRightMotorGoingForward);
+        }
+        else {
+        	ioio.getLeftMotorDirection().write(isLeftMotorGoingForward);
+        	ioio.getRightMotorDirection().write(isRightMotorGoingForward);
+        }
 		
         //
 		//Ensure the brakes are disabled
@@ -434,7 +720,14 @@ public class MotorControlService {
         this.setBrakesEnabled(false);
         
 		if (velocity != 0 || bias != 0) {
-			_isRobotMoving = true;
+			moveConnectionCount = ioio.getConnectionCount();
+			motionProfileStartNanos = System.nanoTime();
+			setRobotMoving(true);
+			
+			//Start the acceleration ramp now rather than on the next monitor interval
+			if (sequencerMotorPwm != null) {
+				sequencerMotorPwm.service();
+			}
 		}        
 	}
 	
@@ -451,21 +744,47 @@ public class MotorControlService {
 	}
 	
 	/**
-	 * Reset the variables used by the motor monitor thread to control
+	 * Reset the variables used by the motor monitor to control
 	 * the motors and ensure the robot moves as expected.
+	 * The control task may be in the middle of a tick, so rather than reset its state
+	 * from under it, this leaves the reset to the task, before its next sample.
 	 * 
 	 */
 	public void resetMotorEncoderTrackingVariables() {
+		resetMotorEncoderTrackingVariables(false);
+	}
+
+	/**
+	 * Reset the variables used by the motor monitor, see resetMotorEncoderTrackingVariables().
+	 * 
+	 * @param isKeepingWheels Whether to keep the state of the wheel controllers, for a move
+	 * continuing at the velocity the wheels are turning at.
+	 */
+	protected void resetMotorEncoderTrackingVariables(boolean isKeepingWheels) {
+		isPIDEnabled = true;
+		isTrackingResetKeepingWheels = isKeepingWheels;
+		trackingResetNanos = System.nanoTime();
+		isTrackingResetPending = true;
+	}
+
+	/**
+	 * Reset the distance moved and the controllers, as asked for by
+	 * resetMotorEncoderTrackingVariables(). Only called by the control task.
+	 */
+	protected void applyTrackingReset() {
+		isTrackingResetPending = false;
 		leftClicksMoved = 0;
 		rightClicksMoved = 0;
-		isSpeedReduced = false;
-		isPIDEnabled = true;
 		
-		integral = 0;
-		integralError = 0;							
+		clicksDifference = 0;
 		leftError = 0;
 		rightError = 0;
-		
+		if (!isTrackingResetKeepingWheels) {
+			leftWheelController.reset();
+			rightWheelController.reset();
+		}
+		syncController.reset();
+		lastSampleNanos = trackingResetNanos;
 	}
 	
 	/**
@@ -497,7 +816,13 @@ public class MotorControlService {
 	public void setLeftMotorVelocity (double motorVelocity) throws ConnectionLostException {
 		//Log.i(LOGTAG, "MotorControlService.setLeftMotorVelocity motorVelocity: " + motorVelocity);
 		motorVelocity = limitRange (motorVelocity, 0, MAX_MOTOR_SPEED);
-		if (ioio.getLeftMotorPwm() != null) {
+		ioio.getMotorOutputState().setLeftMotorVelocity(motorVelocity);
+		if (ioio.getSequencerMotorPwm() != null) {
+			//The sequencer ramps to this velocity
+			this.leftMotorVelocity = motorVelocity;
+			ioio.getSequencerMotorPwm().setLeftMotorVelocity(motorVelocity);
+		}
+		else if (ioio.getLeftMotorPwm() != null) {
 			this.leftMotorVelocity = motorVelocity;
 	        float dutyCycle = (float) leftMotorVelocity / 100.00f;        
 	        
@@ -515,7 +840,13 @@ public class MotorControlService {
 	public void setRightMotorVelocity (double motorVelocity) throws ConnectionLostException {
 		//Log.i(LOGTAG, "MotorControlService.setRightMotorVelocity motorVelocity: " + motorVelocity);
 		motorVelocity = limitRange (motorVelocity, 0, MAX_MOTOR_SPEED);
-		if (ioio.getRightMotorPwm() != null) {
+		ioio.getMotorOutputState().setRightMotorVelocity(motorVelocity);
+		if (ioio.getSequencerMotorPwm() != null) {
+			//The sequencer ramps to this velocity
+			this.rightMotorVelocity = motorVelocity;
+			ioio.getSequencerMotorPwm().setRightMotorVelocity(motorVelocity);
+		}
+		else if (ioio.getRightMotorPwm() != null) {
 			this.rightMotorVelocity = motorVelocity;
 	        float dutyCycle = (float) rightMotorVelocity / 100.00f;
 	        
@@ -542,23 +873,13 @@ public class MotorControlService {
 	}
 	
 	/**
-	 * This method will slow both the motors down to the predefined
-	 * SLOW_MOTOR_POSITIONING_SPEED if the speed of the motor is greater than
-	 * that speed.
-	 * It also sets the flag that speed has been reduced and disables PID on the
-	 * motors to avoid speeding them back up.
+	 * Get the telemetry of the most recent PID ticks, which can be written out
+	 * as CSV or binary.
 	 * 
+	 * @return
 	 */
-	public void slowMotorsForFinalPositioning() throws ConnectionLostException {
-		isSpeedReduced = true;
-		isPIDEnabled = false;
-		
-		if (getLeftMotorVelocity() > SLOW_MOTOR_POSITIONING_SPEED) {
-			setLeftMotorVelocity(SLOW_MOTOR_POSITIONING_SPEED);
-		}
-		if (getRightMotorVelocity() > SLOW_MOTOR_POSITIONING_SPEED) {
-			setRightMotorVelocity(SLOW_MOTOR_POSITIONING_SPEED);
-		}
+	public PidTelemetry getPidTelemetry() {
+		return pidTelemetry;
 	}
 	
 	/** 
@@ -568,5 +889,68 @@ public class MotorControlService {
 	public boolean isRobotMoving() {
 		return _isRobotMoving;
 	}
+
+	/**
+	 * Set whether the robot is moving, waking up anyone waiting for it to stop.
+	 * Starting to move wakes up the motor monitor at its full rate right away, stopping
+	 * drops it to the settle rate, after which it parks.
+	 * 
+	 * @param isRobotMoving
+	 */
+	protected void setRobotMoving(boolean isRobotMoving) {
+		synchronized (this) {
+			if (_isRobotMoving == isRobotMoving) {
+				return;
+			}
+			_isRobotMoving = isRobotMoving;
+			notifyAll();
+
+			if (isRobotMoving) {
+				stoppedNanos = 0;
+				encoderTask.setRateHz(MOTOR_MONITOR_RATE_HZ);
+				motorControlTask.setRateHz(MOTOR_MONITOR_RATE_HZ);
+				sequencerTask.setRateHz(MOTOR_MONITOR_RATE_HZ);
+			}
+			else {
+				stoppedNanos = System.nanoTime();
+				motorControlTask.setRateHz(0);
+				sequencerTask.setRateHz(0);
+				encoderTask.setRateHz(MOTOR_SETTLE_RATE_HZ);
+			}
+		}
+
+		MotionListener listener = motionListener;
+		if (listener != null) {
+			listener.motionChanged(isRobotMoving);
+		}
+	}
+
+	/**
+	 * Set the listener notified whenever the robot starts or stops moving.
+	 * 
+	 * @param motionListener The listener, or null for none.
+	 */
+	public void setMotionListener(MotionListener motionListener) {
+		this.motionListener = motionListener;
+	}
+
+	/**
+	 * Wait until the robot stops moving, rather than polling isRobotMoving().
+	 * 
+	 * @param timeoutMs The longest to wait, in milliseconds.
+	 * @return Whether the robot has stopped.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean waitUntilStopped(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (_isRobotMoving) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
 	
 }
@@ -1,7 +1,14 @@
 package com.timarcher.robotcontrolsystemng.services;
 
+import java.io.File;
+import java.io.IOException;
+
 import ioio.lib.util.IOIOLooper;
+import ioio.lib.util.MultiBoardLooperProvider;
+import ioio.lib.util.PeripheralRegistry;
 import ioio.lib.util.android.IOIOService;
+import ioio.lib.api.exception.ConnectionLostException;
+import com.timarcher.robotcontrolsystemng.robot.control.ControlExecutor;
 import com.timarcher.robotcontrolsystemng.robot.ioio.RobotIOIOInterface;
 import com.timarcher.robotcontrolsystemng.robot.speech.TextToSpeechService;
 import android.app.Service;
@@ -20,14 +27,34 @@ import android.util.Log;
 public class RobotInterfaceService extends IOIOService {
 	/** Logging tag. */
 	protected static final String LOGTAG = "RobotInterfaceService";
+	/** Name of the IOIO board driving the main drive motors. */
+	public static final String BOARD_MOTOR = "motor";
+	/** Names of the peripherals owned by the motor board. */
+	public static final String PERIPHERAL_LEFT_MOTOR = "leftMotor";
+	public static final String PERIPHERAL_RIGHT_MOTOR = "rightMotor";
+	public static final String PERIPHERAL_LEFT_MOTOR_ENCODER = "leftMotorEncoder";
+	public static final String PERIPHERAL_RIGHT_MOTOR_ENCODER = "rightMotorEncoder";
+	public static final String PERIPHERAL_ONBOARD_LED = "onboardLed";
+	/** The control executor's tick, in nanoseconds. Task rates are rounded to whole ticks. */
+	protected static final long CONTROL_TICK_NANOS = 10000000L;
+	/** How often the onboard LED is toggled while the robot moves. Twice a second blinks it at 1Hz. */
+	protected static final double ONBOARD_LED_RATE_HZ = 2;
 	/** The robots text to speech service */
 	protected TextToSpeechService tts;
 	/** The custom IOIO interface class. */ 
 	RobotIOIOInterface ioioInterface;
+	/** The IOIO boards, each with its own looper, selected by hardware ID. */
+	MultiBoardLooperProvider boards;
+	/** Which board each named peripheral is wired to. */
+	PeripheralRegistry peripherals;
 	/** Used for sending notifications to the android OS. */
 	NotificationService notificationService;
 	/** The service responsible for controlling the main drive motors. */
 	MotorControlService motorControlService;	
+	/** Runs all the periodic robot tasks, such as motor control and the status LED. */
+	ControlExecutor controlExecutor;
+	/** Blinks the onboard LED while the robot moves. */
+	ControlExecutor.Task onboardLedTask;
 	/** A reference to the binder for when clients connect to this service. */
 	protected final IBinder robotInterfaceServiceBinder = new RobotInterfaceServiceBinder();
 	
@@ -176,25 +203,87 @@ public class RobotInterfaceService extends IOIOService {
 	}
 	
 	/**
-	 * Overridden method from the IOIO Service. This is called
-	 * when the service starts to initialize the Robot IOIO Interface.
+	 * Overridden method from the IOIO Service. This is called once for
+	 * every connection (USB, Bluetooth, ...) the IOIO service opens.
+	 * 
+	 * Each connection gets its own looper, which drives whichever of our boards
+	 * matches the IOIO that connects over it, so one board is never driven by
+	 * two connections at the same time.
 	 * 
 	 */
 	@Override
-	protected IOIOLooper createIOIOLooper() {
-		Log.d(LOGTAG, "createIOIOLooper called");
-		//Duplicate call to initialize here to ensure the IOIO interface is
+	public IOIOLooper createIOIOLooper(String connectionType, Object extra) {
+		Log.d(LOGTAG, "createIOIOLooper called for " + connectionType);
+		//Duplicate call to initialize here to ensure the boards are
 		//not null
 		initializeRobotServices();
-		return ioioInterface;
+		return boards.createIOIOLooper(connectionType, extra);
 	}	
 	
+	/**
+	 * Get the executor running the periodic robot tasks, and their timing statistics.
+	 * 
+	 * @return
+	 */
+	public ControlExecutor getControlExecutor() {
+		return controlExecutor;
+	}
+
+	/**
+	 * Write the telemetry of the most recent motor PID ticks to a new file in the
+	 * app's files directory, for tuning the motor control loop.
+	 * 
+	 * @param isCsv Whether to write CSV, otherwise the binary layout (see PidTelemetry).
+	 * @return The file written.
+	 * @throws IOException
+	 */
+	public File dumpPidTelemetry(boolean isCsv) throws IOException {
+		File file = new File(getFilesDir(), "pid-telemetry-" + System.currentTimeMillis() + (isCsv ? ".csv" : ".bin"));
+		int count;
+		if (isCsv) {
+			count = motorControlService.getPidTelemetry().writeCsv(file);
+		}
+		else {
+			count = motorControlService.getPidTelemetry().writeBinary(file);
+		}
+		Log.i(LOGTAG, "Wrote " + count + " PID ticks to " + file);
+		return file;
+	}
+
+	/**
+	 * Get the IOIO boards and their connection metrics.
+	 * 
+	 * @return
+	 */
+	public MultiBoardLooperProvider getBoards() {
+		return boards;
+	}
+
+	/**
+	 * Get the registry of which board each peripheral is wired to.
+	 * 
+	 * @return
+	 */
+	public PeripheralRegistry getPeripherals() {
+		return peripherals;
+	}
+
+	/**
+	 * Get the interface to the board a peripheral is wired to, as registered.
+	 * 
+	 * @param peripheral
+	 * @return
+	 */
+	protected RobotIOIOInterface getBoardInterface(String peripheral) {
+		return (RobotIOIOInterface) peripherals.getBoard(peripheral).getLooper();
+	}
+	
 	/**
 	 * Method to initialize all of the required/dependent services and objects 
 	 * utilized by this robot service.
 	 * 
 	 */
-	protected void initializeRobotServices() {
+	protected synchronized void initializeRobotServices() {
 	    //
 	    //Initialize text to speech
 	    //	        
@@ -217,12 +306,72 @@ public class RobotInterfaceService extends IOIOService {
 			ioioInterface = new RobotIOIOInterface();
 		}
 
+		//
+		//Map the IOIO boards. Only the motor board exists for now, and it
+		//accepts any hardware ID. Boards with a specific hardware ID (e.g. one
+		//for sonar and sensors) have to be added before it.
+		//
+		if (boards == null) {
+			boards = new MultiBoardLooperProvider();
+			boards.addBoard(BOARD_MOTOR, null, null, ioioInterface);
+
+			peripherals = new PeripheralRegistry(boards);
+			peripherals.register(PERIPHERAL_LEFT_MOTOR, BOARD_MOTOR);
+			peripherals.register(PERIPHERAL_RIGHT_MOTOR, BOARD_MOTOR);
+			peripherals.register(PERIPHERAL_LEFT_MOTOR_ENCODER, BOARD_MOTOR);
+			peripherals.register(PERIPHERAL_RIGHT_MOTOR_ENCODER, BOARD_MOTOR);
+			peripherals.register(PERIPHERAL_ONBOARD_LED, BOARD_MOTOR);
+		}
+
+		//
+		//The executor for the periodic tasks, started once they are all registered.
+		//The onboard LED blinks while the robot moves, and is lit steady while it
+		//stands still, so the executor can park.
+		//
+		if (controlExecutor == null) {
+			controlExecutor = new ControlExecutor(CONTROL_TICK_NANOS);
+			final RobotIOIOInterface ledBoard = getBoardInterface(PERIPHERAL_ONBOARD_LED);
+			onboardLedTask = controlExecutor.addTask("onboardLed", ControlExecutor.Phase.ACTUATE, 0, new ControlExecutor.ControlTask() {
+				@Override
+				public void execute() throws ConnectionLostException {
+					if (motorControlService != null && motorControlService.isRobotMoving()) {
+						ledBoard.toggleOnboardLed();
+					}
+					else {
+						ledBoard.setOnboardLedLit(true);
+					}
+				}
+			});
+		}
+
 		//
 		//Setup the main motor driver service
 		//
 		if (motorControlService == null) {
-			motorControlService = new MotorControlService(ioioInterface);
+			//
+			//The motor control loop drives the motors from their encoders, so they
+			//all have to be on the same board
+			//
+			RobotIOIOInterface motorBoard = getBoardInterface(PERIPHERAL_LEFT_MOTOR);
+			String[] motorPeripherals = {PERIPHERAL_RIGHT_MOTOR, PERIPHERAL_LEFT_MOTOR_ENCODER, PERIPHERAL_RIGHT_MOTOR_ENCODER};
+			for (String peripheral : motorPeripherals) {
+				if (getBoardInterface(peripheral) != motorBoard) {
+					throw new IllegalStateException("The motors and their encoders have to be on one board, " + peripheral + " is not");
+				}
+			}
+			motorControlService = new MotorControlService(motorBoard, controlExecutor);
+			motorControlService.setMotionListener(new MotorControlService.MotionListener() {
+				@Override
+				public void motionChanged(boolean isRobotMoving) {
+					onboardLedTask.setRateHz(isRobotMoving ? ONBOARD_LED_RATE_HZ : 0);
+					if (!isRobotMoving) {
+						//Once more, to leave it lit
+						onboardLedTask.trigger();
+					}
+				}
+			});
 		}
 		
+		controlExecutor.start();
 	}
 }
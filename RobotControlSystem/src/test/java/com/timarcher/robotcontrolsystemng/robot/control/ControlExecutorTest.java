@@ -0,0 +1,92 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the ControlExecutor's scheduling, in particular that it
+ * costs no wakeups while every task is suspended.
+ */
+public class ControlExecutorTest {
+	/** A 10ms tick, as the robot uses. */
+	protected static final long TICK_NANOS = 10000000L;
+
+	protected ControlExecutor executor;
+	protected final AtomicInteger runs = new AtomicInteger();
+	protected ControlExecutor.Task task;
+
+	@Before
+	public void setUp() throws Exception {
+		executor = new ControlExecutor(TICK_NANOS);
+		task = executor.addTask("counter", ControlExecutor.Phase.CONTROL, 0, new ControlExecutor.ControlTask() {
+			@Override
+			public void execute() {
+				runs.incrementAndGet();
+			}
+		});
+		executor.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.stop();
+	}
+
+	@Test
+	public void parkedExecutorDoesNotWakeUp() throws Exception {
+		waitUntilParked(1);
+		long wakeups = executor.getWakeupCount();
+		Thread.sleep(500);
+		assertEquals(wakeups, executor.getWakeupCount());
+		assertEquals(1, executor.getParkCount());
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void triggerRunsOnceThenParksAgain() throws Exception {
+		waitUntilParked(1);
+		task.trigger();
+		waitUntilParked(2);
+		Thread.sleep(200);
+		assertEquals(1, runs.get());
+		assertEquals(2, executor.getParkCount());
+		//Woken up once by the trigger
+		assertEquals(1, executor.getWakeupCount());
+	}
+
+	@Test
+	public void runsAtItsRateUntilSuspended() throws Exception {
+		waitUntilParked(1);
+		task.setRateHz(50);
+		Thread.sleep(500);
+		task.setRateHz(0);
+		waitUntilParked(2);
+		//25 runs in 500ms, with some slack for scheduling
+		int count = runs.get();
+		assertTrue("Ran " + count + " times", count >= 20 && count <= 27);
+
+		count = runs.get();
+		long wakeups = executor.getWakeupCount();
+		Thread.sleep(300);
+		assertEquals(count, runs.get());
+		assertEquals(wakeups, executor.getWakeupCount());
+	}
+
+	/**
+	 * Wait until the executor has parked the given number of times, and is parked.
+	 */
+	protected void waitUntilParked(long parkCount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000;
+		while (executor.getParkCount() < parkCount) {
+			assertTrue("Executor did not park", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		//Give it time to actually park after counting
+		Thread.sleep(20);
+	}
+}
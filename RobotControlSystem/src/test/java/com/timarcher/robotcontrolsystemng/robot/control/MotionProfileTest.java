@@ -0,0 +1,179 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the MotionProfile, with the limits the robot plans its moves with.
+ */
+public class MotionProfileTest {
+	/** Limits in encoder clicks and seconds. */
+	protected static final double MAX_VELOCITY = 1360;
+	protected static final double MAX_ACCELERATION = 2720;
+	protected static final double MAX_JERK = 13600;
+
+	/** Step for sampling a profile, in seconds. */
+	protected static final double STEP_SECONDS = 0.0005;
+	protected static final double EPSILON = 1e-6;
+
+	@Test
+	public void trapezoidPhaseTiming() throws Exception {
+		MotionProfile profile = new MotionProfile(5000, MAX_VELOCITY, MAX_ACCELERATION, 0);
+		//0.5s to reach the max velocity, over 340 clicks each way
+		double cruise = (5000 - 2 * 340) / MAX_VELOCITY;
+		assertEquals(MAX_VELOCITY, profile.getPeakVelocity(), EPSILON);
+		assertEquals(2 * 0.5 + cruise, profile.getDurationSeconds(), EPSILON);
+		assertEquals(MAX_VELOCITY / 2, profile.getVelocity(0.25), EPSILON);
+		assertEquals(340, profile.getPosition(0.5), EPSILON);
+		assertEquals(MAX_VELOCITY, profile.getVelocity(0.5 + cruise / 2), EPSILON);
+		assertEquals(5000 - 340, profile.getPosition(0.5 + cruise), EPSILON);
+		assertEquals(MAX_VELOCITY / 2, profile.getVelocity(0.75 + cruise), EPSILON);
+		assertCompletesWithinLimits(profile, MAX_VELOCITY, MAX_ACCELERATION, 0);
+	}
+
+	@Test
+	public void sCurvePhaseTiming() throws Exception {
+		MotionProfile profile = new MotionProfile(5000, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+		//0.2s of jerk up to the max acceleration, 0.3s at it, and 0.2s of jerk down
+		//reaches the max velocity after 0.7s, over 476 clicks each way
+		double cruise = (5000 - 2 * 476) / MAX_VELOCITY;
+		assertEquals(MAX_VELOCITY, profile.getPeakVelocity(), EPSILON);
+		assertEquals(2 * 0.7 + cruise, profile.getDurationSeconds(), EPSILON);
+		assertEquals(MAX_JERK * 0.2 * 0.2 / 2, profile.getVelocity(0.2), EPSILON);
+		assertEquals(MAX_VELOCITY / 2, profile.getVelocity(0.35), EPSILON);
+		assertEquals(476, profile.getPosition(0.7), EPSILON);
+		assertEquals(MAX_VELOCITY, profile.getVelocity(0.7 + cruise / 2), EPSILON);
+		assertEquals(5000 - 476, profile.getPosition(0.7 + cruise), EPSILON);
+		assertEquals(MAX_VELOCITY / 2, profile.getVelocity(1.05 + cruise), EPSILON);
+		assertCompletesWithinLimits(profile, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+	}
+
+	@Test
+	public void shortMoveLowersThePeakVelocity() throws Exception {
+		MotionProfile trapezoid = new MotionProfile(200, MAX_VELOCITY, MAX_ACCELERATION, 0);
+		//Accelerates halfway and decelerates the other half: v^2 = a * d
+		assertEquals(Math.sqrt(MAX_ACCELERATION * 200), trapezoid.getPeakVelocity(), 0.01);
+		assertEquals(2 * trapezoid.getPeakVelocity() / MAX_ACCELERATION, trapezoid.getDurationSeconds(), 0.0001);
+		assertCompletesWithinLimits(trapezoid, MAX_VELOCITY, MAX_ACCELERATION, 0);
+
+		//Too short to reach the max acceleration, so the acceleration only ramps up and down
+		MotionProfile sCurve = new MotionProfile(200, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+		assertTrue(sCurve.getPeakVelocity() * MAX_JERK < MAX_ACCELERATION * MAX_ACCELERATION);
+		assertEquals(4 * Math.sqrt(sCurve.getPeakVelocity() / MAX_JERK), sCurve.getDurationSeconds(), 0.0001);
+		assertCompletesWithinLimits(sCurve, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+
+		//Just long enough to reach the max acceleration, but not the max velocity
+		MotionProfile medium = new MotionProfile(700, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+		assertTrue(medium.getPeakVelocity() < MAX_VELOCITY);
+		assertCompletesWithinLimits(medium, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+	}
+
+	@Test
+	public void infiniteDistanceCruisesForever() throws Exception {
+		MotionProfile profile = new MotionProfile(Double.POSITIVE_INFINITY, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+		assertTrue(Double.isInfinite(profile.getDurationSeconds()));
+		assertEquals(MAX_VELOCITY, profile.getPeakVelocity(), EPSILON);
+		assertEquals(476, profile.getPosition(0.7), EPSILON);
+		assertEquals(MAX_VELOCITY, profile.getVelocity(3600), EPSILON);
+		assertEquals(476 + MAX_VELOCITY * (3600 - 0.7), profile.getPosition(3600), 0.001);
+		assertFalse(profile.isFinished(3600));
+	}
+
+	@Test
+	public void zeroVelocityDoesNotMove() throws Exception {
+		MotionProfile profile = new MotionProfile(5000, 0, MAX_ACCELERATION, MAX_JERK);
+		assertEquals(0, profile.getDurationSeconds(), 0);
+		assertEquals(0, profile.getVelocity(1), 0);
+		assertTrue(profile.isFinished(0));
+	}
+
+	@Test
+	public void continuesFromTheInitialVelocity() throws Exception {
+		//Already moving at half speed, it only has the other half to accelerate
+		MotionProfile faster = new MotionProfile(5000, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK, MAX_VELOCITY / 2);
+		assertEquals(MAX_VELOCITY / 2, faster.getVelocity(0), EPSILON);
+		assertEquals(MAX_VELOCITY, faster.getPeakVelocity(), EPSILON);
+		//0.2s of jerk up to the max acceleration, 0.05s at it, and 0.2s of jerk down
+		assertEquals(MAX_VELOCITY, faster.getVelocity(0.45), EPSILON);
+		assertEquals(MAX_VELOCITY * 0.75 * 0.45, faster.getPosition(0.45), EPSILON);
+		assertCompletesWithinLimits(faster, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+
+		//Moving faster than the new max velocity, it slows down to it first
+		MotionProfile slower = new MotionProfile(5000, MAX_VELOCITY / 2, MAX_ACCELERATION, MAX_JERK, MAX_VELOCITY);
+		assertEquals(MAX_VELOCITY / 2, slower.getVelocity(0.45), EPSILON);
+		assertEquals(MAX_VELOCITY * 0.75 * 0.45, slower.getPosition(0.45), EPSILON);
+		assertCompletesWithinLimits(slower, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+
+		//Without a destination, it changes velocity and cruises
+		MotionProfile endless = new MotionProfile(Double.POSITIVE_INFINITY, MAX_VELOCITY / 2, MAX_ACCELERATION, MAX_JERK,
+				MAX_VELOCITY);
+		assertEquals(MAX_VELOCITY / 2, endless.getVelocity(3600), EPSILON);
+	}
+
+	@Test
+	public void shortMoveFromTheInitialVelocity() throws Exception {
+		//Long enough to stop in, but not to reach the max velocity
+		MotionProfile medium = new MotionProfile(800, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK, MAX_VELOCITY / 2);
+		assertTrue(medium.getPeakVelocity() < MAX_VELOCITY);
+		assertEquals(800, medium.getDistance(), EPSILON);
+		assertCompletesWithinLimits(medium, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+
+		//Too short to stop in, so it stops right away and goes further: 476 clicks from the max velocity
+		MotionProfile overshoot = new MotionProfile(100, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK, MAX_VELOCITY);
+		assertEquals(0, overshoot.getPeakVelocity(), 0);
+		assertEquals(476, overshoot.getDistance(), EPSILON);
+		assertEquals(0.7, overshoot.getDurationSeconds(), EPSILON);
+		assertCompletesWithinLimits(overshoot, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeDistance() throws Exception {
+		new MotionProfile(-1, MAX_VELOCITY, MAX_ACCELERATION, MAX_JERK);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsZeroAcceleration() throws Exception {
+		new MotionProfile(5000, MAX_VELOCITY, 0, MAX_JERK);
+	}
+
+	/**
+	 * Sample a profile from start to end, and assert that it reaches its distance,
+	 * stops there, keeps position and velocity consistent, and holds the limits.
+	 *
+	 * @param maxJerk The jerk limit to check, 0 to not check it.
+	 */
+	protected static void assertCompletesWithinLimits(MotionProfile profile, double maxVelocity,
+			double maxAcceleration, double maxJerk) {
+		double duration = profile.getDurationSeconds();
+		double previousPosition = 0;
+		//Any initial velocity is steady
+		double previousVelocity = profile.getVelocity(0);
+		double previousAcceleration = 0;
+		for (double t = STEP_SECONDS; t < duration + STEP_SECONDS; t += STEP_SECONDS) {
+			double position = profile.getPosition(t);
+			double velocity = profile.getVelocity(t);
+			double acceleration = (velocity - previousVelocity) / STEP_SECONDS;
+			String at = "At " + t + "s of " + profile;
+
+			assertTrue(at, velocity >= 0 && velocity <= maxVelocity + EPSILON);
+			assertTrue(at, position >= previousPosition - EPSILON);
+			//The position is the integral of the velocity
+			assertEquals(at, (previousVelocity + velocity) / 2 * STEP_SECONDS, position - previousPosition, 0.01);
+			assertTrue(at + " acceleration " + acceleration, Math.abs(acceleration) <= maxAcceleration * 1.001);
+			if (maxJerk > 0) {
+				double jerk = (acceleration - previousAcceleration) / STEP_SECONDS;
+				assertTrue(at + " jerk " + jerk, Math.abs(jerk) <= maxJerk * 1.001);
+			}
+
+			previousPosition = position;
+			previousVelocity = velocity;
+			previousAcceleration = acceleration;
+		}
+		assertTrue(profile.isFinished(duration));
+		assertFalse(profile.isFinished(duration - STEP_SECONDS));
+		assertEquals(profile.getDistance(), profile.getPosition(duration), EPSILON);
+		assertEquals(0, profile.getVelocity(duration), EPSILON);
+		assertEquals(profile.getDistance(), profile.getPosition(duration + 1), 0);
+	}
+}
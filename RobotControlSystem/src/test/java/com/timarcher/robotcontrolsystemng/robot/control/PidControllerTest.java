@@ -0,0 +1,170 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the PidController, driving a simulated wheel at the
+ * rates the control loop can run at.
+ */
+public class PidControllerTest {
+	/** The wheel gains the robot starts from, clicks per second in and percent of motor speed out. */
+	protected static final double KP = 0.02;
+	protected static final double KI = 0.1;
+	protected static final double KD = 0.0002;
+	protected static final double KF = 100 / 1360.0;
+	protected static final double FILTER_SECONDS = 0.03;
+
+	/** The rates to run the controller at, in Hz. */
+	protected static final int[] RATES_HZ = {20, 100, 500};
+
+	/**
+	 * A wheel whose velocity follows the motor output with a first order lag, and
+	 * which only reports whole encoder clicks.
+	 */
+	protected static class SimulatedWheel {
+		/** Simulation step, in seconds. */
+		protected static final double STEP_SECONDS = 0.0001;
+		/** Response time of the wheel, in seconds. */
+		protected static final double TIME_CONSTANT_SECONDS = 0.1;
+		/** Velocity at full output, clicks per second. Below what the feedforward assumes, so the integral has work to do. */
+		protected static final double FULL_SPEED_CLICKS_PER_SECOND = 1100;
+
+		protected double velocity = 0;
+		protected double position = 0;
+		protected double seconds = 0;
+		/** Clicks per second the load takes off the velocity. */
+		protected double load = 0;
+
+		/**
+		 * Run the wheel with the given output for a while.
+		 *
+		 * @return The whole clicks moved.
+		 */
+		public long run(double output, double runSeconds) {
+			long clicksBefore = (long)Math.floor(position);
+			double end = seconds + runSeconds;
+			while (seconds < end - STEP_SECONDS / 2) {
+				double target = Math.max(0, output / 100 * FULL_SPEED_CLICKS_PER_SECOND - load);
+				velocity += (target - velocity) * STEP_SECONDS / TIME_CONSTANT_SECONDS;
+				position += velocity * STEP_SECONDS;
+				seconds += STEP_SECONDS;
+			}
+			return (long)Math.floor(position) - clicksBefore;
+		}
+	}
+
+	/**
+	 * The result of running the controller against a wheel.
+	 */
+	protected static class Run {
+		protected final PidController controller = new PidController(KP, KI, KD, KF, 0, 100);
+		protected final SimulatedWheel wheel = new SimulatedWheel();
+		protected final int rateHz;
+		protected long nanos = 0;
+		protected double output = 0;
+		/** The highest velocity seen, and the last time it was off target by more than the tolerance. */
+		protected double peakVelocity = 0;
+		protected double lastOutsideSeconds = 0;
+
+		public Run(int rateHz) {
+			this.rateHz = rateHz;
+			controller.setMeasurementFilter(FILTER_SECONDS);
+		}
+
+		/**
+		 * Run the loop for a while at a setpoint, tracking the peak velocity and
+		 * when it last left the given tolerance around the setpoint.
+		 */
+		public void run(double setpoint, double runSeconds, double tolerance) {
+			double period = 1.0 / rateHz;
+			peakVelocity = 0;
+			lastOutsideSeconds = wheel.seconds;
+			double end = wheel.seconds + runSeconds;
+			while (wheel.seconds < end - period / 2) {
+				long clicks = wheel.run(output, period);
+				nanos += (long)(period * 1000000000L);
+				output = controller.update(setpoint, clicks / period, nanos);
+				peakVelocity = Math.max(peakVelocity, wheel.velocity);
+				if (Math.abs(wheel.velocity - setpoint) > tolerance * setpoint) {
+					lastOutsideSeconds = wheel.seconds;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void settlesTheSameAtEveryRate() throws Exception {
+		double[] settling = new double[RATES_HZ.length];
+		for (int i = 0; i < RATES_HZ.length; i++) {
+			Run run = new Run(RATES_HZ[i]);
+			run.run(680, 3, 0.05);
+			settling[i] = run.lastOutsideSeconds;
+			assertEquals("Velocity at " + RATES_HZ[i] + "Hz", 680, run.wheel.velocity, 680 * 0.02);
+			assertTrue("Settled at " + RATES_HZ[i] + "Hz after " + settling[i] + "s", settling[i] < 1);
+			assertTrue("Overshoot at " + RATES_HZ[i] + "Hz to " + run.peakVelocity, run.peakVelocity < 680 * 1.05);
+		}
+		assertRateIndependent(settling);
+	}
+
+	@Test
+	public void recoversFromALoadStepAtEveryRate() throws Exception {
+		double[] settling = new double[RATES_HZ.length];
+		for (int i = 0; i < RATES_HZ.length; i++) {
+			Run run = new Run(RATES_HZ[i]);
+			run.run(680, 2, 0.05);
+			run.wheel.load = 150;
+			run.run(680, 3, 0.05);
+			settling[i] = run.lastOutsideSeconds - 2;
+			assertEquals("Velocity at " + RATES_HZ[i] + "Hz", 680, run.wheel.velocity, 680 * 0.02);
+			assertTrue("Recovered at " + RATES_HZ[i] + "Hz after " + settling[i] + "s", settling[i] < 2);
+		}
+		assertRateIndependent(settling);
+	}
+
+	@Test
+	public void integralDoesNotWindUpWhileSaturated() throws Exception {
+		double[] settling = new double[RATES_HZ.length];
+		for (int i = 0; i < RATES_HZ.length; i++) {
+			Run run = new Run(RATES_HZ[i]);
+			//More than the wheel can do, so the output sits at its max
+			run.run(1360, 3, 0.05);
+			assertEquals("Output at " + RATES_HZ[i] + "Hz", 100, run.output, 0.001);
+			assertTrue("Integral at " + RATES_HZ[i] + "Hz wound up to " + run.controller.getIntegral(),
+					run.controller.getIntegral() < 10);
+
+			//Back in range, the output comes off its max on the next update
+			run.run(680, 1.0 / RATES_HZ[i], 0.05);
+			assertTrue("Output at " + RATES_HZ[i] + "Hz still " + run.output, run.output < 100);
+			run.run(680, 3, 0.05);
+			settling[i] = run.lastOutsideSeconds - 3;
+			assertEquals("Velocity at " + RATES_HZ[i] + "Hz", 680, run.wheel.velocity, 680 * 0.02);
+			assertTrue("Settled at " + RATES_HZ[i] + "Hz after " + settling[i] + "s", settling[i] < 2);
+		}
+		assertRateIndependent(settling);
+	}
+
+	@Test
+	public void gapRestartsTheTiming() throws Exception {
+		PidController controller = new PidController(0, 1, 0, 0, -100, 100);
+		controller.update(10, 0, 0);
+		controller.update(10, 0, 100000000L);
+		assertEquals(1.0, controller.getIntegral(), 1e-9);
+
+		//A gap longer than MAX_DT_SECONDS is not integrated
+		controller.update(10, 0, 100000000L + 2000000000L);
+		assertEquals(0, controller.getDtSeconds(), 0);
+		assertEquals(1.0, controller.getIntegral(), 1e-9);
+	}
+
+	/**
+	 * Assert that settling times at all the rates are close to the one at the lowest rate.
+	 */
+	protected static void assertRateIndependent(double[] settling) {
+		for (int i = 1; i < RATES_HZ.length; i++) {
+			assertEquals("Settling time at " + RATES_HZ[i] + "Hz against " + RATES_HZ[0] + "Hz",
+					settling[0], settling[i], 0.15);
+		}
+	}
+}
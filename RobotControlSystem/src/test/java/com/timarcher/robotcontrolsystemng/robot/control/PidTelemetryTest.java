@@ -0,0 +1,108 @@
+package com.timarcher.robotcontrolsystemng.robot.control;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the PidTelemetry ring, in particular the order records
+ * come out in once the ring has wrapped around, and the binary layout.
+ */
+public class PidTelemetryTest {
+	protected static final int CAPACITY = 5;
+
+	/**
+	 * Record a tick whose every field is derived from its number, so any record
+	 * read back tells which tick it was.
+	 */
+	protected static void recordTick(PidTelemetry telemetry, int tick) {
+		telemetry.record(1000L * tick, tick, -tick, tick + 0.5, tick + 0.25, -tick - 0.25, tick * 0.125, -tick * 0.125,
+				tick * 2.0, -tick * 2.0);
+	}
+
+	/**
+	 * Fill the ring with 13 ticks, so it has wrapped around twice and holds ticks 8 to 12.
+	 */
+	protected static PidTelemetry overfilledTelemetry() {
+		PidTelemetry telemetry = new PidTelemetry(CAPACITY);
+		for (int tick = 0; tick < 13; tick++) {
+			recordTick(telemetry, tick);
+		}
+		return telemetry;
+	}
+
+	@Test
+	public void keepsTheMostRecentTicks() {
+		PidTelemetry telemetry = new PidTelemetry(CAPACITY);
+		recordTick(telemetry, 0);
+		recordTick(telemetry, 1);
+		assertEquals(2, telemetry.size());
+
+		telemetry = overfilledTelemetry();
+		assertEquals(CAPACITY, telemetry.size());
+		assertEquals(13, telemetry.getWrittenCount());
+
+		telemetry.clear();
+		assertEquals(0, telemetry.size());
+	}
+
+	@Test
+	public void writesCsvOldestFirst() throws Exception {
+		PidTelemetry telemetry = overfilledTelemetry();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(CAPACITY, telemetry.writeCsv(out));
+
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals(CAPACITY + 1, lines.length);
+		assertEquals(PidTelemetry.CSV_HEADER, lines[0]);
+		for (int i = 0; i < CAPACITY; i++) {
+			int tick = 8 + i;
+			assertEquals(1000L * tick + "," + tick + "," + -tick + "," + (tick + 0.5) + "," + (tick + 0.25) + ","
+					+ (-tick - 0.25) + "," + tick * 0.125 + "," + -tick * 0.125 + "," + tick * 2.0 + "," + -tick * 2.0,
+					lines[i + 1]);
+		}
+	}
+
+	@Test
+	public void writesBinaryOldestFirst() throws Exception {
+		PidTelemetry telemetry = overfilledTelemetry();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(CAPACITY, telemetry.writeBinary(out));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(PidTelemetry.BINARY_MAGIC, in.readInt());
+		assertEquals(PidTelemetry.BINARY_VERSION, in.readInt());
+		assertEquals(CAPACITY, in.readInt());
+		for (int i = 0; i < CAPACITY; i++) {
+			int tick = 8 + i;
+			assertEquals(1000L * tick, in.readLong());
+			assertEquals(tick, in.readInt());
+			assertEquals(-tick, in.readInt());
+			assertEquals(tick + 0.5, in.readDouble(), 0);
+			assertEquals(tick + 0.25, in.readDouble(), 0);
+			assertEquals(-tick - 0.25, in.readDouble(), 0);
+			assertEquals(tick * 0.125, in.readDouble(), 0);
+			assertEquals(-tick * 0.125, in.readDouble(), 0);
+			assertEquals(tick * 2.0, in.readDouble(), 0);
+			assertEquals(-tick * 2.0, in.readDouble(), 0);
+		}
+		//Nothing follows the last record
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void writesAnEmptyRing() throws Exception {
+		PidTelemetry telemetry = new PidTelemetry(CAPACITY);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, telemetry.writeBinary(out));
+		assertEquals(12, out.size());
+
+		out.reset();
+		assertEquals(0, telemetry.writeCsv(out));
+		assertEquals(PidTelemetry.CSV_HEADER + "\n", out.toString("UTF-8"));
+	}
+}